@@ -0,0 +1,198 @@
+package pro.javacard.gp;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Compares JMH results in JSON format (-rf json) with a baseline.
+ *
+ * Prints throughput and allocation per operation (from -prof gc) of every
+ * benchmark next to the baseline and exits with 1 if a benchmark got slower
+ * or allocates more than the tolerance allows.
+ * <pre>
+ * BenchCompare &lt;baseline.json&gt; &lt;results.json&gt; [&lt;tolerance %&gt;]
+ * </pre>
+ */
+public final class BenchCompare {
+	// Allocation is exact, but JMH reports fractions of the blackhole and timer
+	private static final double ALLOC_SLACK = 16;
+
+	private static final class Result {
+		double score;
+		double alloc = Double.NaN;
+	}
+
+	public static void main(String[] args) throws IOException {
+		if (args.length < 2 || args.length > 3) {
+			System.err.println("Usage: BenchCompare <baseline.json> <results.json> [<tolerance %>]");
+			System.exit(2);
+		}
+		double tolerance = args.length == 3 ? Double.parseDouble(args[2]) / 100 : 0.10;
+		Map<String, Result> baseline = load(new File(args[0]));
+		Map<String, Result> results = load(new File(args[1]));
+		if (baseline.isEmpty()) {
+			System.out.println("# No baseline in " + args[0] + ", record one with ant bench-baseline");
+		}
+
+		int regressions = 0;
+		System.out.println(String.format("%-60s %14s %14s %8s %10s %10s", "Benchmark", "Baseline", "Score", "Change", "B/op was", "B/op"));
+		for (Map.Entry<String, Result> e : results.entrySet()) {
+			Result r = e.getValue();
+			Result b = baseline.get(e.getKey());
+			String flag = "";
+			if (b == null) {
+				System.out.println(String.format("%-60s %14s %14.3f %8s %10s %10.0f  new", e.getKey(), "-", r.score, "-", "-", r.alloc));
+				continue;
+			}
+			double change = (r.score - b.score) / b.score;
+			if (change < -tolerance) {
+				flag += "  SLOWER";
+			}
+			if (r.alloc > b.alloc * (1 + tolerance) + ALLOC_SLACK) {
+				flag += "  ALLOCATES MORE";
+			}
+			if (!flag.isEmpty()) {
+				regressions++;
+			}
+			System.out.println(String.format("%-60s %14.3f %14.3f %+7.1f%% %10.0f %10.0f%s", e.getKey(), b.score, r.score, change * 100, b.alloc, r.alloc, flag));
+		}
+		for (String k : baseline.keySet()) {
+			if (!results.containsKey(k)) {
+				System.out.println(String.format("%-60s  not run", k));
+			}
+		}
+		System.out.println("# " + results.size() + " benchmarks, " + regressions + " regressions, tolerance " + Math.round(tolerance * 100) + "%");
+		if (regressions > 0) {
+			System.exit(1);
+		}
+	}
+
+	// Results by benchmark name with parameters
+	@SuppressWarnings("unchecked")
+	private static Map<String, Result> load(File f) throws IOException {
+		Map<String, Result> results = new LinkedHashMap<String, Result>();
+		Object json = new Json(new String(Files.readAllBytes(f.toPath()), StandardCharsets.UTF_8)).value();
+		for (Object o : (List<Object>) json) {
+			Map<String, Object> run = (Map<String, Object>) o;
+			String name = (String) run.get("benchmark");
+			name = name.substring(name.lastIndexOf('.', name.lastIndexOf('.') - 1) + 1);
+			Map<String, Object> params = (Map<String, Object>) run.get("params");
+			if (params != null && !params.isEmpty()) {
+				name += params.toString().replace(", ", ",");
+			}
+			Map<String, Object> primary = (Map<String, Object>) run.get("primaryMetric");
+			Result r = new Result();
+			r.score = ((Number) primary.get("score")).doubleValue();
+			Map<String, Object> secondary = (Map<String, Object>) run.get("secondaryMetrics");
+			if (secondary != null) {
+				for (Map.Entry<String, Object> m : secondary.entrySet()) {
+					// The name is prefixed with a middle dot in older JMH versions
+					if (m.getKey().endsWith("gc.alloc.rate.norm")) {
+						r.alloc = ((Number) ((Map<String, Object>) m.getValue()).get("score")).doubleValue();
+					}
+				}
+			}
+			results.put(name, r);
+		}
+		return results;
+	}
+
+	// Just enough JSON for JMH results
+	private static final class Json {
+		private final String s;
+		private int i = 0;
+
+		Json(String s) {
+			this.s = s;
+		}
+
+		Object value() {
+			skip();
+			char c = s.charAt(i);
+			if (c == '{') {
+				Map<String, Object> m = new LinkedHashMap<String, Object>();
+				i++;
+				while (next() != '}') {
+					String k = (String) value();
+					expect(':');
+					m.put(k, value());
+					if (next() == ',') {
+						i++;
+					}
+				}
+				i++;
+				return m;
+			} else if (c == '[') {
+				List<Object> l = new ArrayList<Object>();
+				i++;
+				while (next() != ']') {
+					l.add(value());
+					if (next() == ',') {
+						i++;
+					}
+				}
+				i++;
+				return l;
+			} else if (c == '"') {
+				StringBuilder sb = new StringBuilder();
+				while ((c = s.charAt(++i)) != '"') {
+					if (c == '\\') {
+						c = s.charAt(++i);
+						if (c == 'u') {
+							c = (char) Integer.parseInt(s.substring(i + 1, i + 5), 16);
+							i += 4;
+						} else if (c == 'n') {
+							c = '\n';
+						} else if (c == 't') {
+							c = '\t';
+						}
+					}
+					sb.append(c);
+				}
+				i++;
+				return sb.toString();
+			}
+			int start = i;
+			while (i < s.length() && ",}] \t\r\n".indexOf(s.charAt(i)) < 0) {
+				i++;
+			}
+			String word = s.substring(start, i);
+			if (word.equals("null")) {
+				return null;
+			} else if (word.equals("true") || word.equals("false")) {
+				return Boolean.valueOf(word);
+			} else if (word.equals("NaN")) {
+				return Double.NaN;
+			}
+			try {
+				return Double.valueOf(word);
+			} catch (NumberFormatException e) {
+				throw new IllegalArgumentException("Not valid JSON at " + start + ": " + word);
+			}
+		}
+
+		private char next() {
+			skip();
+			return s.charAt(i);
+		}
+
+		private void expect(char c) {
+			if (next() != c) {
+				throw new IllegalArgumentException("Not valid JSON at " + i + ": expected " + c);
+			}
+			i++;
+		}
+
+		private void skip() {
+			while (i < s.length() && Character.isWhitespace(s.charAt(i))) {
+				i++;
+			}
+		}
+	}
+}
@@ -0,0 +1,107 @@
+package pro.javacard.gp;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * CAP file parsing and splitting into LOAD blocks, with a generated CAP
+ * file of the given code size.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class CapBench {
+	@Param({ "4096", "32768" })
+	public int size;
+
+	private byte[] zip;
+	private File file;
+	private CapFile cap;
+
+	@Setup(Level.Trial)
+	public void setup() throws IOException {
+		zip = generate(size);
+		file = File.createTempFile("bench", ".cap");
+		try (FileOutputStream out = new FileOutputStream(file)) {
+			out.write(zip);
+		}
+		cap = new CapFile(new ByteArrayInputStream(zip));
+	}
+
+	@TearDown(Level.Trial)
+	public void teardown() {
+		file.delete();
+	}
+
+	@Benchmark
+	public CapFile parse() throws IOException {
+		return new CapFile(new ByteArrayInputStream(zip));
+	}
+
+	@Benchmark
+	public AID parseFile() throws IOException {
+		try (CapFile f = new CapFile(file)) {
+			return f.getPackageAID();
+		}
+	}
+
+	@Benchmark
+	public List<byte[]> getLoadBlocks() {
+		return cap.getLoadBlocks(false, false, 247);
+	}
+
+	// Header, Applet and a Method component with the code
+	static byte[] generate(int size) throws IOException {
+		byte[] pkg = new byte[] { (byte) 0xD2, 0x76, 0x00, 0x01, 0x24, 0x01 };
+		byte[] app = new byte[] { (byte) 0xD2, 0x76, 0x00, 0x01, 0x24, 0x01, 0x01 };
+		ByteArrayOutputStream header = new ByteArrayOutputStream();
+		header.write(new byte[] { 0x01, 0x00, (byte) (10 + pkg.length), (byte) 0xDE, (byte) 0xCA, (byte) 0xFF, (byte) 0xED, 0x01, 0x02, 0x04, 0x00, 0x01, (byte) pkg.length });
+		header.write(pkg);
+		ByteArrayOutputStream applet = new ByteArrayOutputStream();
+		applet.write(new byte[] { 0x03, 0x00, (byte) (4 + app.length), 0x01, (byte) app.length });
+		applet.write(app);
+		applet.write(new byte[] { 0x00, 0x10 });
+		byte[] method = new byte[size];
+		method[0] = 0x07;
+		method[1] = (byte) ((size - 3) >> 8);
+		method[2] = (byte) (size - 3);
+		for (int i = 3; i < size; i++) {
+			method[i] = (byte) (i * 31);
+		}
+
+		ByteArrayOutputStream bo = new ByteArrayOutputStream();
+		try (ZipOutputStream zip = new ZipOutputStream(bo)) {
+			zip.putNextEntry(new ZipEntry("bench/javacard/Header.cap"));
+			zip.write(header.toByteArray());
+			zip.putNextEntry(new ZipEntry("bench/javacard/Applet.cap"));
+			zip.write(applet.toByteArray());
+			zip.putNextEntry(new ZipEntry("bench/javacard/Method.cap"));
+			zip.write(method);
+		}
+		return bo.toByteArray();
+	}
+}
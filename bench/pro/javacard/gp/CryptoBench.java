@@ -0,0 +1,75 @@
+package pro.javacard.gp;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import pro.javacard.gp.GPKeySet.GPKey;
+import pro.javacard.gp.GPKeySet.GPKey.Type;
+
+/**
+ * MAC, KDF and padding primitives of GPCrypto, with the message sizes of a
+ * short command and of a full LOAD block.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class CryptoBench {
+	@Param({ "16", "247" })
+	public int size;
+
+	private GPKey des;
+	private GPKey aes;
+	private byte[] text;
+	private byte[] context;
+
+	@Setup
+	public void setup() {
+		des = new GPKey(GPData.defaultKeyBytes, Type.DES3);
+		aes = new GPKey(GPData.defaultKeyBytes, Type.AES);
+		text = new byte[size];
+		for (int i = 0; i < text.length; i++) {
+			text[i] = (byte) i;
+		}
+		context = new byte[16];
+	}
+
+	@Benchmark
+	public byte[] mac_3des() {
+		return GPCrypto.mac_3des(des, text, GPCrypto.null_bytes_8);
+	}
+
+	@Benchmark
+	public byte[] mac_des_3des() {
+		return GPCrypto.mac_des_3des(des, text, GPCrypto.null_bytes_8);
+	}
+
+	@Benchmark
+	public byte[] scp03_mac() {
+		return GPCrypto.scp03_mac(aes, text, 64);
+	}
+
+	// Session key derivation does this three times
+	@Benchmark
+	public byte[] scp03_kdf() {
+		return GPCrypto.scp03_kdf(aes, (byte) 0x06, context, 128);
+	}
+
+	@Benchmark
+	public byte[] pad80() {
+		return GPCrypto.pad80(text, 8);
+	}
+}
@@ -0,0 +1,100 @@
+package pro.javacard.gp;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.EnumSet;
+import java.util.concurrent.TimeUnit;
+
+import javax.smartcardio.CardException;
+import javax.smartcardio.CommandAPDU;
+import javax.smartcardio.ResponseAPDU;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import pro.javacard.gp.GPData.KeyType;
+import pro.javacard.gp.GlobalPlatform.APDUMode;
+import pro.javacard.gp.GlobalPlatform.SCP0102Wrapper;
+
+/**
+ * SCP02 wrapping of full LOAD blocks in every i parameter variant, and
+ * unwrapping of R-MAC protected responses.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class SCP02Bench {
+	@Param({ "SCP_02_04", "SCP_02_05", "SCP_02_0A", "SCP_02_0B", "SCP_02_14", "SCP_02_15", "SCP_02_1A", "SCP_02_1B" })
+	public String variant;
+
+	// ENC is MAC and ENC
+	@Param({ "MAC", "ENC" })
+	public String mode;
+
+	private SCP0102Wrapper wrapper;
+	private CommandAPDU load;
+
+	private SCP0102Wrapper rmacWrapper;
+	private byte[][] rmacState;
+	private CommandAPDU status;
+	private ResponseAPDU response;
+
+	@Setup
+	public void setup() throws Exception {
+		int scp = GlobalPlatform.class.getField(variant).getInt(null);
+		GPKeySet keys = GlobalPlatform.deriveSessionKeysSCP02(new GPKeySet(GPData.defaultKey), new byte[] { 0x00, 0x2A }, false);
+		EnumSet<APDUMode> level = mode.equals("ENC") ? EnumSet.of(APDUMode.MAC, APDUMode.ENC) : EnumSet.of(APDUMode.MAC);
+
+		wrapper = new SCP0102Wrapper(new GPSessionCrypto(keys, 2), scp, level, null, null);
+		load = new CommandAPDU(0x80, 0xE8, 0x00, 0x00, new byte[wrapper.getBlockSize()]);
+
+		// The R-MAC covers the command, so every round wraps the same
+		// command from the same state and gets the same response
+		level.add(APDUMode.RMAC);
+		rmacWrapper = new SCP0102Wrapper(new GPSessionCrypto(keys, 2), scp, level, null, new byte[8]);
+		rmacState = rmacWrapper.saveState();
+		byte[] query = new byte[] { 0x4F, 0x00 };
+		status = new CommandAPDU(0x80, 0xF2, 0x40, 0x00, query, 256);
+		byte[] data = new byte[200];
+		ByteArrayOutputStream text = new ByteArrayOutputStream();
+		text.write(new byte[] { (byte) 0x80, (byte) 0xF2, 0x40, 0x00, (byte) query.length });
+		text.write(query);
+		text.write(data.length);
+		text.write(data);
+		text.write(new byte[] { (byte) 0x90, 0x00 });
+		byte[] mac = GPCrypto.mac_des_3des(keys.getKey(KeyType.RMAC), text.toByteArray(), new byte[8]);
+		response = new ResponseAPDU(GPUtils.concatenate(GPUtils.concatenate(data, mac), new byte[] { (byte) 0x90, 0x00 }));
+		// Fails here rather than in the benchmark if the R-MAC is wrong
+		unwrap();
+	}
+
+	@Benchmark
+	public ByteBuffer wrapToBuffer() throws CardException {
+		return wrapper.wrapToBuffer(load);
+	}
+
+	@Benchmark
+	public CommandAPDU wrap() throws CardException {
+		return wrapper.wrap(load);
+	}
+
+	// Includes wrapping the command, which starts the R-MAC
+	@Benchmark
+	public ResponseAPDU unwrap() throws CardException, GPException {
+		rmacWrapper.restoreState(rmacState);
+		rmacWrapper.wrapToBuffer(status);
+		return rmacWrapper.unwrap(response);
+	}
+}
@@ -0,0 +1,62 @@
+package pro.javacard.gp;
+
+import java.nio.ByteBuffer;
+import java.util.EnumSet;
+import java.util.concurrent.TimeUnit;
+
+import javax.smartcardio.CardException;
+import javax.smartcardio.CommandAPDU;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import pro.javacard.gp.GPKeySet.GPKey;
+import pro.javacard.gp.GPKeySet.GPKey.Type;
+import pro.javacard.gp.GlobalPlatform.APDUMode;
+import pro.javacard.gp.GlobalPlatform.SCP03Wrapper;
+
+/**
+ * SCP03 wrapping of full LOAD blocks.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class SCP03Bench {
+	// ENC is MAC and ENC
+	@Param({ "MAC", "ENC" })
+	public String mode;
+
+	private SCP03Wrapper wrapper;
+	private CommandAPDU load;
+
+	@Setup
+	public void setup() {
+		GPKeySet staticKeys = new GPKeySet(new GPKey(GPData.defaultKeyBytes, Type.AES));
+		GPKeySet keys = GlobalPlatform.deriveSessionKeysSCP03(staticKeys, new byte[8], new byte[8]);
+		EnumSet<APDUMode> level = mode.equals("ENC") ? EnumSet.of(APDUMode.MAC, APDUMode.ENC) : EnumSet.of(APDUMode.MAC);
+		wrapper = new SCP03Wrapper(new GPSessionCrypto(keys, 3), 3, level, null, null);
+		load = new CommandAPDU(0x80, 0xE8, 0x00, 0x00, new byte[wrapper.getBlockSize()]);
+	}
+
+	@Benchmark
+	public ByteBuffer wrapToBuffer() throws CardException {
+		return wrapper.wrapToBuffer(load);
+	}
+
+	@Benchmark
+	public CommandAPDU wrap() throws CardException {
+		return wrapper.wrap(load);
+	}
+}
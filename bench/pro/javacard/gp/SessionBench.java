@@ -0,0 +1,48 @@
+package pro.javacard.gp;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import pro.javacard.gp.GPKeySet.GPKey;
+import pro.javacard.gp.GPKeySet.GPKey.Type;
+
+/**
+ * Session key derivation, done once per secure channel.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class SessionBench {
+	private final GPKeySet des = new GPKeySet(GPData.defaultKey);
+	private final GPKeySet aes = new GPKeySet(new GPKey(GPData.defaultKeyBytes, Type.AES));
+	private final byte[] sequence = new byte[] { 0x00, 0x2A };
+	private final byte[] host_challenge = new byte[8];
+	private final byte[] card_challenge = new byte[8];
+
+	@Benchmark
+	public GPKeySet deriveSessionKeysSCP01() {
+		return GlobalPlatform.deriveSessionKeysSCP01(des, host_challenge, card_challenge);
+	}
+
+	@Benchmark
+	public GPKeySet deriveSessionKeysSCP02() {
+		return GlobalPlatform.deriveSessionKeysSCP02(des, sequence, false);
+	}
+
+	@Benchmark
+	public GPKeySet deriveSessionKeysSCP03() {
+		return GlobalPlatform.deriveSessionKeysSCP03(aes, host_challenge, card_challenge);
+	}
+}
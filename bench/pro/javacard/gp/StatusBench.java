@@ -0,0 +1,123 @@
+package pro.javacard.gp;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Parsing of GET STATUS responses into a registry, for a card with the
+ * given number of applets in as many packages, in the legacy and the
+ * tagged format.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class StatusBench {
+	@Param({ "10", "100" })
+	public int applets;
+
+	private byte[] isd;
+	private byte[] apps;
+	private byte[] modules;
+	private byte[] taggedIsd;
+	private byte[] taggedApps;
+	private byte[] taggedModules;
+
+	@Setup
+	public void setup() {
+		isd = entry(GPData.defaultISDBytes, 0x0F, 0x9E).toByteArray();
+		ByteArrayOutputStream a = new ByteArrayOutputStream();
+		ByteArrayOutputStream m = new ByteArrayOutputStream();
+		ByteArrayOutputStream ta = new ByteArrayOutputStream();
+		ByteArrayOutputStream tm = new ByteArrayOutputStream();
+		taggedIsd = tagged(GPData.defaultISDBytes, 0x0F, new byte[] { (byte) 0xC5, 0x03, (byte) 0x9E, 0x00, 0x00 });
+		for (int i = 0; i < applets; i++) {
+			byte[] pkg = new byte[] { (byte) 0xD2, 0x76, 0x00, 0x01, 0x24, 0x01, (byte) (i >> 8), (byte) i };
+			byte[] app = GPUtils.concatenate(pkg, new byte[] { 0x01 });
+			byte[] e = entry(app, 0x07, 0x00).toByteArray();
+			a.write(e, 0, e.length);
+			ByteArrayOutputStream module = entry(pkg, 0x01, 0x00);
+			module.write(1);
+			module.write(app.length);
+			module.write(app, 0, app.length);
+			m.write(module.toByteArray(), 0, module.size());
+
+			ByteArrayOutputStream extra = new ByteArrayOutputStream();
+			extra.write(new byte[] { (byte) 0xC5, 0x03, 0x00, 0x00, 0x00, (byte) 0xC4, (byte) pkg.length }, 0, 7);
+			extra.write(pkg, 0, pkg.length);
+			e = tagged(app, 0x07, extra.toByteArray());
+			ta.write(e, 0, e.length);
+			extra.reset();
+			extra.write(new byte[] { (byte) 0xCE, 0x02, 0x01, 0x00, (byte) 0x84, (byte) app.length }, 0, 6);
+			extra.write(app, 0, app.length);
+			e = tagged(pkg, 0x01, extra.toByteArray());
+			tm.write(e, 0, e.length);
+		}
+		apps = a.toByteArray();
+		modules = m.toByteArray();
+		taggedApps = ta.toByteArray();
+		taggedModules = tm.toByteArray();
+	}
+
+	// Length, AID, life cycle and privileges
+	private static ByteArrayOutputStream entry(byte[] aid, int lifecycle, int privileges) {
+		ByteArrayOutputStream e = new ByteArrayOutputStream();
+		e.write(aid.length);
+		e.write(aid, 0, aid.length);
+		e.write(lifecycle);
+		e.write(privileges);
+		return e;
+	}
+
+	// E3 template with AID, life cycle, the other elements and the ISD
+	private static byte[] tagged(byte[] aid, int lifecycle, byte[] other) {
+		ByteArrayOutputStream e = new ByteArrayOutputStream();
+		e.write(0x4F);
+		e.write(aid.length);
+		e.write(aid, 0, aid.length);
+		e.write(new byte[] { (byte) 0x9F, 0x70, 0x01, (byte) lifecycle }, 0, 4);
+		e.write(other, 0, other.length);
+		e.write(0xCC);
+		e.write(GPData.defaultISDBytes.length);
+		e.write(GPData.defaultISDBytes, 0, GPData.defaultISDBytes.length);
+		ByteArrayOutputStream t = new ByteArrayOutputStream();
+		t.write(0xE3);
+		t.write(e.size());
+		t.write(e.toByteArray(), 0, e.size());
+		return t.toByteArray();
+	}
+
+	@Benchmark
+	public List<AIDRegistryEntry> parse() {
+		List<AIDRegistryEntry> entries = new ArrayList<AIDRegistryEntry>();
+		GlobalPlatform.parseStatus(0x80, isd, entries);
+		GlobalPlatform.parseStatus(0x40, apps, entries);
+		GlobalPlatform.parseStatus(0x10, modules, entries);
+		return entries;
+	}
+
+	@Benchmark
+	public List<AIDRegistryEntry> parseTagged() throws GPException {
+		List<AIDRegistryEntry> entries = new ArrayList<AIDRegistryEntry>();
+		GlobalPlatform.parseTaggedStatus(0x80, taggedIsd, entries);
+		GlobalPlatform.parseTaggedStatus(0x40, taggedApps, entries);
+		GlobalPlatform.parseTaggedStatus(0x10, taggedModules, entries);
+		return entries;
+	}
+}
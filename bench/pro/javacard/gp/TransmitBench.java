@@ -0,0 +1,107 @@
+package pro.javacard.gp;
+
+import java.nio.ByteBuffer;
+import java.util.EnumSet;
+import java.util.concurrent.TimeUnit;
+
+import javax.smartcardio.Card;
+import javax.smartcardio.CardChannel;
+import javax.smartcardio.CardException;
+import javax.smartcardio.CommandAPDU;
+import javax.smartcardio.ResponseAPDU;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import pro.javacard.gp.GPKeySet.GPKey;
+import pro.javacard.gp.GPKeySet.GPKey.Type;
+import pro.javacard.gp.GlobalPlatform.APDUMode;
+
+/**
+ * GlobalPlatform.transmit() of full LOAD blocks in an open secure channel.
+ *
+ * The secure channel is opened with the emulator, after that the reader
+ * answers everything with 9000 without allocating, so the allocation per
+ * operation (-prof gc) is what transmit() itself allocates per command.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class TransmitBench {
+	@Param({ "2", "3" })
+	public int scp;
+
+	// ENC is MAC and ENC
+	@Param({ "MAC", "ENC" })
+	public String mode;
+
+	private GlobalPlatform gp;
+	private CommandAPDU load;
+
+	// Opens the secure channel with the emulator and answers the rest with 9000
+	private static final class NullChannel extends CardChannel {
+		private final CardChannel card;
+		private boolean open = false;
+
+		NullChannel(CardChannel card) {
+			this.card = card;
+		}
+		@Override
+		public Card getCard() {
+			return card.getCard();
+		}
+		@Override
+		public int getChannelNumber() {
+			return 0;
+		}
+		@Override
+		public ResponseAPDU transmit(CommandAPDU command) throws CardException {
+			return card.transmit(command);
+		}
+		@Override
+		public int transmit(ByteBuffer command, ByteBuffer response) throws CardException {
+			if (open) {
+				command.position(command.limit());
+				response.put((byte) 0x90);
+				response.put((byte) 0x00);
+				return 2;
+			}
+			// EXTERNAL AUTHENTICATE is the last command for the emulator
+			open = command.get(command.position() + 1) == (byte) 0x82;
+			return card.transmit(command, response);
+		}
+		@Override
+		public void close() throws CardException {
+		}
+	}
+
+	@Setup
+	public void setup() throws Exception {
+		GPKeySet keys = scp == 3 ? new GPKeySet(new GPKey(GPData.defaultKeyBytes, Type.AES)) : new GPKeySet(GPData.defaultKey);
+		AID isd = new AID(GPData.defaultISDBytes);
+		GPCardEmulator card = new GPCardEmulator(keys, isd, scp);
+		gp = new GlobalPlatform(new NullChannel(card.getBasicChannel()));
+		gp.setStrict(true);
+		gp.select(isd);
+		EnumSet<APDUMode> level = mode.equals("ENC") ? EnumSet.of(APDUMode.MAC, APDUMode.ENC) : EnumSet.of(APDUMode.MAC);
+		gp.openSecureChannel(keys, null, GlobalPlatform.SCP_ANY, level);
+		load = new CommandAPDU(0x80, 0xE8, 0x00, 0x00, new byte[mode.equals("ENC") ? 239 : 247]);
+	}
+
+	@Benchmark
+	public ResponseAPDU transmit() throws CardException, GPException {
+		return gp.transmit(load);
+	}
+}
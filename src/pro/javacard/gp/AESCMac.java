@@ -0,0 +1,137 @@
+package pro.javacard.gp;
+
+import java.util.Arrays;
+
+import pro.javacard.gp.CryptoBackend.BlockEncryptor;
+import pro.javacard.gp.GPKeySet.GPKey.Type;
+
+/**
+ * AES-CMAC (NIST SP 800-38B) bound to a single key.
+ *
+ * The AES key schedule and the K1/K2 subkeys are computed once in the
+ * constructor and kept for the lifetime of the object, so a SCP03 session
+ * pays for them once instead of for every command. Input is processed
+ * incrementally: chaining value, header and data can be fed with separate
+ * {@link #update} calls without concatenating them first.
+ *
+ * Not thread safe.
+ */
+public final class AESCMac {
+	private static final int BLOCK = 16;
+
+	private final BlockEncryptor aes;
+	private final byte[] k1 = new byte[BLOCK];
+	private final byte[] k2 = new byte[BLOCK];
+	// Running CBC state and the not yet processed (possibly last) block
+	private final byte[] state = new byte[BLOCK];
+	private final byte[] block = new byte[BLOCK];
+	private int blockLen = 0;
+	// Output of bulk CBC over full blocks, only the last block is used
+	private byte[] cbcOut = new byte[256];
+
+	public AESCMac(byte[] key) {
+		this(GPCrypto.getBackend().getEncryptor(Type.AES, key));
+	}
+
+	public AESCMac(BlockEncryptor aes) {
+		if (aes.getBlockSize() != BLOCK) {
+			throw new IllegalArgumentException("CMAC needs a 128 bit block cipher");
+		}
+		this.aes = aes;
+		// L = AES(K, 0^128), K1 = dbl(L), K2 = dbl(K1)
+		byte[] l = new byte[BLOCK];
+		aes.encryptBlock(l, 0, l, 0);
+		dbl(l, k1);
+		dbl(k1, k2);
+	}
+
+	private static void dbl(byte[] in, byte[] out) {
+		int carry = 0;
+		for (int i = BLOCK - 1; i >= 0; i--) {
+			int b = in[i] & 0xFF;
+			out[i] = (byte) ((b << 1) | carry);
+			carry = b >>> 7;
+		}
+		if (carry != 0) {
+			out[BLOCK - 1] ^= (byte) 0x87;
+		}
+	}
+
+	private void encryptState() {
+		aes.encryptBlock(state, 0, state, 0);
+	}
+
+	public int getMacSize() {
+		return BLOCK;
+	}
+
+	public void update(byte b) {
+		if (blockLen == BLOCK) {
+			processBlock(block, 0);
+			blockLen = 0;
+		}
+		block[blockLen++] = b;
+	}
+
+	public void update(byte[] in, int offset, int length) {
+		while (length > 0) {
+			// The last block is kept until doFinal, as it gets a subkey
+			if (blockLen == BLOCK) {
+				processBlock(block, 0);
+				blockLen = 0;
+			}
+			// Full blocks are processed directly from the input, as one CBC
+			// operation so that backends can use their bulk code path
+			if (blockLen == 0 && length > BLOCK) {
+				int n = ((length - 1) / BLOCK) * BLOCK;
+				if (n == BLOCK) {
+					processBlock(in, offset);
+				} else {
+					if (cbcOut.length < n) {
+						cbcOut = new byte[n];
+					}
+					aes.encryptCBC(state, in, offset, n, cbcOut, 0);
+					System.arraycopy(cbcOut, n - BLOCK, state, 0, BLOCK);
+				}
+				offset += n;
+				length -= n;
+			}
+			int n = Math.min(BLOCK - blockLen, length);
+			System.arraycopy(in, offset, block, blockLen, n);
+			blockLen += n;
+			offset += n;
+			length -= n;
+		}
+	}
+
+	private void processBlock(byte[] in, int offset) {
+		for (int i = 0; i < BLOCK; i++) {
+			state[i] ^= in[offset + i];
+		}
+		encryptState();
+	}
+
+	/**
+	 * Finish the MAC, write the full 16 byte result to {@code out} and reset
+	 * for the next message with the same key.
+	 */
+	public void doFinal(byte[] out, int offset) {
+		byte[] subkey = k1;
+		if (blockLen < BLOCK) {
+			block[blockLen] = (byte) 0x80;
+			Arrays.fill(block, blockLen + 1, BLOCK, (byte) 0x00);
+			subkey = k2;
+		}
+		for (int i = 0; i < BLOCK; i++) {
+			state[i] ^= block[i] ^ subkey[i];
+		}
+		encryptState();
+		System.arraycopy(state, 0, out, offset, BLOCK);
+		reset();
+	}
+
+	public void reset() {
+		Arrays.fill(state, (byte) 0x00);
+		blockLen = 0;
+	}
+}
@@ -23,10 +23,15 @@
 package pro.javacard.gp;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumSet;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.LinkedHashMap;
 import java.util.List;
 
+import pro.javacard.gp.AIDRegistryEntry.Kind;
+
 /**
  * Convenience class managing a vector of {@link AIDRegistryEntry
  * AIDRegistryEntries} with search functionality.
@@ -36,6 +41,20 @@ import java.util.List;
  */
 public class AIDRegistry implements Iterable<AIDRegistryEntry> {
 
+	/**
+	 * Kinds of entries that are read from the card with GET STATUS. Load
+	 * files with modules are the same load files, with the modules listed.
+	 */
+	public enum Scope {
+		ISD(0x80), APPLICATIONS(0x40), LOAD_FILES(0x20), LOAD_FILES_AND_MODULES(0x10);
+
+		final int p1;
+
+		Scope(int p1) {
+			this.p1 = p1;
+		}
+	}
+
 	LinkedHashMap<AID, AIDRegistryEntry> entries = new LinkedHashMap<AID, AIDRegistryEntry>();
 
 	/**
@@ -136,4 +155,237 @@ public class AIDRegistry implements Iterable<AIDRegistryEntry> {
 		}
 		return null;
 	}
+
+	/**
+	 * Returns the package of an applet: the one it was installed from if
+	 * known, else the package with the applet as a module or with the
+	 * longest AID that is a prefix of the applet AID.
+	 *
+	 * @return package AID or null if not known
+	 */
+	public AID getPackageAID(AIDRegistryEntry applet) {
+		if (applet.getExecutableLoadFileAID() != null) {
+			return applet.getExecutableLoadFileAID();
+		}
+		AID best = null;
+		int bestLength = 0;
+		for (AIDRegistryEntry p : allPackages()) {
+			if (p.getExecutableAIDs().contains(applet.getAID())) {
+				return p.getAID();
+			}
+			List<AID> prefixes = p.getExecutableAIDs();
+			prefixes.add(p.getAID());
+			for (AID prefix : prefixes) {
+				if (prefix.getLength() > bestLength && startsWith(applet.getAID(), prefix)) {
+					best = p.getAID();
+					bestLength = prefix.getLength();
+				}
+			}
+		}
+		return best;
+	}
+
+	// Entry with the AID if of the given kinds, null if not
+	AIDRegistryEntry get(AID aid, EnumSet<Scope> scopes) {
+		for (AIDRegistryEntry e : withPrefix(aid, scopes)) {
+			if (e.getAID().equals(aid)) {
+				return e;
+			}
+		}
+		return null;
+	}
+
+	// Entries with AIDs starting with the prefix, of the given kinds
+	List<AIDRegistryEntry> withPrefix(AID prefix, EnumSet<Scope> scopes) {
+		List<AIDRegistryEntry> res = new ArrayList<AIDRegistryEntry>();
+		for (AIDRegistryEntry e : entries.values()) {
+			if (startsWith(e.getAID(), prefix) && in(e, scopes)) {
+				res.add(e);
+			}
+		}
+		return res;
+	}
+
+	private static boolean in(AIDRegistryEntry e, EnumSet<Scope> scopes) {
+		if (e.isPackage()) {
+			// Load files are the same with and without modules
+			return scopes.contains(Scope.LOAD_FILES) || scopes.contains(Scope.LOAD_FILES_AND_MODULES);
+		}
+		return scopes.contains(e.getKind() == Kind.IssuerSecurityDomain ? Scope.ISD : Scope.APPLICATIONS);
+	}
+
+	private static boolean startsWith(AID aid, AID prefix) {
+		byte[] a = aid.getBytes();
+		byte[] p = prefix.getBytes();
+		if (p.length > a.length) {
+			return false;
+		}
+		for (int i = 0; i < p.length; i++) {
+			if (a[i] != p[i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	// Entries in the order of reading all of them: ISD, applications and
+	// security domains, load files
+	void sort() {
+		LinkedHashMap<AID, AIDRegistryEntry> sorted = new LinkedHashMap<AID, AIDRegistryEntry>();
+		for (int group = 0; group < 3; group++) {
+			for (AIDRegistryEntry e : entries.values()) {
+				int g = e.getKind() == Kind.IssuerSecurityDomain ? 0 : e.isPackage() ? 2 : 1;
+				if (g == group) {
+					sorted.put(e.getAID(), e);
+				}
+			}
+		}
+		entries = sorted;
+	}
+
+	// Changes of successful commands, applied locally instead of reading
+	// the registry again. Methods return false if the new content can not
+	// be told, the registry must then be read from the card.
+
+	void loaded(AID pkg, List<AID> modules, byte[] version) {
+		// Cards that do not list modules do not list them for any package
+		Kind kind = Kind.ExecutableLoadFilesAndModules;
+		for (AIDRegistryEntry e : entries.values()) {
+			if (e.getKind() == Kind.ExecutableLoadFiles) {
+				kind = Kind.ExecutableLoadFiles;
+			}
+		}
+		AIDRegistryEntry e = new AIDRegistryEntry(pkg, 0x01, 0x00, kind);
+		e.setVersion(version);
+		if (kind == Kind.ExecutableLoadFilesAndModules) {
+			for (AID m : modules) {
+				e.addExecutableAID(m);
+			}
+		}
+		add(e);
+	}
+
+	boolean installed(AID pkg, AID instance, int privileges, boolean selectable) {
+		if (entries.containsKey(instance)) {
+			return false;
+		}
+		Kind kind = (privileges & 0x80) == 0 ? Kind.Application : Kind.SecurityDomain;
+		AIDRegistryEntry e = new AIDRegistryEntry(instance, selectable ? 0x07 : 0x03, privileges, kind);
+		e.setExecutableLoadFileAID(pkg);
+		add(e);
+		defaultSelected(e);
+		return true;
+	}
+
+	boolean madeSelectable(AID aid, int privileges) {
+		AIDRegistryEntry e = entries.get(aid);
+		if (e == null || e.isPackage() || e.getKind() == Kind.IssuerSecurityDomain) {
+			return false;
+		}
+		int state = e.getLifeCycleState() == 0x03 ? 0x07 : e.getLifeCycleState();
+		e = e.with(state, privileges);
+		entries.put(aid, e);
+		defaultSelected(e);
+		return true;
+	}
+
+	// Only one application can have the default selected privilege, the
+	// bit has another meaning for the ISD
+	private void defaultSelected(AIDRegistryEntry app) {
+		if ((app.getPrivileges() & GPData.defaultSelectedPriv) == 0) {
+			return;
+		}
+		for (AIDRegistryEntry e : new ArrayList<AIDRegistryEntry>(entries.values())) {
+			if (e != app && !e.isPackage() && e.getKind() != Kind.IssuerSecurityDomain && (e.getPrivileges() & GPData.defaultSelectedPriv) != 0) {
+				entries.put(e.getAID(), e.with(e.getLifeCycleState(), e.getPrivileges() & ~GPData.defaultSelectedPriv));
+			}
+		}
+	}
+
+	boolean deleted(AID aid, boolean deps) {
+		AIDRegistryEntry e = entries.get(aid);
+		if (e == null || e.getKind() == Kind.IssuerSecurityDomain) {
+			return false;
+		}
+		// Applications associated with a security domain are not listed
+		if (e.getKind() == Kind.SecurityDomain && deps) {
+			return false;
+		}
+		if (e.isPackage() && deps) {
+			List<AID> instances = new ArrayList<AID>();
+			for (AIDRegistryEntry a : entries.values()) {
+				if (a.isPackage() || a.getKind() == Kind.IssuerSecurityDomain) {
+					continue;
+				}
+				// A guessed load file could remove instances of another one
+				AID pkg = exactPackageAID(a);
+				if (pkg == null) {
+					return false;
+				}
+				if (pkg.equals(aid)) {
+					instances.add(a.getAID());
+				}
+			}
+			for (AID i : instances) {
+				entries.remove(i);
+			}
+		}
+		// Without deps, the card deletes a package only if it has no instances
+		entries.remove(aid);
+		return true;
+	}
+
+	// The load file of an instance if listed by the card or the host, null if not
+	private AID exactPackageAID(AIDRegistryEntry applet) {
+		if (applet.getExecutableLoadFileAID() != null) {
+			return applet.getExecutableLoadFileAID();
+		}
+		for (AIDRegistryEntry p : allPackages()) {
+			if (p.getExecutableAIDs().contains(applet.getAID())) {
+				return p.getAID();
+			}
+		}
+		return null;
+	}
+
+	boolean locked(AID aid, boolean lock) {
+		AIDRegistryEntry e = entries.get(aid);
+		if (e == null || e.isPackage()) {
+			return false;
+		}
+		int state = lock ? e.getLifeCycleState() | 0x80 : e.getLifeCycleState() & 0x7F;
+		entries.put(aid, e.with(state, e.getPrivileges()));
+		return true;
+	}
+
+	boolean cardLifeCycle(int state) {
+		for (AIDRegistryEntry e : entries.values()) {
+			if (e.getKind() == Kind.IssuerSecurityDomain) {
+				entries.put(e.getAID(), e.with(state, e.getPrivileges()));
+				return true;
+			}
+		}
+		return false;
+	}
+
+	// Descriptions of entries that are not the same in both registries,
+	// entries missing from this one only for the kinds read completely
+	List<String> diff(AIDRegistry other, EnumSet<Scope> complete) {
+		List<String> result = new ArrayList<String>();
+		HashSet<AID> all = new HashSet<AID>(entries.keySet());
+		all.addAll(other.entries.keySet());
+		for (AID aid : all) {
+			AIDRegistryEntry a = entries.get(aid);
+			AIDRegistryEntry b = other.entries.get(aid);
+			if (a == null && !in(b, complete)) {
+				continue;
+			}
+			if (a == null || b == null || a.getKind() != b.getKind() || a.getLifeCycleState() != b.getLifeCycleState()
+					|| a.getPrivileges() != b.getPrivileges() || !Arrays.equals(a.getVersion(), b.getVersion())
+					|| !new HashSet<AID>(a.getExecutableAIDs()).equals(new HashSet<AID>(b.getExecutableAIDs()))) {
+				result.add(a + " <> " + b);
+			}
+		}
+		return result;
+	}
 }
@@ -68,6 +68,11 @@ public class AIDRegistryEntry {
 		}
 	}
 
+	// GP 2.2 privileges of the second and third byte, from the highest bit
+	private static final String[] EXTENDED_PRIVILEGES = { "Trusted path", "Authorized management", "Token verification",
+			"Global delete", "Global lock", "Global registry", "Final application", "Global service", "Receipt generation",
+			"Ciphered load file data block", "Contactless activation", "Contactless self-activation" };
+
 	private final AID aid;
 
 	private final int lifeCycleState;
@@ -78,6 +83,18 @@ public class AIDRegistryEntry {
 
 	private final Kind kind;
 
+	// Executable load file of an application, if known
+	private AID loadFile = null;
+
+	// Second and third byte of the privileges, with the tagged GET STATUS format
+	private int extendedPrivileges = 0;
+
+	// Version of an executable load file, if known
+	private byte[] version = null;
+
+	// Associated security domain, if known
+	private AID domain = null;
+
 	/**
 	 * Create a new entry.
 	 *
@@ -96,6 +113,17 @@ public class AIDRegistryEntry {
 		executableAIDS = new ArrayList<AID>();
 	}
 
+	// The same entry with another life cycle state and privileges
+	AIDRegistryEntry with(int lifeCycleState, int privileges) {
+		AIDRegistryEntry e = new AIDRegistryEntry(aid, lifeCycleState, privileges, kind);
+		e.executableAIDS.addAll(executableAIDS);
+		e.loadFile = loadFile;
+		e.extendedPrivileges = extendedPrivileges;
+		e.version = version;
+		e.domain = domain;
+		return e;
+	}
+
 	/**
 	 * Add an executable application ID to this entry.
 	 *
@@ -133,6 +161,70 @@ public class AIDRegistryEntry {
 		return privileges;
 	}
 
+	/**
+	 * Return the executable load file this application was installed from.
+	 *
+	 * @return load file AID or null if not known
+	 */
+	public AID getExecutableLoadFileAID() {
+		return loadFile;
+	}
+
+	void setExecutableLoadFileAID(AID loadFile) {
+		this.loadFile = loadFile;
+	}
+
+	/**
+	 * Return all three bytes of the privileges. Only the first one is known
+	 * if the card does not support the tagged GET STATUS format.
+	 *
+	 * @return privileges
+	 */
+	public byte[] getPrivilegeBytes() {
+		return new byte[] { (byte) privileges, (byte) (extendedPrivileges >> 8), (byte) extendedPrivileges };
+	}
+
+	void setExtendedPrivileges(int extendedPrivileges) {
+		this.extendedPrivileges = extendedPrivileges & 0xFFFF;
+	}
+
+	/**
+	 * Return the version of this executable load file, major and minor.
+	 *
+	 * @return version or null if not known
+	 */
+	public byte[] getVersion() {
+		return version == null ? null : version.clone();
+	}
+
+	public String getVersionString() {
+		if (version == null) {
+			return null;
+		}
+		StringBuilder sb = new StringBuilder();
+		for (byte b : version) {
+			sb.append(sb.length() == 0 ? "" : ".").append(b & 0xFF);
+		}
+		return sb.toString();
+	}
+
+	void setVersion(byte[] version) {
+		this.version = version == null ? null : version.clone();
+	}
+
+	/**
+	 * Return the security domain this entry is associated with.
+	 *
+	 * @return security domain AID or null if not known
+	 */
+	public AID getAssociatedSecurityDomainAID() {
+		return domain;
+	}
+
+	void setAssociatedSecurityDomainAID(AID domain) {
+		this.domain = domain;
+	}
+
 	/**
 	 * Return the kind of this entry.
 	 *
@@ -241,7 +333,7 @@ public class AIDRegistryEntry {
 
 		int r = privileges;
 
-		if (r == 0) {
+		if (r == 0 && extendedPrivileges == 0) {
 			privs.add("(none)");
 		} else {
 			if ((r & (1<<7)) != 0) {
@@ -264,6 +356,11 @@ public class AIDRegistryEntry {
 				r &= ~(1<<1);
 				privs.add("CVM (PIN) management");
 			}
+			for (int i = 0; i < EXTENDED_PRIVILEGES.length; i++) {
+				if ((extendedPrivileges & (0x8000 >> i)) != 0) {
+					privs.add(EXTENDED_PRIVILEGES[i]);
+				}
+			}
 		}
 		StringBuffer result = new StringBuffer();
 		// http://findbugs.sourceforge.net/bugDescriptions.html#SBSC_USE_STRINGBUFFER_CONCATENATION
@@ -0,0 +1,321 @@
+package pro.javacard.gp;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Counts, byte volumes and latencies of APDU-s, per INS and phase.
+ *
+ * Set with {@link GlobalPlatform#setMetrics} to collect from a session.
+ * One instance can be shared by sessions with several cards at the same
+ * time, to see the totals of a batch. Extend and override {@link #record}
+ * to pass the measurements somewhere else as well.
+ *
+ * Latencies are kept in log-linear histograms with 16 linear sub-buckets
+ * per power of two microseconds, like HdrHistogram with a relative error
+ * of at most 6.25%, so that percentiles can be reported without keeping
+ * every sample.
+ */
+public class ApduMetrics {
+	public enum Phase {
+		// Host crypto of the secure channel, command in and wrapped command out
+		WRAP,
+		// Reader and card, command sent and response received
+		TRANSMIT,
+		// Host crypto of the secure channel, response in and unwrapped response out
+		UNWRAP;
+
+		String label() {
+			return name().toLowerCase(Locale.ROOT);
+		}
+	}
+
+	// Keyed by phase and INS, sorted for stable output
+	private final Map<Integer, Stats> stats = new TreeMap<Integer, Stats>();
+
+	/**
+	 * Record a single APDU going through a phase.
+	 *
+	 * @param phase the phase
+	 * @param ins INS byte of the command
+	 * @param bytesIn bytes into the phase
+	 * @param bytesOut bytes out of the phase
+	 * @param nanos time spent in the phase
+	 */
+	public void record(Phase phase, int ins, int bytesIn, int bytesOut, long nanos) {
+		Stats s;
+		Integer key = (phase.ordinal() << 8) | (ins & 0xFF);
+		synchronized (stats) {
+			s = stats.get(key);
+			if (s == null) {
+				s = new Stats(phase, ins & 0xFF);
+				stats.put(key, s);
+			}
+		}
+		s.record(bytesIn, bytesOut, nanos);
+	}
+
+	public List<Stats> getStats() {
+		List<Stats> result = new ArrayList<Stats>();
+		synchronized (stats) {
+			for (Stats s: stats.values()) {
+				result.add(s.copy());
+			}
+		}
+		return result;
+	}
+
+	public void clear() {
+		synchronized (stats) {
+			stats.clear();
+		}
+	}
+
+	/**
+	 * Measurements of one INS in one phase.
+	 */
+	public static final class Stats {
+		private final Phase phase;
+		private final int ins;
+		private long bytesIn = 0;
+		private long bytesOut = 0;
+		private final Histogram latency;
+
+		Stats(Phase phase, int ins) {
+			this(phase, ins, new Histogram());
+		}
+
+		private Stats(Phase phase, int ins, Histogram latency) {
+			this.phase = phase;
+			this.ins = ins;
+			this.latency = latency;
+		}
+
+		synchronized void record(int in, int out, long nanos) {
+			bytesIn += in;
+			bytesOut += out;
+			latency.record(nanos);
+		}
+
+		synchronized Stats copy() {
+			Stats s = new Stats(phase, ins, latency.copy());
+			s.bytesIn = bytesIn;
+			s.bytesOut = bytesOut;
+			return s;
+		}
+
+		public Phase getPhase() {
+			return phase;
+		}
+
+		public int getINS() {
+			return ins;
+		}
+
+		public long getCount() {
+			return latency.getCount();
+		}
+
+		public long getBytesIn() {
+			return bytesIn;
+		}
+
+		public long getBytesOut() {
+			return bytesOut;
+		}
+
+		public Histogram getLatency() {
+			return latency;
+		}
+	}
+
+	/**
+	 * Log-linear latency histogram with microsecond resolution. Not thread safe.
+	 */
+	public static final class Histogram {
+		// Sub-buckets per power of two, as bits
+		private static final int SUB_BITS = 4;
+		private static final int SUB = 1 << SUB_BITS;
+		// Up to 2^40 us, about 12 days
+		private static final int MAX_EXPONENT = 40;
+		static final int BUCKETS = SUB + (MAX_EXPONENT - SUB_BITS + 1) * SUB;
+
+		private final long[] counts = new long[BUCKETS];
+		private long count = 0;
+		private long sum = 0; // in nanoseconds
+		private long min = Long.MAX_VALUE;
+		private long max = 0;
+
+		public void record(long nanos) {
+			long us = Math.max(0, nanos / 1000);
+			counts[index(us)]++;
+			count++;
+			sum += nanos;
+			min = Math.min(min, us);
+			max = Math.max(max, us);
+		}
+
+		Histogram copy() {
+			Histogram h = new Histogram();
+			System.arraycopy(counts, 0, h.counts, 0, BUCKETS);
+			h.count = count;
+			h.sum = sum;
+			h.min = min;
+			h.max = max;
+			return h;
+		}
+
+		static int index(long us) {
+			if (us < SUB) {
+				return (int) us;
+			}
+			int e = 63 - Long.numberOfLeadingZeros(us);
+			if (e > MAX_EXPONENT) {
+				return BUCKETS - 1;
+			}
+			int sub = (int) (us >>> (e - SUB_BITS)) & (SUB - 1);
+			return SUB + (e - SUB_BITS) * SUB + sub;
+		}
+
+		// Smallest value of the next bucket
+		static long upperBound(int index) {
+			if (index < SUB) {
+				return index + 1;
+			}
+			int e = (index - SUB) / SUB + SUB_BITS;
+			int sub = (index - SUB) % SUB;
+			return (long) (SUB + sub + 1) << (e - SUB_BITS);
+		}
+
+		public long getCount() {
+			return count;
+		}
+
+		/**
+		 * Total time in nanoseconds
+		 */
+		public long getSum() {
+			return sum;
+		}
+
+		public long getMin() {
+			return count == 0 ? 0 : min;
+		}
+
+		public long getMax() {
+			return max;
+		}
+
+		public double getMean() {
+			return count == 0 ? 0 : sum / 1000.0 / count;
+		}
+
+		/**
+		 * Latency in microseconds that {@code percentile} % of the
+		 * samples did not exceed, within the bucket resolution.
+		 */
+		public long getPercentile(double percentile) {
+			if (count == 0) {
+				return 0;
+			}
+			long rank = Math.max(1, (long) Math.ceil(percentile / 100.0 * count));
+			long seen = 0;
+			for (int i = 0; i < BUCKETS; i++) {
+				seen += counts[i];
+				if (seen >= rank) {
+					return Math.max(min, Math.min(max, upperBound(i) - 1));
+				}
+			}
+			return max;
+		}
+
+		/**
+		 * Number of samples below {@code us} microseconds. Exact for powers of two.
+		 */
+		public long getCountBelow(long us) {
+			long n = 0;
+			for (int i = 0; i < BUCKETS && upperBound(i) <= us; i++) {
+				n += counts[i];
+			}
+			return n;
+		}
+	}
+
+	/**
+	 * Write as JSON if the file name ends with .json, otherwise in the
+	 * Prometheus text format. The file is replaced atomically, so that it
+	 * can be read by a collector at any time.
+	 */
+	public void write(File f) throws IOException {
+		File tmp = new File(f.getAbsoluteFile().getParentFile(), f.getName() + ".tmp");
+		try (PrintWriter w = new PrintWriter(new OutputStreamWriter(new FileOutputStream(tmp), StandardCharsets.UTF_8))) {
+			w.print(f.getName().endsWith(".json") ? toJSON() : toPrometheus());
+		}
+		Files.move(tmp.toPath(), f.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	public String toJSON() {
+		StringBuilder sb = new StringBuilder();
+		sb.append("{\"apdus\": [");
+		String sep = "\n";
+		for (Stats s: getStats()) {
+			Histogram h = s.getLatency();
+			sb.append(sep);
+			sep = ",\n";
+			sb.append(String.format(Locale.ROOT, "  {\"phase\": \"%s\", \"ins\": \"%02X\", \"count\": %d, \"bytes_in\": %d, \"bytes_out\": %d, ",
+					s.getPhase().label(), s.getINS(), s.getCount(), s.getBytesIn(), s.getBytesOut()));
+			sb.append(String.format(Locale.ROOT, "\"latency_us\": {\"min\": %d, \"mean\": %.1f, \"p50\": %d, \"p90\": %d, \"p99\": %d, \"max\": %d}}",
+					h.getMin(), h.getMean(), h.getPercentile(50), h.getPercentile(90), h.getPercentile(99), h.getMax()));
+		}
+		sb.append("\n]}\n");
+		return sb.toString();
+	}
+
+	// Histogram buckets of the Prometheus output, in powers of two microseconds
+	private static final int PROMETHEUS_FIRST = 4;
+	private static final int PROMETHEUS_LAST = 24;
+
+	public String toPrometheus() {
+		List<Stats> all = getStats();
+		StringBuilder sb = new StringBuilder();
+		sb.append("# HELP gp_apdu_total APDU-s per phase and INS\n");
+		sb.append("# TYPE gp_apdu_total counter\n");
+		for (Stats s: all) {
+			sb.append(String.format(Locale.ROOT, "gp_apdu_total{%s} %d\n", labels(s), s.getCount()));
+		}
+		sb.append("# HELP gp_apdu_bytes_total Bytes into and out of a phase per INS\n");
+		sb.append("# TYPE gp_apdu_bytes_total counter\n");
+		for (Stats s: all) {
+			sb.append(String.format(Locale.ROOT, "gp_apdu_bytes_total{%s,direction=\"in\"} %d\n", labels(s), s.getBytesIn()));
+			sb.append(String.format(Locale.ROOT, "gp_apdu_bytes_total{%s,direction=\"out\"} %d\n", labels(s), s.getBytesOut()));
+		}
+		sb.append("# HELP gp_apdu_seconds Time spent in a phase per INS\n");
+		sb.append("# TYPE gp_apdu_seconds histogram\n");
+		for (Stats s: all) {
+			Histogram h = s.getLatency();
+			for (int e = PROMETHEUS_FIRST; e <= PROMETHEUS_LAST; e++) {
+				long us = 1L << e;
+				sb.append(String.format(Locale.ROOT, "gp_apdu_seconds_bucket{%s,le=\"%s\"} %d\n", labels(s), us / 1000000.0, h.getCountBelow(us)));
+			}
+			sb.append(String.format(Locale.ROOT, "gp_apdu_seconds_bucket{%s,le=\"+Inf\"} %d\n", labels(s), h.getCount()));
+			sb.append(String.format(Locale.ROOT, "gp_apdu_seconds_sum{%s} %s\n", labels(s), h.getSum() / 1000000000.0));
+			sb.append(String.format(Locale.ROOT, "gp_apdu_seconds_count{%s} %d\n", labels(s), h.getCount()));
+		}
+		return sb.toString();
+	}
+
+	private static String labels(Stats s) {
+		return String.format("phase=\"%s\",ins=\"%02X\"", s.getPhase().label(), s.getINS());
+	}
+}
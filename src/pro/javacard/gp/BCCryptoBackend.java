@@ -0,0 +1,95 @@
+package pro.javacard.gp;
+
+import org.bouncycastle.crypto.BlockCipher;
+import org.bouncycastle.crypto.engines.AESEngine;
+import org.bouncycastle.crypto.engines.DESEngine;
+import org.bouncycastle.crypto.engines.DESedeEngine;
+import org.bouncycastle.crypto.generators.KDFCounterBytesGenerator;
+import org.bouncycastle.crypto.macs.CMac;
+import org.bouncycastle.crypto.params.KDFCounterParameters;
+import org.bouncycastle.crypto.params.KeyParameter;
+
+import pro.javacard.gp.GPKeySet.GPKey.Type;
+
+/**
+ * Crypto backend on top of the BouncyCastle lightweight API.
+ *
+ * Pure Java, does not depend on the JCE providers or policy files of the JVM.
+ */
+public class BCCryptoBackend extends CryptoBackend {
+
+	@Override
+	public String getName() {
+		return "bc";
+	}
+
+	@Override
+	public BlockEncryptor getEncryptor(Type type, byte[] key) {
+		BlockCipher engine;
+		switch (type) {
+		case DES:
+			engine = new DESEngine();
+			break;
+		case DES3:
+			engine = new DESedeEngine();
+			break;
+		case AES:
+			engine = new AESEngine();
+			break;
+		default:
+			throw new IllegalArgumentException("Don't know how to handle " + type);
+		}
+		engine.init(true, new KeyParameter(keyBytes(type, key)));
+		return new BCBlockEncryptor(engine);
+	}
+
+	@Override
+	public byte[] cmac(byte[] key, byte[] data, int offset, int length) {
+		CMac cmac = new CMac(new AESEngine());
+		cmac.init(new KeyParameter(key));
+		cmac.update(data, offset, length);
+		byte[] out = new byte[cmac.getMacSize()];
+		cmac.doFinal(out, 0);
+		return out;
+	}
+
+	@Override
+	public byte[] kdf(byte[] key, byte constant, byte[] context, int blocklen_bits) {
+		// 11 bytes of label, constant, separator and length in bits, the counter follows.
+		byte[] label = new byte[15];
+		label[11] = constant;
+		label[12] = 0x00;
+		label[13] = (byte) ((blocklen_bits >> 8) & 0xFF);
+		label[14] = (byte) (blocklen_bits & 0xFF);
+
+		KDFCounterBytesGenerator kdf = new KDFCounterBytesGenerator(new CMac(new AESEngine()));
+		kdf.init(new KDFCounterParameters(key, label, context, 8)); // counter size in bits
+
+		byte[] cgram = new byte[blocklen_bits / 8];
+		kdf.generateBytes(cgram, 0, cgram.length);
+		return cgram;
+	}
+
+	static final class BCBlockEncryptor implements BlockEncryptor {
+		private final BlockCipher engine;
+
+		BCBlockEncryptor(BlockCipher engine) {
+			this.engine = engine;
+		}
+
+		@Override
+		public int getBlockSize() {
+			return engine.getBlockSize();
+		}
+
+		@Override
+		public void encryptBlock(byte[] in, int inOffset, byte[] out, int outOffset) {
+			engine.processBlock(in, inOffset, out, outOffset);
+		}
+
+		@Override
+		public void encryptCBC(byte[] iv, byte[] in, int inOffset, int length, byte[] out, int outOffset) {
+			cbc(this, iv, in, inOffset, length, out, outOffset);
+		}
+	}
+}
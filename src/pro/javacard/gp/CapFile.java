@@ -25,32 +25,45 @@ package pro.javacard.gp;
 
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.PrintStream;
+import java.io.SequenceInputStream;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Enumeration;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.NoSuchElementException;
 import java.util.jar.Attributes;
 import java.util.jar.Manifest;
 import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
 import java.util.zip.ZipInputStream;
 
 import apdu4j.HexUtils;
 /**
  * Parses a CAP file as specified in JavaCard 2.2 VM Specification, chapter 6.
  *
+ * When opened from a {@link File}, only the small components needed for
+ * parsing are read up front. The rest are read from the archive when the
+ * LOAD blocks or the hash are computed, so the CapFile must be closed.
  */
-public class CapFile {
+public class CapFile implements Closeable {
 
 	public static final String[] componentNames = { "Header", "Directory", "Import", "Applet", "Class", "Method", "StaticField", "Export",
 		"ConstantPool", "RefLocation", "Descriptor", "Debug" };
 
 	private final HashMap<String, byte[]> capComponents = new HashMap<String, byte[]>();
+	// With random access, components are read from the archive when needed
+	private final HashMap<String, ZipEntry> capEntries = new HashMap<String, ZipEntry>();
+	private ZipFile zip = null;
 	private String packageName = null;
 	private AID packageAID = null;
 	private byte major_version = 0;
@@ -71,17 +84,64 @@ public class CapFile {
 		if (packageName != null) {
 			packageName = packageName.replace('.', '/') + "/javacard/";
 		} else {
-			Iterator<? extends String> it = entries.keySet().iterator();
-			String lookFor = "Header.cap";
-			while (it.hasNext()) {
-				String s = it.next();
-				if (s.endsWith(lookFor)) {
-					packageName = s.substring(0, s.lastIndexOf(lookFor));
-					break;
+			packageName = findPackageName(entries.keySet().iterator());
+		}
+		for (String name : componentNames) {
+			String fullName = packageName + name + ".cap";
+			byte[] contents = entries.get(fullName);
+			capComponents.put(name, contents);
+		}
+		zip.close();
+		in.close();
+		parse(packageName, entries);
+	}
+
+	/**
+	 * Open a CAP file with random access. Component sizes come from the
+	 * central directory of the archive and the contents are only read when
+	 * needed.
+	 */
+	public CapFile(File file) throws IOException {
+		zip = new ZipFile(file);
+		try {
+			List<String> names = new ArrayList<String>();
+			Enumeration<? extends ZipEntry> it = zip.entries();
+			while (it.hasMoreElements()) {
+				names.add(it.nextElement().getName());
+			}
+			String packageName = findPackageName(names.iterator());
+			for (String name : componentNames) {
+				ZipEntry entry = zip.getEntry(packageName + name + ".cap");
+				if (entry != null) {
+					capEntries.put(name, entry);
 				}
 			}
+			// Manifest and the tables in META-INF are small
+			Map<String, byte[]> entries = new HashMap<String, byte[]>();
+			for (String name : names) {
+				if (name.toLowerCase().startsWith("meta-inf/")) {
+					entries.put(name, readFully(zip.getInputStream(zip.getEntry(name))));
+				}
+			}
+			parse(packageName, entries);
+		} catch (IOException | RuntimeException e) {
+			zip.close();
+			throw e;
 		}
+	}
+
+	private static String findPackageName(Iterator<String> names) {
+		String lookFor = "Header.cap";
+		while (names.hasNext()) {
+			String s = names.next();
+			if (s.endsWith(lookFor)) {
+				return s.substring(0, s.lastIndexOf(lookFor));
+			}
+		}
+		return null;
+	}
 
+	private void parse(String packageName, Map<String, byte[]> entries) throws IOException {
 		// Parse manifest
 		byte [] mf = entries.remove("META-INF/MANIFEST.MF");
 		if (mf != null) {
@@ -95,11 +155,6 @@ public class CapFile {
 		}
 
 		this.packageName = packageName.substring(0, packageName.lastIndexOf("/javacard/")).replace('/', '.');
-		for (String name : componentNames) {
-			String fullName = packageName + name + ".cap";
-			byte[] contents = entries.get(fullName);
-			capComponents.put(name, contents);
-		}
 		List<List<byte[]>> tables = new ArrayList<List<byte[]>>();
 		tables.add(dapBlocks);
 		tables.add(loadTokens);
@@ -117,19 +172,18 @@ public class CapFile {
 				index++;
 			}
 		}
-		zip.close();
-		in.close();
 
 		// Parse package.
 		// See JCVM 2.2 spec section 6.3 for offsets.
-		byte[] header = capComponents.get("Header");
-		major_version = header[10];
-		minor_version = header[11];
+		byte[] header = getComponent("Header");
+		// package_info is minor, major, AID
+		minor_version = header[10];
+		major_version = header[11];
 		packageAID = new AID(header, 13, header[12]);
 
 		// Parse applets
 		// See JCVM 2.2 spec section 6.5 for offsets.
-		byte[] applet = capComponents.get("Applet");
+		byte[] applet = getComponent("Applet");
 		if (applet != null) {
 			int offset = 4;
 			for (int j = 0; j < (applet[3] & 0xFF); j++) {
@@ -148,21 +202,113 @@ public class CapFile {
 			if (entry == null) {
 				break;
 			}
-			ByteArrayOutputStream bos = new ByteArrayOutputStream();
-			byte[] buf = new byte[1024];
-			int c;
-			while ((c = in.read(buf)) > 0) {
-				bos.write(buf, 0, c);
+			result.put(entry.getName(), readAll(in));
+		}
+		return result;
+	}
+
+	private static byte[] readAll(InputStream in) throws IOException {
+		ByteArrayOutputStream bos = new ByteArrayOutputStream();
+		byte[] buf = new byte[1024];
+		int c;
+		while ((c = in.read(buf)) > 0) {
+			bos.write(buf, 0, c);
+		}
+		return bos.toByteArray();
+	}
+
+	private static byte[] readFully(InputStream in) throws IOException {
+		try {
+			return readAll(in);
+		} finally {
+			in.close();
+		}
+	}
+
+	// Contents of a component, null if not present
+	private byte[] getComponent(String name) throws IOException {
+		ZipEntry entry = capEntries.get(name);
+		if (entry != null) {
+			return readFully(zip.getInputStream(entry));
+		}
+		return capComponents.get(name);
+	}
+
+	private int getComponentSize(String name) {
+		ZipEntry entry = capEntries.get(name);
+		if (entry != null) {
+			return (int) entry.getSize();
+		}
+		byte[] data = capComponents.get(name);
+		return data == null ? -1 : data.length;
+	}
+
+	private InputStream openComponent(String name) throws IOException {
+		ZipEntry entry = capEntries.get(name);
+		if (entry != null) {
+			return zip.getInputStream(entry);
+		}
+		return new ByteArrayInputStream(capComponents.get(name));
+	}
+
+	// Components that are part of the load file, in load order
+	private List<String> getLoadComponents(boolean includeDebug) {
+		List<String> result = new ArrayList<String>();
+		for (String name : componentNames) {
+			if (!includeDebug && (name.equals("Debug") || name.equals("Descriptor"))) {
+				continue;
+			}
+			if (getComponentSize(name) >= 0) {
+				result.add(name);
 			}
-			result.put(entry.getName(), bos.toByteArray());
 		}
 		return result;
 	}
 
+	// The prefix followed by the given components, each opened when reached
+	private InputStream openComponents(final byte[] prefix, List<String> names) {
+		final Iterator<String> it = names.iterator();
+		return new SequenceInputStream(new Enumeration<InputStream>() {
+			private boolean first = true;
+
+			@Override
+			public boolean hasMoreElements() {
+				return first || it.hasNext();
+			}
+
+			@Override
+			public InputStream nextElement() {
+				if (first) {
+					first = false;
+					return new ByteArrayInputStream(prefix);
+				}
+				try {
+					return openComponent(it.next());
+				} catch (IOException e) {
+					throw new RuntimeException(e);
+				}
+			}
+		});
+	}
+
+	@Override
+	public void close() throws IOException {
+		if (zip != null) {
+			zip.close();
+		}
+	}
+
 	public AID getPackageAID() {
 		return packageAID;
 	}
 
+	/**
+	 * Package version as major and minor, as in the Header component.
+	 */
+	public byte[] getPackageVersion() {
+		return new byte[] { major_version, minor_version };
+	}
+
 	public List<AID> getAppletAIDs() {
 		List<AID> result = new ArrayList<AID>();
 		result.addAll(appletAIDs);
@@ -175,19 +321,13 @@ public class CapFile {
 
 	public int getCodeLength(boolean includeDebug) {
 		int result = 0;
-		for (String name : componentNames) {
-			if (!includeDebug && (name.equals("Debug") || name.equals("Descriptor"))) {
-				continue;
-			}
-			byte[] data = capComponents.get(name);
-			if (data != null) {
-				result += data.length;
-			}
+		for (String name : getLoadComponents(includeDebug)) {
+			result += getComponentSize(name);
 		}
 		return result;
 	}
 
-	private byte[] createHeader(boolean includeDebug) {
+	byte[] createHeader(boolean includeDebug) {
 		int len = getCodeLength(includeDebug);
 		ByteArrayOutputStream bo = new ByteArrayOutputStream();
 		bo.write((byte) 0xC4);
@@ -212,87 +352,124 @@ public class CapFile {
 
 	public List<byte[]> getLoadBlocks(boolean includeDebug, boolean separateComponents, int blockSize) {
 		List<byte[]> blocks = new ArrayList<byte[]>();
+		Iterator<byte[]> it = getLoadBlockIterator(includeDebug, separateComponents, blockSize);
+		while (it.hasNext()) {
+			blocks.add(it.next());
+		}
+		return blocks;
+	}
 
-		if (!separateComponents) {
-			ByteArrayOutputStream bo = new ByteArrayOutputStream();
-			try {
-				bo.write(createHeader(includeDebug));
-				bo.write(getRawCode(includeDebug));
-			} catch (IOException ioe) {
-				throw new RuntimeException(ioe);
+	/**
+	 * LOAD blocks of the load file, read from the CAP as they are consumed.
+	 * Only the next block is kept in memory. I/O errors are thrown as
+	 * RuntimeException.
+	 *
+	 * @param separateComponents start a new block with every component
+	 */
+	public Iterator<byte[]> getLoadBlockIterator(boolean includeDebug, boolean separateComponents, int blockSize) {
+		List<List<String>> segments = new ArrayList<List<String>>();
+		List<String> components = getLoadComponents(includeDebug);
+		if (separateComponents) {
+			for (String name : components) {
+				segments.add(Arrays.asList(name));
 			}
-			blocks = splitArray(bo.toByteArray(), blockSize);
 		} else {
-			for (String name : componentNames) {
-				if (!includeDebug && (name.equals("Debug") || name.equals("Descriptor"))) {
-					continue;
-				}
+			segments.add(components);
+		}
+		return new LoadBlockIterator(segments, createHeader(includeDebug), blockSize);
+	}
 
-				byte[] currentComponent = capComponents.get(name);
-				if (currentComponent == null) {
-					continue;
-				}
-				if (name.equals("Header")) {
-					ByteArrayOutputStream bo = new ByteArrayOutputStream();
-					try {
-						bo.write(createHeader(includeDebug));
-						bo.write(currentComponent);
-					} catch (IOException ioe) {
-						throw new RuntimeException(ioe);
+	private final class LoadBlockIterator implements Iterator<byte[]> {
+		private final Iterator<List<String>> segments;
+		private final int blockSize;
+		// The C4 header goes before the first component
+		private byte[] prefix;
+		private InputStream in = null;
+		private byte[] next;
+
+		LoadBlockIterator(List<List<String>> segments, byte[] prefix, int blockSize) {
+			this.segments = segments.iterator();
+			this.prefix = prefix;
+			this.blockSize = blockSize;
+			next = readBlock();
+		}
+
+		private byte[] readBlock() {
+			try {
+				while (true) {
+					if (in == null) {
+						if (!segments.hasNext()) {
+							return null;
+						}
+						in = openComponents(prefix, segments.next());
+						prefix = new byte[0];
+					}
+					byte[] block = new byte[blockSize];
+					int len = 0;
+					int c;
+					while (len < blockSize && (c = in.read(block, len, blockSize - len)) > 0) {
+						len += c;
 					}
-					currentComponent = bo.toByteArray();
+					if (len == 0) {
+						in.close();
+						in = null;
+						continue;
+					}
+					return len == blockSize ? block : Arrays.copyOf(block, len);
 				}
-				blocks = splitArray(currentComponent, blockSize);
+			} catch (IOException e) {
+				throw new RuntimeException(e);
 			}
 		}
-		return blocks;
-	}
 
-	private byte[] getRawCode(boolean includeDebug) {
-		byte[] result = new byte[getCodeLength(includeDebug)];
-		int offset = 0;
-		for (String name : componentNames) {
-			if (!includeDebug && (name.equals("Debug") || name.equals("Descriptor"))) {
-				continue;
-			}
-			byte[] currentComponent = capComponents.get(name);
-			if (currentComponent == null) {
-				continue;
+		@Override
+		public boolean hasNext() {
+			return next != null;
+		}
+
+		@Override
+		public byte[] next() {
+			if (next == null) {
+				throw new NoSuchElementException();
 			}
-			System.arraycopy(currentComponent, 0, result, offset, currentComponent.length);
-			offset += currentComponent.length;
+			byte[] result = next;
+			next = readBlock();
+			return result;
+		}
+
+		@Override
+		public void remove() {
+			throw new UnsupportedOperationException();
 		}
-		return result;
 	}
 
-	public byte[] getLoadFileDataHash(boolean includeDebug) {
-		try {
-			return MessageDigest.getInstance("SHA1").digest(getRawCode(includeDebug));
-		} catch (NoSuchAlgorithmException e) {
-			throw new RuntimeException("Not possible", e);
+	/**
+	 * The complete load file data block, with the C4 header.
+	 */
+	public byte[] getLoadFileData(boolean includeDebug) {
+		try (InputStream in = openComponents(createHeader(includeDebug), getLoadComponents(includeDebug))) {
+			return readAll(in);
+		} catch (IOException e) {
+			throw new RuntimeException(e);
 		}
 	}
 
-	private List<byte[]> splitArray(byte[] array, int blockSize) {
-		List<byte[]> result = new ArrayList<byte[]>();
-
-		int len = array.length;
-		int offset = 0;
-		int left = len - offset;
-		while (left > 0) {
-			int currentLen = 0;
-			if (left >= blockSize) {
-				currentLen = blockSize;
-			} else {
-				currentLen = left;
+	public byte[] getLoadFileDataHash(boolean includeDebug) {
+		try {
+			MessageDigest md = MessageDigest.getInstance("SHA1");
+			try (InputStream in = openComponents(new byte[0], getLoadComponents(includeDebug))) {
+				byte[] buf = new byte[1024];
+				int c;
+				while ((c = in.read(buf)) > 0) {
+					md.update(buf, 0, c);
+				}
 			}
-			byte[] block = new byte[currentLen];
-			System.arraycopy(array, offset, block, 0, currentLen);
-			result.add(block);
-			left -= currentLen;
-			offset += currentLen;
+			return md.digest();
+		} catch (NoSuchAlgorithmException e) {
+			throw new RuntimeException("Not possible", e);
+		} catch (IOException e) {
+			throw new RuntimeException(e);
 		}
-		return result;
 	}
 
 	public void dump(PrintStream out) {
@@ -0,0 +1,299 @@
+package pro.javacard.gp;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+import apdu4j.HexUtils;
+
+/**
+ * Parsed CAP files, keyed by the SHA-256 of the CAP.
+ *
+ * The same CAP is usually loaded to many cards. The cache keeps the parsed
+ * CapFile together with its load file data (with the C4 header), the load
+ * file data hash and the LOAD blocks for every block size, so that they are
+ * computed only once. Cached CapFile-s are shared between threads and must
+ * be treated as read-only.
+ *
+ * With a directory, the load file data is also stored on disk and reused by
+ * later runs. The stored copy carries its SHA-256 and is rebuilt from the
+ * CAP if it does not match.
+ *
+ * CAP files given as files are read with random access, their components
+ * are read when needed. The load file data and LOAD blocks are kept in
+ * memory once used, as they are shared between cards.
+ *
+ * A cache that is not shared between cards only parses every CAP once.
+ * Nothing derived from it is kept, LOAD blocks are streamed from the file.
+ */
+public final class CapFileCache {
+	private static final int DIGEST_SIZE = 32;
+	private final ConcurrentHashMap<String, CapFile> caps = new ConcurrentHashMap<>();
+	// Path, size and modification time to SHA-256, so that a file is hashed only once
+	private final ConcurrentHashMap<String, String> files = new ConcurrentHashMap<>();
+	private final File directory;
+	private final boolean shared;
+
+	public CapFileCache() {
+		this(true);
+	}
+
+	/**
+	 * @param shared if the CAP files are loaded to several cards
+	 */
+	public CapFileCache(boolean shared) {
+		this.directory = null;
+		this.shared = shared;
+	}
+
+	/**
+	 * @param directory where to store the load file data, created if missing
+	 */
+	public CapFileCache(File directory) throws IOException {
+		if (!directory.isDirectory() && !directory.mkdirs()) {
+			throw new IOException("Could not create " + directory);
+		}
+		this.directory = directory;
+		this.shared = true;
+	}
+
+	public CapFile get(File f) throws IOException {
+		String fileKey = f.getCanonicalPath() + ":" + f.length() + ":" + f.lastModified();
+		String sha = files.get(fileKey);
+		if (sha != null) {
+			CapFile cap = caps.get(sha);
+			if (cap != null) {
+				return cap;
+			}
+		}
+		sha = sha256(f);
+		files.put(fileKey, sha);
+		CapFile cap = caps.get(sha);
+		if (cap == null) {
+			// Components are read from the file when needed
+			cap = put(sha, shared ? new CachedCapFile(sha, f) : new CapFile(f));
+		}
+		return cap;
+	}
+
+	public CapFile get(byte[] cap) throws IOException {
+		String sha = sha256(cap);
+		CapFile cached = caps.get(sha);
+		if (cached == null) {
+			cached = put(sha, shared ? new CachedCapFile(sha, cap) : new CapFile(new ByteArrayInputStream(cap)));
+		}
+		return cached;
+	}
+
+	private CapFile put(String sha, CapFile cap) throws IOException {
+		CapFile previous = caps.putIfAbsent(sha, cap);
+		if (previous != null) {
+			cap.close();
+			return previous;
+		}
+		return cap;
+	}
+
+	public int size() {
+		return caps.size();
+	}
+
+	/**
+	 * Forget and close all CAP files.
+	 */
+	public void clear() throws IOException {
+		files.clear();
+		IOException failure = null;
+		for (String sha : new ArrayList<String>(caps.keySet())) {
+			CapFile cap = caps.remove(sha);
+			try {
+				if (cap != null) {
+					cap.close();
+				}
+			} catch (IOException e) {
+				failure = e;
+			}
+		}
+		if (failure != null) {
+			throw failure;
+		}
+	}
+
+	private static MessageDigest sha256() {
+		try {
+			return MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			throw new RuntimeException("Not possible", e);
+		}
+	}
+
+	private static String sha256(byte[] data) {
+		return HexUtils.encodeHexString(sha256().digest(data));
+	}
+
+	private static String sha256(File f) throws IOException {
+		MessageDigest md = sha256();
+		try (InputStream in = new FileInputStream(f)) {
+			byte[] buf = new byte[8192];
+			int c;
+			while ((c = in.read(buf)) > 0) {
+				md.update(buf, 0, c);
+			}
+		}
+		return HexUtils.encodeHexString(md.digest());
+	}
+
+	// Everything derived from the CAP is computed once. Computing something
+	// twice in a race is harmless, the results are the same.
+	private final class CachedCapFile extends CapFile {
+		private final String sha;
+		private final ConcurrentHashMap<Boolean, byte[]> loadFileData = new ConcurrentHashMap<>();
+		private final ConcurrentHashMap<Boolean, byte[]> hashes = new ConcurrentHashMap<>();
+		private final ConcurrentHashMap<String, List<byte[]>> blocks = new ConcurrentHashMap<>();
+
+		CachedCapFile(String sha, byte[] data) throws IOException {
+			super(new ByteArrayInputStream(data));
+			this.sha = sha;
+		}
+
+		CachedCapFile(String sha, File f) throws IOException {
+			super(f);
+			this.sha = sha;
+		}
+
+		@Override
+		public byte[] getLoadFileData(boolean includeDebug) {
+			byte[] lfdb = loadFileData.get(includeDebug);
+			if (lfdb == null) {
+				lfdb = load(includeDebug);
+				if (lfdb == null) {
+					lfdb = super.getLoadFileData(includeDebug);
+					store(includeDebug, lfdb);
+				}
+				loadFileData.put(includeDebug, lfdb);
+			}
+			return lfdb.clone();
+		}
+
+		@Override
+		public byte[] getLoadFileDataHash(boolean includeDebug) {
+			byte[] hash = hashes.get(includeDebug);
+			if (hash == null) {
+				byte[] lfdb = getLoadFileData(includeDebug);
+				int len = getCodeLength(includeDebug);
+				try {
+					MessageDigest md = MessageDigest.getInstance("SHA1");
+					md.update(lfdb, lfdb.length - len, len);
+					hash = md.digest();
+				} catch (NoSuchAlgorithmException e) {
+					throw new RuntimeException("Not possible", e);
+				}
+				hashes.put(includeDebug, hash);
+			}
+			return hash.clone();
+		}
+
+		@Override
+		public List<byte[]> getLoadBlocks(boolean includeDebug, boolean separateComponents, int blockSize) {
+			return new ArrayList<byte[]>(blocks(includeDebug, separateComponents, blockSize));
+		}
+
+		@Override
+		public Iterator<byte[]> getLoadBlockIterator(boolean includeDebug, boolean separateComponents, int blockSize) {
+			return blocks(includeDebug, separateComponents, blockSize).iterator();
+		}
+
+		private List<byte[]> blocks(boolean includeDebug, boolean separateComponents, int blockSize) {
+			String key = includeDebug + ":" + separateComponents + ":" + blockSize;
+			List<byte[]> result = blocks.get(key);
+			if (result == null) {
+				List<byte[]> list = new ArrayList<byte[]>();
+				if (separateComponents) {
+					Iterator<byte[]> it = super.getLoadBlockIterator(includeDebug, separateComponents, blockSize);
+					while (it.hasNext()) {
+						list.add(it.next());
+					}
+				} else {
+					byte[] lfdb = getLoadFileData(includeDebug);
+					for (int offset = 0; offset < lfdb.length; offset += blockSize) {
+						list.add(Arrays.copyOfRange(lfdb, offset, Math.min(offset + blockSize, lfdb.length)));
+					}
+				}
+				result = Collections.unmodifiableList(list);
+				blocks.put(key, result);
+			}
+			return result;
+		}
+
+		private Path path(boolean includeDebug) {
+			return new File(directory, sha + (includeDebug ? "-debug" : "") + ".lfdb").toPath();
+		}
+
+		// Load file data from disk, null if not there or not valid. The file
+		// is the SHA-256 of the load file data followed by the data.
+		private byte[] load(boolean includeDebug) {
+			if (directory == null) {
+				return null;
+			}
+			Path p = path(includeDebug);
+			try {
+				if (!Files.isRegularFile(p)) {
+					return null;
+				}
+				byte[] file = Files.readAllBytes(p);
+				int len = createHeader(includeDebug).length + getCodeLength(includeDebug);
+				if (file.length == DIGEST_SIZE + len) {
+					byte[] lfdb = Arrays.copyOfRange(file, DIGEST_SIZE, file.length);
+					if (MessageDigest.isEqual(sha256().digest(lfdb), Arrays.copyOf(file, DIGEST_SIZE))) {
+						return lfdb;
+					}
+				}
+				// Truncated or corrupted, rebuilt from the CAP
+				Files.deleteIfExists(p);
+			} catch (IOException e) {
+				// Not cached
+			}
+			return null;
+		}
+
+		// The disk copy is only an optimization, so failures are ignored
+		private void store(boolean includeDebug, byte[] lfdb) {
+			if (directory == null) {
+				return;
+			}
+			try {
+				Path tmp = Files.createTempFile(directory.toPath(), sha, ".tmp");
+				try {
+					try (OutputStream out = Files.newOutputStream(tmp)) {
+						out.write(sha256().digest(lfdb));
+						out.write(lfdb);
+					}
+					Files.move(tmp, path(includeDebug), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+				} finally {
+					Files.deleteIfExists(tmp);
+				}
+			} catch (IOException e) {
+				// Not cached
+			}
+		}
+
+		@Override
+		public String toString() {
+			return "CAP " + getPackageAID() + " with SHA-256 " + sha;
+		}
+	}
+}
@@ -0,0 +1,229 @@
+package pro.javacard.gp;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import pro.javacard.gp.GPKeySet.GPKey.Type;
+
+/**
+ * Provider of the symmetric primitives used by GlobalPlatform secure channels.
+ *
+ * A backend only has to supply keyed block ciphers. Retail MAC, CMAC, the
+ * SCP03 KDF and key wrapping are implemented here on top of them and may
+ * be overridden by a backend with a native implementation.
+ *
+ * Keys are given as raw bytes: 16 or 24 bytes for {@link Type#DES3} (a 16
+ * byte key is used as K1 K2 K1), the first 8 bytes for {@link Type#DES}
+ * and 16, 24 or 32 bytes for {@link Type#AES}.
+ */
+public abstract class CryptoBackend {
+
+	/**
+	 * A block cipher in encryption mode, bound to one key.
+	 * The key schedule is computed once when the object is created.
+	 * Input and output may overlap. Not thread safe.
+	 */
+	public interface BlockEncryptor {
+		int getBlockSize();
+
+		// ECB encryption of a single block
+		void encryptBlock(byte[] in, int inOffset, byte[] out, int outOffset);
+
+		// CBC encryption of whole blocks, iv of null means a null IV
+		void encryptCBC(byte[] iv, byte[] in, int inOffset, int length, byte[] out, int outOffset);
+	}
+
+	public abstract String getName();
+
+	public abstract BlockEncryptor getEncryptor(Type type, byte[] key);
+
+	public byte[] encryptECB(Type type, byte[] key, byte[] data) {
+		BlockEncryptor e = getEncryptor(type, key);
+		byte[] result = new byte[data.length];
+		for (int i = 0; i < data.length; i += e.getBlockSize()) {
+			e.encryptBlock(data, i, result, i);
+		}
+		return result;
+	}
+
+	public byte[] encryptCBC(Type type, byte[] key, byte[] iv, byte[] data) {
+		byte[] result = new byte[data.length];
+		getEncryptor(type, key).encryptCBC(iv, data, 0, data.length, result, 0);
+		return result;
+	}
+
+	/**
+	 * ISO 9797-1 MAC algorithm 3 ("retail MAC") with a double length DES key
+	 * over already padded data: single DES CBC over all but the last block,
+	 * 3DES over the last block.
+	 */
+	public byte[] retailMac(byte[] key, byte[] data, int offset, int length, byte[] iv) {
+		byte[] result = iv == null ? new byte[8] : iv.clone();
+		if (length > 8) {
+			byte[] temp = new byte[length - 8];
+			getEncryptor(Type.DES, key).encryptCBC(result, data, offset, length - 8, temp, 0);
+			System.arraycopy(temp, temp.length - 8, result, 0, 8);
+		}
+		for (int i = 0; i < 8; i++) {
+			result[i] ^= data[offset + length - 8 + i];
+		}
+		getEncryptor(Type.DES3, key).encryptBlock(result, 0, result, 0);
+		return result;
+	}
+
+	/**
+	 * AES-CMAC, full 16 byte result.
+	 */
+	public byte[] cmac(byte[] key, byte[] data, int offset, int length) {
+		AESCMac cmac = new AESCMac(getEncryptor(Type.AES, key));
+		cmac.update(data, offset, length);
+		byte[] result = new byte[cmac.getMacSize()];
+		cmac.doFinal(result, 0);
+		return result;
+	}
+
+	/**
+	 * SCP03 KDF (NIST SP 800-108 counter mode with AES-CMAC, GP 2.2.1 Amendment D 4.1.5)
+	 */
+	public byte[] kdf(byte[] key, byte constant, byte[] context, int blocklen_bits) {
+		AESCMac cmac = new AESCMac(getEncryptor(Type.AES, key));
+		byte[] result = new byte[blocklen_bits / 8];
+		byte[] block = new byte[16];
+		// 11 bytes of label, constant, separator, length in bits
+		byte[] prefix = new byte[16];
+		prefix[11] = constant;
+		prefix[12] = 0x00;
+		prefix[13] = (byte) ((blocklen_bits >> 8) & 0xFF);
+		prefix[14] = (byte) (blocklen_bits & 0xFF);
+		for (int i = 0, counter = 1; i < result.length; i += 16, counter++) {
+			prefix[15] = (byte) counter;
+			cmac.update(prefix, 0, prefix.length);
+			cmac.update(context, 0, context.length);
+			cmac.doFinal(block, 0);
+			System.arraycopy(block, 0, result, i, Math.min(16, result.length - i));
+		}
+		return result;
+	}
+
+	/**
+	 * Encrypt key components with a KEK: 3DES ECB (SCP01/SCP02) or AES CBC
+	 * with a null IV (SCP03). The data must be padded to the block size.
+	 */
+	public byte[] wrapKey(Type type, byte[] kek, byte[] data) {
+		if (type == Type.AES) {
+			return encryptCBC(Type.AES, kek, null, data);
+		} else if (type == Type.DES3) {
+			return encryptECB(Type.DES3, kek, data);
+		}
+		throw new IllegalArgumentException("Don't know how to wrap with " + type);
+	}
+
+	@Override
+	public String toString() {
+		return getName();
+	}
+
+	// Key material in the form expected by DES and 3DES implementations
+	protected static byte[] keyBytes(Type type, byte[] key) {
+		if (type == Type.DES) {
+			return Arrays.copyOf(key, 8);
+		} else if (type == Type.DES3 && key.length == 16) {
+			byte[] key24 = Arrays.copyOf(key, 24);
+			System.arraycopy(key, 0, key24, 16, 8);
+			return key24;
+		}
+		return key;
+	}
+
+	// Generic CBC over the single block operation of a backend
+	protected static void cbc(BlockEncryptor e, byte[] iv, byte[] in, int inOffset, int length, byte[] out, int outOffset) {
+		int bs = e.getBlockSize();
+		if (length % bs != 0) {
+			throw new IllegalArgumentException("Data must be padded to block size");
+		}
+		byte[] chain = iv == null ? new byte[bs] : Arrays.copyOf(iv, bs);
+		for (int i = 0; i < length; i += bs) {
+			for (int j = 0; j < bs; j++) {
+				chain[j] ^= in[inOffset + i + j];
+			}
+			e.encryptBlock(chain, 0, chain, 0);
+			System.arraycopy(chain, 0, out, outOffset + i, bs);
+		}
+	}
+
+	/**
+	 * All backends that can be used in this JVM.
+	 */
+	public static List<CryptoBackend> getBackends() {
+		List<CryptoBackend> result = new ArrayList<CryptoBackend>();
+		result.add(new JCECryptoBackend());
+		result.add(new BCCryptoBackend());
+		return result;
+	}
+
+	/**
+	 * Get a backend by name ("jce" or "bc"), or the fastest one for "auto".
+	 *
+	 * @throws IllegalArgumentException if there is no such backend
+	 */
+	public static CryptoBackend getInstance(String name) {
+		if (name.equalsIgnoreCase("auto")) {
+			return fastest(50);
+		}
+		for (CryptoBackend b : getBackends()) {
+			if (b.getName().equalsIgnoreCase(name)) {
+				return b;
+			}
+		}
+		throw new IllegalArgumentException("Unknown crypto backend: " + name);
+	}
+
+	/**
+	 * Pick the backend with the best throughput on the hot paths of a secure
+	 * channel session: SCP03 CMAC and SCP02 retail MAC over LOAD sized blocks.
+	 *
+	 * @param millis time to spend on every backend
+	 */
+	public static CryptoBackend fastest(long millis) {
+		CryptoBackend best = null;
+		long bestScore = -1;
+		List<CryptoBackend> backends = getBackends();
+		// Warm up all backends first, so that JIT does not favor the last one
+		for (CryptoBackend b : backends) {
+			benchmark(b, millis / 4);
+		}
+		for (CryptoBackend b : backends) {
+			long score = benchmark(b, millis);
+			if (score > bestScore) {
+				best = b;
+				bestScore = score;
+			}
+		}
+		return best;
+	}
+
+	/**
+	 * Number of 240 byte messages MAC-ed in the given time.
+	 */
+	public static long benchmark(CryptoBackend b, long millis) {
+		byte[] key = GPData.defaultKeyBytes;
+		byte[] data = new byte[240];
+		byte[] out = new byte[16];
+		byte[] icv = new byte[8];
+		AESCMac cmac = new AESCMac(b.getEncryptor(Type.AES, key));
+		BlockEncryptor des = b.getEncryptor(Type.DES, key);
+		BlockEncryptor des3 = b.getEncryptor(Type.DES3, key);
+		byte[] temp = new byte[data.length];
+		long n = 0;
+		long end = System.nanoTime() + millis * 1000000L;
+		while (System.nanoTime() < end) {
+			cmac.update(data, 0, data.length);
+			cmac.doFinal(out, 0);
+			des.encryptCBC(icv, data, 0, data.length - 8, temp, 0);
+			des3.encryptBlock(temp, data.length - 16, icv, 0);
+			n++;
+		}
+		return n;
+	}
+}
@@ -0,0 +1,1160 @@
+package pro.javacard.gp;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.IvParameterSpec;
+import javax.smartcardio.ATR;
+import javax.smartcardio.Card;
+import javax.smartcardio.CardChannel;
+import javax.smartcardio.CardException;
+import javax.smartcardio.CardTerminal;
+import javax.smartcardio.CommandAPDU;
+import javax.smartcardio.ResponseAPDU;
+
+import pro.javacard.gp.GPData.KeyType;
+import pro.javacard.gp.GPKeySet.GPKey;
+import pro.javacard.gp.GPKeySet.GPKey.Type;
+import apdu4j.HexUtils;
+import apdu4j.ISO7816;
+
+/**
+ * An issuer security domain emulated in memory, for tests and benchmarks
+ * without a card.
+ *
+ * Implements SCP01 (i=05), SCP02 (i=15) and SCP03 with C-MAC and C-ENC,
+ * implicitly initiated SCP02 (i=1A) with C-MAC,
+ * GET STATUS in the legacy and tagged formats with 6310 paging, GET DATA for CPLC,
+ * card recognition data, key information and the sequence counter, as well
+ * as LOAD, INSTALL, DELETE, PUT KEY and SET STATUS on a registry that is
+ * kept in memory. Load files are parsed for the package and applet AIDs
+ * only, applets are not run. R-MAC is not supported.
+ *
+ * Every command can be delayed to behave like a card with realistic
+ * timings, see {@link #setLatency}. Commands of one card are processed one
+ * at a time, different cards can be used in parallel.
+ */
+public class GPCardEmulator extends Card {
+	// Initial CPLC serial numbers, so that emulated cards can be told apart
+	private static final AtomicInteger serials = new AtomicInteger(1);
+
+	private final AID sdAID;
+	private final int scp;
+	private final int scp_i;
+	// Key version to keys by ID, 1 to 3
+	private final TreeMap<Integer, GPKey[]> keys = new TreeMap<Integer, GPKey[]>();
+	private final List<Entry> registry = new ArrayList<Entry>();
+	private final Map<Integer, Long> latency = new HashMap<Integer, Long>();
+	private final CardChannel channel = new EmulatedChannel();
+	private final SecureRandom random = new SecureRandom();
+
+	private byte[] cplc;
+	private byte[] diversificationData = new byte[10];
+	private int counter = 1;
+	private int maxResponse = 256;
+	private boolean taggedStatus = true;
+	private long defaultLatency = 0;
+	private int freeMemory = Integer.MAX_VALUE;
+
+	// Secure channel session
+	private Session session = null;
+	// Pending load
+	private AID loadAID = null;
+	private ByteArrayOutputStream loadData = null;
+	private int loadBlock = 0;
+	// Pending GET STATUS
+	private List<byte[]> statusEntries = null;
+
+	/**
+	 * @param keys static keys of the ISD, version 0 is reported as 0xFF
+	 * @param sdAID AID of the ISD
+	 * @param scp major SCP version, 1, 2 or 3
+	 */
+	public GPCardEmulator(GPKeySet keys, AID sdAID, int scp) {
+		this(keys, sdAID, scp, scp == 2 ? 0x15 : 0x10);
+	}
+
+	/**
+	 * @param i the "i" parameter of SCP03, with 0x10 for pseudo-random card
+	 * challenges, or of SCP02, 0x15 or 0x1A for an implicitly initiated
+	 * secure channel
+	 */
+	public GPCardEmulator(GPKeySet keys, AID sdAID, int scp, int i) {
+		if (scp < 1 || scp > 3) {
+			throw new IllegalArgumentException("SCP version must be 1, 2 or 3");
+		}
+		if (scp == 2 && i != 0x15 && i != 0x1A) {
+			throw new IllegalArgumentException("SCP02 i must be 15 or 1A");
+		}
+		Type type = scp == 3 ? Type.AES : Type.DES3;
+		for (GPKey k : keys.getKeys().values()) {
+			if (k.getType() != type) {
+				throw new IllegalArgumentException("SCP0" + scp + " needs " + type + " keys");
+			}
+		}
+		int version = keys.getKeyVersion() == 0 ? 0xFF : keys.getKeyVersion();
+		GPKey[] set = new GPKey[3];
+		set[0] = new GPKey(version, 1, keys.getKey(KeyType.ENC));
+		set[1] = new GPKey(version, 2, keys.getKey(KeyType.MAC));
+		set[2] = new GPKey(version, 3, keys.getKey(KeyType.KEK));
+		this.keys.put(version, set);
+		this.sdAID = sdAID;
+		this.scp = scp;
+		this.scp_i = scp == 1 ? 0x05 : i;
+
+		// CPLC with a unique IC serial number
+		cplc = new byte[3 + 0x2A];
+		cplc[0] = (byte) 0x9F;
+		cplc[1] = 0x7F;
+		cplc[2] = 0x2A;
+		cplc[3] = 0x47;
+		cplc[4] = (byte) 0x90;
+		int serial = serials.getAndIncrement();
+		cplc[15] = (byte) (serial >> 24);
+		cplc[16] = (byte) (serial >> 16);
+		cplc[17] = (byte) (serial >> 8);
+		cplc[18] = (byte) serial;
+
+		registry.add(new Entry(sdAID, 0x80, 0x0F, 0x9E, null));
+	}
+
+	/**
+	 * CPLC data returned by GET DATA(9F7F), with the tag and length.
+	 */
+	public synchronized void setCPLC(byte[] cplc) {
+		this.cplc = cplc.clone();
+	}
+
+	/**
+	 * Key diversification data returned by INITIALIZE UPDATE, 10 bytes.
+	 */
+	public synchronized void setDiversificationData(byte[] data) {
+		if (data.length != 10) {
+			throw new IllegalArgumentException("Diversification data must be 10 bytes");
+		}
+		this.diversificationData = data.clone();
+	}
+
+	/**
+	 * Sequence counter for the next INITIALIZE UPDATE (SCP02 and SCP03).
+	 */
+	public synchronized void setSequenceCounter(int counter) {
+		this.counter = counter;
+	}
+
+	/**
+	 * Largest GET STATUS response, longer responses are paged with 6310.
+	 */
+	public synchronized void setMaxResponseSize(int size) {
+		this.maxResponse = size;
+	}
+
+	/**
+	 * Support the tagged GET STATUS format (P2=02) of GP 2.2, or only the
+	 * legacy format like older cards.
+	 */
+	public synchronized void setTaggedStatus(boolean tagged) {
+		this.taggedStatus = tagged;
+	}
+
+	/**
+	 * Bytes available for a load file, LOAD fails with 6A84 when it gets larger.
+	 */
+	public synchronized void setFreeMemory(int bytes) {
+		this.freeMemory = bytes;
+	}
+
+	/**
+	 * Time the card takes to process commands with {@code ins}, in microseconds.
+	 */
+	public synchronized void setLatency(int ins, long micros) {
+		latency.put(ins & 0xFF, micros);
+	}
+
+	/**
+	 * Time the card takes to process other commands, in microseconds.
+	 */
+	public synchronized void setLatency(long micros) {
+		defaultLatency = micros;
+	}
+
+	/**
+	 * Current content of the card, as it would be listed with GET STATUS.
+	 */
+	public synchronized AIDRegistry getRegistry() {
+		AIDRegistry result = new AIDRegistry();
+		for (Entry e : registry) {
+			AIDRegistryEntry.Kind kind;
+			if (e.kind == 0x80) {
+				kind = AIDRegistryEntry.Kind.IssuerSecurityDomain;
+			} else if (e.kind == 0x40) {
+				kind = (e.privileges & 0x80) == 0 ? AIDRegistryEntry.Kind.Application : AIDRegistryEntry.Kind.SecurityDomain;
+			} else {
+				kind = AIDRegistryEntry.Kind.ExecutableLoadFilesAndModules;
+			}
+			AIDRegistryEntry entry = new AIDRegistryEntry(e.aid, e.lifecycle, e.privileges, kind);
+			entry.setExecutableLoadFileAID(e.elf);
+			entry.setVersion(e.version);
+			for (AID m : e.modules) {
+				entry.addExecutableAID(m);
+			}
+			result.add(entry);
+		}
+		return result;
+	}
+
+	/**
+	 * Key versions present on the card.
+	 */
+	public synchronized List<Integer> getKeyVersions() {
+		return new ArrayList<Integer>(keys.keySet());
+	}
+
+	// An ISD, application or executable load file
+	private static final class Entry {
+		final AID aid;
+		final int kind; // as P1 of GET STATUS
+		int lifecycle;
+		int privileges;
+		// Executable load file of an application
+		final AID elf;
+		// Modules and version of an executable load file
+		final List<AID> modules = new ArrayList<AID>();
+		byte[] version;
+
+		Entry(AID aid, int kind, int lifecycle, int privileges, AID elf) {
+			this.aid = aid;
+			this.kind = kind;
+			this.lifecycle = lifecycle;
+			this.privileges = privileges;
+			this.elf = elf;
+		}
+	}
+
+	// State of the secure channel
+	private static final class Session {
+		GPKeySet sessionKeys;
+		GPSessionCrypto crypto;
+		byte[] host_challenge;
+		byte[] card_challenge;
+		boolean authenticated = false;
+		boolean mac = false;
+		boolean enc = false;
+		// Opened by the first command, with C-MAC on the unmodified command
+		boolean implicit = false;
+		// C-MAC of the previous command (SCP01/02) or the chaining value (SCP03)
+		byte[] icv;
+		byte[] counter = new byte[16];
+	}
+
+	private synchronized byte[] process(byte[] apdu) {
+		CommandAPDU c;
+		try {
+			c = new CommandAPDU(apdu);
+		} catch (IllegalArgumentException e) {
+			return sw(0x6700);
+		}
+		delay(c.getINS());
+		int ins = c.getINS();
+		if (ins == (ISO7816.INS_SELECT & 0xFF)) {
+			return select(c);
+		} else if (ins == 0x50) {
+			return initializeUpdate(c);
+		} else if (ins == (ISO7816.INS_EXTERNAL_AUTHENTICATE_82 & 0xFF)) {
+			return externalAuthenticate(c);
+		}
+		// Secure messaging
+		if ((c.getCLA() & 0x04) == 0x04 && session == null && scp_i == 0x1A) {
+			c = implicitSession(c);
+			if (c == null) {
+				return sw(0x6982);
+			}
+		} else if ((c.getCLA() & 0x04) == 0x04) {
+			if (session == null || !session.authenticated || !session.mac) {
+				return sw(0x6982);
+			}
+			c = unwrap(c);
+			if (c == null) {
+				session = null;
+				return sw(0x6982);
+			}
+		} else if (session != null && session.authenticated && session.mac && ins != (ISO7816.INS_GET_DATA & 0xFF)) {
+			// Plain commands are only accepted outside of a secure channel
+			session = null;
+			return sw(0x6982);
+		}
+		if (ins == (ISO7816.INS_GET_DATA & 0xFF)) {
+			return getData(c);
+		}
+		// Card content management needs an authenticated session
+		if (session == null || !session.authenticated) {
+			return sw(0x6982);
+		}
+		switch (ins) {
+		case 0xF2:
+			return getStatus(c);
+		case 0xE6:
+			return install(c);
+		case 0xE8:
+			return load(c);
+		case 0xE4:
+			return delete(c);
+		case 0xD8:
+			return putKey(c);
+		case 0xF0:
+			return setStatus(c);
+		default:
+			return sw(0x6D00);
+		}
+	}
+
+	private void delay(int ins) {
+		Long l = latency.get(ins);
+		long micros = l == null ? defaultLatency : l;
+		if (micros > 0) {
+			long end = System.nanoTime() + micros * 1000;
+			long left;
+			while ((left = end - System.nanoTime()) > 0) {
+				LockSupport.parkNanos(left);
+			}
+		}
+	}
+
+	private byte[] select(CommandAPDU c) {
+		session = null;
+		statusEntries = null;
+		byte[] aid = c.getData();
+		if (aid.length == 0 || Arrays.equals(aid, sdAID.getBytes())) {
+			// Minimal FCI with the SD AID
+			byte[] sd = sdAID.getBytes();
+			byte[] fci = new byte[4 + sd.length];
+			fci[0] = 0x6F;
+			fci[1] = (byte) (sd.length + 2);
+			fci[2] = (byte) 0x84;
+			fci[3] = (byte) sd.length;
+			System.arraycopy(sd, 0, fci, 4, sd.length);
+			return response(fci, 0x9000);
+		}
+		Entry e = find(new AID(aid), 0x40);
+		if (e == null || (e.lifecycle & 0x80) == 0x80 || e.lifecycle == 0x03) {
+			return sw(0x6A82);
+		}
+		return sw(0x9000);
+	}
+
+	private byte[] initializeUpdate(CommandAPDU c) {
+		session = null;
+		if (c.getNc() != 8) {
+			return sw(0x6700);
+		}
+		int version = c.getP1();
+		GPKey[] set = version == 0 ? keys.firstEntry().getValue() : keys.get(version);
+		if (set == null) {
+			return sw(0x6A88);
+		}
+		version = set[0].getVersion();
+		GPKeySet staticKeys = staticKeys(set);
+
+		Session s = new Session();
+		s.host_challenge = c.getData();
+		byte[] seq = null;
+		if (scp == 1) {
+			s.card_challenge = new byte[8];
+			random.nextBytes(s.card_challenge);
+			s.sessionKeys = GlobalPlatform.deriveSessionKeysSCP01(staticKeys, s.host_challenge, s.card_challenge);
+		} else if (scp == 2) {
+			seq = new byte[] { (byte) (counter >> 8), (byte) counter };
+			s.card_challenge = new byte[8];
+			random.nextBytes(s.card_challenge);
+			System.arraycopy(seq, 0, s.card_challenge, 0, 2);
+			s.sessionKeys = GlobalPlatform.deriveSessionKeysSCP02(staticKeys, seq, false);
+		} else {
+			seq = new byte[] { (byte) (counter >> 16), (byte) (counter >> 8), (byte) counter };
+			if ((scp_i & 0x10) == 0x10) {
+				s.card_challenge = GlobalPlatform.computeCardChallengeSCP03(staticKeys, seq, sdAID);
+			} else {
+				s.card_challenge = new byte[8];
+				random.nextBytes(s.card_challenge);
+				seq = null;
+			}
+			s.sessionKeys = GlobalPlatform.deriveSessionKeysSCP03(staticKeys, s.host_challenge, s.card_challenge);
+		}
+		if (scp != 1) {
+			counter++;
+		}
+		s.crypto = new GPSessionCrypto(s.sessionKeys, scp);
+
+		byte[] cntx = GPUtils.concatenate(s.host_challenge, s.card_challenge);
+		byte[] card_cryptogram;
+		if (scp == 3) {
+			card_cryptogram = GPCrypto.scp03_kdf(s.sessionKeys.getKey(KeyType.MAC), (byte) 0x00, cntx, 64);
+		} else {
+			card_cryptogram = GPCrypto.mac_3des_nulliv(s.sessionKeys.getKey(KeyType.ENC), cntx);
+		}
+
+		ByteArrayOutputStream bo = new ByteArrayOutputStream();
+		bo.write(diversificationData, 0, 10);
+		bo.write(version);
+		bo.write(scp);
+		if (scp == 3) {
+			bo.write(scp_i);
+		}
+		// SCP02 has the counter in the card challenge
+		bo.write(s.card_challenge, 0, 8);
+		bo.write(card_cryptogram, 0, 8);
+		if (scp == 3 && seq != null) {
+			bo.write(seq, 0, 3);
+		}
+		session = s;
+		return response(bo.toByteArray(), 0x9000);
+	}
+
+	private static GPKeySet staticKeys(GPKey[] set) {
+		GPKeySet staticKeys = new GPKeySet();
+		staticKeys.setKey(KeyType.ENC, set[0]);
+		staticKeys.setKey(KeyType.MAC, set[1]);
+		staticKeys.setKey(KeyType.KEK, set[2]);
+		return staticKeys;
+	}
+
+	// Open a session with the first C-MAC'd command, null if the C-MAC is not valid
+	private CommandAPDU implicitSession(CommandAPDU c) {
+		byte[] seq = new byte[] { (byte) (counter >> 8), (byte) counter };
+		Session s = new Session();
+		s.sessionKeys = GlobalPlatform.deriveSessionKeysSCP02(staticKeys(keys.firstEntry().getValue()), seq, true);
+		s.crypto = new GPSessionCrypto(s.sessionKeys, scp);
+		// The ICV of the first command is the C-MAC over the AID
+		s.icv = s.crypto.mac_des_3des(KeyType.MAC, sdAID.getBytes(), new byte[8]);
+		s.implicit = true;
+		s.mac = true;
+		CommandAPDU plain = unwrap(s, c);
+		if (plain == null) {
+			return null;
+		}
+		s.authenticated = true;
+		counter++;
+		session = s;
+		return plain;
+	}
+
+	private byte[] externalAuthenticate(CommandAPDU c) {
+		Session s = session;
+		session = null;
+		if (s == null || s.authenticated) {
+			return sw(0x6985);
+		}
+		if (c.getCLA() != 0x84 || c.getNc() != 16) {
+			return sw(0x6982);
+		}
+		int level = c.getP1();
+		if ((level & ~0x03) != 0) {
+			// R-MAC and R-ENC are not supported
+			return sw(0x6A86);
+		}
+		byte[] host_cryptogram;
+		if (scp == 3) {
+			host_cryptogram = GPCrypto.scp03_kdf(s.sessionKeys.getKey(KeyType.MAC), (byte) 0x01, GPUtils.concatenate(s.host_challenge, s.card_challenge), 64);
+		} else {
+			host_cryptogram = GPCrypto.mac_3des_nulliv(s.sessionKeys.getKey(KeyType.ENC), GPUtils.concatenate(s.card_challenge, s.host_challenge));
+		}
+		// Verify the C-MAC of this command first, it starts the chain
+		s.mac = true;
+		if (unwrap(s, c) == null || !Arrays.equals(host_cryptogram, Arrays.copyOf(c.getData(), 8))) {
+			return sw(0x6300);
+		}
+		s.mac = (level & 0x01) == 0x01;
+		s.enc = (level & 0x02) == 0x02;
+		s.authenticated = true;
+		session = s;
+		return sw(0x9000);
+	}
+
+	private CommandAPDU unwrap(CommandAPDU c) {
+		return unwrap(session, c);
+	}
+
+	// Verify the C-MAC and decrypt, null if not valid
+	private CommandAPDU unwrap(Session s, CommandAPDU c) {
+		byte[] data = c.getData();
+		if (data.length < 8) {
+			return null;
+		}
+		byte[] mac = Arrays.copyOfRange(data, data.length - 8, data.length);
+		byte[] payload = Arrays.copyOf(data, data.length - 8);
+		int cla = c.getCLA() & ~0x04;
+		int ins = c.getINS();
+		int p1 = c.getP1();
+		int p2 = c.getP2();
+		try {
+			if (scp == 3) {
+				byte[] cv = s.icv == null ? new byte[16] : s.icv.clone();
+				byte[] header = new byte[] { (byte) c.getCLA(), (byte) ins, (byte) p1, (byte) p2, (byte) data.length };
+				byte[] text = GPUtils.concatenate(header, payload);
+				s.crypto.scp03_mac(cv, text, 0, text.length);
+				if (!Arrays.equals(mac, Arrays.copyOf(cv, 8))) {
+					return null;
+				}
+				s.icv = cv;
+				if (s.authenticated && s.enc) {
+					GPCrypto.buffer_increment(s.counter);
+					if (payload.length > 0) {
+						GPKey key = s.sessionKeys.getKey(KeyType.ENC);
+						Cipher ecb = Cipher.getInstance("AES/ECB/NoPadding");
+						ecb.init(Cipher.ENCRYPT_MODE, key.getKey());
+						byte[] iv = ecb.doFinal(s.counter);
+						Cipher cbc = Cipher.getInstance(GPCrypto.AES_CBC_CIPHER);
+						cbc.init(Cipher.DECRYPT_MODE, key.getKey(), new IvParameterSpec(iv));
+						payload = unpad80(cbc.doFinal(payload));
+					}
+				}
+			} else {
+				if (s.authenticated && s.enc && payload.length > 0) {
+					Cipher cbc = Cipher.getInstance(GPCrypto.DES3_CBC_CIPHER);
+					cbc.init(Cipher.DECRYPT_MODE, s.sessionKeys.getKey(KeyType.ENC).getKey(), GPCrypto.iv_null_des);
+					byte[] plain = cbc.doFinal(payload);
+					if (scp == 1) {
+						// Length is encrypted together with data
+						if ((plain[0] & 0xFF) > plain.length - 1) {
+							return null;
+						}
+						payload = Arrays.copyOfRange(plain, 1, 1 + (plain[0] & 0xFF));
+					} else {
+						payload = unpad80(plain);
+					}
+				}
+				if (payload == null) {
+					return null;
+				}
+				// C-MAC is over the plaintext
+				byte[] icv;
+				if (s.icv == null) {
+					icv = new byte[8];
+				} else {
+					icv = s.icv.clone();
+					if (scp == 2) {
+						s.crypto.encryptICV(icv);
+					}
+				}
+				byte[] header;
+				if (s.implicit) {
+					header = new byte[] { (byte) cla, (byte) ins, (byte) p1, (byte) p2, (byte) payload.length };
+				} else {
+					header = new byte[] { (byte) c.getCLA(), (byte) ins, (byte) p1, (byte) p2, (byte) (payload.length + 8) };
+				}
+				byte[] text = GPUtils.concatenate(header, payload);
+				if (scp == 1) {
+					text = GPCrypto.pad80(text, 8);
+					s.crypto.mac_3des(text, 0, text.length, icv);
+				} else {
+					s.crypto.mac_des_3des(KeyType.MAC, text, 0, text.length, icv);
+				}
+				if (!Arrays.equals(mac, icv)) {
+					return null;
+				}
+				s.icv = icv;
+			}
+		} catch (GeneralSecurityException e) {
+			throw new RuntimeException("Could not unwrap command", e);
+		}
+		if (payload == null) {
+			return null;
+		}
+		int ne = c.getNe();
+		if (payload.length == 0) {
+			return ne > 0 ? new CommandAPDU(cla, ins, p1, p2, ne) : new CommandAPDU(cla, ins, p1, p2);
+		}
+		return ne > 0 ? new CommandAPDU(cla, ins, p1, p2, payload, ne) : new CommandAPDU(cla, ins, p1, p2, payload);
+	}
+
+	// Remove 80 00 .. padding, null if not padded
+	private static byte[] unpad80(byte[] b) {
+		int i = b.length - 1;
+		while (i >= 0 && b[i] == 0x00) {
+			i--;
+		}
+		if (i < 0 || b[i] != (byte) 0x80) {
+			return null;
+		}
+		return Arrays.copyOf(b, i);
+	}
+
+	private byte[] getData(CommandAPDU c) {
+		int tag = (c.getP1() << 8) | c.getP2();
+		ByteArrayOutputStream bo = new ByteArrayOutputStream();
+		if (tag == 0x9F7F) {
+			return response(cplc, 0x9000);
+		} else if (tag == 0x0066) {
+			// GP 2.1.1 card recognition data, with GP 2.2.1 and the SCP of the card
+			byte[] oid = HexUtils.stringToBin("2A864886FC6B");
+			bo.write(0x06);
+			bo.write(oid.length + 1);
+			bo.write(oid, 0, oid.length);
+			bo.write(0x01);
+			bo.write(0x60);
+			bo.write(oid.length + 6);
+			bo.write(0x06);
+			bo.write(oid.length + 4);
+			bo.write(oid, 0, oid.length);
+			bo.write(new byte[] { 0x02, 0x02, 0x02, 0x01 }, 0, 4);
+			bo.write(0x64);
+			bo.write(oid.length + 5);
+			bo.write(0x06);
+			bo.write(oid.length + 3);
+			bo.write(oid, 0, oid.length);
+			bo.write(new byte[] { 0x04, (byte) scp, (byte) scp_i }, 0, 3);
+			return response(tlv(0x66, tlv(0x73, bo.toByteArray())), 0x9000);
+		} else if (tag == 0x00E0) {
+			for (GPKey[] set : keys.values()) {
+				for (GPKey k : set) {
+					bo.write(0xC0);
+					bo.write(0x04);
+					bo.write(k.getID());
+					bo.write(k.getVersion());
+					bo.write(k.getType() == Type.AES ? 0x88 : 0x80);
+					bo.write(k.getLength());
+				}
+			}
+			return response(tlv(0xE0, bo.toByteArray()), 0x9000);
+		} else if (tag == 0x00C1) {
+			if (scp == 3) {
+				return response(new byte[] { (byte) 0xC1, 0x03, (byte) (counter >> 16), (byte) (counter >> 8), (byte) counter }, 0x9000);
+			}
+			return response(new byte[] { (byte) 0xC1, 0x02, (byte) (counter >> 8), (byte) counter }, 0x9000);
+		}
+		return sw(0x6A88);
+	}
+
+	private byte[] getStatus(CommandAPDU c) {
+		int p1 = c.getP1();
+		int p2 = c.getP2();
+		if (p1 != 0x80 && p1 != 0x40 && p1 != 0x20 && p1 != 0x10) {
+			return sw(0x6A86);
+		}
+		// Legacy format, or tagged with P2=02
+		boolean tagged = (p2 & 0xFE) == 0x02;
+		if ((p2 & 0xFE) != 0x00 && !(tagged && taggedStatus)) {
+			return sw(0x6A86);
+		}
+		if ((p2 & 0x01) == 0x00) {
+			byte[] data = c.getData();
+			if (data.length < 2 || data[0] != 0x4F || (data[1] & 0xFF) != data.length - 2) {
+				return sw(0x6A80);
+			}
+			byte[] prefix = Arrays.copyOfRange(data, 2, data.length);
+			statusEntries = new ArrayList<byte[]>();
+			for (Entry e : registry) {
+				// Executable load files are listed for 0x20 and 0x10
+				int kind = e.kind == 0x20 && p1 == 0x10 ? 0x10 : e.kind;
+				if (kind != p1 || !startsWith(e.aid.getBytes(), prefix)) {
+					continue;
+				}
+				statusEntries.add(tagged ? taggedStatusEntry(e, p1) : statusEntry(e, p1));
+			}
+			if (statusEntries.isEmpty()) {
+				statusEntries = null;
+				return sw(0x6A88);
+			}
+		} else if (statusEntries == null) {
+			return sw(0x6985);
+		}
+		// As many entries as fit, the rest with the next command
+		ByteArrayOutputStream bo = new ByteArrayOutputStream();
+		while (!statusEntries.isEmpty() && (bo.size() == 0 || bo.size() + statusEntries.get(0).length <= maxResponse)) {
+			byte[] e = statusEntries.remove(0);
+			bo.write(e, 0, e.length);
+		}
+		if (statusEntries.isEmpty()) {
+			statusEntries = null;
+			return response(bo.toByteArray(), 0x9000);
+		}
+		return response(bo.toByteArray(), 0x6310);
+	}
+
+	// Length, AID, life cycle, privileges and for 0x10 the modules
+	private static byte[] statusEntry(Entry e, int p1) {
+		ByteArrayOutputStream bo = new ByteArrayOutputStream();
+		bo.write(e.aid.getLength());
+		bo.write(e.aid.getBytes(), 0, e.aid.getLength());
+		bo.write(e.lifecycle);
+		bo.write(e.privileges);
+		if (p1 == 0x10) {
+			bo.write(e.modules.size());
+			for (AID m : e.modules) {
+				bo.write(m.getLength());
+				bo.write(m.getBytes(), 0, m.getLength());
+			}
+		}
+		return bo.toByteArray();
+	}
+
+	// E3 template with the entry, all associated with the ISD
+	private byte[] taggedStatusEntry(Entry e, int p1) {
+		ByteArrayOutputStream bo = new ByteArrayOutputStream();
+		write(bo, tlv(0x4F, e.aid.getBytes()));
+		write(bo, new byte[] { (byte) 0x9F, 0x70, 0x01, (byte) e.lifecycle });
+		if (p1 == 0x80 || p1 == 0x40) {
+			write(bo, tlv(0xC5, new byte[] { (byte) e.privileges, 0x00, 0x00 }));
+		}
+		if (e.elf != null) {
+			write(bo, tlv(0xC4, e.elf.getBytes()));
+		}
+		if (e.version != null) {
+			write(bo, tlv(0xCE, e.version));
+		}
+		if (p1 == 0x10) {
+			for (AID m : e.modules) {
+				write(bo, tlv(0x84, m.getBytes()));
+			}
+		}
+		write(bo, tlv(0xCC, sdAID.getBytes()));
+		return tlv(0xE3, bo.toByteArray());
+	}
+
+	private static void write(ByteArrayOutputStream bo, byte[] b) {
+		bo.write(b, 0, b.length);
+	}
+
+	private byte[] install(CommandAPDU c) {
+		byte[] data = c.getData();
+		int p1 = c.getP1() & 0x7F;
+		try {
+			int offset = 0;
+			AID elf = lv(data, offset);
+			offset += 1 + (data[offset] & 0xFF);
+			if (p1 == 0x02) {
+				// Install for load
+				if (elf == null) {
+					return sw(0x6A80);
+				}
+				if (find(elf, 0x20) != null) {
+					return sw(0x6985);
+				}
+				loadAID = elf;
+				loadData = new ByteArrayOutputStream();
+				loadBlock = 0;
+				return response(new byte[] { 0x00 }, 0x9000);
+			}
+			AID module = lv(data, offset);
+			offset += 1 + (data[offset] & 0xFF);
+			AID instance = lv(data, offset);
+			offset += 1 + (data[offset] & 0xFF);
+			int privileges = (data[offset] & 0xFF) > 0 ? data[offset + 1] & 0xFF : 0;
+			if (instance == null) {
+				return sw(0x6A80);
+			}
+			if (p1 == 0x08) {
+				// Make selectable
+				Entry e = find(instance, 0x40);
+				if (e == null) {
+					return sw(0x6A88);
+				}
+				if (e.lifecycle == 0x03) {
+					e.lifecycle = 0x07;
+				}
+				makeDefault(e, privileges);
+				e.privileges = privileges;
+				return response(new byte[] { 0x00 }, 0x9000);
+			} else if (p1 == 0x04 || p1 == 0x0C) {
+				Entry f = find(elf, 0x20);
+				if (f == null || module == null || !f.modules.contains(module)) {
+					return sw(0x6A88);
+				}
+				if (find(instance, 0x40) != null || find(instance, 0x20) != null || instance.equals(sdAID)) {
+					return sw(0x6985);
+				}
+				Entry e = new Entry(instance, 0x40, p1 == 0x0C ? 0x07 : 0x03, privileges, elf);
+				makeDefault(e, privileges);
+				registry.add(e);
+				return response(new byte[] { 0x00 }, 0x9000);
+			}
+			return sw(0x6A86);
+		} catch (ArrayIndexOutOfBoundsException e) {
+			return sw(0x6A80);
+		}
+	}
+
+	// Only one application can be the default selected one
+	private void makeDefault(Entry app, int privileges) {
+		if ((privileges & GPData.defaultSelectedPriv) != 0) {
+			for (Entry e : registry) {
+				if (e != app && e.kind == 0x40) {
+					e.privileges &= ~GPData.defaultSelectedPriv;
+				}
+			}
+		}
+	}
+
+	private byte[] load(CommandAPDU c) {
+		if (loadData == null) {
+			return sw(0x6985);
+		}
+		if (c.getP2() != (loadBlock & 0xFF)) {
+			loadData = null;
+			return sw(0x6A86);
+		}
+		byte[] block = c.getData();
+		if (loadData.size() + block.length > freeMemory) {
+			loadData = null;
+			return sw(0x6A84);
+		}
+		loadData.write(block, 0, block.length);
+		loadBlock++;
+		if ((c.getP1() & 0x80) == 0x00) {
+			return sw(0x9000);
+		}
+		byte[] lf = loadData.toByteArray();
+		loadData = null;
+		Entry elf = parseLoadFile(lf);
+		if (elf == null || !elf.aid.equals(loadAID)) {
+			return sw(0x6A80);
+		}
+		registry.add(elf);
+		return response(new byte[] { 0x00 }, 0x9000);
+	}
+
+	// Package and applet AIDs from the Header and Applet components
+	private static Entry parseLoadFile(byte[] lf) {
+		try {
+			if (lf[0] != (byte) 0xC4) {
+				return null;
+			}
+			int offset = 1;
+			int len = lf[offset] & 0xFF;
+			if (len == 0x81) {
+				len = lf[offset + 1] & 0xFF;
+				offset += 2;
+			} else if (len == 0x82) {
+				len = ((lf[offset + 1] & 0xFF) << 8) | (lf[offset + 2] & 0xFF);
+				offset += 3;
+			} else {
+				offset += 1;
+			}
+			int end = offset + len;
+			if (end != lf.length) {
+				return null;
+			}
+			Entry elf = null;
+			List<AID> applets = new ArrayList<AID>();
+			while (offset < end) {
+				int tag = lf[offset];
+				int size = ((lf[offset + 1] & 0xFF) << 8) | (lf[offset + 2] & 0xFF);
+				int info = offset + 3;
+				if (tag == 1) {
+					// magic, minor, major, flags, package minor, major, AID
+					int aidlen = lf[info + 9] & 0xFF;
+					elf = new Entry(new AID(lf, info + 10, aidlen), 0x20, 0x01, 0x00, null);
+					elf.version = new byte[] { lf[info + 8], lf[info + 7] };
+				} else if (tag == 3) {
+					int count = lf[info] & 0xFF;
+					int o = info + 1;
+					for (int i = 0; i < count; i++) {
+						int aidlen = lf[o] & 0xFF;
+						applets.add(new AID(lf, o + 1, aidlen));
+						o += 1 + aidlen + 2;
+					}
+				}
+				offset = info + size;
+			}
+			if (elf != null) {
+				elf.modules.addAll(applets);
+			}
+			return elf;
+		} catch (ArrayIndexOutOfBoundsException | IllegalArgumentException e) {
+			return null;
+		}
+	}
+
+	private byte[] delete(CommandAPDU c) {
+		byte[] data = c.getData();
+		if (data.length < 2 || data[0] != 0x4F || (data[1] & 0xFF) + 2 > data.length) {
+			return sw(0x6A80);
+		}
+		AID aid = new AID(data, 2, data[1] & 0xFF);
+		boolean deps = (c.getP2() & 0x80) == 0x80;
+		if (aid.equals(sdAID)) {
+			return sw(0x6985);
+		}
+		Entry e = find(aid, 0x40);
+		if (e != null) {
+			registry.remove(e);
+			return response(new byte[] { 0x00 }, 0x9000);
+		}
+		e = find(aid, 0x20);
+		if (e == null) {
+			return sw(0x6A88);
+		}
+		List<Entry> instances = new ArrayList<Entry>();
+		for (Entry i : registry) {
+			if (aid.equals(i.elf)) {
+				instances.add(i);
+			}
+		}
+		if (!instances.isEmpty() && !deps) {
+			return sw(0x6985);
+		}
+		registry.removeAll(instances);
+		registry.remove(e);
+		return response(new byte[] { 0x00 }, 0x9000);
+	}
+
+	private byte[] setStatus(CommandAPDU c) {
+		int p1 = c.getP1();
+		if (p1 == 0x80) {
+			// Life cycle of the card
+			registry.get(0).lifecycle = c.getP2();
+			return sw(0x9000);
+		} else if (p1 == 0x40) {
+			Entry e = find(new AID(c.getData()), 0x40);
+			if (e == null) {
+				return sw(0x6A88);
+			}
+			if ((c.getP2() & 0x80) == 0x80) {
+				e.lifecycle |= 0x80;
+			} else {
+				e.lifecycle &= 0x7F;
+			}
+			return sw(0x9000);
+		}
+		return sw(0x6A86);
+	}
+
+	private byte[] putKey(CommandAPDU c) {
+		byte[] data = c.getData();
+		int replace = c.getP1();
+		int id = c.getP2() & 0x7F;
+		if (replace != 0 && !keys.containsKey(replace)) {
+			return sw(0x6A88);
+		}
+		GPKey kek = session.sessionKeys.getKey(KeyType.KEK);
+		ByteArrayOutputStream bo = new ByteArrayOutputStream();
+		try {
+			int version = data[0] & 0xFF;
+			bo.write(version);
+			GPKey[] set = replace == 0 ? new GPKey[3] : keys.get(replace).clone();
+			if (replace == 0 && keys.containsKey(version)) {
+				return sw(0x6A80);
+			}
+			int offset = 1;
+			for (; offset < data.length; id++) {
+				if (id < 1 || id > 3) {
+					return sw(0x6A80);
+				}
+				int type = data[offset] & 0xFF;
+				int len = data[offset + 1] & 0xFF;
+				byte[] value;
+				byte[] kcv;
+				if (type == 0x80 && scp != 3) {
+					Cipher ecb = Cipher.getInstance(GPCrypto.DES3_ECB_CIPHER);
+					ecb.init(Cipher.DECRYPT_MODE, kek.getKey(Type.DES3));
+					value = ecb.doFinal(data, offset + 2, len);
+					GPKey k = new GPKey(value, Type.DES3);
+					ecb.init(Cipher.ENCRYPT_MODE, k.getKey());
+					kcv = Arrays.copyOf(ecb.doFinal(GPCrypto.null_bytes_8), 3);
+				} else if (type == 0x88 && scp == 3) {
+					// Key length, then the padded and encrypted key
+					int keylen = data[offset + 2] & 0xFF;
+					Cipher cbc = Cipher.getInstance(GPCrypto.AES_CBC_CIPHER);
+					cbc.init(Cipher.DECRYPT_MODE, kek.getKey(Type.AES), GPCrypto.iv_null_aes);
+					value = Arrays.copyOf(cbc.doFinal(data, offset + 3, len - 1), keylen);
+					kcv = GPCrypto.scp03_key_check_value(new GPKey(value, Type.AES));
+				} else {
+					return sw(0x6A80);
+				}
+				offset += 2 + len;
+				int kcvlen = data[offset] & 0xFF;
+				if (kcvlen > 0 && !Arrays.equals(kcv, Arrays.copyOfRange(data, offset + 1, offset + 1 + kcvlen))) {
+					return sw(0x6A80);
+				}
+				offset += 1 + kcvlen;
+				set[id - 1] = new GPKey(value, type == 0x88 ? Type.AES : Type.DES3);
+				bo.write(kcv, 0, 3);
+			}
+			// All three keys get the new version, a new key version needs all of them
+			for (int i = 0; i < set.length; i++) {
+				if (set[i] == null) {
+					return sw(0x6A80);
+				}
+				set[i] = new GPKey(version, i + 1, set[i]);
+			}
+			if (replace != 0) {
+				keys.remove(replace);
+			}
+			keys.put(version, set);
+		} catch (ArrayIndexOutOfBoundsException e) {
+			return sw(0x6A80);
+		} catch (GeneralSecurityException e) {
+			throw new RuntimeException("Could not decrypt keys", e);
+		}
+		return response(bo.toByteArray(), 0x9000);
+	}
+
+	private Entry find(AID aid, int kind) {
+		for (Entry e : registry) {
+			if (e.kind == kind && e.aid.equals(aid)) {
+				return e;
+			}
+		}
+		return null;
+	}
+
+	// AID with a length byte, null if empty
+	private static AID lv(byte[] data, int offset) {
+		int len = data[offset] & 0xFF;
+		if (len == 0) {
+			return null;
+		}
+		return new AID(data, offset + 1, len);
+	}
+
+	private static boolean startsWith(byte[] b, byte[] prefix) {
+		return b.length >= prefix.length && Arrays.equals(Arrays.copyOf(b, prefix.length), prefix);
+	}
+
+	private static byte[] tlv(int tag, byte[] value) {
+		ByteArrayOutputStream bo = new ByteArrayOutputStream();
+		bo.write(tag);
+		if (value.length > 127) {
+			bo.write(0x81);
+		}
+		bo.write(value.length);
+		bo.write(value, 0, value.length);
+		return bo.toByteArray();
+	}
+
+	private static byte[] response(byte[] data, int sw) {
+		byte[] r = Arrays.copyOf(data, data.length + 2);
+		r[data.length] = (byte) (sw >> 8);
+		r[data.length + 1] = (byte) sw;
+		return r;
+	}
+
+	private static byte[] sw(int sw) {
+		return new byte[] { (byte) (sw >> 8), (byte) sw };
+	}
+
+	private class EmulatedChannel extends CardChannel {
+		@Override
+		public Card getCard() {
+			return GPCardEmulator.this;
+		}
+
+		@Override
+		public int getChannelNumber() {
+			return 0;
+		}
+
+		@Override
+		public ResponseAPDU transmit(CommandAPDU command) throws CardException {
+			return new ResponseAPDU(process(command.getBytes()));
+		}
+
+		@Override
+		public int transmit(ByteBuffer command, ByteBuffer response) throws CardException {
+			byte[] c = new byte[command.remaining()];
+			command.get(c);
+			byte[] r = process(c);
+			response.put(r);
+			return r.length;
+		}
+
+		@Override
+		public void close() throws CardException {
+			throw new IllegalStateException("Basic channel can not be closed");
+		}
+	}
+
+	@Override
+	public ATR getATR() {
+		return new ATR(new byte[] { 0x3B, 0x00 });
+	}
+
+	@Override
+	public String getProtocol() {
+		return "T=1";
+	}
+
+	@Override
+	public CardChannel getBasicChannel() {
+		return channel;
+	}
+
+	@Override
+	public CardChannel openLogicalChannel() throws CardException {
+		throw new CardException("Logical channels are not supported");
+	}
+
+	@Override
+	public void beginExclusive() throws CardException {
+	}
+
+	@Override
+	public void endExclusive() throws CardException {
+	}
+
+	@Override
+	public byte[] transmitControlCommand(int controlCode, byte[] command) throws CardException {
+		throw new CardException("Control commands are not supported");
+	}
+
+	@Override
+	public synchronized void disconnect(boolean reset) throws CardException {
+		// Like a reset, the secure channel is closed
+		session = null;
+		loadData = null;
+		statusEntries = null;
+	}
+
+	/**
+	 * A reader with the emulated card always present.
+	 */
+	public static class Terminal extends CardTerminal {
+		private final String name;
+		private final GPCardEmulator card;
+
+		public Terminal(String name, GPCardEmulator card) {
+			this.name = name;
+			this.card = card;
+		}
+
+		@Override
+		public String getName() {
+			return name;
+		}
+
+		@Override
+		public Card connect(String protocol) throws CardException {
+			return card;
+		}
+
+		@Override
+		public boolean isCardPresent() throws CardException {
+			return true;
+		}
+
+		@Override
+		public boolean waitForCardPresent(long timeout) throws CardException {
+			return true;
+		}
+
+		@Override
+		public boolean waitForCardAbsent(long timeout) throws CardException {
+			return false;
+		}
+	}
+
+	@Override
+	public String toString() {
+		return "Emulated SCP0" + scp + " card " + sdAID;
+	}
+}
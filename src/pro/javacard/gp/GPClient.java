@@ -0,0 +1,99 @@
+package pro.javacard.gp;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+/**
+ * Thin client for GPTool running with --daemon.
+ *
+ * Usage: GPClient [--port <port>] <GPTool arguments>
+ *
+ * Protocol, over a loopback TCP connection, one line at a time in UTF-8:
+ * the first line is the token from {@link #tokenFile}, the second one the
+ * absolute working directory of the client, which relative file arguments
+ * are resolved against. Then every line is a request with the GPTool
+ * arguments separated by TAB. The reply is zero
+ * or more output lines starting with '-', followed by a status line that
+ * starts with '+' on success or '!' on failure. Several requests can be
+ * sent over one connection. The daemon closes a connection that is idle
+ * for 30 seconds.
+ *
+ * Does not depend on anything else in GPTool, so that it starts fast.
+ */
+public final class GPClient {
+	public static final int DEFAULT_PORT = 9099;
+
+	static final char OUTPUT = '-';
+	static final char SUCCESS = '+';
+	static final char FAILURE = '!';
+
+	/**
+	 * File with the token of the daemon on {@code port}, only readable by
+	 * the user that runs it.
+	 */
+	public static File tokenFile(int port) {
+		return new File(System.getProperty("user.home"), ".gp-daemon-" + port);
+	}
+
+	public static void main(String[] argv) throws IOException {
+		int port = DEFAULT_PORT;
+		int first = 0;
+		if (argv.length >= 2 && argv[0].equals("--port")) {
+			port = Integer.parseInt(argv[1]);
+			first = 2;
+		}
+
+		File tokenFile = tokenFile(port);
+		if (!tokenFile.canRead()) {
+			System.err.println("No daemon token in " + tokenFile);
+			System.exit(2);
+		}
+		StringBuilder request = new StringBuilder();
+		request.append(new String(Files.readAllBytes(tokenFile.toPath()), StandardCharsets.UTF_8).trim());
+		request.append('\n');
+		request.append(new File("").getAbsolutePath());
+		request.append('\n');
+		for (int i = first; i < argv.length; i++) {
+			if (argv[i].indexOf('\t') >= 0 || argv[i].indexOf('\n') >= 0) {
+				System.err.println("Arguments can not contain TAB or newline characters");
+				System.exit(2);
+			}
+			if (i > first) {
+				request.append('\t');
+			}
+			request.append(argv[i]);
+		}
+		request.append('\n');
+
+		try (Socket s = new Socket(InetAddress.getLoopbackAddress(), port)) {
+			OutputStream out = s.getOutputStream();
+			out.write(request.toString().getBytes(StandardCharsets.UTF_8));
+			out.flush();
+			BufferedReader in = new BufferedReader(new InputStreamReader(s.getInputStream(), StandardCharsets.UTF_8));
+			String line;
+			while ((line = in.readLine()) != null) {
+				if (line.isEmpty()) {
+					continue;
+				}
+				char c = line.charAt(0);
+				if (c == OUTPUT) {
+					System.out.println(line.substring(1));
+				} else if (c == SUCCESS) {
+					System.exit(0);
+				} else if (c == FAILURE) {
+					System.err.println("Failed after" + line.substring(1));
+					System.exit(1);
+				}
+			}
+		}
+		System.err.println("Connection closed before a reply");
+		System.exit(2);
+	}
+}
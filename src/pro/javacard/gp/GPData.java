@@ -1,6 +1,5 @@
 package pro.javacard.gp;
 
-import java.io.IOException;
 import java.io.PrintStream;
 import java.util.ArrayList;
 import java.util.Arrays;
@@ -9,8 +8,6 @@ import java.util.List;
 
 import javax.smartcardio.CardException;
 
-import org.bouncycastle.asn1.ASN1ObjectIdentifier;
-
 import pro.javacard.gp.GPKeySet.Diversification;
 import pro.javacard.gp.GPKeySet.GPKey;
 import pro.javacard.gp.GPKeySet.GPKey.Type;
@@ -19,6 +16,8 @@ import apdu4j.HexUtils;
 public final class GPData {
 	public static final byte[] defaultKeyBytes = { 0x40, 0x41, 0x42, 0x43, 0x44, 0x45, 0x46, 0x47, 0x48, 0x49, 0x4A, 0x4B, 0x4C, 0x4D, 0x4E, 0x4F };
 	public static final GPKey defaultKey = new GPKey(defaultKeyBytes, Type.DES3);
+	// Default ISD AID of GlobalPlatform 2.2 cards
+	public static final byte[] defaultISDBytes = { (byte) 0xA0, 0x00, 0x00, 0x01, 0x51, 0x00, 0x00, 0x00 };
 
 	// See GP 2.1.1 Table 9-7: Application Privileges
 	public static final byte defaultSelectedPriv = 0x04;
@@ -111,40 +110,39 @@ public final class GPData {
 		out.flush();
 	}
 
-	// GP 2.1.1 9.3.3.1
+	/**
+	 * @deprecated use {@link #get_key_template_list(byte[], int)}. Will be
+	 * removed in the next release.
+	 */
+	@Deprecated
 	public static List<GPKeySet.GPKey> get_key_template_list(byte[] data, short offset) throws GPException {
+		return get_key_template_list(data, (int) offset);
+	}
+
+	// GP 2.1.1 9.3.3.1
+	public static List<GPKeySet.GPKey> get_key_template_list(byte[] data, int offset) throws GPException {
 
 		// Return empty list if no data from card.
 		// FIXME: not really a clean solution
 		if (data == null)
 			return new ArrayList<GPKey>();
-		// Expect template 0x0E
-		offset = TLVUtils.skip_tag_or_throw(data, offset, (byte) 0xe0);
-		offset = TLVUtils.skipLength(data, offset);
-
 		ArrayList<GPKeySet.GPKey> list = new ArrayList<GPKey>();
-		while (offset < data.length) {
-			// Objects with tag 0xC0
-			offset = TLVUtils.skipTag(data, offset, (byte) 0xC0);
-			int component_len = offset + TLVUtils.get_length(data, offset);
-			offset = TLVUtils.skipLength(data, offset);
-
-			int id = TLVUtils.get_byte_value(data, offset);
-			offset++;
-			int version = TLVUtils.get_byte_value(data, offset);
-			offset++;
-			while (offset < component_len) {
-				// Check for extended format here.
-				int type = TLVUtils.get_byte_value(data, offset);
-				offset++;
+		try {
+			// Expect template 0xE0 with objects with tag 0xC0
+			TLVReader tlv = new TLVReader(data, offset, data.length - offset).enter(0xE0);
+			while (tlv.find(0xC0)) {
+				int id = tlv.byteAt(0);
+				int version = tlv.byteAt(1);
+				// Only the first component of a key
+				int type = tlv.byteAt(2);
 				if (type == 0xFF) {
 					throw new GPException("Extended format key template not yet supported!");
 				}
-				int length = TLVUtils.get_byte_value(data, offset);
-				offset++;
+				int length = tlv.byteAt(3);
 				list.add(new GPKey(version, id, length, type));
-				break; // FIXME:
 			}
+		} catch (IllegalArgumentException | IndexOutOfBoundsException e) {
+			throw new GPException("Invalid key information template: " + e.getMessage());
 		}
 		return list;
 	}
@@ -156,73 +154,77 @@ public final class GPData {
 			out.println("NO CARD DATA");
 			return;
 		}
-		try {
-			short offset = 0;
-			offset = TLVUtils.skipTagAndLength(data, offset, (byte) 0x66);
-			offset = TLVUtils.skipTagAndLength(data, offset, (byte) 0x73);
-			while (offset < data.length) {
-				int tag = TLVUtils.getTLVTag(data, offset);
-				if (tag == 0x06) {
-					String oid = ASN1ObjectIdentifier.fromByteArray(TLVUtils.getTLVAsBytes(data, offset)).toString();
-					if (oid.equals("1.2.840.114283.1"))
-						out.println("GlobalPlatform card");
-				} else if (tag == 0x60) {
-					out.println("Version: " + gp_version_from_tlv(data, offset));
-				} else if (tag == 0x63) {
-					out.println("TAG3: " + ASN1ObjectIdentifier.fromByteArray(TLVUtils.getTLVValueAsBytes(data, offset)));
-				} else if (tag == 0x64) {
-					out.println("SCP version: " + gp_scp_version_from_tlv(data, offset));
-				} else if (tag == 0x65) {
-					out.println("TAG5: " + ASN1ObjectIdentifier.fromByteArray(TLVUtils.getTLVValueAsBytes(data, offset)));
-				} else if (tag == 0x66) {
-					out.println("TAG6: " + ASN1ObjectIdentifier.fromByteArray(TLVUtils.getTLVValueAsBytes(data, offset)));
-				} else {
-					out.println("Unknown tag: " + Integer.toHexString(tag));
-				}
-				offset = TLVUtils.skipAnyTag(data, offset);
+		TLVReader tlv = new TLVReader(data).enter(0x66).enter(0x73);
+		while (tlv.next()) {
+			int tag = tlv.tag();
+			if (tag == 0x06) {
+				String oid = tlv.oid();
+				if (oid.equals("1.2.840.114283.1"))
+					out.println("GlobalPlatform card");
+			} else if (tag == 0x60) {
+				out.println("Version: " + gp_version_from_tlv(tlv));
+			} else if (tag == 0x63) {
+				out.println("TAG3: " + oid_from_tlv(tlv));
+			} else if (tag == 0x64) {
+				out.println("SCP version: " + gp_scp_version_from_tlv(tlv));
+			} else if (tag == 0x65) {
+				out.println("TAG5: " + oid_from_tlv(tlv));
+			} else if (tag == 0x66) {
+				out.println("TAG6: " + oid_from_tlv(tlv));
+			} else {
+				out.println("Unknown tag: " + Integer.toHexString(tag));
 			}
-		} catch (IOException e) {
-			throw new RuntimeException(e);
 		}
 	}
 
-	private static String gp_version_from_tlv(byte[] data, short offset) {
+	// OID in a template
+	private static String oid_from_tlv(TLVReader tlv) {
+		tlv.enter();
 		try {
-			String oid;
-			oid = ASN1ObjectIdentifier.fromByteArray(TLVUtils.getTLVValueAsBytes(data, offset)).toString();
-			if (oid.startsWith("1.2.840.114283.2")) {
+			return tlv.find(0x06) ? tlv.oid() : null;
+		} finally {
+			tlv.exit();
+		}
+	}
+
+	private static String gp_version_from_tlv(TLVReader tlv) {
+		try {
+			String oid = oid_from_tlv(tlv);
+			if (oid != null && oid.startsWith("1.2.840.114283.2")) {
 				return oid.substring("1.2.840.114283.2.".length());
 			} else {
 				return "unknown";
 			}
-		} catch (IOException e) {
+		} catch (IllegalArgumentException e) {
 			return "error";
 		}
 	}
 
-	private static String gp_scp_version_from_tlv(byte[] data, short offset) {
+	private static String gp_scp_version_from_tlv(TLVReader tlv) {
 		try {
-			String oid;
-			oid = ASN1ObjectIdentifier.fromByteArray(TLVUtils.getTLVValueAsBytes(data, offset)).toString();
-			if (oid.startsWith("1.2.840.114283.4")) {
+			String oid = oid_from_tlv(tlv);
+			if (oid != null && oid.startsWith("1.2.840.114283.4")) {
 				String[] p = oid.substring("1.2.840.114283.4.".length()).split("\\.");
 				return "SCP_0" +p[0] + "_" + String.format("%02x",Integer.valueOf(p[1]));
 			} else {
 				return "unknown";
 			}
-		} catch (IOException e) {
+		} catch (IllegalArgumentException e) {
 			return "error";
 		}
 	}
 
+	/**
+	 * Locates the GP version in card data, without returning it.
+	 *
+	 * @deprecated does nothing useful, {@link #pretty_print_card_data}
+	 * shows the version. Will be removed in the next release.
+	 */
+	@Deprecated
 	public static void get_global_platform_version(byte[] data) {
-		short offset = 0;
-		offset = TLVUtils.skipTagAndLength(data, offset, (byte) 0x66);
-		offset = TLVUtils.skipTagAndLength(data, offset, (byte) 0x73);
-		offset = TLVUtils.findTag(data, offset, (byte) 0x60);
+		new TLVReader(data).enter(0x66).enter(0x73).find(0x60);
 	}
 
-
 	public static Diversification suggestDiversification(byte[] cplc) {
 		if (cplc != null) {
 			// G&D
@@ -248,16 +250,20 @@ public final class GPData {
 
 	// TODO public for debuggin purposes
 	public static void print_card_info(GlobalPlatform gp) throws CardException, GPException {
+		print_card_info(gp, System.out);
+	}
+
+	public static void print_card_info(GlobalPlatform gp, PrintStream out) throws CardException, GPException {
 		// Print CPLC
-		pretty_print_cplc(gp.getCPLC(), System.out);
+		pretty_print_cplc(gp.getCPLC(), out);
 		// Requires GP?
 		// Print CardData
-		System.out.println("***** CARD DATA");
+		out.println("***** CARD DATA");
 		byte [] card_data = gp.fetchCardData();
-		pretty_print_card_data(card_data, System.out);
+		pretty_print_card_data(card_data, out);
 		// Print Key Info Template
-		System.out.println("***** KEY INFO");
-		pretty_print_key_template(gp.getKeyInfoTemplate(), System.out);
+		out.println("***** KEY INFO");
+		pretty_print_key_template(gp.getKeyInfoTemplate(), out);
 	}
 
 
@@ -291,7 +297,6 @@ public final class GPData {
 			}
 			if (data.length < 3 || data[2] != 0x2A)
 				throw new IllegalArgumentException("CPLC must be 0x2A bytes long");
-			//offset = TLVUtils.skipTag(data, offset, (short)0x9F7F);
 			short offset = 3;
 			values = new HashMap<>();
 			values.put(Field.ICFabricator, Arrays.copyOfRange(data, offset, offset + 2)); offset += 2;
@@ -314,6 +319,10 @@ public final class GPData {
 			values.put(Field.ICPersonalizationEquipmentID, Arrays.copyOfRange(data, offset, offset + 4)); offset += 4;
 		}
 
+		public byte[] get(Field f) {
+			return values == null ? null : values.get(f).clone();
+		}
+
 		public String toString() {
 			String s = "Card CPLC:";
 			for (Field f: Field.values()) {
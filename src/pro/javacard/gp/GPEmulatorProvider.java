@@ -0,0 +1,702 @@
+package pro.javacard.gp;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.Provider;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+import javax.smartcardio.ATR;
+import javax.smartcardio.Card;
+import javax.smartcardio.CardChannel;
+import javax.smartcardio.CardException;
+import javax.smartcardio.CardNotPresentException;
+import javax.smartcardio.CardTerminal;
+import javax.smartcardio.CardTerminals;
+import javax.smartcardio.CommandAPDU;
+import javax.smartcardio.ResponseAPDU;
+import javax.smartcardio.TerminalFactorySpi;
+
+import joptsimple.ValueConversionException;
+import pro.javacard.gp.GPKeySet.GPKey;
+import pro.javacard.gp.GPKeySet.GPKey.Type;
+
+/**
+ * Readers with emulated GlobalPlatform cards, for load tests of parallel
+ * and hot-plug provisioning without hardware.
+ *
+ * Used like {@link apdu4j.APDUReplayProvider}, with a {@link Scenario} as
+ * the parameter:
+ * <pre>
+ * TerminalFactory tf = TerminalFactory.getInstance(GPEmulatorProvider.TYPE, Scenario.compile(f), new GPEmulatorProvider());
+ * </pre>
+ * Every inserted card is a new {@link GPCardEmulator}. Cards can be
+ * inserted and removed from code with {@link EmulatedReader}, at given
+ * times from the scenario, or after the host is done with a card, like an
+ * operator or a card handler would do.
+ */
+public final class GPEmulatorProvider extends Provider {
+	private static final long serialVersionUID = 1L;
+	public static final String TYPE = "Emulated";
+
+	// The constructor that replaces it needs Java 9
+	@SuppressWarnings("deprecation")
+	public GPEmulatorProvider() {
+		super("GPEmulator", 1.0, "Readers with emulated GlobalPlatform cards");
+		put("TerminalFactory." + TYPE, Spi.class.getName());
+	}
+
+	public static final class Spi extends TerminalFactorySpi {
+		private final EmulatedReaders readers;
+
+		public Spi(Object parameter) {
+			if (!(parameter instanceof Scenario)) {
+				throw new IllegalArgumentException("Emulated readers need a " + Scenario.class.getName());
+			}
+			readers = new EmulatedReaders((Scenario) parameter);
+		}
+
+		@Override
+		protected CardTerminals engineTerminals() {
+			return readers;
+		}
+	}
+
+	/**
+	 * Readers and cards to emulate, from a scenario file.
+	 *
+	 * One setting per line, lines starting with # are comments. Settings
+	 * apply to all readers or to the readers given with {@code on <n>} or
+	 * {@code on <n>-<m>}, counting from 1. Times are in milliseconds,
+	 * latencies in microseconds.
+	 * <pre>
+	 * readers &lt;n&gt;                  number of readers, before other settings
+	 * scp &lt;1|2|3&gt; [i &lt;hex&gt;]         SCP of the cards, 2 by default
+	 * keys &lt;keyset&gt;                static keys of the cards, as with --key
+	 * sdaid &lt;aid&gt;                  AID of the ISD
+	 * seed &lt;n&gt;                     seed for latencies and failures
+	 * latency &lt;us&gt; [&lt;jitter&gt;]      time of the reader per APDU, normally distributed
+	 * card-latency &lt;ins|*&gt; &lt;us&gt;     time of the card to process a command
+	 * fail &lt;probability&gt;           transmission failures per APDU
+	 * empty                        no card at start
+	 * insert at &lt;ms&gt;               insert a new card
+	 * remove at &lt;ms&gt;               remove the card
+	 * cycle &lt;ms&gt;                   when the host disconnects, remove the card
+	 *                              and insert a new one after &lt;ms&gt;
+	 * </pre>
+	 */
+	public static final class Scenario {
+		private int count = 1;
+		private int scp = 2;
+		// The default of the SCP if not given
+		private int scp_i = -1;
+		// Default keys of the SCP if not given
+		private GPKeySet keys = null;
+		private AID sdAID = new AID(GPData.defaultISDBytes);
+		private long seed = 1;
+		private ReaderSettings[] settings = { new ReaderSettings() };
+		private final List<Event> events = new ArrayList<Event>();
+
+		public static Scenario compile(File f) throws IOException {
+			try (Reader r = new InputStreamReader(new FileInputStream(f), StandardCharsets.UTF_8)) {
+				return parse(r, f.getName());
+			}
+		}
+
+		/**
+		 * @throws IllegalArgumentException with the line number if the scenario is not valid
+		 */
+		public static Scenario parse(Reader r, String name) throws IOException {
+			Scenario s = new Scenario();
+			BufferedReader in = new BufferedReader(r);
+			String line;
+			int lineno = 0;
+			boolean first = true;
+			while ((line = in.readLine()) != null) {
+				lineno++;
+				line = line.trim();
+				if (line.isEmpty() || line.startsWith("#")) {
+					continue;
+				}
+				try {
+					s.parse(line.split("\\s+"), first);
+				} catch (IllegalArgumentException e) {
+					throw new IllegalArgumentException(name + ":" + lineno + ": " + e.getMessage(), e);
+				}
+				first = false;
+			}
+			if (s.keys == null) {
+				s.keys = new GPKeySet(new GPKey(GPData.defaultKeyBytes, s.scp == 3 ? Type.AES : Type.DES3));
+			}
+			// Keys must fit the SCP
+			try {
+				s.newCard(0);
+			} catch (IllegalArgumentException e) {
+				throw new IllegalArgumentException(name + ": " + e.getMessage(), e);
+			}
+			return s;
+		}
+
+		private void parse(String[] w, boolean first) {
+			String op = w[0].toLowerCase();
+			// Readers the setting applies to
+			int from = 0;
+			int to = count;
+			int n = w.length;
+			if (n > 2 && w[n - 2].equalsIgnoreCase("on")) {
+				String[] range = w[n - 1].split("-");
+				from = number(range[0]) - 1;
+				to = range.length > 1 ? number(range[1]) : from + 1;
+				if (from < 0 || to > count || from >= to) {
+					throw new IllegalArgumentException("No such readers: " + w[n - 1]);
+				}
+				n -= 2;
+			}
+			if (op.equals("readers")) {
+				args(w, n, 2, 2);
+				if (!first) {
+					throw new IllegalArgumentException("readers must be the first setting");
+				}
+				count = number(w[1]);
+				if (count < 1) {
+					throw new IllegalArgumentException("Need at least one reader");
+				}
+				settings = new ReaderSettings[count];
+				for (int i = 0; i < count; i++) {
+					settings[i] = new ReaderSettings();
+				}
+			} else if (op.equals("scp")) {
+				if (n != 2 && !(n == 4 && w[2].equalsIgnoreCase("i"))) {
+					throw new IllegalArgumentException("Use scp <1|2|3> [i <hex>]");
+				}
+				scp = number(w[1]);
+				if (scp < 1 || scp > 3) {
+					throw new IllegalArgumentException("SCP version must be 1, 2 or 3");
+				}
+				if (n == 4) {
+					scp_i = Integer.parseInt(w[3], 16);
+					if (scp == 2 && scp_i != 0x15 && scp_i != 0x1A) {
+						throw new IllegalArgumentException("SCP02 i must be 15 or 1A");
+					}
+				}
+			} else if (op.equals("keys")) {
+				args(w, n, 2, 2);
+				try {
+					keys = ArgMatchers.keyset().convert(w[1]);
+				} catch (ValueConversionException e) {
+					throw new IllegalArgumentException(e.getMessage());
+				}
+			} else if (op.equals("sdaid")) {
+				args(w, n, 2, 2);
+				sdAID = new AID(w[1]);
+			} else if (op.equals("seed")) {
+				args(w, n, 2, 2);
+				seed = number(w[1]);
+			} else if (op.equals("latency")) {
+				args(w, n, 2, 3);
+				long us = number(w[1]);
+				long jitter = n == 3 ? number(w[2]) : 0;
+				for (int i = from; i < to; i++) {
+					settings[i].latency = us;
+					settings[i].jitter = jitter;
+				}
+			} else if (op.equals("card-latency")) {
+				args(w, n, 3, 3);
+				int ins = w[1].equals("*") ? -1 : Integer.parseInt(w[1], 16);
+				long us = number(w[2]);
+				for (int i = from; i < to; i++) {
+					settings[i].cardLatency.put(ins, us);
+				}
+			} else if (op.equals("fail")) {
+				args(w, n, 2, 2);
+				double p = Double.parseDouble(w[1]);
+				if (p < 0 || p > 1) {
+					throw new IllegalArgumentException("Probability must be between 0 and 1");
+				}
+				for (int i = from; i < to; i++) {
+					settings[i].fail = p;
+				}
+			} else if (op.equals("empty")) {
+				args(w, n, 1, 1);
+				for (int i = from; i < to; i++) {
+					settings[i].present = false;
+				}
+			} else if (op.equals("insert") || op.equals("remove")) {
+				args(w, n, 3, 3);
+				if (!w[1].equalsIgnoreCase("at")) {
+					throw new IllegalArgumentException("Use " + op + " at <ms>");
+				}
+				long at = number(w[2]);
+				for (int i = from; i < to; i++) {
+					events.add(new Event(at, i, op.equals("insert")));
+				}
+			} else if (op.equals("cycle")) {
+				args(w, n, 2, 2);
+				long ms = number(w[1]);
+				for (int i = from; i < to; i++) {
+					settings[i].cycle = ms;
+				}
+			} else {
+				throw new IllegalArgumentException("Unknown setting " + w[0]);
+			}
+		}
+
+		private static void args(String[] w, int n, int min, int max) {
+			if (n < min || n > max) {
+				throw new IllegalArgumentException("Wrong number of arguments for " + w[0]);
+			}
+		}
+
+		private static int number(String s) {
+			try {
+				return Integer.parseInt(s);
+			} catch (NumberFormatException e) {
+				throw new IllegalArgumentException("Not a number: " + s);
+			}
+		}
+
+		public int getReaderCount() {
+			return count;
+		}
+
+		// A new card, as inserted into reader i
+		GPCardEmulator newCard(int i) {
+			GPCardEmulator card = scp_i < 0 ? new GPCardEmulator(new GPKeySet(keys), sdAID, scp) : new GPCardEmulator(new GPKeySet(keys), sdAID, scp, scp_i);
+			for (Map.Entry<Integer, Long> e : settings[i].cardLatency.entrySet()) {
+				if (e.getKey() < 0) {
+					card.setLatency(e.getValue());
+				} else {
+					card.setLatency(e.getKey(), e.getValue());
+				}
+			}
+			return card;
+		}
+
+		@Override
+		public String toString() {
+			return count + " readers with SCP0" + scp + " cards";
+		}
+	}
+
+	private static final class ReaderSettings {
+		boolean present = true;
+		long latency = 0;
+		long jitter = 0;
+		double fail = 0;
+		long cycle = -1;
+		final Map<Integer, Long> cardLatency = new HashMap<Integer, Long>();
+	}
+
+	private static final class Event {
+		final long at;
+		final int reader;
+		final boolean insert;
+
+		Event(long at, int reader, boolean insert) {
+			this.at = at;
+			this.reader = reader;
+			this.insert = insert;
+		}
+	}
+
+	/**
+	 * All readers of a scenario. Insertions and removals are reported
+	 * with {@link #waitForChange} and {@link #list} like with PC/SC.
+	 */
+	public static final class EmulatedReaders extends CardTerminals {
+		private final Scenario scenario;
+		private final List<EmulatedReader> readers = new ArrayList<EmulatedReader>();
+		// Scheduled insertions and removals
+		private final ScheduledExecutorService events = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "Emulated readers");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		// Insertions and removals of every reader at the previous waitForChange(), null before the first
+		private int[] seenInsertions = null;
+		private int[] seenRemovals = null;
+		private boolean[] inserted = null;
+		private boolean[] removed = null;
+
+		EmulatedReaders(Scenario scenario) {
+			this.scenario = scenario;
+			for (int i = 0; i < scenario.count; i++) {
+				EmulatedReader r = new EmulatedReader(this, i, scenario.settings[i], new Random(scenario.seed + i));
+				readers.add(r);
+				if (scenario.settings[i].present) {
+					r.insert();
+				}
+			}
+			for (final Event e : scenario.events) {
+				events.schedule(new Runnable() {
+					@Override
+					public void run() {
+						EmulatedReader r = readers.get(e.reader);
+						if (e.insert) {
+							r.insert();
+						} else {
+							r.remove();
+						}
+					}
+				}, e.at, TimeUnit.MILLISECONDS);
+			}
+		}
+
+		public EmulatedReader getReader(int index) {
+			return readers.get(index);
+		}
+
+		@Override
+		public synchronized List<CardTerminal> list(State state) throws CardException {
+			List<CardTerminal> result = new ArrayList<CardTerminal>();
+			for (int i = 0; i < readers.size(); i++) {
+				EmulatedReader r = readers.get(i);
+				boolean present = r.card != null;
+				switch (state) {
+				case ALL:
+					result.add(r);
+					break;
+				case CARD_PRESENT:
+					if (present) {
+						result.add(r);
+					}
+					break;
+				case CARD_ABSENT:
+					if (!present) {
+						result.add(r);
+					}
+					break;
+				case CARD_INSERTION:
+					// Before the first waitForChange() the same as CARD_PRESENT
+					if (present && (inserted == null || inserted[i])) {
+						result.add(r);
+					}
+					break;
+				case CARD_REMOVAL:
+					if (removed != null && removed[i]) {
+						result.add(r);
+					}
+					break;
+				}
+			}
+			return Collections.unmodifiableList(result);
+		}
+
+		@Override
+		public synchronized boolean waitForChange(long timeout) throws CardException {
+			if (timeout < 0) {
+				throw new IllegalArgumentException("Timeout can not be negative");
+			}
+			int n = readers.size();
+			if (seenInsertions == null) {
+				seenInsertions = new int[n];
+				seenRemovals = new int[n];
+				snapshot(seenInsertions, seenRemovals);
+			}
+			long end = System.currentTimeMillis() + timeout;
+			int[] ins = new int[n];
+			int[] rem = new int[n];
+			while (true) {
+				snapshot(ins, rem);
+				if (!Arrays.equals(ins, seenInsertions) || !Arrays.equals(rem, seenRemovals)) {
+					break;
+				}
+				long left = end - System.currentTimeMillis();
+				if (timeout != 0 && left <= 0) {
+					return false;
+				}
+				try {
+					wait(timeout == 0 ? 0 : left);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new CardException("Interrupted while waiting for cards", e);
+				}
+			}
+			inserted = new boolean[n];
+			removed = new boolean[n];
+			for (int i = 0; i < n; i++) {
+				inserted[i] = ins[i] != seenInsertions[i];
+				removed[i] = rem[i] != seenRemovals[i];
+			}
+			seenInsertions = ins;
+			seenRemovals = rem;
+			return true;
+		}
+
+		private void snapshot(int[] ins, int[] rem) {
+			for (int i = 0; i < readers.size(); i++) {
+				ins[i] = readers.get(i).insertions;
+				rem[i] = readers.get(i).removals;
+			}
+		}
+
+		@Override
+		public String toString() {
+			return scenario.toString();
+		}
+	}
+
+	/**
+	 * A reader, to insert and remove cards from code.
+	 */
+	public static final class EmulatedReader extends CardTerminal {
+		private final EmulatedReaders readers;
+		private final int index;
+		private final ReaderSettings settings;
+		private final Random random;
+		// Guarded by readers
+		private EmulatedCard card = null;
+		private int insertions = 0;
+		private int removals = 0;
+
+		EmulatedReader(EmulatedReaders readers, int index, ReaderSettings settings, Random random) {
+			this.readers = readers;
+			this.index = index;
+			this.settings = settings;
+			this.random = random;
+		}
+
+		@Override
+		public String getName() {
+			return "Emulated reader " + (index + 1);
+		}
+
+		/**
+		 * Insert a new card as configured in the scenario.
+		 */
+		public void insert() {
+			insert(readers.scenario.newCard(index));
+		}
+
+		/**
+		 * Insert {@code card}, replacing a present card.
+		 */
+		public void insert(GPCardEmulator card) {
+			synchronized (readers) {
+				remove();
+				this.card = new EmulatedCard(this, card);
+				insertions++;
+				readers.notifyAll();
+			}
+		}
+
+		public void remove() {
+			synchronized (readers) {
+				if (card != null) {
+					card.removed = true;
+					card = null;
+					removals++;
+					readers.notifyAll();
+				}
+			}
+		}
+
+		/**
+		 * The present card or null.
+		 */
+		public GPCardEmulator getCard() {
+			synchronized (readers) {
+				return card == null ? null : card.card;
+			}
+		}
+
+		// The host is done with a card
+		void disconnected(final EmulatedCard c) {
+			if (settings.cycle < 0) {
+				return;
+			}
+			synchronized (readers) {
+				if (card != c) {
+					return;
+				}
+				remove();
+			}
+			readers.events.schedule(new Runnable() {
+				@Override
+				public void run() {
+					synchronized (readers) {
+						if (card == null) {
+							insert();
+						}
+					}
+				}
+			}, settings.cycle, TimeUnit.MILLISECONDS);
+		}
+
+		// Reader latency and failures of a single APDU
+		void transmitting(EmulatedCard c) throws CardException {
+			if (c.removed) {
+				throw new CardNotPresentException("Card removed from " + getName());
+			}
+			long us = settings.latency;
+			double fail;
+			synchronized (random) {
+				if (settings.jitter > 0) {
+					us += (long) (random.nextGaussian() * settings.jitter);
+				}
+				fail = random.nextDouble();
+			}
+			if (us > 0) {
+				long end = System.nanoTime() + us * 1000;
+				long left;
+				while ((left = end - System.nanoTime()) > 0) {
+					LockSupport.parkNanos(left);
+				}
+			}
+			if (fail < settings.fail) {
+				throw new CardException("Emulated transmission failure in " + getName());
+			}
+		}
+
+		@Override
+		public Card connect(String protocol) throws CardException {
+			synchronized (readers) {
+				if (card == null) {
+					throw new CardNotPresentException("No card in " + getName());
+				}
+				return card;
+			}
+		}
+
+		@Override
+		public boolean isCardPresent() throws CardException {
+			synchronized (readers) {
+				return card != null;
+			}
+		}
+
+		@Override
+		public boolean waitForCardPresent(long timeout) throws CardException {
+			return waitFor(true, timeout);
+		}
+
+		@Override
+		public boolean waitForCardAbsent(long timeout) throws CardException {
+			return waitFor(false, timeout);
+		}
+
+		private boolean waitFor(boolean present, long timeout) throws CardException {
+			long end = System.currentTimeMillis() + timeout;
+			synchronized (readers) {
+				while ((card != null) != present) {
+					long left = end - System.currentTimeMillis();
+					if (timeout != 0 && left <= 0) {
+						return false;
+					}
+					try {
+						readers.wait(timeout == 0 ? 0 : left);
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+						throw new CardException("Interrupted while waiting for a card", e);
+					}
+				}
+				return true;
+			}
+		}
+	}
+
+	// An inserted card, with the latency and failures of the reader
+	private static final class EmulatedCard extends Card {
+		private final EmulatedReader reader;
+		private final GPCardEmulator card;
+		private final CardChannel channel = new EmulatedChannel();
+		private volatile boolean removed = false;
+
+		EmulatedCard(EmulatedReader reader, GPCardEmulator card) {
+			this.reader = reader;
+			this.card = card;
+		}
+
+		private class EmulatedChannel extends CardChannel {
+			@Override
+			public Card getCard() {
+				return EmulatedCard.this;
+			}
+
+			@Override
+			public int getChannelNumber() {
+				return 0;
+			}
+
+			@Override
+			public ResponseAPDU transmit(CommandAPDU command) throws CardException {
+				reader.transmitting(EmulatedCard.this);
+				return card.getBasicChannel().transmit(command);
+			}
+
+			@Override
+			public int transmit(ByteBuffer command, ByteBuffer response) throws CardException {
+				reader.transmitting(EmulatedCard.this);
+				return card.getBasicChannel().transmit(command, response);
+			}
+
+			@Override
+			public void close() throws CardException {
+				throw new IllegalStateException("Basic channel can not be closed");
+			}
+		}
+
+		@Override
+		public ATR getATR() {
+			return card.getATR();
+		}
+
+		@Override
+		public String getProtocol() {
+			return card.getProtocol();
+		}
+
+		@Override
+		public CardChannel getBasicChannel() {
+			return channel;
+		}
+
+		@Override
+		public CardChannel openLogicalChannel() throws CardException {
+			throw new CardException("Logical channels are not supported");
+		}
+
+		@Override
+		public void beginExclusive() throws CardException {
+		}
+
+		@Override
+		public void endExclusive() throws CardException {
+		}
+
+		@Override
+		public byte[] transmitControlCommand(int controlCode, byte[] command) throws CardException {
+			throw new CardException("Control commands are not supported");
+		}
+
+		@Override
+		public void disconnect(boolean reset) throws CardException {
+			card.disconnect(reset);
+			reader.disconnected(this);
+		}
+
+		@Override
+		public String toString() {
+			return card + " in " + reader.getName();
+		}
+	}
+}
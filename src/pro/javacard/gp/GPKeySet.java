@@ -1,15 +1,10 @@
 package pro.javacard.gp;
 
-import java.security.InvalidKeyException;
 import java.security.Key;
-import java.security.NoSuchAlgorithmException;
+import java.util.EnumMap;
 import java.util.HashMap;
 import java.util.Map;
 
-import javax.crypto.BadPaddingException;
-import javax.crypto.Cipher;
-import javax.crypto.IllegalBlockSizeException;
-import javax.crypto.NoSuchPaddingException;
 import javax.crypto.spec.SecretKeySpec;
 
 import pro.javacard.gp.GPData.KeyType;
@@ -40,6 +35,8 @@ public class GPKeySet {
 		private Type type = null;
 
 		private byte [] value = null;
+		// JCA key objects, created on first use
+		private final EnumMap<Type, Key> jcaKeys = new EnumMap<Type, Key>(Type.class);
 
 		public int getID() {
 			return id;
@@ -98,16 +95,22 @@ public class GPKeySet {
 		}
 
 
-		public Key getKey(Type type) {
+		public synchronized Key getKey(Type type) {
+			Key k = jcaKeys.get(type);
+			if (k != null) {
+				return k;
+			}
 			if (type == Type.DES) {
-				return new SecretKeySpec(enlarge(value, 8), "DES");
+				k = new SecretKeySpec(enlarge(value, 8), "DES");
 			} else if (type == Type.DES3) {
-				return new SecretKeySpec(enlarge(value, 24), "DESede");
+				k = new SecretKeySpec(enlarge(value, 24), "DESede");
 			} else if (type == Type.AES) {
-				return new SecretKeySpec(value, "AES");
+				k = new SecretKeySpec(value, "AES");
 			} else {
 				throw new RuntimeException("Don't know how to handle " + type + " yet");
 			}
+			jcaKeys.put(type, k);
+			return k;
 		}
 
 		public Key getKey() {
@@ -173,6 +176,14 @@ public class GPKeySet {
 		keys.put(KeyType.KEK, master);
 	}
 
+	// Copy of a key set, so that it can be diversified without touching the original
+	public GPKeySet(GPKeySet other) {
+		keys.putAll(other.keys);
+		keyVersion = other.keyVersion;
+		keyID = other.keyID;
+		suggestedDiversification = other.suggestedDiversification;
+		diversified = other.diversified;
+	}
 
 	public void setKey(KeyType type, GPKey k) {
 		keys.put(type, k);
@@ -184,41 +195,27 @@ public class GPKeySet {
 			throw new IllegalStateException("Already diversified!");
 		}
 
-		try {
-			Cipher cipher = Cipher.getInstance("DESede/ECB/NoPadding");
-			for (KeyType v : KeyType.values()) {
-				if (v == KeyType.RMAC)
-					continue;
-				byte [] kv = null;
-				// shift around and fill initialize update data as required.
-				if (mode == Diversification.VISA2) {
-					kv = fillVisa(diversification_data, v);
-				} else if (mode == Diversification.EMV) {
-					kv = fillEmv(diversification_data, v);
-				}
-
-				// Encrypt with current master key
-				cipher.init(Cipher.ENCRYPT_MODE, getKey(v).getKey(Type.DES3));
-
-				byte [] keybytes = cipher.doFinal(kv);
-				// Replace the key, possibly changing type. G&D SCE 6.0 uses EMV 3DES and resulting keys
-				// must be interpreted as AES-128
-				GPKey nk = new GPKey(keybytes, scp == 3 ? Type.AES : Type.DES3);
-				keys.put(v, nk);
+		CryptoBackend backend = GPCrypto.getBackend();
+		for (KeyType v : KeyType.values()) {
+			if (v == KeyType.RMAC)
+				continue;
+			byte [] kv = null;
+			// shift around and fill initialize update data as required.
+			if (mode == Diversification.VISA2) {
+				kv = fillVisa(diversification_data, v);
+			} else if (mode == Diversification.EMV) {
+				kv = fillEmv(diversification_data, v);
 			}
 
-			diversified = mode;
-		} catch (BadPaddingException e) {
-			throw new RuntimeException("Diversification failed.", e);
-		} catch (NoSuchAlgorithmException e) {
-			throw new RuntimeException("Diversification failed.", e);
-		} catch (NoSuchPaddingException e) {
-			throw new RuntimeException("Diversification failed.", e);
-		} catch (InvalidKeyException e) {
-			throw new RuntimeException("Diversification failed.", e);
-		} catch (IllegalBlockSizeException e) {
-			throw new RuntimeException("Diversification failed.", e);
+			// Encrypt with current master key
+			byte [] keybytes = backend.encryptECB(Type.DES3, getKey(v).getValue(), kv);
+			// Replace the key, possibly changing type. G&D SCE 6.0 uses EMV 3DES and resulting keys
+			// must be interpreted as AES-128
+			GPKey nk = new GPKey(keybytes, scp == 3 ? Type.AES : Type.DES3);
+			keys.put(v, nk);
 		}
+
+		diversified = mode;
 	}
 
 	public static byte[] fillVisa(byte[] init_update_response, KeyType key) {
@@ -0,0 +1,353 @@
+package pro.javacard.gp;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import javax.smartcardio.CardException;
+import javax.smartcardio.CommandAPDU;
+import javax.smartcardio.ResponseAPDU;
+
+import joptsimple.ValueConversionException;
+import pro.javacard.gp.GPData.KeyType;
+import pro.javacard.gp.GPKeySet.Diversification;
+import pro.javacard.gp.GPKeySet.GPKey;
+import apdu4j.HexUtils;
+
+/**
+ * Provisioning steps from a manifest, compiled once and then executed with
+ * any number of cards.
+ *
+ * Manifest format: one step per line, lines starting with # are comments.
+ * CAP files are relative to the directory of the manifest.
+ * <pre>
+ * delete &lt;aid&gt; [deps]
+ * load &lt;cap&gt;
+ * install &lt;cap&gt; [applet &lt;aid&gt;] [instance &lt;aid&gt;] [privs &lt;hex&gt;] [params &lt;hex&gt;] [default]
+ * make-default &lt;aid&gt;
+ * lock &lt;keyset&gt; [version &lt;n&gt;] [add]
+ * apdu &lt;hex&gt; [&lt;sw&gt;|any]
+ * </pre>
+ * CAP files are parsed and commands are built when compiling, executing
+ * a step only wraps and sends them. Steps need an open secure channel.
+ */
+public final class GPPlan {
+	private final String name;
+	private final List<Step> steps;
+
+	private GPPlan(String name, List<Step> steps) {
+		this.name = name;
+		this.steps = Collections.unmodifiableList(steps);
+	}
+
+	public List<Step> getSteps() {
+		return steps;
+	}
+
+	public static GPPlan compile(File manifest) throws IOException {
+		return compile(manifest, new CapFileCache());
+	}
+
+	/**
+	 * @throws IllegalArgumentException with the line number if the manifest is not valid
+	 */
+	public static GPPlan compile(File manifest, CapFileCache cache) throws IOException {
+		File dir = manifest.getAbsoluteFile().getParentFile();
+		List<Step> steps = new ArrayList<Step>();
+		try (BufferedReader r = new BufferedReader(new InputStreamReader(new FileInputStream(manifest), StandardCharsets.UTF_8))) {
+			String line;
+			int lineno = 0;
+			while ((line = r.readLine()) != null) {
+				lineno++;
+				line = line.trim();
+				if (line.isEmpty() || line.startsWith("#")) {
+					continue;
+				}
+				try {
+					steps.add(compile(line.split("\\s+"), dir, cache));
+				} catch (IllegalArgumentException e) {
+					throw new IllegalArgumentException(manifest.getName() + ":" + lineno + ": " + e.getMessage(), e);
+				}
+			}
+		}
+		return new GPPlan(manifest.getName(), steps);
+	}
+
+	private static Step compile(String[] w, File dir, CapFileCache cache) throws IOException {
+		String op = w[0].toLowerCase();
+		if (op.equals("delete")) {
+			args(w, 2, 3);
+			boolean deps = w.length == 3 && flag(w[2], "deps");
+			AID aid = aid(w[1]);
+			return new CommandStep("delete " + aid, GlobalPlatform.deleteCommand(aid, deps), "Deletion failed");
+		} else if (op.equals("load")) {
+			args(w, 2, 2);
+			return new LoadStep(cache.get(file(dir, w[1])));
+		} else if (op.equals("install")) {
+			if (w.length < 2) {
+				throw new IllegalArgumentException("install needs a CAP file");
+			}
+			CapFile cap = cache.get(file(dir, w[1]));
+			AID applet = null;
+			AID instance = null;
+			byte privileges = 0x00;
+			byte[] params = null;
+			for (int i = 2; i < w.length; i++) {
+				String o = w[i].toLowerCase();
+				if (o.equals("default")) {
+					privileges |= GPData.defaultSelectedPriv;
+					continue;
+				}
+				if (i + 1 == w.length) {
+					throw new IllegalArgumentException(o + " needs a value");
+				}
+				String v = w[++i];
+				if (o.equals("applet")) {
+					applet = aid(v);
+				} else if (o.equals("instance")) {
+					instance = aid(v);
+				} else if (o.equals("privs")) {
+					privileges |= hex(v, 1)[0];
+				} else if (o.equals("params")) {
+					params = params(hex(v, 0));
+				} else {
+					throw new IllegalArgumentException("Unknown install option " + o);
+				}
+			}
+			if (applet == null) {
+				if (cap.getAppletAIDs().size() != 1) {
+					throw new IllegalArgumentException("There should be only one applet in " + w[1] + ", use applet <aid>");
+				}
+				applet = cap.getAppletAIDs().get(0);
+			}
+			CommandAPDU c = GlobalPlatform.installCommand(cap.getPackageAID(), applet, instance, privileges, params, null);
+			return new CommandStep("install " + (instance == null ? applet : instance), c, "Install for Install and make selectable failed");
+		} else if (op.equals("make-default")) {
+			args(w, 2, 2);
+			AID aid = aid(w[1]);
+			return new CommandStep("make-default " + aid, GlobalPlatform.makeDefaultCommand(aid), "Install for make selectable failed");
+		} else if (op.equals("lock")) {
+			args(w, 2, 5);
+			GPKeySet keys;
+			try {
+				keys = ArgMatchers.keyset().convert(w[1]);
+			} catch (ValueConversionException e) {
+				throw new IllegalArgumentException(e.getMessage());
+			}
+			int version = 1;
+			boolean replace = true;
+			for (int i = 2; i < w.length; i++) {
+				if (w[i].equalsIgnoreCase("version") && i + 1 < w.length) {
+					try {
+						version = Integer.parseInt(w[++i]);
+					} catch (NumberFormatException e) {
+						throw new IllegalArgumentException("Not a key version: " + w[i]);
+					}
+					if (version < 1 || version > 0x7F) {
+						throw new IllegalArgumentException("Key version must be between 1 and 127");
+					}
+				} else {
+					replace = !flag(w[i], "add");
+				}
+			}
+			return new LockStep(keys, version, replace);
+		} else if (op.equals("apdu")) {
+			args(w, 2, 3);
+			CommandAPDU c;
+			try {
+				c = new CommandAPDU(hex(w[1], 0));
+			} catch (IllegalArgumentException e) {
+				throw new IllegalArgumentException("Not a valid APDU: " + w[1]);
+			}
+			int sw = 0x9000;
+			if (w.length == 3) {
+				sw = w[2].equalsIgnoreCase("any") ? -1 : ((hex(w[2], 2)[0] & 0xFF) << 8) | (hex(w[2], 2)[1] & 0xFF);
+			}
+			return new ApduStep(c, sw);
+		}
+		throw new IllegalArgumentException("Unknown step " + w[0]);
+	}
+
+	/**
+	 * Run all steps in order, stopping at the first failure.
+	 */
+	public void execute(GlobalPlatform gp, PrintStream out) throws CardException, GPException {
+		for (Step s: steps) {
+			gp.verbose("Plan " + name + ": " + s);
+			GPTrace.Span span = gp.span("step").set("step", s);
+			try {
+				s.execute(gp, out);
+			} finally {
+				span.close();
+			}
+		}
+	}
+
+	@Override
+	public String toString() {
+		return name + " (" + steps.size() + " steps)";
+	}
+
+	/**
+	 * A single step of the plan. Steps are immutable and can be executed
+	 * with several cards at the same time.
+	 */
+	public static abstract class Step {
+		abstract void execute(GlobalPlatform gp, PrintStream out) throws CardException, GPException;
+	}
+
+	// delete, install and make-default
+	private static final class CommandStep extends Step {
+		private final String description;
+		private final byte[] command;
+		private final String error;
+
+		CommandStep(String description, CommandAPDU command, String error) {
+			this.description = description;
+			this.command = command.getBytes();
+			this.error = error;
+		}
+
+		@Override
+		void execute(GlobalPlatform gp, PrintStream out) throws CardException, GPException {
+			gp.transmitAndCheck(new CommandAPDU(command), error);
+		}
+
+		@Override
+		public String toString() {
+			return description;
+		}
+	}
+
+	private static final class LoadStep extends Step {
+		private final CapFile cap;
+
+		LoadStep(CapFile cap) {
+			this.cap = cap;
+		}
+
+		@Override
+		void execute(GlobalPlatform gp, PrintStream out) throws CardException, GPException {
+			gp.loadCapFile(cap);
+		}
+
+		@Override
+		public String toString() {
+			return "load " + cap.getPackageAID();
+		}
+	}
+
+	private static final class LockStep extends Step {
+		private final GPKeySet keys;
+		private final int version;
+		private final boolean replace;
+
+		LockStep(GPKeySet keys, int version, boolean replace) {
+			this.keys = keys;
+			this.version = version;
+			this.replace = replace;
+		}
+
+		@Override
+		void execute(GlobalPlatform gp, PrintStream out) throws CardException, GPException {
+			// Copy, as the keys are diversified for this card
+			GPKeySet new_keys = new GPKeySet(keys);
+			if (new_keys.suggestedDiversification != Diversification.NONE) {
+				new_keys.diversify(gp.getDiversificationData(), new_keys.suggestedDiversification, gp.getSCPVersion());
+			}
+			List<GPKey> list = new ArrayList<GPKey>();
+			list.add(new GPKey(version, 01, new_keys.getKey(KeyType.ENC)));
+			list.add(new GPKey(version, 02, new_keys.getKey(KeyType.MAC)));
+			list.add(new GPKey(version, 03, new_keys.getKey(KeyType.KEK)));
+			gp.putKeys(list, replace);
+			out.println("Card locked with: " + keys.getKey(KeyType.MAC).toStringKey());
+		}
+
+		@Override
+		public String toString() {
+			return "lock version " + version;
+		}
+	}
+
+	private static final class ApduStep extends Step {
+		private final byte[] command;
+		private final int sw;
+
+		ApduStep(CommandAPDU command, int sw) {
+			this.command = command.getBytes();
+			this.sw = sw;
+		}
+
+		@Override
+		void execute(GlobalPlatform gp, PrintStream out) throws CardException, GPException {
+			ResponseAPDU r = gp.transmit(new CommandAPDU(command));
+			if (sw != -1 && r.getSW() != sw) {
+				throw new GPException(r.getSW(), "APDU " + HexUtils.encodeHexString(command) + " failed");
+			}
+		}
+
+		@Override
+		public String toString() {
+			return "apdu " + HexUtils.encodeHexString(command);
+		}
+	}
+
+	private static void args(String[] w, int min, int max) {
+		if (w.length < min || w.length > max) {
+			throw new IllegalArgumentException("Wrong number of arguments for " + w[0]);
+		}
+	}
+
+	private static boolean flag(String s, String flag) {
+		if (!s.equalsIgnoreCase(flag)) {
+			throw new IllegalArgumentException("Unknown option " + s);
+		}
+		return true;
+	}
+
+	private static AID aid(String s) {
+		try {
+			return new AID(s);
+		} catch (IllegalArgumentException e) {
+			throw new IllegalArgumentException(s + " is not a valid AID");
+		}
+	}
+
+	// length 0 means any length
+	private static byte[] hex(String s, int length) {
+		byte[] b;
+		try {
+			b = HexUtils.stringToBin(s);
+		} catch (IllegalArgumentException e) {
+			throw new IllegalArgumentException(s + " is not valid hex");
+		}
+		if (length > 0 && b.length != length) {
+			throw new IllegalArgumentException(s + " must be " + length + " bytes");
+		}
+		return b;
+	}
+
+	// Only application parameters without tag get C9 prepended, as with --params
+	private static byte[] params(byte[] params) {
+		if (params.length > 0 && params[0] == (byte) 0xC9) {
+			return params;
+		}
+		byte[] tagged = new byte[params.length + 2];
+		tagged[0] = (byte) 0xC9;
+		tagged[1] = (byte) params.length;
+		System.arraycopy(params, 0, tagged, 2, params.length);
+		return tagged;
+	}
+
+	private static File file(File dir, String name) {
+		File f = new File(name);
+		return f.isAbsolute() ? f : new File(dir, name);
+	}
+}
@@ -0,0 +1,161 @@
+package pro.javacard.gp;
+
+import pro.javacard.gp.CryptoBackend.BlockEncryptor;
+import pro.javacard.gp.GPData.KeyType;
+import pro.javacard.gp.GPKeySet.GPKey;
+import pro.javacard.gp.GPKeySet.GPKey.Type;
+
+/**
+ * Cryptographic context of a single secure channel session.
+ *
+ * Created once in {@link GlobalPlatform#openSecureChannel} from the derived
+ * session keys, it keeps keyed block ciphers of the current
+ * {@link CryptoBackend} for S-MAC, S-ENC and R-MAC, so that wrapping
+ * an APDU does not have to look up providers or set up keys again.
+ *
+ * Not thread safe: one context belongs to one session.
+ */
+public final class GPSessionCrypto {
+	private final GPKeySet sessionKeys;
+	private final int scp;
+
+	// S-MAC
+	private BlockEncryptor mac_des = null;
+	private BlockEncryptor mac_des3 = null;
+	private RetailMac mac_retail = null;
+	// R-MAC
+	private RetailMac rmac_retail = null;
+	// S-ENC
+	private BlockEncryptor enc = null;
+	// S-MAC of SCP03, with key schedule and subkeys kept for the session
+	private AESCMac mac_cmac = null;
+
+	private byte[] scratch = new byte[256];
+
+	/**
+	 * Set up the session context with the default backend.
+	 *
+	 * @param sessionKeys derived session keys
+	 * @param scp major SCP version (1, 2 or 3)
+	 */
+	public GPSessionCrypto(GPKeySet sessionKeys, int scp) {
+		this(sessionKeys, scp, GPCrypto.getBackend());
+	}
+
+	public GPSessionCrypto(GPKeySet sessionKeys, int scp, CryptoBackend backend) {
+		this.sessionKeys = sessionKeys;
+		this.scp = scp;
+		if (scp == 1 || scp == 2) {
+			byte[] mac = sessionKeys.getKey(KeyType.MAC).getValue();
+			mac_des = backend.getEncryptor(Type.DES, mac);
+			mac_des3 = backend.getEncryptor(Type.DES3, mac);
+			mac_retail = new RetailMac(mac_des, mac_des3);
+			GPKey rmac = sessionKeys.getKey(KeyType.RMAC);
+			if (rmac != null) {
+				rmac_retail = new RetailMac(backend.getEncryptor(Type.DES, rmac.getValue()), backend.getEncryptor(Type.DES3, rmac.getValue()));
+			}
+			enc = backend.getEncryptor(Type.DES3, sessionKeys.getKey(KeyType.ENC).getValue());
+		} else if (scp == 3) {
+			mac_cmac = new AESCMac(backend.getEncryptor(Type.AES, sessionKeys.getKey(KeyType.MAC).getValue()));
+			enc = backend.getEncryptor(Type.AES, sessionKeys.getKey(KeyType.ENC).getValue());
+		} else {
+			throw new IllegalArgumentException("Don't know how to handle SCP version " + scp);
+		}
+	}
+
+	public GPKeySet getSessionKeys() {
+		return sessionKeys;
+	}
+
+	public int getSCPVersion() {
+		return scp;
+	}
+
+	/**
+	 * Encrypt the ICV of the next C-MAC in place (SCP01 and SCP02 i=15/1A/1B).
+	 */
+	public void encryptICV(byte[] icv) {
+		// SCP01 encrypts the ICV with 3DES, SCP02 with single DES
+		if (scp == 1) {
+			mac_des3.encryptBlock(icv, 0, icv, 0);
+		} else {
+			mac_des.encryptBlock(icv, 0, icv, 0);
+		}
+	}
+
+	/**
+	 * Full 3DES CBC MAC with S-MAC (SCP01) over already padded text.
+	 * The ICV is replaced with the resulting MAC.
+	 */
+	public void mac_3des(byte[] text, int offset, int length, byte[] icv) {
+		mac_des3.encryptCBC(icv, text, offset, length, scratch(length), 0);
+		System.arraycopy(scratch, length - 8, icv, 0, 8);
+	}
+
+	/**
+	 * Session bound retail MAC engine with S-MAC or R-MAC (SCP02).
+	 */
+	public RetailMac getRetailMac(KeyType type) {
+		if (type == KeyType.MAC && mac_retail != null) {
+			return mac_retail;
+		} else if (type == KeyType.RMAC && rmac_retail != null) {
+			return rmac_retail;
+		}
+		throw new IllegalArgumentException("No session key for " + type);
+	}
+
+	/**
+	 * Retail MAC with S-MAC or R-MAC (SCP02), padding the text.
+	 * The ICV is replaced with the resulting MAC.
+	 */
+	public void mac_des_3des(KeyType type, byte[] text, int offset, int length, byte[] icv) {
+		RetailMac m = getRetailMac(type);
+		m.init(icv);
+		m.update(text, offset, length);
+		m.doFinal(icv, 0);
+	}
+
+	/**
+	 * Retail MAC with S-MAC or R-MAC (SCP02), padding the text.
+	 */
+	public byte[] mac_des_3des(KeyType type, byte[] text, byte[] iv) {
+		byte[] result = iv.clone();
+		mac_des_3des(type, text, 0, text.length, result);
+		return result;
+	}
+
+	/**
+	 * Encrypt already padded command data in place with S-ENC and a null IV (SCP01/SCP02).
+	 */
+	public void encrypt(byte[] buffer, int offset, int length) {
+		enc.encryptCBC(null, buffer, offset, length, buffer, offset);
+	}
+
+	/**
+	 * Encrypt already padded command data in place with S-ENC, using the
+	 * encrypted counter block as the IV (SCP03).
+	 */
+	public void encrypt(byte[] buffer, int offset, int length, byte[] counter) {
+		byte[] iv = scratch(16);
+		enc.encryptBlock(counter, 0, iv, 0);
+		enc.encryptCBC(iv, buffer, offset, length, buffer, offset);
+	}
+
+	/**
+	 * SCP03 C-MAC over the chaining value followed by the command. The
+	 * chaining value is replaced with the full 16 byte MAC.
+	 */
+	public void scp03_mac(byte[] chaining_value, byte[] apdu, int offset, int length) {
+		mac_cmac.update(chaining_value, 0, chaining_value.length);
+		mac_cmac.update(apdu, offset, length);
+		mac_cmac.doFinal(chaining_value, 0);
+	}
+
+	// Shared output buffer for the CBC MAC computations
+	private byte[] scratch(int length) {
+		if (scratch.length < length) {
+			scratch = new byte[length];
+		}
+		return scratch;
+	}
+}
@@ -1,14 +1,36 @@
 package pro.javacard.gp;
 
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStreamReader;
 import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.EnumSet;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.smartcardio.Card;
 import javax.smartcardio.CardException;
@@ -21,6 +43,7 @@ import javax.smartcardio.TerminalFactory;
 import joptsimple.OptionException;
 import joptsimple.OptionParser;
 import joptsimple.OptionSet;
+import pro.javacard.gp.AIDRegistry.Scope;
 import pro.javacard.gp.GPData.KeyType;
 import pro.javacard.gp.GPKeySet.Diversification;
 import pro.javacard.gp.GPKeySet.GPKey;
@@ -72,8 +95,10 @@ public final class GPTool {
 	private final static String OPT_DEBUG = "debug";
 	private final static String OPT_DUMP = "dump";
 	private final static String OPT_REPLAY = "replay";
+	private final static String OPT_EMULATE = "emulate";
 	private final static String OPT_VERBOSE = "verbose";
 	private final static String OPT_REINSTALL = "reinstall";
+	private final static String OPT_SKIP_SAME = "skip-same-version";
 	private final static String OPT_VIRGIN = "virgin";
 	private final static String OPT_MODE = "mode";
 
@@ -88,9 +113,35 @@ public final class GPTool {
 	private final static String OPT_EMV = "emv";
 	private final static String OPT_VISA2 = "visa2";
 
-
-	private static OptionSet parseArguments(String[] argv) throws IOException {
-		OptionSet args = null;
+	private final static String OPT_CRYPTO = "crypto";
+	private final static String OPT_PIPELINE = "pipeline";
+	private final static String OPT_IMPLICIT = "implicit";
+	private final static String OPT_CAP_CACHE = "cap-cache";
+	private final static String OPT_WATCH = "watch";
+	private final static String OPT_DAEMON = "daemon";
+	private final static String OPT_MANIFEST = "manifest";
+	private final static String OPT_METRICS = "metrics";
+	private final static String OPT_TRACE = "trace";
+
+	private final static String OPT_MAKE_SCRIPT = "make-script";
+	private final static String OPT_SCRIPT_COUNTER = "script-counter";
+	private final static String OPT_RUN_SCRIPT = "run-script";
+
+
+	// APDU timing of all cards of this run, null if not asked for
+	private static ApduMetrics metrics = null;
+	private static File metricsFile = null;
+	// Spans of all cards of this run, null if not asked for
+	private static GPTrace trace = null;
+	private static File traceFile = null;
+	// Latest spans kept by --watch and --daemon
+	private final static int TRACE_LIMIT = 100000;
+	// Milliseconds the daemon waits for the next line of a client
+	private final static int DAEMON_TIMEOUT = 30000;
+	// Options of daemon requests that name files, relative to the client
+	private final static List<String> REQUEST_FILES = Arrays.asList(OPT_CAP, CMD_LOAD, CMD_INSTALL, CMD_UNINSTALL, OPT_MANIFEST, OPT_RUN_SCRIPT);
+
+	private static OptionParser getParser() {
 		OptionParser parser = new OptionParser();
 
 		// Generic options
@@ -105,6 +156,7 @@ public final class GPTool {
 		parser.acceptsAll(Arrays.asList("s", CMD_SECURE_APDU), "Send raw APDU (hex) via SCP").withRequiredArg();
 		parser.accepts(OPT_DUMP, "Dump APDU communication to <File>").withRequiredArg().ofType(File.class);
 		parser.accepts(OPT_REPLAY, "Replay APDU responses from <File>").withRequiredArg().ofType(File.class);
+		parser.accepts(OPT_EMULATE, "Use emulated readers and cards as described in <File>").withRequiredArg().ofType(File.class);
 
 		// Special options
 		parser.accepts(OPT_RELAX, "Relaxed error checking");
@@ -129,6 +181,7 @@ public final class GPTool {
 
 		parser.accepts(OPT_DELETEDEPS, "Also delete dependencies");
 		parser.accepts(OPT_REINSTALL, "Remove card content during installation");
+		parser.accepts(OPT_SKIP_SAME, "Do not load a package that is on the card with the same version");
 		parser.accepts(CMD_MAKE_DEFAULT, "Make AID the default").withRequiredArg().withValuesConvertedBy(ArgMatchers.aid());
 
 		parser.accepts(CMD_DELETE, "Delete something").requiredIf(OPT_DELETEDEPS).withOptionalArg().withValuesConvertedBy(ArgMatchers.aid());
@@ -160,12 +213,39 @@ public final class GPTool {
 
 		parser.accepts(OPT_SDAID, "ISD AID").withRequiredArg().withValuesConvertedBy(ArgMatchers.aid());
 
+		parser.accepts(OPT_CRYPTO, "Crypto backend to use (jce/bc/auto)").withRequiredArg();
+		parser.accepts(OPT_PIPELINE, "Wrap <n> LOAD commands ahead of the card").withRequiredArg().ofType(Integer.class);
+		parser.accepts(OPT_IMPLICIT, "Use implicitly initiated SCP02 secure channel");
+		parser.accepts(OPT_CAP_CACHE, "Keep load file data of CAP files in <dir>").withRequiredArg().ofType(File.class);
+		parser.accepts(OPT_WATCH, "Stay running and work with every inserted card");
+		parser.accepts(OPT_MANIFEST, "Provision cards as listed in <File>").withRequiredArg().ofType(File.class);
+		parser.accepts(OPT_METRICS, "Write APDU timing to <File> (.json or Prometheus text)").withRequiredArg().ofType(File.class);
+		parser.accepts(OPT_TRACE, "Write a trace of operations to <File> (Chrome trace format)").withRequiredArg().ofType(File.class);
+		parser.accepts(OPT_DAEMON, "Serve requests from GPClient on local <port>").withOptionalArg().ofType(Integer.class).defaultsTo(GPClient.DEFAULT_PORT);
+
+		// Offline SCP03 scripts
+		parser.accepts(OPT_MAKE_SCRIPT, "Write the SCP03 session to <File> instead of a card").withRequiredArg().ofType(File.class);
+		parser.accepts(OPT_SCRIPT_COUNTER, "Sequence counter of the card for the script").requiredIf(OPT_MAKE_SCRIPT).withRequiredArg().ofType(Integer.class);
+		parser.accepts(OPT_RUN_SCRIPT, "Send a script from <File> to the card").withRequiredArg().ofType(File.class);
+
+
+		return parser;
+	}
+
+	// Parse and check all values, so that format is checked before usage
+	private static OptionSet parse(OptionParser parser, String[] argv) {
+		OptionSet args = parser.parse(argv);
+		for (String s: parser.recognizedOptions().keySet()) {args.valuesOf(s);}
+		return args;
+	}
+
+	private static OptionSet parseArguments(String[] argv) throws IOException {
+		OptionSet args = null;
+		OptionParser parser = getParser();
 
 		// Parse arguments
 		try {
-			args = parser.parse(argv);
-			// Try to fetch all values so that format is checked before usage
-			for (String s: parser.recognizedOptions().keySet()) {args.valuesOf(s);}
+			args = parse(parser, argv);
 		} catch (OptionException e) {
 			if (e.getCause() != null) {
 				System.err.println(e.getMessage() + ": " + e.getCause().getMessage());
@@ -194,51 +274,71 @@ public final class GPTool {
 			System.out.println("GlobalPlatformPro " + GlobalPlatform.getVersion());
 		}
 
-		// Parameters for opening the secure channel
-		// Assume a single master key
-		GPKeySet ks = null;
-		if (args.has(OPT_KEY)) {
-			ks = new GPKeySet((GPKeySet.GPKey)args.valueOf(OPT_KEY));
-		} else {
-			ks = new GPKeySet(GPData.defaultKey);
-		}
-		// override if needed
-		if (args.has(OPT_MAC)) {
-			ks.setKey(KeyType.MAC, (GPKeySet.GPKey)args.valueOf(OPT_MAC));
-		}
-		if (args.has(OPT_ENC)) {
-			ks.setKey(KeyType.ENC, (GPKeySet.GPKey)args.valueOf(OPT_ENC));
-		}
-		if (args.has(OPT_KEK)) {
-			ks.setKey(KeyType.KEK, (GPKeySet.GPKey)args.valueOf(OPT_KEK));
-		}
-
-		// Key ID and Version
-		if (args.has(OPT_KEY_ID)) {
-			ks.setKeyID((int) args.valueOf(OPT_KEY_ID));
-		}
-		if (args.has(OPT_KEY_VERSION)) {
-			ks.setKeyVersion((int) args.valueOf(OPT_KEY_VERSION));
+		// Select the crypto backend, "auto" runs a short benchmark
+		if (args.has(OPT_CRYPTO)) {
+			try {
+				GPCrypto.setBackend(CryptoBackend.getInstance((String) args.valueOf(OPT_CRYPTO)));
+			} catch (IllegalArgumentException e) {
+				System.err.println(e.getMessage());
+				System.exit(1);
+			}
+			if (args.has(OPT_VERBOSE)) {
+				System.out.println("# Using crypto backend " + GPCrypto.getBackend());
+			}
 		}
 
-		// Set diversification if specified
-		if (args.has(OPT_VISA2)) {
-			ks.suggestedDiversification = Diversification.VISA2;
-		} else if (args.has(OPT_EMV)) {
-			ks.suggestedDiversification = Diversification.EMV;
+		// Parameters for opening the secure channel
+		GPKeySet ks = getKeySet(args);
+
+		// The same CAP files are used with every card. With a single card
+		// LOAD blocks are streamed from the file instead of kept in memory
+		boolean shared = args.has(OPT_DO_ALL_READERS) || args.has(OPT_WATCH) || args.has(OPT_DAEMON);
+		CapFileCache capCache = new CapFileCache(shared);
+		if (args.has(OPT_CAP_CACHE)) {
+			capCache = new CapFileCache((File) args.valueOf(OPT_CAP_CACHE));
 		}
 
 		// Load a CAP file, if specified
 		CapFile cap = null;
 		if (args.has(OPT_CAP)) {
 			File capfile = (File) args.valueOf(OPT_CAP);
-			cap = new CapFile(new FileInputStream(capfile));
+			cap = capCache.get(capfile);
 			if (args.has(OPT_VERBOSE)) {
 				System.out.println("**** CAP info:");
 				cap.dump(System.out);
 			}
 		}
 
+		// Timing of all cards is written when done, whichever way the program ends
+		if (args.has(OPT_METRICS)) {
+			metrics = new ApduMetrics();
+			metricsFile = (File) args.valueOf(OPT_METRICS);
+		}
+		if (args.has(OPT_TRACE)) {
+			// The trace is written after every card, keep it bounded
+			trace = args.has(OPT_WATCH) || args.has(OPT_DAEMON) ? new GPTrace(TRACE_LIMIT) : new GPTrace();
+			traceFile = (File) args.valueOf(OPT_TRACE);
+		}
+		if (metrics != null || trace != null) {
+			Runtime.getRuntime().addShutdownHook(new Thread() {
+				@Override
+				public void run() {
+					writeReports();
+				}
+			});
+		}
+
+		// Compile the manifest once for all cards
+		GPPlan plan = null;
+		if (args.has(OPT_MANIFEST)) {
+			try {
+				plan = GPPlan.compile((File) args.valueOf(OPT_MANIFEST), capCache);
+			} catch (IllegalArgumentException e) {
+				System.err.println(e.getMessage());
+				System.exit(1);
+			}
+		}
+
 		// Now actually talk to possible terminals
 		try {
 			TerminalFactory tf = TerminalManager.getTerminalFactory(args.has(OPT_NOFIX) ? false : true);
@@ -247,10 +347,30 @@ public final class GPTool {
 			if (args.has(OPT_REPLAY)) {
 				File f = (File) args.valueOf(OPT_REPLAY);
 				tf = TerminalFactory.getInstance("PC/SC", new FileInputStream(f), new APDUReplayProvider());
+			} else if (args.has(OPT_EMULATE)) {
+				GPEmulatorProvider.Scenario scenario = null;
+				try {
+					scenario = GPEmulatorProvider.Scenario.compile((File) args.valueOf(OPT_EMULATE));
+				} catch (IllegalArgumentException e) {
+					System.err.println(e.getMessage());
+					System.exit(1);
+				}
+				tf = TerminalFactory.getInstance(GPEmulatorProvider.TYPE, scenario, new GPEmulatorProvider());
 			}
 
 			CardTerminals terminals = tf.terminals();
 
+			// Commands go to a script instead of a card
+			ScriptCard scriptCard = null;
+			if (args.has(OPT_MAKE_SCRIPT)) {
+				if (ks.suggestedDiversification != Diversification.NONE) {
+					System.err.println("Diversification is not supported with --" + OPT_MAKE_SCRIPT + ", use diversified keys");
+					System.exit(1);
+				}
+				AID sdaid = args.has(OPT_SDAID) ? (AID) args.valueOf(OPT_SDAID) : new AID(GPData.defaultISDBytes);
+				scriptCard = new ScriptCard(ks, sdaid, (int) args.valueOf(OPT_SCRIPT_COUNTER), null);
+			}
+
 			// List terminals if needed
 			if (args.has(OPT_DEBUG)) {
 				System.out.println("# Detected readers from " + tf.getProvider().getName());
@@ -259,9 +379,25 @@ public final class GPTool {
 				}
 			}
 
+			// Serve requests from GPClient
+			if (args.has(OPT_DAEMON)) {
+				daemon((int) args.valueOf(OPT_DAEMON), terminals, args, ks, capCache);
+			}
+
+			// Stay resident and work with cards as they come
+			if (args.has(OPT_WATCH)) {
+				if (scriptCard != null) {
+					System.err.println("--" + OPT_WATCH + " can not be used with --" + OPT_MAKE_SCRIPT);
+					System.exit(1);
+				}
+				watch(terminals, args, ks, capCache, cap, plan);
+			}
+
 			// Select terminals to work on
 			List<CardTerminal> do_readers;
-			if (args.has(OPT_READER)) {
+			if (scriptCard != null) {
+				do_readers = Arrays.asList((CardTerminal) new ScriptCard.ScriptTerminal(scriptCard));
+			} else if (args.has(OPT_READER)) {
 				String reader = (String) args.valueOf(OPT_READER);
 				CardTerminal t = terminals.getTerminal(reader);
 				if (t == null) {
@@ -278,363 +414,873 @@ public final class GPTool {
 				}
 			}
 
-			// Work all readers
-			for (CardTerminal reader: do_readers) {
-				// Wrap with logging if requested
-				if (args.has(OPT_DEBUG)) {
-					// And with APDU dumping
-					OutputStream o = null;
-					if (args.has(OPT_DUMP)) {
-						File f = (File) args.valueOf(OPT_DUMP);
-						o = new FileOutputStream(f);
+			// Work all readers, in parallel if there are several
+			if (do_readers.size() == 1) {
+				CardTerminal reader = logging(do_readers.get(0), args, "");
+				try {
+					// Keys are diversified for the card, so always work with a copy
+					work(reader, args, new GPKeySet(ks), capCache, cap, plan, System.out, System.err, new ReaderResult(reader.getName()));
+				} catch (GPException e) {
+					// All unhandled GP exceptions halt the program unless it is run with -relax
+					if (!args.has(OPT_RELAX)) {
+						e.printStackTrace();
+						System.exit(1);
+					}
+					e.printStackTrace();
+				} catch (CardException e) {
+					// Card exceptions halt the program, unless allowed
+					e.printStackTrace();
+					if (!args.has(OPT_CONTINUE)) {
+						throw e; // No catch.
 					}
-					reader = LoggingCardTerminal.getInstance(reader, o);
 				}
+			} else if (do_readers.size() > 1 && !workAll(do_readers, args, ks, capCache, cap, plan, System.out)) {
+				System.exit(1);
+			}
+			if (scriptCard != null) {
+				File f = (File) args.valueOf(OPT_MAKE_SCRIPT);
+				scriptCard.writeScript(f);
+				System.out.println("Script with " + scriptCard.getScript().size() + " commands written to " + f);
+			}
+		} catch (Exception e) {
+			// Sensible wrapper for the different PC/SC exceptions
+			if (TerminalManager.getExceptionMessage(e) != null) {
+				System.out.println("PC/SC failure: " + TerminalManager.getExceptionMessage(e));
+			} else {
+				throw e;
+			}
+		}
+		System.exit(0);
+	}
 
-				Card card = null;
-				try {
-					// Establish connection
+	private static synchronized void writeReports() {
+		try {
+			if (metrics != null) {
+				metrics.write(metricsFile);
+			}
+		} catch (IOException e) {
+			System.err.println("Could not write metrics to " + metricsFile + ": " + e.getMessage());
+		}
+		try {
+			if (trace != null) {
+				trace.write(traceFile);
+			}
+		} catch (IOException e) {
+			System.err.println("Could not write trace to " + traceFile + ": " + e.getMessage());
+		}
+	}
+
+	// Keys from the command line, the default key if none given
+	private static GPKeySet getKeySet(OptionSet args) {
+		// Assume a single master key
+		GPKeySet ks = null;
+		if (args.has(OPT_KEY)) {
+			ks = new GPKeySet((GPKeySet.GPKey)args.valueOf(OPT_KEY));
+		} else {
+			ks = new GPKeySet(GPData.defaultKey);
+		}
+		// override if needed
+		if (args.has(OPT_MAC)) {
+			ks.setKey(KeyType.MAC, (GPKeySet.GPKey)args.valueOf(OPT_MAC));
+		}
+		if (args.has(OPT_ENC)) {
+			ks.setKey(KeyType.ENC, (GPKeySet.GPKey)args.valueOf(OPT_ENC));
+		}
+		if (args.has(OPT_KEK)) {
+			ks.setKey(KeyType.KEK, (GPKeySet.GPKey)args.valueOf(OPT_KEK));
+		}
+
+		// Key ID and Version
+		if (args.has(OPT_KEY_ID)) {
+			ks.setKeyID((int) args.valueOf(OPT_KEY_ID));
+		}
+		if (args.has(OPT_KEY_VERSION)) {
+			ks.setKeyVersion((int) args.valueOf(OPT_KEY_VERSION));
+		}
+
+		// Set diversification if specified
+		if (args.has(OPT_VISA2)) {
+			ks.suggestedDiversification = Diversification.VISA2;
+		} else if (args.has(OPT_EMV)) {
+			ks.suggestedDiversification = Diversification.EMV;
+		}
+		return ks;
+	}
+
+	/**
+	 * Everything that is done with a single card. Output goes to out and err,
+	 * so that several cards can be worked with at the same time.
+	 */
+	private static void work(CardTerminal reader, OptionSet args, GPKeySet ks, CapFileCache capCache, CapFile cap, GPPlan plan, PrintStream out, PrintStream err,
+			ReaderResult result) throws CardException, GPException, IOException {
+		Card card = null;
+		GPTrace.Span session = GPTrace.NONE;
+		if (trace != null) {
+			trace.setThreadName(reader.getName());
+			session = trace.begin("card").set("reader", reader.getName());
+		}
+		try {
+			// Establish connection
+			card = reader.connect("*");
+			card.beginExclusive();
+
+			// GlobalPlatform specific
+			GlobalPlatform gp = new GlobalPlatform(card.getBasicChannel());
+			gp.setMetrics(metrics);
+			gp.setTrace(trace);
+			if (args.has(OPT_VERBOSE))
+				gp.beVerboseTo(out);
+
+			// Disable strict mode if requested
+			gp.setStrict(!args.has(OPT_RELAX));
+
+			if (args.has(OPT_PIPELINE)) {
+				gp.setLoadPipelineDepth((int) args.valueOf(OPT_PIPELINE));
+			}
+
+			if (args.has(CMD_INFO) || args.has(OPT_VERBOSE)) {
+				out.println("Reader: " + reader.getName());
+				out.println("ATR: " + HexUtils.encodeHexString(card.getATR().getBytes()));
+				out.println("More information about your card:");
+				out.println("    http://smartcard-atr.appspot.com/parse?ATR="+HexUtils.encodeHexString(card.getATR().getBytes()));
+				out.println();
+			}
+
+			// Send all raw APDU-s to the default-selected application of the card
+			if (args.has(CMD_APDU)) {
+				for (Object s: args.valuesOf(CMD_APDU)) {
+					CommandAPDU c = new CommandAPDU(HexUtils.stringToBin((String)s));
+					card.getBasicChannel().transmit(c);
+				}
+			}
+
+			// Replay a prepared script, nothing else is done with the card
+			if (args.has(OPT_RUN_SCRIPT)) {
+				int n = ScriptCard.replay(card.getBasicChannel(), (File) args.valueOf(OPT_RUN_SCRIPT));
+				out.println("Script completed, " + n + " commands sent");
+				return;
+			}
+
+			// Talk to the card manager (can be null)
+			gp.select((AID) args.valueOf(OPT_SDAID));
+
+			// Cards coming and going are told apart by serial, as are cards in a trace
+			if (args.has(OPT_WATCH) || trace != null) {
+				byte[] cplc = gp.getCPLC();
+				if (cplc != null) {
+					result.card = HexUtils.encodeHexString(new GPData.CPLC(cplc).get(GPData.CPLC.Field.ICSerialNumber));
+					session.set("card", result.card);
+					if (args.has(OPT_WATCH)) {
+						out.println("Card: " + result.card);
+					}
+				}
+			}
+
+			// Fetch some possibly interesting data
+			if (args.has(CMD_INFO)) {
+				out.println("***** Card info:");
+				GPData.print_card_info(gp, out);
+			}
+
+			// check for possible diversification for virgin cards
+			if (Arrays.equals(ks.getKey(KeyType.MAC).getValue(), GPData.defaultKeyBytes) && args.has(OPT_VIRGIN) && !args.has(OPT_RELAX)) {
+				if (GPData.suggestDiversification(gp.getCPLC()) != Diversification.NONE && ks.getKeyVersion() == 0x00) {
+					err.println("A virgin card that has not been used with GlobalPlatformPro before");
+					err.println("probably requires EMV diversification but is not asked for.");
+					err.println("Use -emv for EMV diversification. Or don't run with -virgin or use -relax.");
+					throw new GPException("Virgin card requires diversification");
+				}
+			}
+
+			// Authenticate, only if needed
+			if (args.has(CMD_LIST) || args.has(CMD_LOAD) || args.has(CMD_INSTALL) || args.has(CMD_DELETE)
+					|| args.has(CMD_CREATE) || args.has(CMD_LOCK) || args.has(CMD_UNLOCK)
+					|| args.has(CMD_MAKE_DEFAULT) || args.has(CMD_UNINSTALL) || args.has(CMD_SECURE_APDU) || plan != null) {
+
+				EnumSet<APDUMode> mode = GlobalPlatform.defaultMode.clone();
+				// Override default mode if needed.
+				if (args.has(OPT_MODE)) {
+					mode.clear();
+					mode.add((GlobalPlatform.APDUMode) args.valueOf(OPT_MODE));
+				}
+
+				// Override SCP version
+				int scp_version = 0;
+				if (args.has(OPT_SCP)) {
+					scp_version = (int) args.valueOf(OPT_SCP);
+				}
+
+				// Possibly brick the card now, if keys don't match.
+				if (args.has(OPT_IMPLICIT)) {
+					gp.openImplicitSecureChannel(ks, scp_version, mode);
+				} else {
+					gp.openSecureChannel(ks, null, scp_version, mode);
+				}
+
+				// --manifest <file>
+				if (plan != null) {
+					plan.execute(gp, out);
+				}
+
+				// --secure-apdu or -s
+				if (args.has(CMD_SECURE_APDU)) {
+					for (Object s: args.valuesOf(CMD_SECURE_APDU)) {
+						CommandAPDU c = new CommandAPDU(HexUtils.stringToBin((String)s));
+						gp.transmit(c);
+					}
+				}
+
+				// --delete <aid> or --delete --default
+				if (args.has(CMD_DELETE)) {
+					if (args.has(OPT_DEFAULT)) {
+						gp.uninstallDefaultSelected(args.has(OPT_DELETEDEPS));
+					}
+					@SuppressWarnings("unchecked")
+					List<AID> aids = (List<AID>) args.valuesOf(CMD_DELETE);
+					for (AID aid: aids) {
+						try {
+							gp.deleteAID(aid, args.has(OPT_DELETEDEPS));
+						} catch (GPException e) {
+							if (gp.lookup(aid, Scope.APPLICATIONS, Scope.LOAD_FILES) == null) {
+								out.println("Could not delete AID (not present on card): " + aid);
+							} else {
+								out.println("Could not delete AID: " + aid);
+								if (e.sw == 0x6985) {
+									out.println("TIP: Maybe try with --" + OPT_DELETEDEPS);
+								}
+								throw e;
+							}
+						}
+					}
+				}
+
+				// --uninstall <cap>
+				if (args.has(CMD_UNINSTALL)) {
+					File capfile = (File) args.valueOf(CMD_UNINSTALL);
+					AID aid = capCache.get(capfile).getPackageAID();
+					if (gp.lookup(aid, Scope.LOAD_FILES) == null) {
+						out.println(aid + " is not present on card!");
+					} else {
+						gp.deleteAID(aid, true);
+						out.println(aid + " deleted.");
+					}
+				}
+
+				// --load <applet.cap>
+				if (args.has(CMD_LOAD)) {
+					File capfile = (File) args.valueOf(CMD_LOAD);
+					CapFile loadcap = capCache.get(capfile);
+
+					if (args.has(OPT_VERBOSE)) {
+						loadcap.dump(out);
+					}
 					try {
-						card = reader.connect("*");
-						card.beginExclusive();
-					} catch (CardException e) {
-						if (args.has(OPT_CONTINUE)) {
-							e.printStackTrace();
-							continue;
+						if (args.has(OPT_SKIP_SAME) && gp.isLoaded(loadcap)) {
+							out.println("Package " + loadcap.getPackageAID() + " is already on card with the same version, not loading");
+						} else {
+							gp.loadCapFile(loadcap);
+						}
+					} catch (GPException e) {
+						if (e.sw == 0x6985) {
+							err.println("Applet loading failed. Are you sure the CAP file target is compatible with your card?");
 						} else {
 							throw e;
 						}
 					}
+				}
 
-					// GlobalPlatform specific
-					GlobalPlatform gp = new GlobalPlatform(card.getBasicChannel());
-					if (args.has(OPT_VERBOSE))
-						gp.beVerboseTo(System.out);
+				// --install <applet.cap>
+				if (args.has(CMD_INSTALL)) {
 
-					// Disable strict mode if requested
-					gp.setStrict(!args.has(OPT_RELAX));
+					File capfile = (File) args.valueOf(CMD_INSTALL);
+					CapFile instcap = capCache.get(capfile);
 
-					if (args.has(CMD_INFO) || args.has(OPT_VERBOSE)) {
-						System.out.println("Reader: " + reader.getName());
-						System.out.println("ATR: " + HexUtils.encodeHexString(card.getATR().getBytes()));
-						System.out.println("More information about your card:");
-						System.out.println("    http://smartcard-atr.appspot.com/parse?ATR="+HexUtils.encodeHexString(card.getATR().getBytes()));
-						System.out.println();
+					if (args.has(OPT_VERBOSE)) {
+						instcap.dump(out);
 					}
 
-					// Send all raw APDU-s to the default-selected application of the card
-					if (args.has(CMD_APDU)) {
-						for (Object s: args.valuesOf(CMD_APDU)) {
-							CommandAPDU c = new CommandAPDU(HexUtils.stringToBin((String)s));
-							card.getBasicChannel().transmit(c);
-						}
+					if (args.has(OPT_REINSTALL)) {
+						gp.verbose("Removing existing package");
+						gp.deleteAID(instcap.getPackageAID(), true);
 					}
 
-					// Talk to the card manager (can be null)
-					gp.select((AID) args.valueOf(OPT_SDAID));
-
-					// Fetch some possibly interesting data
-					if (args.has(CMD_INFO)) {
-						System.out.println("***** Card info:");
-						GPData.print_card_info(gp);
+					try {
+						if (args.has(OPT_SKIP_SAME) && !args.has(OPT_REINSTALL) && gp.isLoaded(instcap)) {
+							gp.verbose("Package with the same version is already on card, not loading");
+						} else {
+							gp.loadCapFile(instcap);
+							gp.verbose("CAP loaded");
+						}
+					} catch (GPException e) {
+						if (e.sw == 0x6985) {
+							err.println("Applet loading failed. Are you sure the CAP file target is compatible with your card?");
+						} else {
+							throw e;
+						}
 					}
 
-					// check for possible diversification for virgin cards
-					if (Arrays.equals(ks.getKey(KeyType.MAC).getValue(), GPData.defaultKeyBytes) && args.has(OPT_VIRGIN) && !args.has(OPT_RELAX)) {
-						if (GPData.suggestDiversification(gp.getCPLC()) != Diversification.NONE && ks.getKeyVersion() == 0x00) {
-							System.err.println("A virgin card that has not been used with GlobalPlatformPro before");
-							System.err.println("probably requires EMV diversification but is not asked for.");
-							System.err.println("Use -emv for EMV diversification. Or don't run with -virgin or use -relax.");
-							System.exit(1);
+					// Only install if cap contains a single applet
+					if (instcap.getAppletAIDs().size() > 1) {
+						out.println("CAP contains more than one applet, create instances manually with --" + CMD_CREATE);
+					} else {
+						// Take the applet AID from CAP but allow to override
+						AID appaid = instcap.getAppletAIDs().get(0);
+						if (args.has(OPT_APPLET)) {
+							appaid = (AID) args.valueOf(OPT_APPLET);
+						}
+						if (args.has(CMD_CREATE)) {
+							appaid = (AID) args.valueOf(CMD_CREATE);
+						}
+						if (gp.lookup(appaid, Scope.APPLICATIONS) != null) {
+							err.println("WARNING: Applet " + appaid + " already present on card");
 						}
+						gp.installAndMakeSelectable(instcap.getPackageAID(), appaid, null, getInstPrivs(args), getInstParams(args), null);
 					}
+				}
 
-					// Authenticate, only if needed
-					if (args.has(CMD_LIST) || args.has(CMD_LOAD) || args.has(CMD_INSTALL) || args.has(CMD_DELETE)
-							|| args.has(CMD_CREATE) || args.has(CMD_LOCK) || args.has(CMD_UNLOCK)
-							|| args.has(CMD_MAKE_DEFAULT) || args.has(CMD_UNINSTALL) || args.has(CMD_SECURE_APDU)) {
-
-						EnumSet<APDUMode> mode = GlobalPlatform.defaultMode.clone();
-						// Override default mode if needed.
-						if (args.has(OPT_MODE)) {
-							mode.clear();
-							mode.add((GlobalPlatform.APDUMode) args.valueOf(OPT_MODE));
+				// --create <aid> (--applet <aid> --package <aid> or --cap <cap>)
+				if (args.has(CMD_CREATE)) {
+					AID packageAID = null;
+					AID appletAID = null;
+					// Load from cap if present
+					if (cap != null) {
+						packageAID = cap.getPackageAID();
+						if (cap.getAppletAIDs().size() != 1) {
+							throw new IllegalArgumentException("There should be only one applet in CAP. Use --" + OPT_APPLET + " instead.");
 						}
+						appletAID = cap.getAppletAIDs().get(0);
+					}
+					// override if needed
+					if (args.has(OPT_PACKAGE)) {
+						packageAID = (AID) args.valueOf(OPT_PACKAGE);
+					}
+					if (args.has(OPT_APPLET)) {
+						appletAID = (AID) args.valueOf(OPT_APPLET);
+					}
+					// check
+					if (packageAID == null || appletAID == null)
+						throw new IllegalArgumentException("Need --" + OPT_PACKAGE + " and --" + OPT_APPLET + " or --" + OPT_CAP);
 
-						// Override SCP version
-						int scp_version = 0;
-						if (args.has(OPT_SCP)) {
-							scp_version = (int) args.valueOf(OPT_SCP);
-						}
+					// shoot
+					AID instanceAID = (AID) args.valueOf(CMD_CREATE);
+					gp.installAndMakeSelectable(packageAID, appletAID, instanceAID, getInstPrivs(args), getInstParams(args), null);
+				}
 
-						// Possibly brick the card now, if keys don't match.
-						gp.openSecureChannel(ks, null, scp_version, mode);
+				// --lock-applet <aid>
+				if (args.has(OPT_LOCK_APPLET)) {
+					gp.lockUnlockApplet((AID) args.valueOf(OPT_LOCK_APPLET), true);
+				}
 
-						// --secure-apdu or -s
-						if (args.has(CMD_SECURE_APDU)) {
-							for (Object s: args.valuesOf(CMD_SECURE_APDU)) {
-								CommandAPDU c = new CommandAPDU(HexUtils.stringToBin((String)s));
-								gp.transmit(c);
-							}
-						}
+				// --unlock-applet <AID>
+				if (args.has(OPT_UNLOCK_APPLET)) {
+					gp.lockUnlockApplet((AID) args.valueOf(OPT_UNLOCK_APPLET), false);
+				}
 
-						// --delete <aid> or --delete --default
-						if (args.has(CMD_DELETE)) {
-							if (args.has(OPT_DEFAULT)) {
-								gp.uninstallDefaultSelected(args.has(OPT_DELETEDEPS));
-							}
-							@SuppressWarnings("unchecked")
-							List<AID> aids = (List<AID>) args.valuesOf(CMD_DELETE);
-							for (AID aid: aids) {
-								try {
-									gp.deleteAID(aid, args.has(OPT_DELETEDEPS));
-								} catch (GPException e) {
-									if (!gp.getRegistry().allAIDs().contains(aid)) {
-										System.out.println("Could not delete AID (not present on card): " + aid);
-									} else {
-										System.out.println("Could not delete AID: " + aid);
-										if (e.sw == 0x6985) {
-											System.out.println("TIP: Maybe try with --" + OPT_DELETEDEPS);
-										}
-										throw e;
-									}
-								}
-							}
+				// --list, printed as the card returns the entries
+				if (args.has(CMD_LIST)) {
+					Iterator<AIDRegistryEntry> entries = gp.getStatusIterator();
+					while (hasNext(entries)) {
+						AIDRegistryEntry e = entries.next();
+						AID aid = e.getAID();
+						out.println("AID: " + HexUtils.encodeHexString(aid.getBytes()) + " (" + GPUtils.byteArrayToReadableString(aid.getBytes()) + ")");
+						out.println("     " + e.getKind().toShortString() + " " + e.getLifeCycleString() + ": " + e.getPrivilegesString());
+						if (e.getVersion() != null) {
+							out.println("     Version: " + e.getVersionString());
+						}
+						if (e.getAssociatedSecurityDomainAID() != null && e.getKind() != AIDRegistryEntry.Kind.IssuerSecurityDomain) {
+							out.println("     Associated SD: " + HexUtils.encodeHexString(e.getAssociatedSecurityDomainAID().getBytes()));
 						}
 
-						// --uninstall <cap>
-						if (args.has(CMD_UNINSTALL)) {
-							File capfile = (File) args.valueOf(CMD_UNINSTALL);
-							CapFile instcap = new CapFile(new FileInputStream(capfile));
-							AID aid = instcap.getPackageAID();
-							if (!gp.getRegistry().allAIDs().contains(aid)) {
-								System.out.println(aid + " is not present on card!");
-							} else {
-								gp.deleteAID(aid, true);
-								System.out.println(aid + " deleted.");
-							}
+						for (AID a : e.getExecutableAIDs()) {
+							out.println("     " + HexUtils.encodeHexString(a.getBytes()) + " (" + GPUtils.byteArrayToReadableString(a.getBytes()) + ")");
 						}
+						out.println();
+					}
+				}
 
-						// --load <applet.cap>
-						if (args.has(CMD_LOAD)) {
-							File capfile = (File) args.valueOf(CMD_LOAD);
-							CapFile loadcap = new CapFile(new FileInputStream(capfile));
+				// --unlock
+				if (args.has(CMD_UNLOCK)) {
+					// Write default keys
+					List<GPKeySet.GPKey> keys = new ArrayList<GPKeySet.GPKey>();
 
-							if (args.has(OPT_VERBOSE)) {
-								loadcap.dump(System.out);
-							}
-							try {
-								gp.loadCapFile(loadcap);
-							} catch (GPException e) {
-								if (e.sw == 0x6985) {
-									System.err.println("Applet loading failed. Are you sure the CAP file target is compatible with your card?");
-								} else {
-									throw e;
-								}
-							}
-						}
+					// Fetch the current key information to get the used ID-s.
+					List<GPKey> current = gp.getKeyInfoTemplate();
+					if (current.size() != 3) {
+						throw new GPException("Template has bad length!");
+					}
+					// FIXME: new key must adhere to currently used SCP version.
+					GPKey new_key = new GPKey(GPData.defaultKeyBytes, gp.getSCPVersion() == 3 ? Type.AES : Type.DES3);
+
+					// FIXME: this looks ugly
+					keys.add(new GPKeySet.GPKey(01, current.get(0).getID(), new_key));
+					keys.add(new GPKeySet.GPKey(01, current.get(1).getID(), new_key));
+					keys.add(new GPKeySet.GPKey(01, current.get(2).getID(), new_key));
+
+					// "add keys" if default factory keys or otherwise virgin card
+					// because version FF can not be addressed
+					if (args.has(OPT_VIRGIN)) {
+						gp.putKeys(keys, false);
+					} else {
+						// normally replace existing keys
+						gp.putKeys(keys, true);
+					}
+					out.println("Default " + new_key.toStringKey() + " set as master key.");
+				}
 
-						// --install <applet.cap>
-						if (args.has(CMD_INSTALL)) {
+				// --lock
+				if (args.has(CMD_LOCK)) {
+					if (args.has(OPT_KEY) || args.has(OPT_MAC) || args.has(OPT_ENC) || args.has(OPT_KEK) && !args.has(OPT_RELAX))
+						gp.printStrictWarning("Using --" + CMD_LOCK + " but specifying other keys");
+
+					// Copy, as the keys are diversified for this card
+					GPKeySet new_keys = new GPKeySet((GPKeySet) args.valueOf(CMD_LOCK));
+					// Note down the master key. TODO: store in GPKeySet ?
+					GPKey master = new_keys.getKey(KeyType.MAC);
+					// Diversify if requested.
+					if (new_keys.suggestedDiversification != Diversification.NONE) {
+						new_keys.diversify(gp.getDiversificationData(), new_keys.suggestedDiversification, gp.getSCPVersion());
+					}
 
-							File capfile = (File) args.valueOf(CMD_INSTALL);
-							CapFile instcap = new CapFile(new FileInputStream(capfile));
+					// Check that
+					int new_version = 1;
 
-							if (args.has(OPT_VERBOSE)) {
-								instcap.dump(System.out);
-							}
+					if (args.has(OPT_NEW_KEY_VERSION)) {
+						new_version = (int) args.valueOf(OPT_NEW_KEY_VERSION);
+					}
+					// Add into a list
+					List<GPKeySet.GPKey> keys = new ArrayList<GPKeySet.GPKey>();
+					keys.add(new GPKeySet.GPKey(new_version, 01, new_keys.getKey(KeyType.ENC)));
+					keys.add(new GPKeySet.GPKey(new_version, 02, new_keys.getKey(KeyType.MAC)));
+					keys.add(new GPKeySet.GPKey(new_version, 03, new_keys.getKey(KeyType.KEK)));
+					// Add new keys if virgin
+					if (args.has(OPT_VIRGIN)) {
+						gp.putKeys(keys, false);
+					} else {
+						// normally replace
+						gp.putKeys(keys, true);
+					}
+					out.println("Card locked with: " + master.toStringKey());
+					if (new_keys.diversified != Diversification.NONE) {
+						out.println("Remember to use " + new_keys.diversified.name() + " diversification!");
+					}
+					out.println("Write this down, DO NOT FORGET/LOSE IT!");
+				}
 
-							if (args.has(OPT_REINSTALL)) {
-								gp.verbose("Removing existing package");
-								gp.deleteAID(instcap.getPackageAID(), true);
-							}
+				// --make-default <aid>
+				if (args.has(CMD_MAKE_DEFAULT)) {
+					gp.makeDefaultSelected((AID) args.valueOf(CMD_MAKE_DEFAULT));
+				}
+			}
+		} finally {
+			session.close();
+			if (card != null) {
+				card.endExclusive();
+				TerminalManager.disconnect(card, true);
+			}
+		}
+	}
 
-							try {
-								gp.loadCapFile(instcap);
-							} catch (GPException e) {
-								if (e.sw == 0x6985) {
-									System.err.println("Applet loading failed. Are you sure the CAP file target is compatible with your card?");
-								} else {
-									throw e;
-								}
-							}
-							gp.verbose("CAP loaded");
+	// Outcome of working with one card
+	private static final class ReaderResult {
+		final String reader;
+		// CPLC serial, if known
+		String card = null;
+		byte[] output = null;
+		Exception error = null;
+		long millis = 0;
+
+		ReaderResult(String reader) {
+			this.reader = reader;
+		}
 
-							// Only install if cap contains a single applet
-							if (instcap.getAppletAIDs().size() > 1) {
-								System.out.println("CAP contains more than one applet, create instances manually with --" + CMD_CREATE);
-							} else {
-								// Take the applet AID from CAP but allow to override
-								AID appaid = instcap.getAppletAIDs().get(0);
-								if (args.has(OPT_APPLET)) {
-									appaid = (AID) args.valueOf(OPT_APPLET);
-								}
-								if (args.has(CMD_CREATE)) {
-									appaid = (AID) args.valueOf(CMD_CREATE);
-								}
-								if (gp.getRegistry().allAIDs().contains(appaid)) {
-									System.err.println("WARNING: Applet " + appaid + " already present on card");
-								}
-								gp.installAndMakeSelectable(instcap.getPackageAID(), appaid, null, getInstPrivs(args), getInstParams(args), null);
-							}
-						}
+		// Same rules as with a single reader
+		boolean isFatal(OptionSet args) {
+			if (error == null) {
+				return false;
+			} else if (error instanceof GPException) {
+				return !args.has(OPT_RELAX);
+			}
+			return !(error instanceof CardException && args.has(OPT_CONTINUE));
+		}
 
-						// --create <aid> (--applet <aid> --package <aid> or --cap <cap>)
-						if (args.has(CMD_CREATE)) {
-							AID packageAID = null;
-							AID appletAID = null;
-							// Load from cap if present
-							if (cap != null) {
-								packageAID = cap.getPackageAID();
-								if (cap.getAppletAIDs().size() != 1) {
-									throw new IllegalArgumentException("There should be only one applet in CAP. Use --" + OPT_APPLET + " instead.");
-								}
-								appletAID = cap.getAppletAIDs().get(0);
-							}
-							// override if needed
-							if (args.has(OPT_PACKAGE)) {
-								packageAID = (AID) args.valueOf(OPT_PACKAGE);
-							}
-							if (args.has(OPT_APPLET)) {
-								appletAID = (AID) args.valueOf(OPT_APPLET);
-							}
-							// check
-							if (packageAID == null || appletAID == null)
-								throw new IllegalArgumentException("Need --" + OPT_PACKAGE + " and --" + OPT_APPLET + " or --" + OPT_CAP);
+		@Override
+		public String toString() {
+			String status = "OK";
+			if (error != null) {
+				status = "FAILED";
+				if (error instanceof GPException && ((GPException) error).sw != 0) {
+					status += " " + GPUtils.swToString(((GPException) error).sw);
+				}
+			}
+			return String.format("%-12s %6d ms  %s%s", status, millis, reader, card == null ? "" : " " + card);
+		}
+	}
 
-							// shoot
-							AID instanceAID = (AID) args.valueOf(CMD_CREATE);
-							gp.installAndMakeSelectable(packageAID, appletAID, instanceAID, getInstPrivs(args), getInstParams(args), null);
-						}
+	// Wrap with logging if requested, with the suffix added to the name of the dump file
+	private static CardTerminal logging(CardTerminal reader, OptionSet args, String suffix) throws IOException {
+		if (args.has(OPT_DEBUG)) {
+			// And with APDU dumping
+			OutputStream o = null;
+			if (args.has(OPT_DUMP)) {
+				File f = (File) args.valueOf(OPT_DUMP);
+				o = new FileOutputStream(f.getPath() + suffix);
+			}
+			return LoggingCardTerminal.getInstance(reader, o);
+		}
+		return reader;
+	}
 
-						// --lock-applet <aid>
-						if (args.has(OPT_LOCK_APPLET)) {
-							gp.lockUnlockApplet((AID) args.valueOf(OPT_LOCK_APPLET), true);
-						}
+	// Communication errors of the iterator as they are
+	private static boolean hasNext(Iterator<?> i) throws CardException, GPException {
+		try {
+			return i.hasNext();
+		} catch (RuntimeException e) {
+			if (e.getCause() instanceof CardException) {
+				throw (CardException) e.getCause();
+			} else if (e.getCause() instanceof GPException) {
+				throw (GPException) e.getCause();
+			}
+			throw e;
+		}
+	}
 
-						// --unlock-applet <AID>
-						if (args.has(OPT_UNLOCK_APPLET)) {
-							gp.lockUnlockApplet((AID) args.valueOf(OPT_UNLOCK_APPLET), false);
-						}
+	// Work with one card, collecting the output
+	private static ReaderResult workBuffered(CardTerminal reader, OptionSet args, GPKeySet ks, CapFileCache capCache, CapFile cap, GPPlan plan) {
+		ReaderResult result = new ReaderResult(reader.getName());
+		ByteArrayOutputStream bo = new ByteArrayOutputStream();
+		PrintStream out = new PrintStream(bo, true);
+		long start = System.nanoTime();
+		try {
+			work(reader, args, new GPKeySet(ks), capCache, cap, plan, out, out, result);
+		} catch (Exception e) {
+			e.printStackTrace(out);
+			result.error = e;
+		}
+		out.flush();
+		result.output = bo.toByteArray();
+		result.millis = (System.nanoTime() - start) / 1000000;
+		return result;
+	}
 
-						// --list
-						if (args.has(CMD_LIST)) {
-							for (AIDRegistryEntry e : gp.getRegistry()) {
-								AID aid = e.getAID();
-								System.out.println("AID: " + HexUtils.encodeHexString(aid.getBytes()) + " (" + GPUtils.byteArrayToReadableString(aid.getBytes()) + ")");
-								System.out.println("     " + e.getKind().toShortString() + " " + e.getLifeCycleString() + ": " + e.getPrivilegesString());
+	/**
+	 * Work with every reader in a thread of its own. The output of every
+	 * reader is collected separately and printed in the order of readers,
+	 * followed by a summary.
+	 *
+	 * @return false if a reader failed in a way that would halt the program
+	 */
+	private static boolean workAll(List<CardTerminal> readers, final OptionSet args, final GPKeySet ks, final CapFileCache capCache, final CapFile cap, final GPPlan plan,
+			PrintStream out) throws IOException, InterruptedException {
+		ExecutorService pool = Executors.newFixedThreadPool(readers.size());
+		try {
+			List<Future<ReaderResult>> futures = new ArrayList<Future<ReaderResult>>();
+			for (int i = 0; i < readers.size(); i++) {
+				// One dump file per reader
+				final CardTerminal reader = logging(readers.get(i), args, "." + i);
+				futures.add(pool.submit(new Callable<ReaderResult>() {
+					@Override
+					public ReaderResult call() {
+						return workBuffered(reader, args, ks, capCache, cap, plan);
+					}
+				}));
+			}
 
-								for (AID a : e.getExecutableAIDs()) {
-									System.out.println("     " + HexUtils.encodeHexString(a.getBytes()) + " (" + GPUtils.byteArrayToReadableString(a.getBytes()) + ")");
-								}
-								System.out.println();
-							}
-						}
+			List<ReaderResult> results = new ArrayList<ReaderResult>();
+			for (Future<ReaderResult> f : futures) {
+				ReaderResult r;
+				try {
+					r = f.get();
+				} catch (ExecutionException e) {
+					throw new RuntimeException(e.getCause());
+				}
+				out.println("# " + r.reader);
+				out.write(r.output);
+				out.flush();
+				results.add(r);
+			}
 
-						// --unlock
-						if (args.has(CMD_UNLOCK)) {
-							// Write default keys
-							List<GPKeySet.GPKey> keys = new ArrayList<GPKeySet.GPKey>();
+			boolean ok = true;
+			out.println("# Summary");
+			for (ReaderResult r : results) {
+				ok &= !r.isFatal(args);
+				out.println(r);
+			}
+			return ok;
+		} finally {
+			pool.shutdownNow();
+		}
+	}
 
-							// Fetch the current key information to get the used ID-s.
-							List<GPKey> current = gp.getKeyInfoTemplate();
-							if (current.size() != 3) {
-								throw new GPException("Template has bad length!");
-							}
-							// FIXME: new key must adhere to currently used SCP version.
-							GPKey new_key = new GPKey(GPData.defaultKeyBytes, gp.getSCPVersion() == 3 ? Type.AES : Type.DES3);
-
-							// FIXME: this looks ugly
-							keys.add(new GPKeySet.GPKey(01, current.get(0).getID(), new_key));
-							keys.add(new GPKeySet.GPKey(01, current.get(1).getID(), new_key));
-							keys.add(new GPKeySet.GPKey(01, current.get(2).getID(), new_key));
-
-							// "add keys" if default factory keys or otherwise virgin card
-							// because version FF can not be addressed
-							if (args.has(OPT_VIRGIN)) {
-								gp.putKeys(keys, false);
-							} else {
-								// normally replace existing keys
-								gp.putKeys(keys, true);
+	/**
+	 * Stay resident and work with every card as soon as it is inserted, in
+	 * any reader (or the one given with --reader). Cards present at start
+	 * are worked with as well. Failures are reported and do not stop the
+	 * loop, which only ends when the program is killed.
+	 */
+	private static void watch(CardTerminals terminals, final OptionSet args, final GPKeySet ks, final CapFileCache capCache, final CapFile cap, final GPPlan plan)
+			throws CardException, IOException {
+		ExecutorService pool = Executors.newCachedThreadPool();
+		// Readers with a card being worked on
+		final Set<String> busy = new HashSet<String>();
+		// Busy readers that got the next card already, worked on when done
+		final Set<String> next = new HashSet<String>();
+		final AtomicInteger done = new AtomicInteger();
+		final AtomicInteger failed = new AtomicInteger();
+		final AtomicInteger dumps = new AtomicInteger();
+		final long start = System.nanoTime();
+
+		System.out.println("# Waiting for cards");
+		while (true) {
+			// Before the first waitForChange() this is the same as CARD_PRESENT
+			for (CardTerminal t : terminals.list(State.CARD_INSERTION)) {
+				if (args.has(OPT_READER) && !t.getName().equals(args.valueOf(OPT_READER))) {
+					continue;
+				}
+				final String name = t.getName();
+				synchronized (busy) {
+					if (!busy.add(name)) {
+						next.add(name);
+						continue;
+					}
+				}
+				final CardTerminal reader = logging(t, args, "." + dumps.getAndIncrement());
+				pool.submit(new Runnable() {
+					@Override
+					public void run() {
+						do {
+							ReaderResult r = workBuffered(reader, args, ks, capCache, cap, plan);
+							synchronized (System.out) {
+								int n = done.incrementAndGet();
+								int f = r.error == null ? failed.get() : failed.incrementAndGet();
+								double rate = n * 3600e9 / (System.nanoTime() - start);
+								System.out.println("# " + r.reader);
+								System.out.write(r.output, 0, r.output.length);
+								System.out.println(r);
+								System.out.println(String.format("# %d cards, %d failed, %.0f cards/h", n, f, rate));
+								System.out.flush();
 							}
-							System.out.println("Default " + new_key.toStringKey() + " set as master key.");
-						}
+							writeReports();
+						} while (hasNext());
+					}
 
-						// --lock
-						if (args.has(CMD_LOCK)) {
-							if (args.has(OPT_KEY) || args.has(OPT_MAC) || args.has(OPT_ENC) || args.has(OPT_KEK) && !args.has(OPT_RELAX))
-								gp.printStrictWarning("Using --" + CMD_LOCK + " but specifying other keys");
-
-							GPKeySet new_keys = ((GPKeySet)args.valueOf(CMD_LOCK));
-							// Note down the master key. TODO: store in GPKeySet ?
-							GPKey master = new_keys.getKey(KeyType.MAC);
-							// Diversify if requested.
-							if (new_keys.suggestedDiversification != Diversification.NONE) {
-								new_keys.diversify(gp.getDiversificationData(), new_keys.suggestedDiversification, gp.getSCPVersion());
+					// A card inserted while working on the previous one. The
+					// reader is released in the same step, so that an insertion
+					// is either seen here or starts a new worker.
+					private boolean hasNext() {
+						synchronized (busy) {
+							if (!next.remove(name)) {
+								busy.remove(name);
+								return false;
 							}
+							return true;
+						}
+					}
+				});
+			}
+			terminals.waitForChange();
+		}
+	}
 
-							// Check that
-							int new_version = 1;
-
-							if (args.has(OPT_NEW_KEY_VERSION)) {
-								new_version = (int) args.valueOf(OPT_NEW_KEY_VERSION);
+	/**
+	 * Serve requests from {@link GPClient} on a loopback port, keeping the
+	 * PC/SC context, warmed up crypto and parsed CAP files between requests.
+	 * Connections are served one at a time, in the order they come.
+	 *
+	 * Keys and the reader given at start are used by every request that does
+	 * not give its own. A client must first send the token that is written
+	 * to {@link GPClient#tokenFile} at start, readable only by the user. A
+	 * connection is closed at the first request that can not be parsed or
+	 * has an option that is refused for requests.
+	 *
+	 * @see GPClient for the protocol
+	 */
+	private static void daemon(int port, CardTerminals terminals, OptionSet args, GPKeySet ks, CapFileCache capCache) throws IOException {
+		// Warm up the crypto code
+		CryptoBackend.benchmark(GPCrypto.getBackend(), 200);
+
+		OptionParser parser = getParser();
+		try (ServerSocket server = new ServerSocket(port, 5, InetAddress.getLoopbackAddress())) {
+			final File tokenFile = GPClient.tokenFile(server.getLocalPort());
+			byte[] token = writeToken(tokenFile);
+			Runtime.getRuntime().addShutdownHook(new Thread() {
+				@Override
+				public void run() {
+					tokenFile.delete();
+				}
+			});
+			System.out.println("# Listening on " + server.getLocalSocketAddress() + ", token in " + tokenFile);
+			while (true) {
+				try (Socket client = server.accept()) {
+					// A client that stops sending does not block the others for long
+					client.setSoTimeout(DAEMON_TIMEOUT);
+					BufferedReader in = new BufferedReader(new InputStreamReader(client.getInputStream(), StandardCharsets.UTF_8));
+					PrintStream reply = new PrintStream(client.getOutputStream(), false, "UTF-8");
+					String line = in.readLine();
+					if (line == null || !MessageDigest.isEqual(token, line.getBytes(StandardCharsets.UTF_8))) {
+						reply.print(GPClient.FAILURE + " wrong token\n");
+						reply.flush();
+						System.out.println("REFUSED client without the token");
+						continue;
+					}
+					line = in.readLine();
+					if (line == null || !new File(line).isAbsolute()) {
+						reply.print(GPClient.FAILURE + " no working directory\n");
+						reply.flush();
+						System.out.println("REFUSED client without a working directory");
+						continue;
+					}
+					File dir = new File(line);
+					while ((line = in.readLine()) != null) {
+						if (line.isEmpty()) {
+							continue;
+						}
+						OptionSet request;
+						try {
+							request = parse(parser, absolute(line.split("\t"), dir));
+							if (!request.nonOptionArguments().isEmpty()) {
+								throw new IllegalArgumentException("Not an option: " + request.nonOptionArguments().get(0));
 							}
-							// Add into a list
-							List<GPKeySet.GPKey> keys = new ArrayList<GPKeySet.GPKey>();
-							keys.add(new GPKeySet.GPKey(new_version, 01, new_keys.getKey(KeyType.ENC)));
-							keys.add(new GPKeySet.GPKey(new_version, 02, new_keys.getKey(KeyType.MAC)));
-							keys.add(new GPKeySet.GPKey(new_version, 03, new_keys.getKey(KeyType.KEK)));
-							// Add new keys if virgin
-							if (args.has(OPT_VIRGIN)) {
-								gp.putKeys(keys, false);
-							} else {
-								// normally replace
-								gp.putKeys(keys, true);
+							// --debug would print keys to the console of the daemon
+							for (String o : Arrays.asList(OPT_DEBUG, OPT_DUMP, OPT_METRICS, OPT_TRACE, OPT_MAKE_SCRIPT, OPT_CAP_CACHE, OPT_REPLAY, OPT_EMULATE, OPT_WATCH, OPT_DAEMON)) {
+								if (request.has(o)) {
+									throw new IllegalArgumentException("--" + o + " can not be used in a request");
+								}
 							}
-							System.out.println("Card locked with: " + master.toStringKey());
-							if (new_keys.diversified != Diversification.NONE) {
-								System.out.println("Remember to use " + new_keys.diversified.name() + " diversification!");
+							// Abbreviated options are not made absolute
+							for (String o : REQUEST_FILES) {
+								for (Object f : request.valuesOf(o)) {
+									if (!((File) f).isAbsolute()) {
+										throw new IllegalArgumentException("Use the full name of --" + o);
+									}
+								}
 							}
-							System.out.println("Write this down, DO NOT FORGET/LOSE IT!");
+						} catch (OptionException | IllegalArgumentException e) {
+							reply.print(GPClient.OUTPUT + e.getMessage() + "\n");
+							reply.print(GPClient.FAILURE + " 0 ms\n");
+							reply.flush();
+							System.out.println("REFUSED " + line.replace('\t', ' '));
+							break;
 						}
+						ByteArrayOutputStream bo = new ByteArrayOutputStream();
+						PrintStream out = new PrintStream(bo, true, "UTF-8");
+						long start = System.nanoTime();
+						boolean ok;
+						try {
+							ok = serve(request, terminals, args, ks, capCache, out);
+						} catch (Exception e) {
+							e.printStackTrace(out);
+							ok = false;
+						}
+						long millis = (System.nanoTime() - start) / 1000000;
+						out.flush();
 
-						// --make-default <aid>
-						if (args.has(CMD_MAKE_DEFAULT)) {
-							gp.makeDefaultSelected((AID) args.valueOf(CMD_MAKE_DEFAULT));
+						String output = bo.toString("UTF-8");
+						if (!output.isEmpty()) {
+							for (String l : output.split("\r?\n")) {
+								reply.print(GPClient.OUTPUT + l + "\n");
+							}
 						}
+						reply.print((ok ? GPClient.SUCCESS : GPClient.FAILURE) + " " + millis + " ms\n");
+						reply.flush();
+						writeReports();
+						System.out.println((ok ? "OK     " : "FAILED ") + String.format("%6d ms  ", millis) + line.replace('\t', ' '));
 					}
-				} catch (GPException e) {
-					// All unhandled GP exceptions halt the program unless it is run with -relax
-					if (!args.has(OPT_RELAX)) {
-						e.printStackTrace();
-						System.exit(1);
-					}
-					e.printStackTrace();
-				} catch (CardException e) {
-					// Card exceptions skip to the next reader, if available and allowed
-					if (args.has(OPT_CONTINUE)) {
-						continue;
-					} else {
-						e.printStackTrace();
-						throw e; // No catch.
-					}
-				} finally {
-					if (card != null) {
-						card.endExclusive();
-						TerminalManager.disconnect(card, true);
-					}
+				} catch (IOException e) {
+					System.err.println("Client failed: " + e.getMessage());
 				}
 			}
-		} catch (Exception e) {
-			// Sensible wrapper for the different PC/SC exceptions
-			if (TerminalManager.getExceptionMessage(e) != null) {
-				System.out.println("PC/SC failure: " + TerminalManager.getExceptionMessage(e));
-			} else {
-				throw e;
+		}
+	}
+
+	// Request arguments with the files of REQUEST_FILES relative to dir
+	private static String[] absolute(String[] argv, File dir) {
+		String[] result = argv.clone();
+		for (int i = 0; i < result.length; i++) {
+			for (String o : REQUEST_FILES) {
+				String opt = "--" + o;
+				if (result[i].startsWith(opt + "=")) {
+					result[i] = opt + "=" + absolute(result[i].substring(opt.length() + 1), dir);
+				} else if (result[i].equals(opt) && i + 1 < result.length && !result[i + 1].startsWith("-")) {
+					i++;
+					result[i] = absolute(result[i], dir);
+				}
 			}
 		}
-		System.exit(0);
+		return result;
 	}
+
+	private static String absolute(String path, File dir) {
+		File f = new File(path);
+		return f.isAbsolute() ? path : new File(dir, path).getPath();
+	}
+
+	// A new random token in a file that only the user can read
+	private static byte[] writeToken(File f) throws IOException {
+		byte[] random = new byte[16];
+		new SecureRandom().nextBytes(random);
+		byte[] token = HexUtils.encodeHexString(random).getBytes(StandardCharsets.UTF_8);
+		Path p = f.toPath();
+		Files.deleteIfExists(p);
+		if (p.getFileSystem().supportedFileAttributeViews().contains("posix")) {
+			Files.createFile(p, PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rw-------")));
+		} else {
+			Files.createFile(p);
+			f.setReadable(false, false);
+			f.setReadable(true, true);
+		}
+		Files.write(p, token);
+		return token;
+	}
+
+	// Handle a single request from a client
+	private static boolean serve(OptionSet args, CardTerminals terminals, OptionSet daemonArgs, GPKeySet daemonKeys,
+			CapFileCache capCache, PrintStream out) throws IOException, CardException, InterruptedException {
+		// Keys of the request, if given
+		GPKeySet ks = daemonKeys;
+		for (String o : Arrays.asList(OPT_KEY, OPT_MAC, OPT_ENC, OPT_KEK, OPT_KEY_ID, OPT_KEY_VERSION, OPT_VISA2, OPT_EMV)) {
+			if (args.has(o)) {
+				ks = getKeySet(args);
+				break;
+			}
+		}
+
+		CapFile cap = null;
+		if (args.has(OPT_CAP)) {
+			cap = capCache.get((File) args.valueOf(OPT_CAP));
+		}
+
+		GPPlan plan = null;
+		if (args.has(OPT_MANIFEST)) {
+			try {
+				plan = GPPlan.compile((File) args.valueOf(OPT_MANIFEST), capCache);
+			} catch (IllegalArgumentException e) {
+				out.println(e.getMessage());
+				return false;
+			}
+		}
+
+		List<CardTerminal> readers;
+		String reader = (String) (args.has(OPT_READER) ? args.valueOf(OPT_READER) : daemonArgs.valueOf(OPT_READER));
+		if (reader != null) {
+			CardTerminal t = terminals.getTerminal(reader);
+			if (t == null) {
+				out.println("Reader \"" + reader + "\" not found.");
+				return false;
+			}
+			readers = Arrays.asList(t);
+		} else {
+			readers = terminals.list(State.CARD_PRESENT);
+			if (readers.isEmpty()) {
+				out.println("No card found.");
+				return false;
+			} else if (readers.size() > 1 && !args.has(OPT_DO_ALL_READERS)) {
+				out.println("More than one reader with a card found.");
+				return false;
+			}
+		}
+		return workAll(readers, args, ks, capCache, cap, plan, out);
+	}
+
 	private static byte getInstPrivs(OptionSet args) {
 		byte privs = 0x00;
 		if (args.has(OPT_DEFAULT)) {
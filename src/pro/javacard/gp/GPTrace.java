@@ -0,0 +1,211 @@
+package pro.javacard.gp;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Timed spans of GlobalPlatform operations, written in the Chrome Trace
+ * Event format (chrome://tracing, Perfetto, speedscope).
+ *
+ * Set with {@link GlobalPlatform#setTrace} to trace a session. Spans of
+ * one thread nest by time, so the span of an operation contains the spans
+ * of its phases. Sessions with several cards at the same time can share
+ * one trace, each card shows up as its own thread.
+ *
+ * Without a trace, sessions use {@link #NONE}, which records nothing and
+ * allocates nothing.
+ *
+ * A trace of a long-running session can be limited to the latest spans,
+ * older spans are then dropped and counted in the written trace.
+ */
+public final class GPTrace {
+	/** Span that does nothing, for when tracing is off */
+	public static final Span NONE = new Span(null, null);
+
+	private final long start = System.nanoTime();
+	private final ArrayDeque<Span> spans = new ArrayDeque<Span>();
+	private final Map<Long, String> threads = new LinkedHashMap<Long, String>();
+	private final int limit;
+	private long dropped = 0;
+
+	public GPTrace() {
+		this(Integer.MAX_VALUE);
+	}
+
+	/**
+	 * Trace that keeps at most {@code limit} of the latest spans.
+	 */
+	public GPTrace(int limit) {
+		if (limit < 1) {
+			throw new IllegalArgumentException("Limit must be positive: " + limit);
+		}
+		this.limit = limit;
+	}
+
+	/**
+	 * Start a span in the current thread. Must be closed in the same thread.
+	 */
+	public Span begin(String name) {
+		return new Span(this, name);
+	}
+
+	/**
+	 * Name the current thread in the trace, for example after the reader.
+	 */
+	public void setThreadName(String name) {
+		synchronized (spans) {
+			threads.put(Thread.currentThread().getId(), name);
+		}
+	}
+
+	public int size() {
+		synchronized (spans) {
+			return spans.size();
+		}
+	}
+
+	public long dropped() {
+		synchronized (spans) {
+			return dropped;
+		}
+	}
+
+	private void add(Span s) {
+		synchronized (spans) {
+			if (spans.size() == limit) {
+				spans.removeFirst();
+				dropped++;
+			}
+			spans.add(s);
+		}
+	}
+
+	public static final class Span implements AutoCloseable {
+		private final GPTrace trace;
+		private final String name;
+		private final long tid;
+		private final long begin;
+		private long end = -1;
+		private Map<String, Object> args = null;
+
+		private Span(GPTrace trace, String name) {
+			this.trace = trace;
+			this.name = name;
+			this.tid = trace == null ? 0 : Thread.currentThread().getId();
+			this.begin = trace == null ? 0 : System.nanoTime();
+		}
+
+		/**
+		 * Add an attribute. The value is converted to a string when written.
+		 */
+		public Span set(String key, Object value) {
+			if (trace != null) {
+				if (args == null) {
+					args = new LinkedHashMap<String, Object>();
+				}
+				args.put(key, value);
+			}
+			return this;
+		}
+
+		// Without boxing when tracing is off
+		public Span set(String key, long value) {
+			return trace == null ? this : set(key, Long.valueOf(value));
+		}
+
+		@Override
+		public void close() {
+			if (trace != null && end < 0) {
+				end = System.nanoTime();
+				trace.add(this);
+			}
+		}
+	}
+
+	/**
+	 * Write all kept closed spans to {@code f}, replacing it atomically.
+	 */
+	public void write(File f) throws IOException {
+		File tmp = new File(f.getAbsoluteFile().getParentFile(), f.getName() + ".tmp");
+		try (PrintWriter w = new PrintWriter(new OutputStreamWriter(new FileOutputStream(tmp), StandardCharsets.UTF_8))) {
+			write(w);
+		}
+		Files.move(tmp.toPath(), f.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	public void write(Writer w) throws IOException {
+		List<Span> all;
+		Map<Long, String> names;
+		long lost;
+		synchronized (spans) {
+			all = new ArrayList<Span>(spans);
+			names = new LinkedHashMap<Long, String>(threads);
+			lost = dropped;
+		}
+		w.write("{\"displayTimeUnit\": \"ms\", \"otherData\": {\"dropped\": " + lost + "}, \"traceEvents\": [");
+		String sep = "\n";
+		for (Map.Entry<Long, String> e: names.entrySet()) {
+			w.write(sep);
+			sep = ",\n";
+			w.write("{\"ph\": \"M\", \"name\": \"thread_name\", \"pid\": 1, \"tid\": " + e.getKey() + ", \"args\": {\"name\": " + quote(e.getValue()) + "}}");
+		}
+		for (Span s: all) {
+			w.write(sep);
+			sep = ",\n";
+			StringBuilder sb = new StringBuilder();
+			sb.append("{\"ph\": \"X\", \"name\": ").append(quote(s.name));
+			sb.append(", \"cat\": \"gp\", \"pid\": 1, \"tid\": ").append(s.tid);
+			sb.append(", \"ts\": ").append(micros(s.begin - start));
+			sb.append(", \"dur\": ").append(micros(s.end - s.begin));
+			if (s.args != null) {
+				sb.append(", \"args\": {");
+				String asep = "";
+				for (Map.Entry<String, Object> a: s.args.entrySet()) {
+					sb.append(asep).append(quote(a.getKey())).append(": ");
+					asep = ", ";
+					Object v = a.getValue();
+					if (v instanceof Number || v instanceof Boolean) {
+						sb.append(v);
+					} else {
+						sb.append(quote(String.valueOf(v)));
+					}
+				}
+				sb.append("}");
+			}
+			sb.append("}");
+			w.write(sb.toString());
+		}
+		w.write("\n]}\n");
+	}
+
+	// Microseconds with nanosecond precision
+	private static String micros(long nanos) {
+		return String.format("%d.%03d", nanos / 1000, nanos % 1000);
+	}
+
+	private static String quote(String s) {
+		StringBuilder sb = new StringBuilder("\"");
+		for (char c: s.toCharArray()) {
+			if (c == '"' || c == '\\') {
+				sb.append('\\').append(c);
+			} else if (c < 0x20) {
+				sb.append(String.format("\\u%04x", (int) c));
+			} else {
+				sb.append(c);
+			}
+		}
+		return sb.append('"').toString();
+	}
+}
@@ -29,28 +29,29 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.PrintStream;
-import java.security.InvalidAlgorithmParameterException;
-import java.security.InvalidKeyException;
-import java.security.NoSuchAlgorithmException;
+import java.nio.ByteBuffer;
 import java.security.SecureRandom;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.EnumSet;
+import java.util.Iterator;
 import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
 
-import javax.crypto.BadPaddingException;
-import javax.crypto.Cipher;
-import javax.crypto.IllegalBlockSizeException;
-import javax.crypto.NoSuchPaddingException;
-import javax.crypto.spec.IvParameterSpec;
 import javax.smartcardio.CardChannel;
 import javax.smartcardio.CardException;
 import javax.smartcardio.CommandAPDU;
 import javax.smartcardio.ResponseAPDU;
 
+import pro.javacard.gp.AIDRegistry.Scope;
+import pro.javacard.gp.ApduMetrics.Phase;
 import pro.javacard.gp.GPData.KeyType;
 import pro.javacard.gp.GPKeySet.Diversification;
 import pro.javacard.gp.GPKeySet.GPKey;
 import pro.javacard.gp.GPKeySet.GPKey.Type;
+import pro.javacard.gp.GPTrace.Span;
 import apdu4j.HexUtils;
 import apdu4j.ISO7816;
 
@@ -116,8 +117,25 @@ public class GlobalPlatform {
 	private byte[] cplc = null;
 	private AIDRegistry registry = null;
 	private boolean dirty = true; // True if registry is dirty.
+	// Kinds of entries read into the registry
+	private final EnumSet<Scope> fetched = EnumSet.noneOf(Scope.class);
+	// GET STATUS response format, tagged until the card rejects it
+	private boolean taggedStatus = true;
+	// GET STATUS search criteria matching all AIDs
+	private static final byte[] ALL_AIDS = new byte[] { 0x4F, 0x00 };
 	private PrintStream verboseTo = null;
 	protected boolean strict = true;
+	// Number of LOAD commands wrapped ahead of the card, 0 to disable pipelining
+	private int loadPipelineDepth = 0;
+	// Reused for all secure channel responses of the session
+	private final byte[] responseBytes = new byte[65536 + 2];
+	private final ByteBuffer responseBuffer = ByteBuffer.wrap(responseBytes);
+	// Last status word only response, they are immutable and repeat
+	private ResponseAPDU lastStatus = null;
+	// Timing of APDU-s, null if not collected
+	private ApduMetrics metrics = null;
+	// Spans of operations, null if not traced
+	private GPTrace trace = null;
 
 
 	/**
@@ -166,10 +184,41 @@ public class GlobalPlatform {
 		verboseTo.println(s);
 	}
 
+	/**
+	 * Collect timing and sizes of all APDU-s of this session into {@code metrics}, null to stop.
+	 */
+	public void setMetrics(ApduMetrics metrics) {
+		this.metrics = metrics;
+	}
+
+	/**
+	 * Record spans of the operations of this session into {@code trace}, null to stop.
+	 */
+	public void setTrace(GPTrace trace) {
+		this.trace = trace;
+	}
+
+	// A new span or the span that does nothing
+	Span span(String name) {
+		return trace == null ? GPTrace.NONE : trace.begin(name);
+	}
+
 	public void setStrict(boolean strict) {
 		this.strict = strict;
 	}
 
+	/**
+	 * Wrap up to {@code depth} LOAD commands in a background thread while
+	 * the card is processing the current one. 0 disables pipelining.
+	 * Not used with R-MAC.
+	 */
+	public void setLoadPipelineDepth(int depth) {
+		if (depth < 0) {
+			throw new IllegalArgumentException("Pipeline depth can not be negative");
+		}
+		this.loadPipelineDepth = depth;
+	}
+
 	public void imFeelingLucky() throws CardException, GPException {
 		select(null); // auto-detect ISD AID
 		GPKeySet ks = new GPKeySet(GPData.defaultKey);
@@ -193,6 +242,12 @@ public class GlobalPlatform {
 		return CLA_GP;
 	}
 	public boolean select(AID sdAID) throws GPException, CardException {
+		try (Span span = span("select")) {
+			return select(sdAID, span);
+		}
+	}
+
+	private boolean select(AID sdAID, Span span) throws GPException, CardException {
 		// Try to select ISD without giving the sdAID
 		CommandAPDU command = null;
 		if (sdAID == null ) {
@@ -200,13 +255,13 @@ public class GlobalPlatform {
 		} else {
 			command = new CommandAPDU(ISO7816.CLA_ISO7816, ISO7816.INS_SELECT, 0x04, 0x00, sdAID.getBytes(), 256);
 		}
-		ResponseAPDU resp = channel.transmit(command);
+		ResponseAPDU resp = raw_transmit(command);
 
 		// Unfused JCOP replies with 0x6A82 to everything
 		if (sdAID == null && resp.getSW() == 0x6A82) {
 			byte [] identify_aid = HexUtils.decodeHexString("A000000167413000FF");
 			CommandAPDU identify = new CommandAPDU(ISO7816.CLA_ISO7816, ISO7816.INS_SELECT, 0x04, 0x00, identify_aid, 256);
-			ResponseAPDU identify_resp = channel.transmit(identify);
+			ResponseAPDU identify_resp = raw_transmit(identify);
 			byte[] identify_data = identify_resp.getData();
 			if (identify_data.length > 15) {
 				if (identify_data[14] == 0x00) {
@@ -223,10 +278,15 @@ public class GlobalPlatform {
 			byte[] fci = resp.getData();
 
 			// Skip template information and find tag 0x84
-			short aid_offset = TLVUtils.findTag(fci, TLVUtils.skipTagAndLength(fci, (short) 0, (byte) 0x6F), (byte) 0x84);
-			int aid_length = TLVUtils.getTagLength(fci, aid_offset);
-
-			AID detectedAID = new AID(fci, aid_offset + 2, aid_length);
+			TLVReader tlv = new TLVReader(fci);
+			try {
+				if (!tlv.find(0x6F) || !tlv.enter().find(0x84)) {
+					throw new GPException("No SD AID in FCI: " + HexUtils.encodeHexString(fci));
+				}
+			} catch (IllegalArgumentException e) {
+				throw new GPException("Invalid FCI: " + e.getMessage());
+			}
+			AID detectedAID = new AID(fci, tlv.valueOffset(), tlv.length());
 			if (sdAID == null) {
 				verbose("Auto-detected ISD AID: " + detectedAID);
 			}
@@ -234,6 +294,7 @@ public class GlobalPlatform {
 				printStrictWarning("SD AID in FCI does not match the requested AID!");
 			}
 			this.sdAID = sdAID == null ? detectedAID : sdAID;
+			span.set("aid", this.sdAID);
 			return true;
 			// TODO: parse the maximum command size as well and use with defaultLoadSize
 		}
@@ -267,11 +328,11 @@ public class GlobalPlatform {
 			resp = always_transmit(command);
 		}
 		if (resp.getSW() == ISO7816.SW_NO_ERROR) {
-			return GPData.get_key_template_list(resp.getData(), SHORT_0);
+			return GPData.get_key_template_list(resp.getData(), 0);
 		} else {
 			verbose("GET DATA(Key Information Template) not supported");
 		}
-		return GPData.get_key_template_list(null, SHORT_0);
+		return GPData.get_key_template_list(null, 0);
 	}
 
 	public byte[] fetchCardData() throws CardException, GPException {
@@ -299,7 +360,7 @@ public class GlobalPlatform {
 
 		// Issuer Identification Number (IIN)
 		CommandAPDU command = new CommandAPDU(CLA_GP, ISO7816.INS_GET_DATA, 0x00, 0x42, 256);
-		ResponseAPDU resp = channel.transmit(command);
+		ResponseAPDU resp = raw_transmit(command);
 		if (resp.getSW() == 0x9000) {
 			out.println("IIN " + HexUtils.encodeHexString(resp.getData()));
 		} else {
@@ -308,7 +369,7 @@ public class GlobalPlatform {
 
 		// Card Image Number (CIN)
 		command = new CommandAPDU(CLA_GP, ISO7816.INS_GET_DATA, 0x00, 0x45, 256);
-		resp = channel.transmit(command);
+		resp = raw_transmit(command);
 		if (resp.getSW() == 0x9000) {
 			out.println("CIN " + HexUtils.encodeHexString(resp.getData()));
 		} else {
@@ -317,11 +378,10 @@ public class GlobalPlatform {
 
 		// Sequence Counter of the default Key Version Number
 		command = new CommandAPDU(CLA_GP, ISO7816.INS_GET_DATA, 0x00, 0xC1, 256);
-		resp = channel.transmit(command);
-		if (resp.getSW() == 0x9000) {
-			byte [] ssc = resp.getData();
-			TLVUtils.expectTag(ssc, SHORT_0, (byte) 0xC1);
-			out.println("SSC " + HexUtils.encodeHexString(TLVUtils.getTLVValueAsBytes(ssc, SHORT_0)));
+		resp = raw_transmit(command);
+		byte[] ssc = resp.getSW() == 0x9000 ? sequenceCounter(resp.getData()) : null;
+		if (ssc != null) {
+			out.println("SSC " + HexUtils.encodeHexString(ssc));
 		} else {
 			out.println("GET DATA(SSC) not supported");
 		}
@@ -345,6 +405,39 @@ public class GlobalPlatform {
 		return null;
 	}
 
+	/**
+	 * Sequence counter of the default key version, with GET DATA(C1).
+	 *
+	 * @return the 2 byte counter or null if not supported
+	 */
+	public byte[] fetchSequenceCounter() throws CardException, GPException {
+		CommandAPDU command = new CommandAPDU(CLA_GP, ISO7816.INS_GET_DATA, 0x00, 0xC1, 256);
+		ResponseAPDU resp = raw_transmit(command);
+		if (resp.getSW() != ISO7816.SW_NO_ERROR) {
+			verbose("GET DATA(SSC) returned SW: " + GPUtils.swToString(resp.getSW()));
+			return null;
+		}
+		byte[] ssc = sequenceCounter(resp.getData());
+		if (ssc == null) {
+			verbose("GET DATA(SSC) returned " + HexUtils.encodeHexString(resp.getData()));
+		}
+		return ssc;
+	}
+
+	// The value of C1, null if not there
+	private static byte[] sequenceCounter(byte[] ssc) {
+		// Some cards return the value without the tag
+		if (ssc.length == 2) {
+			return ssc;
+		}
+		try {
+			TLVReader tlv = new TLVReader(ssc);
+			return tlv.find(0xC1) ? tlv.value() : null;
+		} catch (IllegalArgumentException e) {
+			return null;
+		}
+	}
+
 	public byte[] getCPLC() throws CardException, GPException {
 		if (cplc == null)
 			cplc = fetchCPLC();
@@ -361,6 +454,13 @@ public class GlobalPlatform {
 	 */
 	public void openSecureChannel(GPKeySet staticKeys, byte[] host_challenge, int scpVersion, EnumSet<APDUMode> securityLevel)
 			throws CardException, GPException {
+		try (Span span = span("openSecureChannel")) {
+			openSecureChannel(staticKeys, host_challenge, scpVersion, securityLevel, span);
+		}
+	}
+
+	private void openSecureChannel(GPKeySet staticKeys, byte[] host_challenge, int scpVersion, EnumSet<APDUMode> securityLevel, Span span)
+			throws CardException, GPException {
 
 		if (sdAID == null) {
 			throw new IllegalStateException("No selected ISD!");
@@ -384,9 +484,10 @@ public class GlobalPlatform {
 		// P1 key version (SCP1)
 		// P2 either key ID (SCP01) or 0 (SCP2)
 		// TODO: use it here for KeyID?
+		Span phase = span("INITIALIZE UPDATE");
 		CommandAPDU initUpdate = new CommandAPDU(CLA_GP, INS_INITIALIZE_UPDATE, staticKeys.getKeyVersion(), staticKeys.getKeyID(), host_challenge, 256);
 
-		ResponseAPDU response = channel.transmit(initUpdate);
+		ResponseAPDU response = raw_transmit(initUpdate);
 		int sw = response.getSW();
 
 		// Detect and report locked cards in a more sensible way.
@@ -412,12 +513,14 @@ public class GlobalPlatform {
 		// Get major SCP version from Key Information field in response
 		scpMajorVersion = update_response[offset];
 		offset++;
+		span.set("scp", scpMajorVersion).set("keyver", keyVersion);
 
 		// get the protocol "i" parameter, if SCP03
 		int scp_i = -1;
 		if (scpMajorVersion == 3) {
 			scp_i = update_response[offset];
 			offset++;
+			span.set("i", scp_i);
 		}
 
 		// FIXME: SCP02 has 2 byte sequence + 6 bytes card challenge but the challenge is discarded.
@@ -427,6 +530,7 @@ public class GlobalPlatform {
 		// get card cryptogram
 		byte card_cryptogram[] = Arrays.copyOfRange(update_response, offset, offset + 8);
 		offset += card_cryptogram.length;
+		phase.close();
 
 		verbose("Host challenge: " + HexUtils.encodeHexString(host_challenge));
 		verbose("Card challenge: " + HexUtils.encodeHexString(card_challenge));
@@ -471,8 +575,10 @@ public class GlobalPlatform {
 		// Response processed. Derive keys.
 		// Diversify if required
 		if (staticKeys.suggestedDiversification != Diversification.NONE) {
+			phase = span("diversify").set("method", staticKeys.suggestedDiversification);
 			staticKeys.diversify(diversification_data, staticKeys.suggestedDiversification, scpMajorVersion);
 			verbose("Diversififed master keys: " + staticKeys);
+			phase.close();
 		}
 		// Check that SCP03 would be using AES keys
 		if (scpMajorVersion == 3) {
@@ -484,6 +590,7 @@ public class GlobalPlatform {
 		}
 
 		// Derive session keys
+		phase = span("derive session keys");
 		byte [] seq = null;
 		if (scpMajorVersion == 1) {
 			sessionKeys = deriveSessionKeysSCP01(staticKeys, host_challenge, card_challenge);
@@ -494,14 +601,25 @@ public class GlobalPlatform {
 		} else if (scpMajorVersion == 3) {
 			if (update_response.length == 32) {
 				seq = Arrays.copyOfRange(update_response, 29, 32);
+				verbose("Sequence counter: " + HexUtils.encodeHexString(seq));
+				// With a pseudo-random challenge the next session can be computed offline
+				if ((scp_i & 0x10) == 0x10) {
+					if (Arrays.equals(card_challenge, computeCardChallengeSCP03(staticKeys, seq, sdAID))) {
+						verbose("Verified pseudo-random card challenge");
+					} else {
+						verbose("Card challenge is not derived from the sequence counter and " + sdAID);
+					}
+				}
 			}
 			sessionKeys = deriveSessionKeysSCP03(staticKeys, host_challenge, card_challenge);
 		} else {
 			throw new GPException("Don't know how to handle SCP version " + scpMajorVersion);
 		}
 		verbose("Derived session keys: " + sessionKeys);
+		phase.close();
 
 		// Verify card cryptogram
+		phase = span("verify card cryptogram");
 		byte[] my_card_cryptogram = null;
 		byte[] cntx = GPUtils.concatenate(host_challenge, card_challenge);
 		if (scpMajorVersion == 1 || scpMajorVersion == 2) {
@@ -517,14 +635,19 @@ public class GlobalPlatform {
 			verbose("Verified card cryptogram: " + HexUtils.encodeHexString(my_card_cryptogram));
 		}
 
+		phase.close();
+
 		// Calculate host cryptogram and initialize SCP wrapper
+		phase = span("EXTERNAL AUTHENTICATE");
 		byte[] host_cryptogram = null;
+		// Set up the session crypto once, it is used for every wrapped command
+		GPSessionCrypto sessionCrypto = new GPSessionCrypto(sessionKeys, scpMajorVersion);
 		if (scpMajorVersion == 1 || scpMajorVersion == 2) {
 			host_cryptogram = GPCrypto.mac_3des_nulliv(sessionKeys.getKey(KeyType.ENC), GPUtils.concatenate(card_challenge, host_challenge));
-			wrapper = new SCP0102Wrapper(sessionKeys, scpVersion, EnumSet.of(APDUMode.MAC), null, null);
+			wrapper = new SCP0102Wrapper(sessionCrypto, scpVersion, EnumSet.of(APDUMode.MAC), null, null);
 		} else {
 			host_cryptogram = GPCrypto.scp03_kdf(sessionKeys.getKey(KeyType.MAC), (byte) 0x01, cntx, 64);
-			wrapper = new SCP03Wrapper(sessionKeys, scpVersion, EnumSet.of(APDUMode.MAC), null, null);
+			wrapper = new SCP03Wrapper(sessionCrypto, scpVersion, EnumSet.of(APDUMode.MAC), null, null);
 		}
 
 		verbose("Calculated host cryptogram: " + HexUtils.encodeHexString(host_cryptogram));
@@ -532,6 +655,7 @@ public class GlobalPlatform {
 		CommandAPDU externalAuthenticate = new CommandAPDU(CLA_MAC, ISO7816.INS_EXTERNAL_AUTHENTICATE_82, P1, 0, host_cryptogram);
 		response = transmit(externalAuthenticate);
 		check(response, "External authenticate failed");
+		phase.close();
 		wrapper.setSecurityLevel(securityLevel);
 
 		// FIXME: ugly stuff, ugly...
@@ -543,7 +667,64 @@ public class GlobalPlatform {
 		}
 	}
 
-	private GPKeySet deriveSessionKeysSCP01(GPKeySet staticKeys, byte[] host_challenge, byte[] card_challenge) {
+	/**
+	 * Establishes an implicitly initiated SCP02 secure channel (i=0A, 0B, 1A, 1B).
+	 *
+	 * There is no INITIALIZE UPDATE and EXTERNAL AUTHENTICATE: the session
+	 * keys are derived from the sequence counter read with GET DATA and the
+	 * C-MAC chain starts from the MAC over the AID of the selected security
+	 * domain. The first command with a valid C-MAC opens the session on the
+	 * card. Only C-MAC is supported.
+	 *
+	 * @param scpVersion one of SCP_02_0A, SCP_02_0B, SCP_02_1A, SCP_02_1B or SCP_ANY for SCP_02_1A
+	 */
+	public void openImplicitSecureChannel(GPKeySet staticKeys, int scpVersion, EnumSet<APDUMode> securityLevel)
+			throws CardException, GPException {
+		try (Span span = span("openImplicitSecureChannel")) {
+			openImplicitSecureChannel(staticKeys, scpVersion, securityLevel, span);
+		}
+	}
+
+	private void openImplicitSecureChannel(GPKeySet staticKeys, int scpVersion, EnumSet<APDUMode> securityLevel, Span span)
+			throws CardException, GPException {
+
+		if (sdAID == null) {
+			throw new IllegalStateException("No selected ISD!");
+		}
+		if (scpVersion == SCP_ANY || scpVersion == 2) {
+			scpVersion = SCP_02_1A;
+		}
+		if (scpVersion != SCP_02_0A && scpVersion != SCP_02_0B && scpVersion != SCP_02_1A && scpVersion != SCP_02_1B) {
+			throw new IllegalArgumentException("SCP version does not support implicit initiation: " + scpVersion);
+		}
+		if (securityLevel.contains(APDUMode.ENC) || securityLevel.contains(APDUMode.RMAC)) {
+			throw new GPException("Implicit secure channel supports only C-MAC");
+		}
+		// Diversification data comes from INITIALIZE UPDATE
+		if (staticKeys.suggestedDiversification != Diversification.NONE) {
+			throw new GPException("Diversification is not possible with an implicit secure channel");
+		}
+
+		byte[] seq = fetchSequenceCounter();
+		if (seq == null || seq.length != 2) {
+			throw new GPException("Could not read the sequence counter for implicit secure channel");
+		}
+		verbose("Sequence counter: " + HexUtils.encodeHexString(seq));
+		span.set("scp", 2).set("i", scpVersion);
+
+		this.staticKeys = staticKeys;
+		scpMajorVersion = 2;
+		GPKeySet sessionKeys = deriveSessionKeysSCP02(staticKeys, seq, true);
+		verbose("Derived session keys: " + sessionKeys);
+
+		GPSessionCrypto sessionCrypto = new GPSessionCrypto(sessionKeys, scpMajorVersion);
+		// The ICV of the first command is the C-MAC over the AID
+		byte[] icv = sessionCrypto.mac_des_3des(KeyType.MAC, sdAID.getBytes(), new byte[8]);
+		verbose("Implicit ICV: " + HexUtils.encodeHexString(icv));
+		wrapper = new SCP0102Wrapper(sessionCrypto, scpVersion, EnumSet.of(APDUMode.MAC), icv, null);
+	}
+
+	static GPKeySet deriveSessionKeysSCP01(GPKeySet staticKeys, byte[] host_challenge, byte[] card_challenge) {
 		GPKeySet sessionKeys = new GPKeySet();
 
 		byte[] derivationData = new byte[16];
@@ -552,87 +733,60 @@ public class GlobalPlatform {
 		System.arraycopy(card_challenge, 0, derivationData, 8, 4);
 		System.arraycopy(host_challenge, 4, derivationData, 12, 4);
 
-		try {
-			Cipher cipher = Cipher.getInstance("DESede/ECB/NoPadding");
-			for (KeyType v: KeyType.values()) {
-				if (v == KeyType.RMAC) // skip RMAC key
-					continue;
-				cipher.init(Cipher.ENCRYPT_MODE, staticKeys.getKeyFor(v));
-				GPKey nk = new GPKey(cipher.doFinal(derivationData), Type.DES3);
-				sessionKeys.setKey(v, nk);
-			}
-			// KEK is the same
-			sessionKeys.setKey(KeyType.KEK, staticKeys.getKey(KeyType.KEK));
-			return sessionKeys;
-		} catch (BadPaddingException e) {
-			throw new RuntimeException("Session keys calculation failed.", e);
-		} catch (NoSuchAlgorithmException e) {
-			throw new RuntimeException("Session keys calculation failed.", e);
-		} catch (NoSuchPaddingException e) {
-			throw new RuntimeException("Session keys calculation failed.", e);
-		} catch (InvalidKeyException e) {
-			throw new RuntimeException("Session keys calculation failed.", e);
-		} catch (IllegalBlockSizeException e) {
-			throw new RuntimeException("Session keys calculation failed.", e);
-		}
-	}
-
-	private GPKeySet deriveSessionKeysSCP02(GPKeySet staticKeys, byte[] sequence, boolean implicitChannel) {
+		CryptoBackend backend = GPCrypto.getBackend();
+		for (KeyType v: KeyType.values()) {
+			if (v == KeyType.RMAC) // skip RMAC key
+				continue;
+			GPKey nk = new GPKey(backend.encryptECB(Type.DES3, staticKeys.getKey(v).getValue(), derivationData), Type.DES3);
+			sessionKeys.setKey(v, nk);
+		}
+		// KEK is the same
+		sessionKeys.setKey(KeyType.KEK, staticKeys.getKey(KeyType.KEK));
+		return sessionKeys;
+	}
+
+	static GPKeySet deriveSessionKeysSCP02(GPKeySet staticKeys, byte[] sequence, boolean implicitChannel) {
 		GPKeySet sessionKeys = new GPKeySet();
+		CryptoBackend backend = GPCrypto.getBackend();
 
-		try {
-			Cipher cipher = Cipher.getInstance("DESede/CBC/NoPadding");
+		byte[] derivationData = new byte[16];
+		System.arraycopy(sequence, 0, derivationData, 2, 2);
 
-			byte[] derivationData = new byte[16];
-			System.arraycopy(sequence, 0, derivationData, 2, 2);
+		byte[] constantMAC = new byte[] { (byte) 0x01, (byte) 0x01 };
+		System.arraycopy(constantMAC, 0, derivationData, 0, 2);
+		GPKey nk = new GPKey(backend.encryptCBC(Type.DES3, staticKeys.getKey(KeyType.MAC).getValue(), null, derivationData), Type.DES3);
+		sessionKeys.setKey(KeyType.MAC, nk);
 
-			byte[] constantMAC = new byte[] { (byte) 0x01, (byte) 0x01 };
-			System.arraycopy(constantMAC, 0, derivationData, 0, 2);
-			cipher.init(Cipher.ENCRYPT_MODE, staticKeys.getKeyFor(KeyType.MAC), GPCrypto.iv_null_des);
-			GPKey nk = new GPKey(cipher.doFinal(derivationData), Type.DES3);
-			sessionKeys.setKey(KeyType.MAC, nk);
+		// TODO: is this correct? - increment by one for all other than C-MAC
+		if (implicitChannel) {
+			GPCrypto.buffer_increment(derivationData, 2, 2);
+		}
 
-			// TODO: is this correct? - increment by one for all other than C-MAC
-			if (implicitChannel) {
-				TLVUtils.buffer_increment(derivationData, (short)2, (short)2);
-			}
+		byte[] constantRMAC = new byte[] { (byte) 0x01, (byte) 0x02 };
+		System.arraycopy(constantRMAC, 0, derivationData, 0, 2);
+		nk = new GPKey(backend.encryptCBC(Type.DES3, staticKeys.getKey(KeyType.MAC).getValue(), null, derivationData), Type.DES3);
+		sessionKeys.setKey(KeyType.RMAC, nk);
+
+
+		byte[] constantENC = new byte[] { (byte) 0x01, (byte) 0x82 };
+		System.arraycopy(constantENC, 0, derivationData, 0, 2);
+		nk = new GPKey(backend.encryptCBC(Type.DES3, staticKeys.getKey(KeyType.ENC).getValue(), null, derivationData), Type.DES3);
+		sessionKeys.setKey(KeyType.ENC, nk);
+
+		byte[] constantDEK = new byte[] { (byte) 0x01, (byte) 0x81 };
+		System.arraycopy(constantDEK, 0, derivationData, 0, 2);
+		nk = new GPKey(backend.encryptCBC(Type.DES3, staticKeys.getKey(KeyType.KEK).getValue(), null, derivationData), Type.DES3);
+		sessionKeys.setKey(KeyType.KEK, nk);
+		return sessionKeys;
+	}
 
-			byte[] constantRMAC = new byte[] { (byte) 0x01, (byte) 0x02 };
-			System.arraycopy(constantRMAC, 0, derivationData, 0, 2);
-			cipher.init(Cipher.ENCRYPT_MODE, staticKeys.getKeyFor(KeyType.MAC), GPCrypto.iv_null_des);
-			nk = new GPKey(cipher.doFinal(derivationData), Type.DES3);
-			sessionKeys.setKey(KeyType.RMAC, nk);
-
-
-			byte[] constantENC = new byte[] { (byte) 0x01, (byte) 0x82 };
-			System.arraycopy(constantENC, 0, derivationData, 0, 2);
-			cipher.init(Cipher.ENCRYPT_MODE, staticKeys.getKeyFor(KeyType.ENC), GPCrypto.iv_null_des);
-			nk = new GPKey(cipher.doFinal(derivationData), Type.DES3);
-			sessionKeys.setKey(KeyType.ENC, nk);
-
-			byte[] constantDEK = new byte[] { (byte) 0x01, (byte) 0x81 };
-			System.arraycopy(constantDEK, 0, derivationData, 0, 2);
-			cipher.init(Cipher.ENCRYPT_MODE, staticKeys.getKeyFor(KeyType.KEK), GPCrypto.iv_null_des);
-			nk = new GPKey(cipher.doFinal(derivationData), Type.DES3);
-			sessionKeys.setKey(KeyType.KEK, nk);
-			return sessionKeys;
-
-		} catch (BadPaddingException e) {
-			throw new RuntimeException("Session keys calculation failed.", e);
-		} catch (NoSuchAlgorithmException e) {
-			throw new RuntimeException("Session keys calculation failed.", e);
-		} catch (NoSuchPaddingException e) {
-			throw new RuntimeException("Session keys calculation failed.", e);
-		} catch (InvalidKeyException e) {
-			throw new RuntimeException("Session keys calculation failed.", e);
-		} catch (IllegalBlockSizeException e) {
-			throw new RuntimeException("Session keys calculation failed.", e);
-		} catch (InvalidAlgorithmParameterException e) {
-			throw new RuntimeException("Session keys calculation failed.", e);
-		}
-	}
-
-	private GPKeySet deriveSessionKeysSCP03(GPKeySet staticKeys, byte[] host_challenge, byte[] card_challenge) {
+	// GP 2.2 Amendment D 6.2.2.1: pseudo-random card challenge, from the sequence counter and SD AID
+	static byte[] computeCardChallengeSCP03(GPKeySet staticKeys, byte[] seq, AID sdAID) {
+		byte[] context = GPUtils.concatenate(seq, sdAID.getBytes());
+		return GPCrypto.scp03_kdf(staticKeys.getKey(KeyType.ENC), (byte) 0x02, context, 64);
+	}
+
+	static GPKeySet deriveSessionKeysSCP03(GPKeySet staticKeys, byte[] host_challenge, byte[] card_challenge) {
 		GPKeySet sessionKeys = new GPKeySet();
 		final byte mac_constant = 0x06;
 		final byte enc_constant = 0x04;
@@ -657,25 +811,161 @@ public class GlobalPlatform {
 
 
 	public ResponseAPDU transmit(CommandAPDU command) throws CardException, GPException {
-		CommandAPDU wc = wrapper.wrap(command);
-		ResponseAPDU wr = channel.transmit(wc);
+		if (metrics != null) {
+			return measured_transmit(command);
+		}
+		// The wrapped command goes to the reader straight from the session buffer
+		ByteBuffer wc = wrapper.wrapToBuffer(command);
+		responseBuffer.clear();
+		int len = channel.transmit(wc, responseBuffer);
+		ResponseAPDU wr = received(len);
 		return wrapper.unwrap(wr);
 	}
 
+	// Response of len bytes in the response buffer
+	private ResponseAPDU received(int len) {
+		if (len == 2 && lastStatus != null && lastStatus.getSW1() == (responseBytes[0] & 0xFF) && lastStatus.getSW2() == (responseBytes[1] & 0xFF)) {
+			return lastStatus;
+		}
+		ResponseAPDU r = new ResponseAPDU(Arrays.copyOf(responseBytes, len));
+		if (len == 2) {
+			lastStatus = r;
+		}
+		return r;
+	}
+
+	// Same as transmit, with every phase measured
+	private ResponseAPDU measured_transmit(CommandAPDU command) throws CardException, GPException {
+		int ins = command.getINS();
+		long t0 = System.nanoTime();
+		ByteBuffer wc = wrapper.wrapToBuffer(command);
+		long t1 = System.nanoTime();
+		int sent = wc.remaining();
+		metrics.record(Phase.WRAP, ins, command.getBytes().length, sent, t1 - t0);
+		responseBuffer.clear();
+		int len = channel.transmit(wc, responseBuffer);
+		long t2 = System.nanoTime();
+		metrics.record(Phase.TRANSMIT, ins, sent, len, t2 - t1);
+		ResponseAPDU wr = received(len);
+		ResponseAPDU r = wrapper.unwrap(wr);
+		metrics.record(Phase.UNWRAP, ins, len, r.getBytes().length, System.nanoTime() - t2);
+		return r;
+	}
+
 	private ResponseAPDU always_transmit(CommandAPDU command) throws CardException, GPException {
 		if (wrapper == null)
-			return channel.transmit(command);
+			return raw_transmit(command);
 		else
 			return transmit(command);
 	}
 
+	// Send a command as is, outside of the secure channel
+	private ResponseAPDU raw_transmit(CommandAPDU command) throws CardException {
+		if (metrics == null) {
+			return channel.transmit(command);
+		}
+		long t = System.nanoTime();
+		ResponseAPDU r = channel.transmit(command);
+		metrics.record(Phase.TRANSMIT, command.getINS(), command.getBytes().length, r.getBytes().length, System.nanoTime() - t);
+		return r;
+	}
+
+
+	/**
+	 * Registry with the given kinds of entries read from the card, all of
+	 * them if none are given. Each kind is read only when first needed.
+	 */
+	public AIDRegistry getRegistry(Scope... scopes) throws GPException, CardException {
+		EnumSet<Scope> missing = missingScopes(scopes);
+		if (!missing.isEmpty()) {
+			fetched.addAll(getStatus(registry, missing, ALL_AIDS));
+			registry.sort();
+		}
+		return registry;
+	}
 
-	public AIDRegistry getRegistry() throws GPException, CardException{
+	/**
+	 * Entries with AIDs starting with {@code prefix}, of the given kinds or
+	 * all kinds if none are given. Kinds of entries that have not been read
+	 * are looked up with GET STATUS for the prefix, and the entries found
+	 * are added to the registry.
+	 */
+	public List<AIDRegistryEntry> lookupPrefix(AID prefix, Scope... scopes) throws GPException, CardException {
+		EnumSet<Scope> missing = missingScopes(scopes);
+		if (!missing.isEmpty()) {
+			byte[] filter = new byte[2 + prefix.getLength()];
+			filter[0] = 0x4F;
+			filter[1] = (byte) prefix.getLength();
+			System.arraycopy(prefix.getBytes(), 0, filter, 2, prefix.getLength());
+			getStatus(registry, missing, filter);
+			registry.sort();
+		}
+		return registry.withPrefix(prefix, scopes.length == 0 ? EnumSet.allOf(Scope.class) : EnumSet.copyOf(Arrays.asList(scopes)));
+	}
+
+	/**
+	 * Entry with the AID, of the given kinds or all kinds if none are given.
+	 *
+	 * @return the entry or null if not on the card
+	 * @see #lookupPrefix(AID, Scope...)
+	 */
+	public AIDRegistryEntry lookup(AID aid, Scope... scopes) throws GPException, CardException {
+		// Entries found before are kept up to date, only misses need the card
+		missingScopes(scopes);
+		AIDRegistryEntry e = registry.get(aid, scopes.length == 0 ? EnumSet.allOf(Scope.class) : EnumSet.copyOf(Arrays.asList(scopes)));
+		if (e != null) {
+			return e;
+		}
+		for (AIDRegistryEntry f : lookupPrefix(aid, scopes)) {
+			if (f.getAID().equals(aid)) {
+				return f;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Returns true if the package of the CAP file is on the card with the
+	 * same version. Packages of cards that do not report versions never are.
+	 */
+	public boolean isLoaded(CapFile cap) throws GPException, CardException {
+		AIDRegistryEntry e = lookup(cap.getPackageAID(), Scope.LOAD_FILES);
+		return e != null && Arrays.equals(e.getVersion(), cap.getPackageVersion());
+	}
+
+	// Kinds of entries that have not been read, of the given kinds or all
+	private EnumSet<Scope> missingScopes(Scope... scopes) {
 		if (dirty) {
-			registry = getStatus();
+			registry = new AIDRegistry();
+			fetched.clear();
 			dirty = false;
 		}
-		return registry;
+		EnumSet<Scope> missing = scopes.length == 0 ? EnumSet.allOf(Scope.class) : EnumSet.copyOf(Arrays.asList(scopes));
+		missing.removeAll(fetched);
+		return missing;
+	}
+
+	/**
+	 * Read the registry from the card again, replacing the one that has
+	 * been kept up to date with the changes of commands sent since.
+	 *
+	 * @return true if the registry kept up to date matched the card
+	 */
+	public boolean verifyRegistry() throws GPException, CardException {
+		AIDRegistry fresh = new AIDRegistry();
+		EnumSet<Scope> scopes = getStatus(fresh, EnumSet.allOf(Scope.class), ALL_AIDS);
+		boolean same = true;
+		if (registry != null && !dirty) {
+			for (String d : registry.diff(fresh, fetched)) {
+				verbose("Registry does not match the card: " + d);
+				same = false;
+			}
+		}
+		registry = fresh;
+		fetched.clear();
+		fetched.addAll(scopes);
+		dirty = false;
+		return same;
 	}
 
 	public int getSCPVersion() {
@@ -688,12 +978,23 @@ public class GlobalPlatform {
 
 	private void loadCapFile(CapFile cap, boolean includeDebug, boolean separateComponents, boolean loadParam, boolean useHash)
 			throws GPException, CardException {
+		try (Span span = span("loadCapFile")) {
+			loadCapFile(cap, includeDebug, separateComponents, loadParam, useHash, span);
+		}
+		if (registry != null && !dirty) {
+			registry.loaded(cap.getPackageAID(), cap.getAppletAIDs(), taggedStatus ? cap.getPackageVersion() : null);
+		}
+	}
+
+	private void loadCapFile(CapFile cap, boolean includeDebug, boolean separateComponents, boolean loadParam, boolean useHash, Span span)
+			throws GPException, CardException {
 
-		if (getRegistry().allAIDs().contains(cap.getPackageAID())) {
+		if (lookup(cap.getPackageAID(), Scope.LOAD_FILES) != null) {
 			printStrictWarning("Package with AID " + cap.getPackageAID() + " is already present on card");
 		}
 		byte[] hash = useHash ? cap.getLoadFileDataHash(includeDebug) : new byte[0];
 		int len = cap.getCodeLength(includeDebug);
+		span.set("package", cap.getPackageAID()).set("size", len);
 		// FIXME: parameters are optional for load
 		byte[] loadParams = loadParam ? new byte[] { (byte) 0xEF, 0x04, (byte) 0xC6, 0x02, (byte) ((len & 0xFF00) >> 8),
 				(byte) (len & 0xFF) } : new byte[0];
@@ -721,12 +1022,130 @@ public class GlobalPlatform {
 		ResponseAPDU response = transmit(installForLoad);
 		check(response, "Install for Load failed");
 
-		List<byte[]> blocks = cap.getLoadBlocks(includeDebug, separateComponents, wrapper.getBlockSize());
-		for (int i = 0; i < blocks.size(); i++) {
-			CommandAPDU load = new CommandAPDU(CLA_GP, INS_LOAD, (i == (blocks.size() - 1)) ? 0x80 : 0x00, (byte) i, blocks.get(i));
-			response = transmit(load);
+		// Blocks are read from the CAP as they are sent
+		Iterator<byte[]> blocks = cap.getLoadBlockIterator(includeDebug, separateComponents, wrapper.getBlockSize());
+		span.set("blocksize", wrapper.getBlockSize());
+		// R-MAC needs the response of the previous command, so no pipelining
+		if (loadPipelineDepth > 0 && !wrapper.rmac) {
+			span.set("pipeline", loadPipelineDepth);
+			span.set("blocks", loadPipelined(blocks));
+			return;
+		}
+		int i = 0;
+		for (; blocks.hasNext(); i++) {
+			byte[] block = blocks.next();
+			response = transmit(loadCommand(block, i, !blocks.hasNext()));
 			check(response, "LOAD failed");
 		}
+		span.set("blocks", i);
+	}
+
+	private static CommandAPDU loadCommand(byte[] block, int i, boolean last) {
+		return new CommandAPDU(CLA_GP, INS_LOAD, last ? 0x80 : 0x00, (byte) i, block);
+	}
+
+	// A wrapped LOAD command and the wrapper state after wrapping it
+	private static final class WrappedCommand {
+		final byte[] apdu;
+		final byte[][] state;
+		final boolean last;
+		final Exception error;
+
+		WrappedCommand(byte[] apdu, byte[][] state, boolean last, Exception error) {
+			this.apdu = apdu;
+			this.state = state;
+			this.last = last;
+			this.error = error;
+		}
+	}
+
+	/**
+	 * Wrap LOAD commands in a separate thread, up to loadPipelineDepth
+	 * commands ahead of the one being transmitted. The C-MAC chain only
+	 * depends on the previous commands, so it can be computed before the
+	 * card has answered. If a command fails, the commands wrapped after it
+	 * are discarded and the wrapper continues from the failed command.
+	 */
+	private int loadPipelined(final Iterator<byte[]> blocks) throws CardException, GPException {
+		if (!blocks.hasNext()) {
+			return 0;
+		}
+		final BlockingQueue<WrappedCommand> queue = new ArrayBlockingQueue<>(loadPipelineDepth);
+		Thread producer = new Thread("LOAD pipeline") {
+			@Override
+			public void run() {
+				try {
+					// Reading the CAP is also done here, ahead of the card
+					for (int i = 0; blocks.hasNext(); i++) {
+						byte[] block = blocks.next();
+						boolean last = !blocks.hasNext();
+						long t = System.nanoTime();
+						ByteBuffer b = wrapper.wrapToBuffer(loadCommand(block, i, last));
+						byte[] apdu = new byte[b.remaining()];
+						b.get(apdu);
+						if (metrics != null) {
+							metrics.record(Phase.WRAP, INS_LOAD, block.length + 5, apdu.length, System.nanoTime() - t);
+						}
+						queue.put(new WrappedCommand(apdu, wrapper.saveState(), last, null));
+					}
+				} catch (InterruptedException e) {
+					// Pipeline discarded
+				} catch (CardException | RuntimeException e) {
+					try {
+						queue.put(new WrappedCommand(null, null, true, e));
+					} catch (InterruptedException ie) {
+						// Pipeline discarded
+					}
+				}
+			}
+		};
+		producer.setDaemon(true);
+
+		byte[][] state = wrapper.saveState();
+		producer.start();
+		int n = 0;
+		try {
+			WrappedCommand c;
+			do {
+				c = queue.take();
+				if (c.error instanceof CardException) {
+					throw (CardException) c.error;
+				} else if (c.error != null) {
+					throw (RuntimeException) c.error;
+				}
+				// The card continues the chain from this command, whatever the response
+				state = c.state;
+				responseBuffer.clear();
+				long t1 = System.nanoTime();
+				int len = channel.transmit(ByteBuffer.wrap(c.apdu), responseBuffer);
+				long t2 = System.nanoTime();
+				ResponseAPDU response = wrapper.unwrap(received(len));
+				if (metrics != null) {
+					metrics.record(Phase.TRANSMIT, INS_LOAD, c.apdu.length, len, t2 - t1);
+					metrics.record(Phase.UNWRAP, INS_LOAD, len, response.getBytes().length, System.nanoTime() - t2);
+				}
+				check(response, "LOAD failed");
+				n++;
+			} while (!c.last);
+			return n;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new CardException("Interrupted during LOAD", e);
+		} finally {
+			producer.interrupt();
+			boolean interrupted = false;
+			while (producer.isAlive()) {
+				try {
+					producer.join();
+				} catch (InterruptedException e) {
+					interrupted = true;
+				}
+			}
+			if (interrupted) {
+				Thread.currentThread().interrupt();
+			}
+			wrapper.restoreState(state);
+		}
 	}
 
 	/**
@@ -757,13 +1176,33 @@ public class GlobalPlatform {
 	 */
 	public void installAndMakeSelectable(AID packageAID, AID appletAID, AID instanceAID, byte privileges, byte[] installParams,
 			byte[] installToken) throws GPException, CardException {
+		try (Span span = span("installAndMakeSelectable")) {
+			installAndMakeSelectable(packageAID, appletAID, instanceAID, privileges, installParams, installToken, span);
+		}
+	}
+
+	private void installAndMakeSelectable(AID packageAID, AID appletAID, AID instanceAID, byte privileges, byte[] installParams,
+			byte[] installToken, Span span) throws GPException, CardException {
 
 		if (instanceAID == null) {
 			instanceAID = appletAID;
 		}
-		if (getRegistry().allAppletAIDs().contains(instanceAID)) {
+		span.set("package", packageAID).set("applet", appletAID).set("instance", instanceAID);
+		if (lookup(instanceAID, Scope.APPLICATIONS) != null) {
 			printStrictWarning("Applet with instance AID " + instanceAID + " is already present on card");
 		}
+		CommandAPDU install = installCommand(packageAID, appletAID, instanceAID, privileges, installParams, installToken);
+		transmitAndCheck(install, "Install for Install and make selectable failed");
+	}
+
+	/**
+	 * INSTALL [for install and make selectable] command, not wrapped.
+	 * Defaults as in {@link #installAndMakeSelectable}.
+	 */
+	static CommandAPDU installCommand(AID packageAID, AID appletAID, AID instanceAID, byte privileges, byte[] installParams, byte[] installToken) {
+		if (instanceAID == null) {
+			instanceAID = appletAID;
+		}
 		if (installParams == null) {
 			installParams = new byte[] { (byte) 0xC9, 0x00 };
 		}
@@ -792,15 +1231,18 @@ public class GlobalPlatform {
 		} catch (IOException ioe) {
 			throw new RuntimeException(ioe);
 		}
-
-		CommandAPDU install = new CommandAPDU(CLA_GP, INS_INSTALL, 0x0C, 0x00, bo.toByteArray());
-		ResponseAPDU response = transmit(install);
-		check(response, "Install for Install and make selectable failed");
-		dirty = true;
+		return new CommandAPDU(CLA_GP, INS_INSTALL, 0x0C, 0x00, bo.toByteArray());
 	}
 
 
 	public void makeDefaultSelected(AID aid) throws CardException, GPException {
+		transmitAndCheck(makeDefaultCommand(aid), "Install for make selectable failed");
+	}
+
+	/**
+	 * INSTALL [for make selectable] command with the default selected privilege, not wrapped.
+	 */
+	static CommandAPDU makeDefaultCommand(AID aid) {
 		// FIXME: only works for 2.1.1 cards
 		ByteArrayOutputStream bo = new ByteArrayOutputStream();
 		// Only supported privilege.
@@ -817,22 +1259,16 @@ public class GlobalPlatform {
 		} catch (IOException ioe) {
 			throw new RuntimeException(ioe);
 		}
-
-		CommandAPDU install = new CommandAPDU(CLA_GP, INS_INSTALL, 0x08, 0x00, bo.toByteArray());
-		ResponseAPDU response = transmit(install);
-		check(response, "Install for make selectable failed");
-		dirty = true;
+		return new CommandAPDU(CLA_GP, INS_INSTALL, 0x08, 0x00, bo.toByteArray());
 	}
 
 	public void lockUnlockApplet(AID app, boolean lock) throws CardException, GPException {
 		CommandAPDU cmd = new CommandAPDU(CLA_GP, INS_SET_STATUS, 0x40, lock ? 0x80 : 0x00, app.getBytes());
-		ResponseAPDU response = transmit(cmd);
-		check(response, "SET STATUS failed");
-		dirty = true;
+		transmitAndCheck(cmd, "SET STATUS failed");
 	}
 
 	public void uninstallDefaultSelected(boolean deps) throws CardException, GPException {
-		AID def = getRegistry().getDefaultSelectedAID();
+		AID def = getRegistry(Scope.APPLICATIONS).getDefaultSelectedAID();
 		if (def != null) {
 			deleteAID(def, deps); // Can not work, need to locate the executable module
 		} else {
@@ -854,6 +1290,13 @@ public class GlobalPlatform {
 	 *             for low-level communication errors
 	 */
 	public void deleteAID(AID aid, boolean deleteDeps) throws GPException, CardException {
+		transmitAndCheck(deleteCommand(aid, deleteDeps), "Deletion failed");
+	}
+
+	/**
+	 * DELETE command for {@code aid}, not wrapped.
+	 */
+	static CommandAPDU deleteCommand(AID aid, boolean deleteDeps) {
 		ByteArrayOutputStream bo = new ByteArrayOutputStream();
 		try {
 			bo.write(0x4f);
@@ -862,10 +1305,61 @@ public class GlobalPlatform {
 		} catch (IOException ioe) {
 			throw new RuntimeException(ioe);
 		}
-		CommandAPDU delete = new CommandAPDU(CLA_GP, INS_DELETE, 0x00, deleteDeps ? 0x80 : 0x00, bo.toByteArray());
-		ResponseAPDU response = transmit(delete);
-		check(response, "Deletion failed");
-		dirty = true;
+		return new CommandAPDU(CLA_GP, INS_DELETE, 0x00, deleteDeps ? 0x80 : 0x00, bo.toByteArray());
+	}
+
+	/**
+	 * Send a command that changes card content over the secure channel and
+	 * check for 9000. The change is applied to the registry, or if it can
+	 * not be told, the registry is fetched again when next needed.
+	 */
+	void transmitAndCheck(CommandAPDU command, String msg) throws CardException, GPException {
+		ResponseAPDU response = transmit(command);
+		check(response, msg);
+		if (registry == null || dirty || !updateRegistry(registry, command)) {
+			dirty = true;
+		}
+	}
+
+	// Apply the change of a successful command to the registry
+	static boolean updateRegistry(AIDRegistry registry, CommandAPDU command) {
+		byte[] data = command.getData();
+		try {
+			if ((byte) command.getINS() == INS_INSTALL) {
+				// Package, applet and instance AIDs, then privileges
+				int p1 = command.getP1() & 0x7F;
+				int pos = 0;
+				AID[] aids = new AID[3];
+				for (int i = 0; i < aids.length; i++) {
+					int len = data[pos++] & 0xFF;
+					aids[i] = len == 0 ? null : new AID(data, pos, len);
+					pos += len;
+				}
+				int privileges = (data[pos] & 0xFF) == 0 ? 0x00 : data[pos + 1] & 0xFF;
+				if (p1 == 0x02) {
+					// Install for load, the package follows with LOAD
+					return true;
+				} else if ((p1 == 0x0C || p1 == 0x04) && aids[0] != null && aids[2] != null) {
+					return registry.installed(aids[0], aids[2], privileges, p1 == 0x0C);
+				} else if (p1 == 0x08 && aids[2] != null) {
+					return registry.madeSelectable(aids[2], privileges);
+				}
+			} else if ((byte) command.getINS() == INS_DELETE) {
+				TLVReader tlv = new TLVReader(data);
+				if (tlv.find(0x4F)) {
+					return registry.deleted(new AID(data, tlv.valueOffset(), tlv.length()), (command.getP2() & 0x80) == 0x80);
+				}
+			} else if ((byte) command.getINS() == INS_SET_STATUS) {
+				if (command.getP1() == 0x40) {
+					return registry.locked(new AID(data), (command.getP2() & 0x80) == 0x80);
+				} else if (command.getP1() == 0x80) {
+					return registry.cardLifeCycle(command.getP2());
+				}
+			}
+		} catch (IllegalArgumentException | IndexOutOfBoundsException e) {
+			// Not a command that can be told
+		}
+		return false;
 	}
 
 	// FIXME: remove the withCheck parameter, as always true?
@@ -877,15 +1371,12 @@ public class GlobalPlatform {
 				// Length
 				baos.write(16);
 				// Encrypt key with KEK
-				Cipher cipher;
-				cipher = Cipher.getInstance("DESede/ECB/NoPadding");
-				cipher.init(Cipher.ENCRYPT_MODE, kek.getKey());
-				baos.write(cipher.doFinal(key.getValue(), 0, 16));
+				CryptoBackend backend = GPCrypto.getBackend();
+				baos.write(backend.wrapKey(Type.DES3, kek.getValue(), Arrays.copyOf(key.getValue(), 16)));
 				if (withCheck) {
 					// key check value, 3 bytes with new key over 8 null bytes
 					baos.write(3);
-					cipher.init(Cipher.ENCRYPT_MODE, key.getKey());
-					byte check[] = cipher.doFinal(GPCrypto.null_bytes_8);
+					byte check[] = backend.encryptECB(Type.DES3, key.getValue(), GPCrypto.null_bytes_8);
 					baos.write(check, 0, 3);
 				} else {
 					baos.write(0);
@@ -906,25 +1397,22 @@ public class GlobalPlatform {
 			return baos.toByteArray();
 		} catch (IOException e) {
 			throw new RuntimeException(e);
-		} catch (InvalidKeyException e) {
-			throw new RuntimeException(e);
-		} catch (IllegalBlockSizeException e) {
-			throw new RuntimeException(e);
-		} catch (BadPaddingException e) {
-			throw new RuntimeException(e);
-		} catch (NoSuchAlgorithmException e) {
-			throw new RuntimeException(e);
-		} catch (NoSuchPaddingException e) {
-			throw new RuntimeException(e);
 		}
 	}
 
 
 	public void putKeys(List<GPKeySet.GPKey> keys, boolean replace) throws GPException, CardException {
+		try (Span span = span("putKeys")) {
+			putKeys(keys, replace, span);
+		}
+	}
+
+	private void putKeys(List<GPKeySet.GPKey> keys, boolean replace, Span span) throws GPException, CardException {
 		if (keys.size() < 1 || keys.size() > 3) {
 			throw new IllegalArgumentException("Can add 1 or up to 3 keys at a time");
 		}
 
+		span.set("keyver", keys.get(0).getVersion()).set("keys", keys.size()).set("replace", replace);
 		// Debug
 		verbose("Replace: " + replace);
 		for (GPKey k: keys) {
@@ -994,97 +1482,263 @@ public class GlobalPlatform {
 	}
 
 
-	private byte[] getConcatenatedStatus(int p1, byte[] data) throws CardException, GPException {
-		CommandAPDU getStatus = new CommandAPDU(CLA_GP, INS_GET_STATUS, p1, 0x00, data, 256);
-		ResponseAPDU response = transmit(getStatus);
-		int sw = response.getSW();
-		if ((sw != ISO7816.SW_NO_ERROR) && (sw != 0x6310)) {
-			return response.getData(); // Should be empty
+	/**
+	 * Entries of GET STATUS for the given kinds of entries, read one
+	 * response at a time as the entries are needed. Only the entries of
+	 * the last response are kept.
+	 */
+	private final class StatusReader {
+		// Kinds of entries that are read
+		final EnumSet<Scope> read;
+		private final Iterator<Scope> scopes;
+		private final byte[] filter;
+		private final List<AIDRegistryEntry> page = new ArrayList<>();
+		private int index = 0;
+		private Scope scope = null;
+		private int p2 = 0x00;
+		private boolean more = false;
+
+		StatusReader(EnumSet<Scope> scopes, byte[] filter) {
+			read = EnumSet.copyOf(scopes);
+			// Load files are listed with the modules too
+			if (read.contains(Scope.LOAD_FILES_AND_MODULES)) {
+				read.add(Scope.LOAD_FILES);
+				scopes = EnumSet.copyOf(scopes);
+				scopes.remove(Scope.LOAD_FILES);
+			}
+			// Order is important here, so that ExM info would get to the set later
+			this.scopes = scopes.iterator();
+			this.filter = filter;
+		}
+
+		/**
+		 * Next entry, reading the next response when needed.
+		 *
+		 * @return the entry or null after the last one
+		 */
+		AIDRegistryEntry next() throws CardException, GPException {
+			while (index == page.size()) {
+				page.clear();
+				index = 0;
+				ResponseAPDU response;
+				if (more) {
+					response = transmit(new CommandAPDU(CLA_GP, INS_GET_STATUS, scope.p1, p2 | 0x01, filter, 256));
+					if (!listed(response)) {
+						throw new CardException("Get Status failed, SW: " + GPUtils.swToString(response.getSW()));
+					}
+				} else if (scopes.hasNext()) {
+					scope = scopes.next();
+					response = first(scope);
+					if (response == null && scope == Scope.LOAD_FILES_AND_MODULES) {
+						// Card does not list modules
+						scope = Scope.LOAD_FILES;
+						response = first(scope);
+					}
+					if (response == null) {
+						continue;
+					}
+				} else {
+					return null;
+				}
+				more = response.getSW() == 0x6310;
+				if (p2 == 0x02) {
+					parseTaggedStatus(scope.p1, response.getData(), page);
+				} else {
+					parseStatus(scope.p1, response.getData(), page);
+				}
+			}
+			return page.get(index++);
+		}
+
+		// First response, in the tagged format until the card rejects it.
+		// Null if the card does not list the kind of entries.
+		private ResponseAPDU first(Scope scope) throws CardException, GPException {
+			p2 = taggedStatus ? 0x02 : 0x00;
+			ResponseAPDU response = transmit(new CommandAPDU(CLA_GP, INS_GET_STATUS, scope.p1, p2, filter, 256));
+			if (listed(response)) {
+				return response;
+			} else if (p2 == 0x00) {
+				return null;
+			}
+			// Either the format or the kind of entries is not supported
+			p2 = 0x00;
+			response = transmit(new CommandAPDU(CLA_GP, INS_GET_STATUS, scope.p1, p2, filter, 256));
+			if (!listed(response)) {
+				return null;
+			}
+			verbose("Card does not support the tagged GET STATUS format");
+			taggedStatus = false;
+			return response;
 		}
-		ByteArrayOutputStream bo = new ByteArrayOutputStream();
-		try {
-			bo.write(response.getData());
 
-			while (response.getSW() == 0x6310) {
-				getStatus = new CommandAPDU(CLA_GP, INS_GET_STATUS, p1, 0x01, data, 256);
-				response = transmit(getStatus);
+		// 6A88 is no entries
+		private boolean listed(ResponseAPDU response) {
+			int sw = response.getSW();
+			return sw == ISO7816.SW_NO_ERROR || sw == 0x6310 || sw == 0x6A88;
+		}
+	}
 
-				bo.write(response.getData());
+	/**
+	 * Entries of the registry as the card lists them: ISD, applications
+	 * and security domains, load files. Entries are read from the card as
+	 * the iterator is advanced, one GET STATUS response at a time, and are
+	 * not kept in the registry. Communication errors are thrown as a
+	 * RuntimeException with the CardException or GPException as the cause.
+	 */
+	public Iterator<AIDRegistryEntry> getStatusIterator() {
+		final StatusReader reader = new StatusReader(EnumSet.allOf(Scope.class), ALL_AIDS);
+		return new Iterator<AIDRegistryEntry>() {
+			private AIDRegistryEntry next = null;
+			private boolean done = false;
+
+			@Override
+			public boolean hasNext() {
+				if (next == null && !done) {
+					try {
+						next = reader.next();
+					} catch (CardException | GPException e) {
+						throw new RuntimeException(e);
+					}
+					done = next == null;
+				}
+				return next != null;
+			}
 
-				sw = response.getSW();
-				if ((sw != ISO7816.SW_NO_ERROR) && (sw != 0x6310)) {
-					throw new CardException("Get Status failed, SW: " + GPUtils.swToString(sw));
+			@Override
+			public AIDRegistryEntry next() {
+				if (!hasNext()) {
+					throw new NoSuchElementException();
 				}
+				AIDRegistryEntry e = next;
+				next = null;
+				return e;
 			}
-		} catch (IOException e) {
-			throw new RuntimeException(e);
-		}
-		return bo.toByteArray();
-	}
 
+			@Override
+			public void remove() {
+				throw new UnsupportedOperationException();
+			}
+		};
+	}
 
 	/**
-	 * Get card status. Perform all possible variants of the get status command
-	 * and return all entries reported by the card in an AIDRegistry.
+	 * Get card status. Perform the get status command for the given kinds
+	 * of entries and add the entries reported by the card to the registry.
 	 *
-	 * @return registry with all entries on the card
+	 * @return the kinds of entries that were read
 	 * @throws CardException
 	 *             in case of communication errors
 	 * @throws GPException
 	 */
-	private AIDRegistry getStatus() throws CardException, GPException {
-		AIDRegistry registry = new AIDRegistry();
-		int[] p1s = { 0x80, 0x40 };
-		for (int p1 : p1s) {
-			// parse data no sub-AID
-			int index = 0;
-			byte[] data = getConcatenatedStatus(p1, new byte[] { 0x4F, 0x00 });
-			while (index < data.length) {
-				int len = data[index++];
-				AID aid = new AID(data, index, len);
-				index += len;
-				int life_cycle = data[index++];
-				int privileges = data[index++];
-
-				AIDRegistryEntry.Kind kind = AIDRegistryEntry.Kind.IssuerSecurityDomain;
-				if (p1 == 0x40) {
-					if ((privileges & 0x80) == 0) {
-						kind = AIDRegistryEntry.Kind.Application;
-					} else {
-						kind = AIDRegistryEntry.Kind.SecurityDomain;
-					}
-				}
+	private EnumSet<Scope> getStatus(AIDRegistry registry, EnumSet<Scope> scopes, byte[] filter) throws CardException, GPException {
+		try (Span span = span("getStatus")) {
+			StatusReader reader = new StatusReader(scopes, filter);
+			for (AIDRegistryEntry e = reader.next(); e != null; e = reader.next()) {
+				registry.add(e);
+			}
+			if (trace != null) {
+				span.set("scopes", reader.read).set("filter", HexUtils.encodeHexString(filter)).set("entries", registry.allAIDs().size());
+			}
+			return reader.read;
+		}
+	}
 
-				AIDRegistryEntry entry = new AIDRegistryEntry(aid, life_cycle, privileges, kind);
-				registry.add(entry);
+	// Entries of a GET STATUS response with P2=00 for the scope in p1
+	static void parseStatus(int p1, byte[] data, List<AIDRegistryEntry> entries) {
+		int index = 0;
+		while (index < data.length) {
+			int len = data[index++] & 0xFF;
+			AID aid = new AID(data, index, len);
+			index += len;
+			int life_cycle = data[index++] & 0xFF;
+			int privileges = data[index++] & 0xFF;
+			AIDRegistryEntry entry = new AIDRegistryEntry(aid, life_cycle, privileges, kind(p1, privileges));
+			if (p1 == 0x10) {
+				int num = data[index++] & 0xFF;
+				for (int i = 0; i < num; i++) {
+					len = data[index++] & 0xFF;
+					entry.addExecutableAID(new AID(data, index, len));
+					index += len;
+				}
 			}
+			entries.add(entry);
 		}
-		// Order is important here, so that ExM info would get to the set later
-		p1s = new int[] { 0x20, 0x10 };
-		for (int p1 : p1s) {
-			int index = 0;
-			byte[] data = getConcatenatedStatus(p1, new byte[] { 0x4F, 0x00 });
-			while (index < data.length) {
-				int len = data[index++];
-				AID aid = new AID(data, index, len);
-				index += len;
-				AIDRegistryEntry entry = new AIDRegistryEntry(aid, data[index++], data[index++],
-						p1 == 0x10 ? AIDRegistryEntry.Kind.ExecutableLoadFilesAndModules : AIDRegistryEntry.Kind.ExecutableLoadFiles);
-				if (p1 == 0x10) {
-					int num = data[index++];
-					for (int i = 0; i < num; i++) {
-						len = data[index++];
-						aid = new AID(data, index, len);
-						index += len;
-						entry.addExecutableAID(aid);
+	}
+
+	// Entries of a GET STATUS response with P2=02, in E3 templates
+	static void parseTaggedStatus(int p1, byte[] data, List<AIDRegistryEntry> entries) throws GPException {
+		TLVReader tlv = new TLVReader(data);
+		while (tlv.find(0xE3)) {
+			tlv.enter();
+			AID aid = null;
+			int life_cycle = 0;
+			int privileges = 0;
+			int extended = 0;
+			AID elf = null;
+			AID domain = null;
+			byte[] version = null;
+			List<AID> modules = new ArrayList<>();
+			while (tlv.next()) {
+				switch (tlv.tag()) {
+				case 0x4F:
+					aid = new AID(data, tlv.valueOffset(), tlv.length());
+					break;
+				case 0x9F70:
+					if (tlv.length() < 1) {
+						throw new GPException("Invalid GET STATUS entry");
+					}
+					life_cycle = tlv.byteAt(0);
+					break;
+				case 0xC5:
+					if (tlv.length() < 1) {
+						throw new GPException("Invalid GET STATUS entry");
+					}
+					privileges = tlv.byteAt(0);
+					if (tlv.length() == 3) {
+						extended = (tlv.byteAt(1) << 8) | tlv.byteAt(2);
 					}
+					break;
+				case 0xC4:
+					elf = new AID(data, tlv.valueOffset(), tlv.length());
+					break;
+				case 0xCE:
+					version = tlv.value();
+					break;
+				case 0x84:
+					modules.add(new AID(data, tlv.valueOffset(), tlv.length()));
+					break;
+				case 0xCC:
+					domain = new AID(data, tlv.valueOffset(), tlv.length());
+					break;
+				default:
+					// Implicit selection parameters and others
+					break;
 				}
-				registry.add(entry);
 			}
+			tlv.exit();
+			if (aid == null) {
+				throw new GPException("Invalid GET STATUS entry");
+			}
+			AIDRegistryEntry entry = new AIDRegistryEntry(aid, life_cycle, privileges, kind(p1, privileges));
+			entry.setExtendedPrivileges(extended);
+			entry.setExecutableLoadFileAID(elf);
+			entry.setVersion(version);
+			entry.setAssociatedSecurityDomainAID(domain);
+			for (AID m : modules) {
+				entry.addExecutableAID(m);
+			}
+			entries.add(entry);
 		}
-		return registry;
 	}
 
+	private static AIDRegistryEntry.Kind kind(int p1, int privileges) {
+		if (p1 == 0x80) {
+			return AIDRegistryEntry.Kind.IssuerSecurityDomain;
+		} else if (p1 == 0x40) {
+			return (privileges & 0x80) == 0 ? AIDRegistryEntry.Kind.Application : AIDRegistryEntry.Kind.SecurityDomain;
+		}
+		return p1 == 0x10 ? AIDRegistryEntry.Kind.ExecutableLoadFilesAndModules : AIDRegistryEntry.Kind.ExecutableLoadFiles;
+	}
 
 	private static void check(ResponseAPDU r, String msg) throws GPException {
 		int sw = r.getSW();
@@ -1099,17 +1753,19 @@ public class GlobalPlatform {
 		private byte[] ricv = null;
 		private int scp = 0;
 
-		private final ByteArrayOutputStream rMac = new ByteArrayOutputStream();
-
 		private boolean icvEnc = false;
 
 		private boolean preAPDU = false;
 		private boolean postAPDU = false;
 
+		// Unwrapped command of the pending R-MAC, -1 if there is none
+		private final byte[] rmacCommand = new byte[5 + 255];
+		private int rmacCommandLen = -1;
 
 
-		private SCP0102Wrapper(GPKeySet sessionKeys, int scp, EnumSet<APDUMode> securityLevel, byte[] icv, byte[] ricv) {
-			this.sessionKeys = sessionKeys;
+		SCP0102Wrapper(GPSessionCrypto crypto, int scp, EnumSet<APDUMode> securityLevel, byte[] icv, byte[] ricv) {
+			this.crypto = crypto;
+			this.sessionKeys = crypto.getSessionKeys();
 			this.icv = icv;
 			this.ricv = ricv;
 			setSCPVersion(scp);
@@ -1145,7 +1801,16 @@ public class GlobalPlatform {
 			return icv;
 		}
 		public void setRMACIV(byte[] iv) {
-			ricv = iv;
+			ricv = iv.clone();
+		}
+
+		protected byte[][] saveState() {
+			return new byte[][] { icv == null ? null : icv.clone(), ricv == null ? null : ricv.clone() };
+		}
+
+		protected void restoreState(byte[][] state) {
+			icv = state[0] == null ? null : state[0].clone();
+			ricv = state[1] == null ? null : state[1].clone();
 		}
 
 		private static byte clearBits(byte b, byte mask) {
@@ -1156,146 +1821,127 @@ public class GlobalPlatform {
 			return (byte) ((b | mask) & 0xFF);
 		}
 
-		public CommandAPDU wrap(CommandAPDU command) throws CardException {
+		protected ByteBuffer wrapToBuffer(CommandAPDU command) throws CardException {
+			final byte[] b = apdu;
+			int cla = command.getCLA();
+			int ins = command.getINS();
+			int p1 = command.getP1();
+			int p2 = command.getP2();
+			int lc = command.getNc();
+			int le = command.getNe();
 
-			try {
-				if (rmac) {
-					rMac.reset();
-					rMac.write(clearBits((byte) command.getCLA(), (byte) 0x07));
-					rMac.write(command.getINS());
-					rMac.write(command.getP1());
-					rMac.write(command.getP2());
-					if (command.getNc() >= 0) {
-						rMac.write(command.getNc());
-						rMac.write(command.getData());
-					}
-				}
-				if (!mac && !enc) {
-					return command;
-				}
-
-
-				int origCLA = command.getCLA();
-				int newCLA = origCLA;
-				int origINS = command.getINS();
-				int origP1 = command.getP1();
-				int origP2 = command.getP2();
-				byte[] origData = command.getData();
-				int origLc = command.getNc();
-				int newLc = origLc;
-				byte[] newData = null;
-				int le = command.getNe();
-				ByteArrayOutputStream t = new ByteArrayOutputStream();
-
-				if (origLc > getBlockSize()) {
-					throw new IllegalArgumentException("APDU too long for wrapping.");
-				}
+			if (!mac && !enc && !rmac) {
+				return ByteBuffer.wrap(command.getBytes());
+			}
+			if (lc > getBlockSize()) {
+				throw new IllegalArgumentException("APDU too long for wrapping.");
+			}
+			// Data is placed once and wrapped in place
+			System.arraycopy(command.getData(), 0, b, 5, lc);
 
-				if (mac) {
-					if (icv == null) {
-						icv = new byte[8];
-					} else if (icvEnc) {
-						Cipher c = null;
-						if (scp == 1) {
-							c = Cipher.getInstance(GPCrypto.DES3_ECB_CIPHER);
-							c.init(Cipher.ENCRYPT_MODE, sessionKeys.getKeyFor(KeyType.MAC));
-						} else {
-							c = Cipher.getInstance(GPCrypto.DES_ECB_CIPHER);
-							c.init(Cipher.ENCRYPT_MODE, sessionKeys.getKey(KeyType.MAC).getKey(Type.DES));
-						}
-						// encrypts the future ICV ?
-						icv = c.doFinal(icv);
-					}
+			if (rmac) {
+				// R-MAC is computed over the command and the response, kept for unwrap()
+				rmacCommand[0] = clearBits((byte) cla, (byte) 0x07);
+				rmacCommand[1] = (byte) ins;
+				rmacCommand[2] = (byte) p1;
+				rmacCommand[3] = (byte) p2;
+				rmacCommand[4] = (byte) lc;
+				System.arraycopy(b, 5, rmacCommand, 5, lc);
+				rmacCommandLen = 5 + lc;
+			}
+			if (!mac && !enc) {
+				return ByteBuffer.wrap(command.getBytes());
+			}
 
-					if (preAPDU) {
-						newCLA = setBits((byte) newCLA, (byte) 0x04);
-						newLc = newLc + 8;
-					}
-					t.write(newCLA);
-					t.write(origINS);
-					t.write(origP1);
-					t.write(origP2);
-					t.write(newLc);
-					t.write(origData);
-
-					if (scp == 1) {
-						icv = GPCrypto.mac_3des(sessionKeys.getKey(KeyType.MAC), t.toByteArray(), icv);
-					} else if (scp == 2) {
-						icv = GPCrypto.mac_des_3des(sessionKeys.getKey(KeyType.MAC), t.toByteArray(), icv);
-					}
+			int newCLA = cla;
+			int newLc = lc;
+			int dataLen = lc;
 
-					if (postAPDU) {
-						newCLA = setBits((byte) newCLA, (byte) 0x04);
-						newLc = newLc + 8;
-					}
-					t.reset();
-					newData = origData;
+			if (mac) {
+				if (icv == null) {
+					icv = new byte[8];
+				} else if (icvEnc) {
+					// encrypts the future ICV ?
+					crypto.encryptICV(icv);
 				}
 
-				if (enc && (origLc > 0)) {
-					if (scp == 1) {
-						t.write(origLc);
-						t.write(origData);
-						if ((t.size() % 8) != 0) {
-							byte[] x = GPCrypto.pad80(t.toByteArray(), 8);
-							t.reset();
-							t.write(x);
-						}
-					} else {
-						t.write(GPCrypto.pad80(origData, 8));
-					}
-					newLc += t.size() - origData.length;
-
-					Cipher c = Cipher.getInstance(GPCrypto.DES3_CBC_CIPHER);
-					c.init(Cipher.ENCRYPT_MODE, sessionKeys.getKeyFor(KeyType.ENC), GPCrypto.iv_null_des);
-					newData = c.doFinal(t.toByteArray());
-					t.reset();
+				if (preAPDU) {
+					newCLA = setBits((byte) newCLA, (byte) 0x04);
+					newLc = newLc + 8;
 				}
-				t.write(newCLA);
-				t.write(origINS);
-				t.write(origP1);
-				t.write(origP2);
-				if (newLc > 0) {
-					t.write(newLc);
-					t.write(newData);
+				b[0] = (byte) newCLA;
+				b[1] = (byte) ins;
+				b[2] = (byte) p1;
+				b[3] = (byte) p2;
+				b[4] = (byte) newLc;
+				if (scp == 1) {
+					// MAC over the padded command, the padding is overwritten later
+					int len = GPCrypto.pad80_inplace(b, 0, 5 + lc, 8);
+					crypto.mac_3des(b, 0, len, icv);
+				} else if (scp == 2) {
+					crypto.mac_des_3des(KeyType.MAC, b, 0, 5 + lc, icv);
 				}
-				if (mac) {
-					t.write(icv);
+
+				if (postAPDU) {
+					newCLA = setBits((byte) newCLA, (byte) 0x04);
+					newLc = newLc + 8;
 				}
-				if (le > 0) {
-					t.write(le);
+			}
+
+			if (enc && (lc > 0)) {
+				if (scp == 1) {
+					// Length is encrypted together with data
+					System.arraycopy(b, 5, b, 6, lc);
+					b[5] = (byte) lc;
+					dataLen = lc + 1;
+					if ((dataLen % 8) != 0) {
+						dataLen = GPCrypto.pad80_inplace(b, 5, dataLen, 8);
+					}
+				} else {
+					dataLen = GPCrypto.pad80_inplace(b, 5, lc, 8);
 				}
-				CommandAPDU wrapped = new CommandAPDU(t.toByteArray());
-				return wrapped;
-			} catch (IOException e) {
-				throw new RuntimeException("APDU wrapping failed", e);
-			} catch (NoSuchAlgorithmException e) {
-				throw new RuntimeException("APDU wrapping failed", e);
-			} catch (NoSuchPaddingException e) {
-				throw new RuntimeException("APDU wrapping failed", e);
-			} catch (InvalidKeyException e) {
-				throw new RuntimeException("APDU wrapping failed", e);
-			} catch (InvalidAlgorithmParameterException e) {
-				throw new RuntimeException("APDU wrapping failed", e);
-			} catch (IllegalBlockSizeException e) {
-				throw new RuntimeException("APDU wrapping failed", e);
-			} catch (BadPaddingException e) {
-				throw new RuntimeException("APDU wrapping failed", e);
+				newLc += dataLen - lc;
+				crypto.encrypt(b, 5, dataLen);
+			}
+			b[0] = (byte) newCLA;
+			b[1] = (byte) ins;
+			b[2] = (byte) p1;
+			b[3] = (byte) p2;
+			int len = 4;
+			if (newLc > 0) {
+				b[len++] = (byte) newLc;
+				len += dataLen;
+			}
+			if (mac) {
+				System.arraycopy(icv, 0, b, len, 8);
+				len += 8;
 			}
+			if (le > 0) {
+				b[len++] = (byte) le;
+			}
+			return frame(len);
 		}
 
 		public ResponseAPDU unwrap(ResponseAPDU response) throws GPException {
 			if (rmac) {
+				// Every response must follow its own command
+				if (rmacCommandLen < 0) {
+					throw new IllegalStateException("R-MAC response without a wrapped command");
+				}
+				int commandLen = rmacCommandLen;
+				rmacCommandLen = -1;
 				if (response.getData().length < 8) {
 					throw new RuntimeException("Wrong response length (too short).");
 				}
 				int respLen = response.getData().length - 8;
-				rMac.write(respLen);
-				rMac.write(response.getData(), 0, respLen);
-				rMac.write(response.getSW1());
-				rMac.write(response.getSW2());
-
-				ricv = GPCrypto.mac_des_3des(sessionKeys.getKey(KeyType.RMAC), GPCrypto.pad80(rMac.toByteArray(), 8), ricv);
+				RetailMac rMac = crypto.getRetailMac(KeyType.RMAC);
+				rMac.init(ricv);
+				rMac.update(rmacCommand, 0, commandLen);
+				rMac.update((byte) respLen);
+				rMac.update(response.getData(), 0, respLen);
+				rMac.update((byte) response.getSW1());
+				rMac.update((byte) response.getSW2());
+				rMac.doFinal(ricv, 0);
 
 				byte[] actualMac = new byte[8];
 				System.arraycopy(response.getData(), respLen, actualMac, 0, 8);
@@ -1317,8 +1963,9 @@ public class GlobalPlatform {
 		byte [] chaining_value = new byte[16];
 		byte [] encryption_counter = new byte[16];
 
-		private SCP03Wrapper(GPKeySet sessionKeys, int scp, EnumSet<APDUMode> securityLevel, byte[] icv, byte[] ricv) {
-			this.sessionKeys = sessionKeys;
+		SCP03Wrapper(GPSessionCrypto crypto, int scp, EnumSet<APDUMode> securityLevel, byte[] icv, byte[] ricv) {
+			this.crypto = crypto;
+			this.sessionKeys = crypto.getSessionKeys();
 			// initialize chaining value.
 			System.arraycopy(GPCrypto.null_bytes_16, 0, chaining_value, 0, GPCrypto.null_bytes_16.length);
 			// initialize encryption counter.
@@ -1327,94 +1974,72 @@ public class GlobalPlatform {
 			setSecurityLevel(securityLevel);
 		}
 		@Override
-		protected CommandAPDU wrap(CommandAPDU command) throws CardException {
-			byte [] cmd_mac = null;
+		protected ByteBuffer wrapToBuffer(CommandAPDU command) throws CardException {
+			final byte[] b = apdu;
+			int cla = command.getCLA();
+			int lc = command.getNc();
 
-			try {
-				int cla = command.getCLA();
-				int lc = command.getNc();
-				byte [] data = command.getData();
-
-				// Encrypt if needed
-				if (enc) {
-					cla = 0x84;
-					// Counter shall always be incremented
-					GPCrypto.buffer_increment(encryption_counter);
-					if (command.getData().length > 0) {
-						byte [] d = GPCrypto.pad80(command.getData(), 16);
-						// Encrypt with S-ENC, after increasing the counter
-						Cipher c = Cipher.getInstance(GPCrypto.AES_CBC_CIPHER);
-						c.init(Cipher.ENCRYPT_MODE, sessionKeys.getKeyFor(KeyType.ENC), GPCrypto.iv_null_aes);
-						byte [] iv = c.doFinal(encryption_counter);
-						// Now encrypt the data with S-ENC.
-						c.init(Cipher.ENCRYPT_MODE, sessionKeys.getKeyFor(KeyType.ENC), new IvParameterSpec(iv));
-						data = c.doFinal(d);
-						lc = data.length;
-					}
-				}
-				// Calculate C-MAC
-				if (mac) {
-					cla = 0x84;
-					lc = lc + 8;
-
-					ByteArrayOutputStream bo = new ByteArrayOutputStream();
-					bo.write(chaining_value);
-					bo.write(cla);
-					bo.write(command.getINS());
-					bo.write(command.getP1());
-					bo.write(command.getP2());
-					bo.write(lc);
-					bo.write(data);
-					byte [] cmac_input = bo.toByteArray();
-					byte [] cmac = GPCrypto.scp03_mac(sessionKeys.getKey(KeyType.MAC), cmac_input, 128);
-					// Set new chaining value
-					System.arraycopy(cmac, 0, chaining_value, 0, chaining_value.length);
-					// 8 bytes for actual mac
-					cmd_mac = Arrays.copyOf(cmac, 8);
-				}
-				// Construct new command
-				ByteArrayOutputStream na = new ByteArrayOutputStream();
-				na.write(cla); // possibly fiddled
-				na.write(command.getINS());
-				na.write(command.getP1());
-				na.write(command.getP2());
-				na.write(lc);
-				na.write(data);
-				if (mac)
-					na.write(cmd_mac);
-				byte [] new_apdu = na.toByteArray();
-				return new CommandAPDU(new_apdu);
-			} catch (IOException e) {
-				throw new RuntimeException("APDU wrapping failed", e);
-			}
-			catch (NoSuchAlgorithmException e) {
-				throw new RuntimeException("APDU wrapping failed", e);
+			if (!mac && !enc) {
+				return ByteBuffer.wrap(command.getBytes());
 			}
-			catch (NoSuchPaddingException e) {
-				throw new RuntimeException("APDU wrapping failed", e);
+			if (lc > getBlockSize()) {
+				throw new IllegalArgumentException("APDU too long for wrapping.");
 			}
-			catch (InvalidKeyException e) {
-				throw new RuntimeException("APDU wrapping failed", e);
-			}
-			catch (IllegalBlockSizeException e) {
-				throw new RuntimeException("APDU wrapping failed", e);
-			}
-			catch (BadPaddingException e) {
-				throw new RuntimeException("APDU wrapping failed", e);
+			System.arraycopy(command.getData(), 0, b, 5, lc);
+
+			// Encrypt if needed
+			if (enc) {
+				cla = 0x84;
+				// Counter shall always be incremented
+				GPCrypto.buffer_increment(encryption_counter);
+				if (lc > 0) {
+					// Encrypt with S-ENC, after increasing the counter
+					lc = GPCrypto.pad80_inplace(b, 5, lc, 16);
+					crypto.encrypt(b, 5, lc, encryption_counter);
+				}
 			}
-			catch (InvalidAlgorithmParameterException e) {
-				throw new RuntimeException("APDU wrapping failed", e);
+			int dataLen = lc;
+			b[0] = (byte) cla;
+			b[1] = (byte) command.getINS();
+			b[2] = (byte) command.getP1();
+			b[3] = (byte) command.getP2();
+			// Calculate C-MAC
+			if (mac) {
+				b[0] = (byte) 0x84;
+				lc = lc + 8;
+				b[4] = (byte) lc;
+				crypto.scp03_mac(chaining_value, b, 0, 5 + dataLen);
+				// 8 bytes for actual mac, full MAC is the new chaining value
+				System.arraycopy(chaining_value, 0, b, 5 + dataLen, 8);
+				return frame(5 + dataLen + 8);
 			}
+			b[4] = (byte) lc;
+			return frame(5 + dataLen);
 		}
 
 		@Override
 		protected ResponseAPDU unwrap(ResponseAPDU response) throws GPException {
 			return response;
 		}
+
+		protected byte[][] saveState() {
+			return new byte[][] { chaining_value.clone(), encryption_counter.clone() };
+		}
+
+		protected void restoreState(byte[][] state) {
+			System.arraycopy(state[0], 0, chaining_value, 0, chaining_value.length);
+			System.arraycopy(state[1], 0, encryption_counter, 0, encryption_counter.length);
+		}
 	}
 
 	public static abstract class SCPWrapper {
+		// Header, data, padding and MAC are all framed into this buffer
+		private static final int APDU_BUFFER_SIZE = 5 + 256 + 16 + 1;
+
 		protected GPKeySet sessionKeys = null;
+		protected GPSessionCrypto crypto = null;
+		protected final byte[] apdu = new byte[APDU_BUFFER_SIZE];
+		private final ByteBuffer apduBuffer = ByteBuffer.wrap(apdu);
 		protected boolean mac = false;
 		protected boolean enc = false;
 		protected boolean rmac = false;
@@ -1433,7 +2058,27 @@ public class GlobalPlatform {
 				res = res - 8;
 			return res;
 		}
-		protected abstract CommandAPDU wrap(CommandAPDU command) throws CardException;
+		// View of the session buffer with the wrapped command, valid until the next wrap.
+		protected ByteBuffer frame(int length) {
+			apduBuffer.clear();
+			apduBuffer.limit(length);
+			return apduBuffer;
+		}
+
+		/**
+		 * Wrap the command into the reusable session buffer. The returned
+		 * buffer is only valid until the next call.
+		 */
+		protected abstract ByteBuffer wrapToBuffer(CommandAPDU command) throws CardException;
+
+		protected CommandAPDU wrap(CommandAPDU command) throws CardException {
+			ByteBuffer b = wrapToBuffer(command);
+			return new CommandAPDU(b.array(), b.arrayOffset() + b.position(), b.remaining());
+		}
 		protected abstract ResponseAPDU unwrap(ResponseAPDU response) throws GPException;
+
+		// Copy of the chaining state, to continue from a known command later
+		protected abstract byte[][] saveState();
+		protected abstract void restoreState(byte[][] state);
 	}
 }
@@ -0,0 +1,110 @@
+package pro.javacard.gp;
+
+import java.security.GeneralSecurityException;
+import java.security.Key;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+import pro.javacard.gp.GPKeySet.GPKey.Type;
+
+/**
+ * Crypto backend on top of the JCE providers of the JVM.
+ *
+ * With SunJCE this uses the AES-NI intrinsics of HotSpot where available.
+ */
+public class JCECryptoBackend extends CryptoBackend {
+
+	@Override
+	public String getName() {
+		return "jce";
+	}
+
+	@Override
+	public BlockEncryptor getEncryptor(Type type, byte[] key) {
+		return new JCEBlockEncryptor(type, key);
+	}
+
+	@Override
+	public byte[] encryptCBC(Type type, byte[] key, byte[] iv, byte[] data) {
+		try {
+			Cipher c = Cipher.getInstance(algorithm(type) + "/CBC/NoPadding");
+			c.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(keyBytes(type, key), algorithm(type)), new IvParameterSpec(iv == null ? new byte[blockSize(type)] : iv));
+			return c.doFinal(data);
+		} catch (GeneralSecurityException e) {
+			throw new RuntimeException("Encryption failed", e);
+		}
+	}
+
+	@Override
+	public byte[] encryptECB(Type type, byte[] key, byte[] data) {
+		try {
+			Cipher c = Cipher.getInstance(algorithm(type) + "/ECB/NoPadding");
+			c.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(keyBytes(type, key), algorithm(type)));
+			return c.doFinal(data);
+		} catch (GeneralSecurityException e) {
+			throw new RuntimeException("Encryption failed", e);
+		}
+	}
+
+	static String algorithm(Type type) {
+		switch (type) {
+		case DES:
+			return "DES";
+		case DES3:
+			return "DESede";
+		case AES:
+			return "AES";
+		default:
+			throw new IllegalArgumentException("Don't know how to handle " + type);
+		}
+	}
+
+	static int blockSize(Type type) {
+		return type == Type.AES ? 16 : 8;
+	}
+
+	static final class JCEBlockEncryptor implements BlockEncryptor {
+		private final Key key;
+		private final Cipher ecb;
+		private final Cipher cbc;
+		private final int blockSize;
+
+		JCEBlockEncryptor(Type type, byte[] keyBytes) {
+			blockSize = blockSize(type);
+			key = new SecretKeySpec(keyBytes(type, keyBytes), algorithm(type));
+			try {
+				ecb = Cipher.getInstance(algorithm(type) + "/ECB/NoPadding");
+				ecb.init(Cipher.ENCRYPT_MODE, key);
+				cbc = Cipher.getInstance(algorithm(type) + "/CBC/NoPadding");
+			} catch (GeneralSecurityException e) {
+				throw new RuntimeException("Cipher setup failed", e);
+			}
+		}
+
+		@Override
+		public int getBlockSize() {
+			return blockSize;
+		}
+
+		@Override
+		public void encryptBlock(byte[] in, int inOffset, byte[] out, int outOffset) {
+			try {
+				ecb.doFinal(in, inOffset, blockSize, out, outOffset);
+			} catch (GeneralSecurityException e) {
+				throw new RuntimeException("Encryption failed", e);
+			}
+		}
+
+		@Override
+		public void encryptCBC(byte[] iv, byte[] in, int inOffset, int length, byte[] out, int outOffset) {
+			try {
+				cbc.init(Cipher.ENCRYPT_MODE, key, iv == null ? new IvParameterSpec(new byte[blockSize]) : new IvParameterSpec(iv, 0, blockSize));
+				cbc.doFinal(in, inOffset, length, out, outOffset);
+			} catch (GeneralSecurityException e) {
+				throw new RuntimeException("Encryption failed", e);
+			}
+		}
+	}
+}
@@ -0,0 +1,123 @@
+package pro.javacard.gp;
+
+import java.util.Arrays;
+
+import pro.javacard.gp.CryptoBackend.BlockEncryptor;
+import pro.javacard.gp.GPKeySet.GPKey.Type;
+
+/**
+ * ISO 9797-1 MAC algorithm 3 ("retail MAC") with padding method 2, as used
+ * by SCP02 for C-MAC and R-MAC.
+ *
+ * Single DES CBC with K1 over all but the last block, 3DES over the last
+ * block. Both key schedules are computed once in the constructor. Input is
+ * processed incrementally as it comes, so a MAC can be computed over a
+ * stream of data without collecting it first. As the padding always adds at
+ * least one byte, every full block of input can be processed right away.
+ *
+ * Not thread safe.
+ */
+public final class RetailMac {
+	private static final int BLOCK = 8;
+
+	private final BlockEncryptor des;
+	private final BlockEncryptor des3;
+	// Running CBC state and the not yet processed partial block
+	private final byte[] state = new byte[BLOCK];
+	private final byte[] block = new byte[BLOCK];
+	private int blockLen = 0;
+	// Output of bulk CBC over full blocks, only the last block is used
+	private byte[] cbcOut = new byte[256];
+
+	public RetailMac(byte[] key) {
+		this(GPCrypto.getBackend().getEncryptor(Type.DES, key), GPCrypto.getBackend().getEncryptor(Type.DES3, key));
+	}
+
+	/**
+	 * @param des single DES with the first half of the key
+	 * @param des3 3DES with the full key
+	 */
+	public RetailMac(BlockEncryptor des, BlockEncryptor des3) {
+		if (des.getBlockSize() != BLOCK || des3.getBlockSize() != BLOCK) {
+			throw new IllegalArgumentException("Retail MAC needs a 64 bit block cipher");
+		}
+		this.des = des;
+		this.des3 = des3;
+	}
+
+	public int getMacSize() {
+		return BLOCK;
+	}
+
+	/**
+	 * Start a new MAC with the given ICV, null meaning a zero ICV.
+	 */
+	public void init(byte[] icv) {
+		if (icv == null) {
+			Arrays.fill(state, (byte) 0x00);
+		} else {
+			System.arraycopy(icv, 0, state, 0, BLOCK);
+		}
+		blockLen = 0;
+	}
+
+	public void update(byte b) {
+		block[blockLen++] = b;
+		if (blockLen == BLOCK) {
+			processBlock(block, 0);
+			blockLen = 0;
+		}
+	}
+
+	public void update(byte[] in, int offset, int length) {
+		// Fill up the pending partial block first
+		if (blockLen > 0) {
+			int n = Math.min(BLOCK - blockLen, length);
+			System.arraycopy(in, offset, block, blockLen, n);
+			blockLen += n;
+			offset += n;
+			length -= n;
+			if (blockLen < BLOCK) {
+				return;
+			}
+			processBlock(block, 0);
+			blockLen = 0;
+		}
+		// Full blocks directly from the input, as one CBC operation
+		int n = (length / BLOCK) * BLOCK;
+		if (n == BLOCK) {
+			processBlock(in, offset);
+		} else if (n > 0) {
+			if (cbcOut.length < n) {
+				cbcOut = new byte[n];
+			}
+			des.encryptCBC(state, in, offset, n, cbcOut, 0);
+			System.arraycopy(cbcOut, n - BLOCK, state, 0, BLOCK);
+		}
+		offset += n;
+		length -= n;
+		System.arraycopy(in, offset, block, 0, length);
+		blockLen = length;
+	}
+
+	private void processBlock(byte[] in, int offset) {
+		for (int i = 0; i < BLOCK; i++) {
+			state[i] ^= in[offset + i];
+		}
+		des.encryptBlock(state, 0, state, 0);
+	}
+
+	/**
+	 * Pad, finish the MAC and write the 8 byte result to {@code out}.
+	 * Starts a new MAC with a zero ICV.
+	 */
+	public void doFinal(byte[] out, int offset) {
+		block[blockLen] = (byte) 0x80;
+		Arrays.fill(block, blockLen + 1, BLOCK, (byte) 0x00);
+		for (int i = 0; i < BLOCK; i++) {
+			state[i] ^= block[i];
+		}
+		des3.encryptBlock(state, 0, out, offset);
+		init(null);
+	}
+}
@@ -0,0 +1,278 @@
+package pro.javacard.gp;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.smartcardio.ATR;
+import javax.smartcardio.Card;
+import javax.smartcardio.CardChannel;
+import javax.smartcardio.CardException;
+import javax.smartcardio.CardTerminal;
+import javax.smartcardio.CommandAPDU;
+import javax.smartcardio.ResponseAPDU;
+
+import pro.javacard.gp.GPData.KeyType;
+import pro.javacard.gp.GPKeySet.GPKey.Type;
+import apdu4j.HexUtils;
+import apdu4j.ISO7816;
+
+/**
+ * A stand-in for a known SCP03 card that uses pseudo-random card challenges.
+ *
+ * With the static keys, the SD AID and the sequence counter of the card,
+ * the card challenge of the next session and therefore all session keys
+ * are known in advance. This card answers INITIALIZE UPDATE as the real
+ * card would and records every command sent to it, so that the complete
+ * wrapped session can be written to a script and later replayed to the
+ * real card with {@link #replay} without doing any crypto.
+ *
+ * Script format: one command per line as hex, followed by the expected
+ * status word or "----" if any status is fine. Lines starting with # are
+ * comments. GET STATUS, GET DATA and DELETE may get any status, all other
+ * commands must get 9000.
+ */
+public class ScriptCard extends Card {
+	public static final String ANY_SW = "----";
+
+	private final GPKeySet staticKeys;
+	private final AID sdAID;
+	private final byte[] seq;
+	private final byte[] diversificationData;
+	private final List<String> script = new ArrayList<String>();
+	private final CardChannel channel = new ScriptChannel();
+
+	/**
+	 * @param staticKeys the SCP03 keys of the card
+	 * @param sdAID AID of the ISD
+	 * @param counter sequence counter of the card, the one in the next INITIALIZE UPDATE response
+	 * @param diversificationData 10 bytes or null for zeroes
+	 */
+	public ScriptCard(GPKeySet staticKeys, AID sdAID, int counter, byte[] diversificationData) {
+		for (GPKeySet.GPKey k : staticKeys.getKeys().values()) {
+			if (k.getType() != Type.AES) {
+				throw new IllegalArgumentException("Scripts can only be made for SCP03 with AES keys");
+			}
+		}
+		if (counter < 0 || counter > 0xFFFFFF) {
+			throw new IllegalArgumentException("Sequence counter must fit into 3 bytes");
+		}
+		this.staticKeys = staticKeys;
+		this.sdAID = sdAID;
+		this.seq = new byte[] { (byte) (counter >> 16), (byte) (counter >> 8), (byte) counter };
+		this.diversificationData = diversificationData == null ? new byte[10] : diversificationData.clone();
+	}
+
+	/**
+	 * Commands sent so far, as script lines.
+	 */
+	public List<String> getScript() {
+		return new ArrayList<String>(script);
+	}
+
+	public void writeScript(File f) throws IOException {
+		try (PrintWriter w = new PrintWriter(new OutputStreamWriter(new FileOutputStream(f), StandardCharsets.US_ASCII))) {
+			w.println("# SCP03 session for " + sdAID + " with sequence counter " + HexUtils.encodeHexString(seq));
+			for (String line : script) {
+				w.println(line);
+			}
+		}
+	}
+
+	/**
+	 * Send a script to a card, stopping at the first unexpected status word.
+	 *
+	 * @return number of commands sent
+	 */
+	public static int replay(CardChannel channel, File f) throws IOException, CardException, GPException {
+		int n = 0;
+		try (BufferedReader r = new BufferedReader(new InputStreamReader(new FileInputStream(f), StandardCharsets.US_ASCII))) {
+			String line;
+			int lineno = 0;
+			while ((line = r.readLine()) != null) {
+				lineno++;
+				line = line.trim();
+				if (line.isEmpty() || line.startsWith("#")) {
+					continue;
+				}
+				String[] parts = line.split("\\s+");
+				ResponseAPDU response = channel.transmit(new CommandAPDU(HexUtils.stringToBin(parts[0])));
+				n++;
+				if (parts.length > 1 && !parts[1].equals(ANY_SW)) {
+					int expected = Integer.parseInt(parts[1], 16);
+					if (response.getSW() != expected) {
+						throw new GPException(response.getSW(), "Script line " + lineno + " failed");
+					}
+				}
+			}
+		}
+		return n;
+	}
+
+	private byte[] process(byte[] command) {
+		CommandAPDU c = new CommandAPDU(command);
+		byte[] response;
+		String expected = "9000";
+		if (c.getINS() == (ISO7816.INS_SELECT & 0xFF)) {
+			// Minimal FCI with the SD AID
+			byte[] aid = sdAID.getBytes();
+			response = new byte[4 + aid.length + 2];
+			response[0] = 0x6F;
+			response[1] = (byte) (aid.length + 2);
+			response[2] = (byte) 0x84;
+			response[3] = (byte) aid.length;
+			System.arraycopy(aid, 0, response, 4, aid.length);
+			response[response.length - 2] = (byte) 0x90;
+		} else if (c.getINS() == 0x50) {
+			response = initializeUpdate(c);
+		} else if (c.getINS() == 0xF2 || c.getINS() == 0xCA || c.getINS() == 0xCB) {
+			// Card content is not known, the real card may answer anything
+			response = new byte[] { 0x6A, (byte) 0x88 };
+			expected = ANY_SW;
+		} else if (c.getINS() == 0xE4) {
+			// Deleting what is not there is fine, like online
+			response = new byte[] { (byte) 0x90, 0x00 };
+			expected = ANY_SW;
+		} else {
+			response = new byte[] { (byte) 0x90, 0x00 };
+		}
+		script.add(HexUtils.encodeHexString(command) + " " + expected);
+		return response;
+	}
+
+	private byte[] initializeUpdate(CommandAPDU c) {
+		byte[] host_challenge = c.getData();
+		byte[] card_challenge = GlobalPlatform.computeCardChallengeSCP03(staticKeys, seq, sdAID);
+		GPKeySet sessionKeys = GlobalPlatform.deriveSessionKeysSCP03(staticKeys, host_challenge, card_challenge);
+		byte[] card_cryptogram = GPCrypto.scp03_kdf(sessionKeys.getKey(KeyType.MAC), (byte) 0x00, GPUtils.concatenate(host_challenge, card_challenge), 64);
+
+		byte[] response = new byte[32 + 2];
+		System.arraycopy(diversificationData, 0, response, 0, 10);
+		response[10] = (byte) (c.getP1() == 0 ? staticKeys.getKeyVersion() : c.getP1());
+		response[11] = 0x03;
+		response[12] = 0x10; // i: pseudo-random card challenge
+		System.arraycopy(card_challenge, 0, response, 13, 8);
+		System.arraycopy(card_cryptogram, 0, response, 21, 8);
+		System.arraycopy(seq, 0, response, 29, 3);
+		response[32] = (byte) 0x90;
+		return response;
+	}
+
+	private class ScriptChannel extends CardChannel {
+		@Override
+		public Card getCard() {
+			return ScriptCard.this;
+		}
+
+		@Override
+		public int getChannelNumber() {
+			return 0;
+		}
+
+		@Override
+		public ResponseAPDU transmit(CommandAPDU command) throws CardException {
+			return new ResponseAPDU(process(command.getBytes()));
+		}
+
+		@Override
+		public int transmit(ByteBuffer command, ByteBuffer response) throws CardException {
+			byte[] c = new byte[command.remaining()];
+			command.get(c);
+			byte[] r = process(c);
+			response.put(r);
+			return r.length;
+		}
+
+		@Override
+		public void close() throws CardException {
+			throw new IllegalStateException("Basic channel can not be closed");
+		}
+	}
+
+	@Override
+	public ATR getATR() {
+		return new ATR(new byte[] { 0x3B, 0x00 });
+	}
+
+	@Override
+	public String getProtocol() {
+		return "T=1";
+	}
+
+	@Override
+	public CardChannel getBasicChannel() {
+		return channel;
+	}
+
+	@Override
+	public CardChannel openLogicalChannel() throws CardException {
+		throw new CardException("Logical channels are not supported");
+	}
+
+	@Override
+	public void beginExclusive() throws CardException {
+	}
+
+	@Override
+	public void endExclusive() throws CardException {
+	}
+
+	@Override
+	public byte[] transmitControlCommand(int controlCode, byte[] command) throws CardException {
+		throw new CardException("Control commands are not supported");
+	}
+
+	@Override
+	public void disconnect(boolean reset) throws CardException {
+	}
+
+	/**
+	 * A reader with the script card always present.
+	 */
+	public static class ScriptTerminal extends CardTerminal {
+		private final ScriptCard card;
+
+		public ScriptTerminal(ScriptCard card) {
+			this.card = card;
+		}
+
+		@Override
+		public String getName() {
+			return "Script";
+		}
+
+		@Override
+		public Card connect(String protocol) throws CardException {
+			return card;
+		}
+
+		@Override
+		public boolean isCardPresent() throws CardException {
+			return true;
+		}
+
+		@Override
+		public boolean waitForCardPresent(long timeout) throws CardException {
+			return true;
+		}
+
+		@Override
+		public boolean waitForCardAbsent(long timeout) throws CardException {
+			return false;
+		}
+	}
+
+	@Override
+	public String toString() {
+		return "Script card " + sdAID + " with sequence counter " + HexUtils.encodeHexString(seq);
+	}
+}
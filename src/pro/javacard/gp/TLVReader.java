@@ -0,0 +1,280 @@
+package pro.javacard.gp;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Flyweight BER-TLV reader over a byte array.
+ *
+ * The reader is a cursor: {@link #next()} moves to the next element on the
+ * current level and the accessors describe that element, as offsets into
+ * the array. {@link #enter()} descends into a constructed element and
+ * {@link #exit()} goes back to the level above. Nothing is copied or
+ * allocated while reading, values are only copied by {@link #value()}.
+ *
+ * Tags of any length (up to 4 bytes) and lengths in short form or with
+ * 81, 82 and 83 are supported. Data that does not fit the bounds of the
+ * enclosing element throws IllegalArgumentException.
+ */
+public final class TLVReader {
+	private static final int MAX_DEPTH = 8;
+
+	private final byte[] data;
+	// Bounds of the current level
+	private int start;
+	private int end;
+	// The current element, tag is -1 before the first next() of a level
+	private int offset;
+	private int tag = -1;
+	private int valueOffset;
+	private int length;
+	// Saved elements and ends of the levels above
+	private final int[] stack = new int[MAX_DEPTH * 6];
+	private int depth = 0;
+
+	public TLVReader(byte[] data) {
+		this(data, 0, data.length);
+	}
+
+	public TLVReader(byte[] data, int offset, int length) {
+		if (offset < 0 || length < 0 || offset + length > data.length) {
+			throw new IndexOutOfBoundsException();
+		}
+		this.data = data;
+		this.offset = offset;
+		this.valueOffset = offset;
+		this.start = offset;
+		this.end = offset + length;
+	}
+
+	/**
+	 * Reader over the remaining bytes of the buffer, without changing its
+	 * position. Only buffers backed by an array are read without a copy.
+	 */
+	public static TLVReader of(ByteBuffer b) {
+		if (b.hasArray()) {
+			return new TLVReader(b.array(), b.arrayOffset() + b.position(), b.remaining());
+		}
+		byte[] copy = new byte[b.remaining()];
+		b.duplicate().get(copy);
+		return new TLVReader(copy);
+	}
+
+	/**
+	 * Move to the next element on the current level.
+	 *
+	 * @return false if there are no more elements
+	 */
+	public boolean next() {
+		int pos = tag == -1 ? valueOffset : valueOffset + length;
+		// Some cards pad with 00 or FF between and after elements
+		while (pos < end && (data[pos] == 0x00 || data[pos] == (byte) 0xFF)) {
+			pos++;
+		}
+		if (pos >= end) {
+			offset = end;
+			valueOffset = end;
+			length = 0;
+			tag = -1;
+			return false;
+		}
+		offset = pos;
+		int t = data[pos++] & 0xFF;
+		if ((t & 0x1F) == 0x1F) {
+			// Subsequent bytes have bit 8 set, except the last one
+			int b;
+			do {
+				check(pos, 1);
+				if (t > 0xFFFFFF) {
+					throw new IllegalArgumentException("Tag too long at " + offset);
+				}
+				b = data[pos++] & 0xFF;
+				t = (t << 8) | b;
+			} while ((b & 0x80) == 0x80);
+		}
+		check(pos, 1);
+		int l = data[pos++] & 0xFF;
+		if (l > 0x80) {
+			int n = l & 0x7F;
+			if (n > 3) {
+				throw new IllegalArgumentException("Length too long at " + offset);
+			}
+			check(pos, n);
+			l = 0;
+			for (int i = 0; i < n; i++) {
+				l = (l << 8) | (data[pos++] & 0xFF);
+			}
+		} else if (l == 0x80) {
+			throw new IllegalArgumentException("Indefinite length at " + offset);
+		}
+		check(pos, l);
+		tag = t;
+		valueOffset = pos;
+		length = l;
+		return true;
+	}
+
+	/**
+	 * Move to the next element with the tag on the current level.
+	 *
+	 * @return false if there is no such element, the level is then at the end
+	 */
+	public boolean find(int tag) {
+		while (next()) {
+			if (this.tag == tag) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Descend into the value of the current element, which is then read
+	 * as a level of its own. The element does not have to be marked
+	 * as constructed, as some cards use primitive tags for templates.
+	 */
+	public TLVReader enter() {
+		if (tag == -1) {
+			throw new IllegalStateException("No element to enter");
+		}
+		if (depth == MAX_DEPTH) {
+			throw new IllegalArgumentException("Nested too deep at " + offset);
+		}
+		int s = depth++ * 6;
+		stack[s] = start;
+		stack[s + 1] = end;
+		stack[s + 2] = offset;
+		stack[s + 3] = tag;
+		stack[s + 4] = valueOffset;
+		stack[s + 5] = length;
+		start = valueOffset;
+		end = valueOffset + length;
+		tag = -1;
+		return this;
+	}
+
+	/**
+	 * Go back to the level above, to the element that was entered.
+	 */
+	public TLVReader exit() {
+		if (depth == 0) {
+			throw new IllegalStateException("Not in a constructed element");
+		}
+		int s = --depth * 6;
+		start = stack[s];
+		end = stack[s + 1];
+		offset = stack[s + 2];
+		tag = stack[s + 3];
+		valueOffset = stack[s + 4];
+		length = stack[s + 5];
+		return this;
+	}
+
+	/**
+	 * Go back to before the first element of the current level.
+	 */
+	public TLVReader rewind() {
+		offset = start;
+		valueOffset = start;
+		length = 0;
+		tag = -1;
+		return this;
+	}
+
+	/**
+	 * Find the element and enter it, in one step.
+	 *
+	 * @throws IllegalArgumentException if there is no such element
+	 */
+	public TLVReader enter(int tag) {
+		if (!find(tag)) {
+			throw new IllegalArgumentException("No tag " + Integer.toHexString(tag));
+		}
+		return enter();
+	}
+
+	private void check(int pos, int n) {
+		if (pos + n > end) {
+			throw new IllegalArgumentException("TLV at " + offset + " does not fit " + (end - offset) + " bytes");
+		}
+	}
+
+	public byte[] array() {
+		return data;
+	}
+
+	public int tag() {
+		return tag;
+	}
+
+	public boolean isConstructed() {
+		int first = tag;
+		while (first > 0xFF) {
+			first >>>= 8;
+		}
+		return (first & 0x20) == 0x20;
+	}
+
+	// Offset of the tag of the current element
+	public int offset() {
+		return offset;
+	}
+
+	public int valueOffset() {
+		return valueOffset;
+	}
+
+	public int length() {
+		return length;
+	}
+
+	// Offset after the current element
+	public int end() {
+		return valueOffset + length;
+	}
+
+	public int byteAt(int index) {
+		if (index < 0 || index >= length) {
+			throw new IndexOutOfBoundsException();
+		}
+		return data[valueOffset + index] & 0xFF;
+	}
+
+	// Copy of the value
+	public byte[] value() {
+		return Arrays.copyOfRange(data, valueOffset, valueOffset + length);
+	}
+
+	/**
+	 * The value as an object identifier in dotted notation.
+	 */
+	public String oid() {
+		if (length == 0) {
+			throw new IllegalArgumentException("Empty OID at " + offset);
+		}
+		StringBuilder sb = new StringBuilder();
+		long arc = 0;
+		boolean first = true;
+		for (int i = valueOffset; i < valueOffset + length; i++) {
+			arc = (arc << 7) | (data[i] & 0x7F);
+			if ((data[i] & 0x80) == 0x80) {
+				if (arc > Long.MAX_VALUE >> 7) {
+					throw new IllegalArgumentException("OID arc too long at " + offset);
+				}
+				continue;
+			}
+			if (first) {
+				int top = arc < 80 ? (int) (arc / 40) : 2;
+				sb.append(top).append('.').append(arc - top * 40);
+				first = false;
+			} else {
+				sb.append('.').append(arc);
+			}
+			arc = 0;
+		}
+		if ((data[valueOffset + length - 1] & 0x80) == 0x80) {
+			throw new IllegalArgumentException("Truncated OID at " + offset);
+		}
+		return sb.toString();
+	}
+}
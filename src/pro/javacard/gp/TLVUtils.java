@@ -4,6 +4,13 @@ import java.util.Arrays;
 
 import apdu4j.HexUtils;
 
+/**
+ * Single byte tag and length helpers.
+ *
+ * @deprecated use {@link TLVReader}, which also reads multi-byte tags and
+ * lengths. Will be removed in the next release.
+ */
+@Deprecated
 public final class TLVUtils {
 
 	static short skipTag(byte[] data, short offset, byte tag) {
@@ -0,0 +1,69 @@
+package pro.javacard.gp.tests;
+
+import java.util.Random;
+
+import org.bouncycastle.crypto.engines.AESEngine;
+import org.bouncycastle.crypto.macs.CMac;
+import org.bouncycastle.crypto.params.KeyParameter;
+import org.junit.Assert;
+import org.junit.Test;
+
+import pro.javacard.gp.AESCMac;
+import apdu4j.HexUtils;
+
+public class TestAESCMac {
+	// RFC 4493 section 4
+	static final byte[] KEY = HexUtils.stringToBin("2B7E151628AED2A6ABF7158809CF4F3C");
+	static final byte[] MSG = HexUtils.stringToBin("6BC1BEE22E409F96E93D7E117393172AAE2D8A571E03AC9C9EB76FAC45AF8E5130C81C46A35CE411E5FBC1191A0A52EFF69F2445DF4F9B17AD2B417BE66C3710");
+
+	static String mac(AESCMac cmac, byte[] msg, int len) {
+		byte[] out = new byte[16];
+		cmac.update(msg, 0, len);
+		cmac.doFinal(out, 0);
+		return HexUtils.encodeHexString(out);
+	}
+
+	@Test
+	public void testRFC4493() {
+		// The same object is reused, doFinal() resets it
+		AESCMac cmac = new AESCMac(KEY);
+		Assert.assertEquals("BB1D6929E95937287FA37D129B756746", mac(cmac, MSG, 0));
+		Assert.assertEquals("070A16B46B4D4144F79BDD9DD04A287C", mac(cmac, MSG, 16));
+		Assert.assertEquals("DFA66747DE9AE63030CA32611497C827", mac(cmac, MSG, 40));
+		Assert.assertEquals("51F0BEBF7E3B9D92FC49741779363CFE", mac(cmac, MSG, 64));
+	}
+
+	@Test
+	public void testIncremental() {
+		AESCMac cmac = new AESCMac(KEY);
+		byte[] out = new byte[16];
+		cmac.update(MSG, 0, 7);
+		cmac.update(MSG[7]);
+		cmac.update(MSG, 8, 8);
+		cmac.update(MSG, 16, 48);
+		cmac.doFinal(out, 0);
+		Assert.assertEquals("51F0BEBF7E3B9D92FC49741779363CFE", HexUtils.encodeHexString(out));
+		// Half fed and reset is the same as new
+		cmac.update(MSG, 0, 20);
+		cmac.reset();
+		Assert.assertEquals("070A16B46B4D4144F79BDD9DD04A287C", mac(cmac, MSG, 16));
+	}
+
+	@Test
+	public void testBouncyCastle() {
+		Random r = new Random(4493);
+		byte[] key = new byte[16];
+		byte[] msg = new byte[600];
+		r.nextBytes(msg);
+		for (int i = 0; i < 100; i++) {
+			r.nextBytes(key);
+			int len = r.nextInt(msg.length);
+			CMac bc = new CMac(new AESEngine());
+			bc.init(new KeyParameter(key));
+			bc.update(msg, 0, len);
+			byte[] expected = new byte[16];
+			bc.doFinal(expected, 0);
+			Assert.assertEquals(HexUtils.encodeHexString(expected), mac(new AESCMac(key), msg, len));
+		}
+	}
+}
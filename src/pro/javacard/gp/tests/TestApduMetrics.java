@@ -0,0 +1,74 @@
+package pro.javacard.gp.tests;
+
+import java.util.EnumSet;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import pro.javacard.gp.AID;
+import pro.javacard.gp.ApduMetrics;
+import pro.javacard.gp.ApduMetrics.Histogram;
+import pro.javacard.gp.ApduMetrics.Phase;
+import pro.javacard.gp.ApduMetrics.Stats;
+import pro.javacard.gp.GPData;
+import pro.javacard.gp.GPKeySet;
+import pro.javacard.gp.GPKeySet.GPKey;
+import pro.javacard.gp.GPKeySet.GPKey.Type;
+import pro.javacard.gp.GlobalPlatform;
+import pro.javacard.gp.GlobalPlatform.APDUMode;
+import pro.javacard.gp.ScriptCard;
+import apdu4j.HexUtils;
+
+public class TestApduMetrics {
+
+	@Test
+	public void testHistogram() {
+		Histogram h = new Histogram();
+		// 1..1000 us
+		for (int i = 1; i <= 1000; i++) {
+			h.record(i * 1000L);
+		}
+		Assert.assertEquals(1000, h.getCount());
+		Assert.assertEquals(1, h.getMin());
+		Assert.assertEquals(1000, h.getMax());
+		Assert.assertEquals(500.5, h.getMean(), 0.001);
+		// Within the relative error of the buckets
+		Assert.assertEquals(500, h.getPercentile(50), 500 / 16.0);
+		Assert.assertEquals(990, h.getPercentile(99), 990 / 16.0);
+		Assert.assertEquals(1000, h.getPercentile(100));
+		// Exact at powers of two
+		Assert.assertEquals(511, h.getCountBelow(512));
+		Assert.assertEquals(15, h.getCountBelow(16));
+	}
+
+	@Test
+	public void testSession() throws Exception {
+		GPKeySet keys = new GPKeySet(new GPKey(HexUtils.stringToBin("404142434445464748494A4B4C4D4E4F"), Type.AES));
+		ScriptCard card = new ScriptCard(keys, new AID(GPData.defaultISDBytes), 1, null);
+		ApduMetrics metrics = new ApduMetrics();
+		GlobalPlatform gp = new GlobalPlatform(card.getBasicChannel());
+		gp.setMetrics(metrics);
+		gp.select(null);
+		gp.openSecureChannel(keys, null, 0, EnumSet.of(APDUMode.MAC));
+		for (int i = 0; i < 3; i++) {
+			gp.deleteAID(new AID("A0000000010101"), false);
+		}
+
+		long transmitted = 0;
+		for (Stats s: metrics.getStats()) {
+			if (s.getINS() == 0xE4) {
+				Assert.assertEquals(s.getPhase().toString(), 3, s.getCount());
+				if (s.getPhase() == Phase.WRAP) {
+					// C-MAC is added
+					Assert.assertEquals(s.getBytesIn() + 3 * 8, s.getBytesOut());
+				}
+			}
+			if (s.getPhase() == Phase.TRANSMIT) {
+				transmitted += s.getCount();
+			}
+		}
+		Assert.assertEquals(card.getScript().size(), transmitted);
+		Assert.assertTrue(metrics.toJSON().contains("\"phase\": \"wrap\", \"ins\": \"E4\", \"count\": 3"));
+		Assert.assertTrue(metrics.toPrometheus().contains("gp_apdu_seconds_count{phase=\"transmit\",ins=\"E4\"} 3"));
+	}
+}
@@ -0,0 +1,77 @@
+package pro.javacard.gp.tests;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.nio.file.Files;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import pro.javacard.gp.CapFile;
+import pro.javacard.gp.CapFileCache;
+
+public class TestCapFileCache {
+	static File[] stored(File dir) {
+		return dir.listFiles(new FilenameFilter() {
+			@Override
+			public boolean accept(File d, String name) {
+				return name.endsWith(".lfdb");
+			}
+		});
+	}
+
+	@Test
+	public void testDiskCache() throws IOException {
+		File dir = Files.createTempDirectory("capcache").toFile();
+		File f = new File(dir, "test.cap");
+		Files.write(f.toPath(), TestEmulator.capBytes(1000));
+		CapFile cap = new CapFile(f);
+		byte[] lfdb = cap.getLoadFileData(false);
+		byte[] hash = cap.getLoadFileDataHash(false);
+		cap.close();
+
+		CapFileCache cache = new CapFileCache(dir);
+		Assert.assertSame(cache.get(f), cache.get(f));
+		Assert.assertArrayEquals(lfdb, cache.get(f).getLoadFileData(false));
+		File[] stored = stored(dir);
+		Assert.assertEquals(1, stored.length);
+
+		// A stored copy of the right length with other data is rebuilt
+		byte[] data = Files.readAllBytes(stored[0].toPath());
+		data[data.length - 1] ^= 0x01;
+		Files.write(stored[0].toPath(), data);
+		CapFile cached = new CapFileCache(dir).get(f);
+		Assert.assertArrayEquals(lfdb, cached.getLoadFileData(false));
+		Assert.assertArrayEquals(hash, cached.getLoadFileDataHash(false));
+		Assert.assertEquals(lfdb[lfdb.length - 1], Files.readAllBytes(stored[0].toPath())[data.length - 1]);
+
+		// A truncated copy too
+		Files.write(stored[0].toPath(), new byte[10]);
+		Assert.assertArrayEquals(lfdb, new CapFileCache(dir).get(f).getLoadFileData(false));
+		Assert.assertEquals(data.length, stored[0].length());
+	}
+
+	@Test
+	public void testNotShared() throws IOException {
+		File dir = Files.createTempDirectory("capcache").toFile();
+		File f = new File(dir, "test.cap");
+		Files.write(f.toPath(), TestEmulator.capBytes(1000));
+		CapFileCache cache = new CapFileCache(false);
+		CapFile cap = cache.get(f);
+		// Parsed once, blocks streamed by the plain CapFile
+		Assert.assertSame(cap, cache.get(f));
+		Assert.assertSame(CapFile.class, cap.getClass());
+		Assert.assertTrue(cap.getLoadBlockIterator(false, false, 247).hasNext());
+
+		// Cleared files are closed
+		cache.clear();
+		Assert.assertEquals(0, cache.size());
+		try {
+			cap.getLoadFileData(false);
+			Assert.fail("Closed CAP file was read");
+		} catch (IllegalStateException e) {
+			// Zip file closed
+		}
+	}
+}
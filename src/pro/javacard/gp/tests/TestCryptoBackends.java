@@ -0,0 +1,214 @@
+package pro.javacard.gp.tests;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumSet;
+import java.util.List;
+
+import org.bouncycastle.crypto.engines.DESEngine;
+import org.bouncycastle.crypto.macs.ISO9797Alg3Mac;
+import org.bouncycastle.crypto.paddings.ISO7816d4Padding;
+import org.bouncycastle.crypto.params.KeyParameter;
+import org.junit.Assert;
+import org.junit.Test;
+
+import pro.javacard.gp.AESCMac;
+import pro.javacard.gp.CryptoBackend;
+import pro.javacard.gp.GPCardEmulator;
+import pro.javacard.gp.GPCrypto;
+import pro.javacard.gp.GPData;
+import pro.javacard.gp.GPKeySet.GPKey;
+import pro.javacard.gp.GPKeySet.GPKey.Type;
+import pro.javacard.gp.GlobalPlatform;
+import pro.javacard.gp.GlobalPlatform.APDUMode;
+import pro.javacard.gp.RetailMac;
+import apdu4j.HexUtils;
+
+/**
+ * Known answer tests that every crypto backend must pass, plus cross checks
+ * that all backends agree on the composite operations.
+ */
+public class TestCryptoBackends {
+	static final List<CryptoBackend> backends = CryptoBackend.getBackends();
+
+	static byte[] h(String s) {
+		return HexUtils.stringToBin(s);
+	}
+
+	// Delegates to a backend and keeps the keys it was asked for
+	static class RecordingBackend extends CryptoBackend {
+		final CryptoBackend backend;
+		final List<String> keys = new ArrayList<String>();
+
+		RecordingBackend(CryptoBackend backend) {
+			this.backend = backend;
+		}
+		@Override
+		public String getName() {
+			return backend.getName();
+		}
+		@Override
+		public BlockEncryptor getEncryptor(Type type, byte[] key) {
+			keys.add(HexUtils.encodeHexString(key));
+			return backend.getEncryptor(type, key);
+		}
+	}
+
+	static void assertHex(String msg, String expected, byte[] actual) {
+		Assert.assertEquals(msg, expected, HexUtils.encodeHexString(actual));
+	}
+
+	@Test
+	public void testBlockEncrypt() {
+		for (CryptoBackend b: backends) {
+			// FIPS 197 appendix C.1
+			assertHex(b + " AES", "69C4E0D86A7B0430D8CDB78070B4C55A", b.encryptECB(Type.AES, h("000102030405060708090A0B0C0D0E0F"), h("00112233445566778899AABBCCDDEEFF")));
+			// FIPS 46 example
+			assertHex(b + " DES", "85E813540F0AB405", b.encryptECB(Type.DES, h("133457799BBCDFF1"), h("0123456789ABCDEF")));
+			// With K1 == K2 3DES is single DES
+			assertHex(b + " 3DES", "85E813540F0AB405", b.encryptECB(Type.DES3, h("133457799BBCDFF1133457799BBCDFF1"), h("0123456789ABCDEF")));
+		}
+	}
+
+	@Test
+	public void testCMAC() {
+		// RFC 4493 section 4
+		byte[] key = h("2B7E151628AED2A6ABF7158809CF4F3C");
+		byte[] msg = h("6BC1BEE22E409F96E93D7E117393172AAE2D8A571E03AC9C9EB76FAC45AF8E5130C81C46A35CE411E5FBC1191A0A52EFF69F2445DF4F9B17AD2B417BE66C3710");
+		for (CryptoBackend b: backends) {
+			assertHex(b + " empty", "BB1D6929E95937287FA37D129B756746", b.cmac(key, msg, 0, 0));
+			assertHex(b + " 16", "070A16B46B4D4144F79BDD9DD04A287C", b.cmac(key, msg, 0, 16));
+			assertHex(b + " 40", "DFA66747DE9AE63030CA32611497C827", b.cmac(key, msg, 0, 40));
+			assertHex(b + " 64", "51F0BEBF7E3B9D92FC49741779363CFE", b.cmac(key, msg, 0, 64));
+			// Incremental and one-shot must be the same
+			AESCMac cmac = new AESCMac(b.getEncryptor(Type.AES, key));
+			byte[] out = new byte[16];
+			cmac.update(msg, 0, 7);
+			cmac.update(msg[7]);
+			cmac.update(msg, 8, 32);
+			cmac.doFinal(out, 0);
+			assertHex(b + " incremental", "DFA66747DE9AE63030CA32611497C827", out);
+		}
+	}
+
+	@Test
+	public void testRetailMac() {
+		byte[] key = h("0123456789ABCDEFFEDCBA9876543210");
+		byte[] data = new byte[100];
+		for (int i = 0; i < data.length; i++) {
+			data[i] = (byte) (i * 13);
+		}
+		for (CryptoBackend b: backends) {
+			RetailMac mac = new RetailMac(b.getEncryptor(Type.DES, key), b.getEncryptor(Type.DES3, key));
+			byte[] out = new byte[8];
+			for (int len = 0; len <= data.length; len++) {
+				// Reference implementation with the same padding
+				ISO9797Alg3Mac ref = new ISO9797Alg3Mac(new DESEngine(), new ISO7816d4Padding());
+				ref.init(new KeyParameter(key));
+				ref.update(data, 0, len);
+				byte[] expected = new byte[8];
+				ref.doFinal(expected, 0);
+
+				mac.init(null);
+				mac.update(data, 0, len);
+				mac.doFinal(out, 0);
+				Assert.assertArrayEquals(b + " retail MAC " + len, expected, out);
+
+				// Byte by byte and in uneven chunks
+				mac.init(null);
+				for (int i = 0; i < len; i++) {
+					mac.update(data[i]);
+				}
+				mac.doFinal(out, 0);
+				Assert.assertArrayEquals(b + " bytewise " + len, expected, out);
+				for (int i = 0; i < len; i += 5) {
+					mac.update(data, i, Math.min(5, len - i));
+				}
+				mac.doFinal(out, 0);
+				Assert.assertArrayEquals(b + " chunked " + len, expected, out);
+			}
+			// With an ICV
+			byte[] icv = h("0102030405060708");
+			mac.init(icv);
+			mac.update(data, 0, 37);
+			mac.doFinal(out, 0);
+			Assert.assertArrayEquals(GPCrypto.mac_des_3des(new GPKey(key, Type.DES3), Arrays.copyOf(data, 37), icv), out);
+		}
+	}
+
+	@Test
+	public void testCrossBackend() {
+		byte[] key = GPData.defaultKeyBytes;
+		byte[] data = new byte[64];
+		for (int i = 0; i < data.length; i++) {
+			data[i] = (byte) (i * 7);
+		}
+		byte[] iv = h("0102030405060708");
+		byte[] context = h("00112233445566778899AABBCCDDEEFF");
+
+		CryptoBackend ref = backends.get(0);
+		for (CryptoBackend b: backends) {
+			for (int len = 8; len <= data.length; len += 8) {
+				Assert.assertArrayEquals(b + " retail MAC " + len, ref.retailMac(key, data, 0, len, iv), b.retailMac(key, data, 0, len, iv));
+			}
+			Assert.assertArrayEquals(b + " 3DES CBC", ref.encryptCBC(Type.DES3, key, iv, data), b.encryptCBC(Type.DES3, key, iv, data));
+			Assert.assertArrayEquals(b + " AES CBC", ref.encryptCBC(Type.AES, key, null, data), b.encryptCBC(Type.AES, key, null, data));
+			Assert.assertArrayEquals(b + " key wrap AES", ref.wrapKey(Type.AES, key, data), b.wrapKey(Type.AES, key, data));
+			Assert.assertArrayEquals(b + " key wrap 3DES", ref.wrapKey(Type.DES3, key, data), b.wrapKey(Type.DES3, key, data));
+			for (int bits: new int[] {64, 128, 192, 256}) {
+				byte[] k = b.kdf(key, (byte) 0x04, context, bits);
+				Assert.assertEquals(bits / 8, k.length);
+				Assert.assertArrayEquals(b + " KDF " + bits, ref.kdf(key, (byte) 0x04, context, bits), k);
+			}
+		}
+		// Retail MAC over a single block is 3DES of block XOR IV
+		byte[] x = Arrays.copyOf(data, 8);
+		for (int i = 0; i < 8; i++) {
+			x[i] ^= iv[i];
+		}
+		Assert.assertArrayEquals(ref.encryptECB(Type.DES3, key, x), ref.retailMac(key, data, 0, 8, iv));
+	}
+
+	@Test
+	public void testSessionsUseBackend() throws Exception {
+		CryptoBackend saved = GPCrypto.getBackend();
+		try {
+			for (CryptoBackend b: backends) {
+				RecordingBackend r = new RecordingBackend(b);
+				GPCrypto.setBackend(r);
+				// Session keys are derived with the static ENC key (SCP01) or MAC key (SCP02)
+				TestSecureChannelVectors.replay(TestSecureChannelVectors.SCP01, Type.DES3, EnumSet.of(APDUMode.ENC));
+				Assert.assertTrue(b + " SCP01", r.keys.contains("404142434445464748494A4B4C4D4E4F"));
+				TestSecureChannelVectors.replay(TestSecureChannelVectors.SCP02, Type.DES3, EnumSet.of(APDUMode.ENC, APDUMode.RMAC));
+				Assert.assertTrue(b + " SCP02", r.keys.contains("505152535455565758595A5B5C5D5E5F"));
+
+				// The check value of a new 3DES key is computed with it
+				GPCardEmulator card = new GPCardEmulator(TestEmulator.keys(2), TestEmulator.ISD, 2);
+				GlobalPlatform gp = TestEmulator.open(card, TestEmulator.keys(2), EnumSet.of(APDUMode.MAC));
+				GPKey nk = new GPKey(h("707172737475767778797A7B7C7D7E7F"), Type.DES3);
+				List<GPKey> list = new ArrayList<GPKey>();
+				list.add(new GPKey(1, 1, nk));
+				list.add(new GPKey(1, 2, nk));
+				list.add(new GPKey(1, 3, nk));
+				gp.putKeys(list, false);
+				Assert.assertTrue(b + " PUT KEY", r.keys.contains("707172737475767778797A7B7C7D7E7F"));
+				Assert.assertTrue(card.getKeyVersions().contains(1));
+			}
+		} finally {
+			GPCrypto.setBackend(saved);
+		}
+	}
+
+	@Test
+	public void testSelection() {
+		for (CryptoBackend b: backends) {
+			Assert.assertSame(b.getClass(), CryptoBackend.getInstance(b.getName()).getClass());
+		}
+		Assert.assertNotNull(CryptoBackend.fastest(10));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testUnknownBackend() {
+		CryptoBackend.getInstance("nonexistent");
+	}
+}
@@ -0,0 +1,417 @@
+package pro.javacard.gp.tests;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import javax.smartcardio.CommandAPDU;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import pro.javacard.gp.AID;
+import pro.javacard.gp.AIDRegistry;
+import pro.javacard.gp.AIDRegistry.Scope;
+import pro.javacard.gp.AIDRegistryEntry;
+import pro.javacard.gp.ApduMetrics;
+import pro.javacard.gp.CapFile;
+import pro.javacard.gp.GPCardEmulator;
+import pro.javacard.gp.GPData;
+import pro.javacard.gp.GPException;
+import pro.javacard.gp.GPKeySet;
+import pro.javacard.gp.GPKeySet.GPKey;
+import pro.javacard.gp.GPKeySet.GPKey.Type;
+import pro.javacard.gp.GlobalPlatform;
+import pro.javacard.gp.GlobalPlatform.APDUMode;
+import apdu4j.HexUtils;
+
+public class TestEmulator {
+	static final AID ISD = new AID(GPData.defaultISDBytes);
+	static final AID PACKAGE = new AID("D27600012401");
+	static final AID APPLET = new AID("D2760001240101");
+
+	static GPKeySet keys(int scp) {
+		if (scp == 3) {
+			return new GPKeySet(new GPKey(HexUtils.stringToBin("404142434445464748494A4B4C4D4E4F"), Type.AES));
+		}
+		return new GPKeySet(GPData.defaultKey);
+	}
+
+	// A CAP file with only the Header and Applet components
+	static CapFile cap() throws IOException {
+		return cap(0);
+	}
+
+	// With a Method component of the given size, to have more LOAD blocks
+	static CapFile cap(int method) throws IOException {
+		return new CapFile(new ByteArrayInputStream(capBytes(method)));
+	}
+
+	static byte[] capBytes(int method) throws IOException {
+		byte[] pkg = PACKAGE.getBytes();
+		byte[] app = APPLET.getBytes();
+		ByteArrayOutputStream header = new ByteArrayOutputStream();
+		header.write(new byte[] { 0x01, 0x00, (byte) (10 + pkg.length), (byte) 0xDE, (byte) 0xCA, (byte) 0xFF, (byte) 0xED, 0x01, 0x02, 0x04, 0x00, 0x01, (byte) pkg.length });
+		header.write(pkg);
+		ByteArrayOutputStream applet = new ByteArrayOutputStream();
+		applet.write(new byte[] { 0x03, 0x00, (byte) (4 + app.length), 0x01, (byte) app.length });
+		applet.write(app);
+		applet.write(new byte[] { 0x00, 0x10 });
+
+		ByteArrayOutputStream bo = new ByteArrayOutputStream();
+		try (ZipOutputStream zip = new ZipOutputStream(bo)) {
+			zip.putNextEntry(new ZipEntry("test/javacard/Header.cap"));
+			zip.write(header.toByteArray());
+			zip.putNextEntry(new ZipEntry("test/javacard/Applet.cap"));
+			zip.write(applet.toByteArray());
+			if (method > 0) {
+				zip.putNextEntry(new ZipEntry("test/javacard/Method.cap"));
+				zip.write(new byte[] { 0x07, (byte) (method >> 8), (byte) method });
+				zip.write(new byte[method]);
+			}
+		}
+		return bo.toByteArray();
+	}
+
+	static GlobalPlatform open(GPCardEmulator card, GPKeySet keys, EnumSet<APDUMode> mode) throws Exception {
+		GlobalPlatform gp = new GlobalPlatform(card.getBasicChannel());
+		gp.setStrict(true);
+		gp.select(null);
+		gp.openSecureChannel(keys, null, GlobalPlatform.SCP_ANY, mode);
+		return gp;
+	}
+
+	private void lifecycle(int scp, EnumSet<APDUMode> mode) throws Exception {
+		GPCardEmulator card = new GPCardEmulator(keys(scp), ISD, scp);
+		GlobalPlatform gp = open(card, keys(scp), mode);
+		Assert.assertEquals(scp, gp.getSCPVersion());
+
+		gp.loadCapFile(cap());
+		gp.installAndMakeSelectable(PACKAGE, APPLET, null, GPData.defaultSelectedPriv, null, null);
+		AIDRegistry reg = gp.getRegistry();
+		Assert.assertTrue(reg.allPackageAIDs().contains(PACKAGE));
+		Assert.assertTrue(reg.allAppletAIDs().contains(APPLET));
+		Assert.assertEquals(APPLET, reg.getDefaultSelectedAID());
+
+		gp.lockUnlockApplet(APPLET, true);
+		for (AIDRegistryEntry e : gp.getRegistry()) {
+			if (e.getAID().equals(APPLET)) {
+				Assert.assertEquals(0x87, e.getLifeCycleState() & 0xFF);
+			}
+		}
+		try {
+			gp.deleteAID(PACKAGE, false);
+			Assert.fail("Package with an instance was deleted");
+		} catch (GPException e) {
+			Assert.assertEquals(0x6985, e.sw);
+		}
+		gp.deleteAID(PACKAGE, true);
+		Assert.assertEquals(1, gp.getRegistry().allAIDs().size());
+		Assert.assertEquals(1, card.getRegistry().allAIDs().size());
+	}
+
+	@Test
+	public void testSCP01() throws Exception {
+		lifecycle(1, EnumSet.of(APDUMode.MAC));
+		lifecycle(1, EnumSet.of(APDUMode.ENC));
+	}
+
+	@Test
+	public void testSCP02() throws Exception {
+		lifecycle(2, EnumSet.of(APDUMode.MAC));
+		lifecycle(2, EnumSet.of(APDUMode.ENC));
+	}
+
+	@Test
+	public void testSCP03() throws Exception {
+		lifecycle(3, EnumSet.of(APDUMode.MAC));
+		lifecycle(3, EnumSet.of(APDUMode.ENC));
+	}
+
+	@Test
+	public void testImplicit() throws Exception {
+		GPCardEmulator card = new GPCardEmulator(keys(2), ISD, 2, 0x1A);
+		card.setSequenceCounter(0x2A);
+		GlobalPlatform gp = new GlobalPlatform(card.getBasicChannel());
+		gp.setStrict(true);
+		gp.select(null);
+		gp.openImplicitSecureChannel(keys(2), GlobalPlatform.SCP_02_1A, EnumSet.of(APDUMode.MAC));
+		gp.loadCapFile(cap());
+		gp.installAndMakeSelectable(PACKAGE, APPLET, null, (byte) 0x00, null, null);
+		Assert.assertTrue(card.getRegistry().allAppletAIDs().contains(APPLET));
+		Assert.assertTrue(gp.verifyRegistry());
+		// The session used counter 2A
+		Assert.assertArrayEquals(new byte[] { 0x00, 0x2B }, gp.fetchSequenceCounter());
+
+		// Not opened with other keys
+		gp = new GlobalPlatform(card.getBasicChannel());
+		gp.select(null);
+		gp.openImplicitSecureChannel(new GPKeySet(new GPKey(HexUtils.stringToBin("505152535455565758595A5B5C5D5E5F"), Type.DES3)), GlobalPlatform.SCP_02_1A, EnumSet.of(APDUMode.MAC));
+		Assert.assertEquals(0x6982, gp.transmit(new CommandAPDU(0x80, 0xF2, 0x80, 0x00, new byte[] { 0x4F, 0x00 }, 256)).getSW());
+	}
+
+	private void pipelinedLoad(int scp, EnumSet<APDUMode> mode) throws Exception {
+		GPCardEmulator card = new GPCardEmulator(keys(scp), ISD, scp);
+		GlobalPlatform gp = open(card, keys(scp), mode);
+		gp.setLoadPipelineDepth(4);
+		// Fails in the middle, with commands wrapped ahead of the card
+		card.setFreeMemory(1000);
+		try {
+			gp.loadCapFile(cap(3000));
+			Assert.fail("Load file larger than the free memory was loaded");
+		} catch (GPException e) {
+			Assert.assertEquals(0x6A84, e.sw);
+		}
+		// The session continues from the failed command
+		Assert.assertEquals(1, gp.getRegistry().allAIDs().size());
+		card.setFreeMemory(Integer.MAX_VALUE);
+		gp.loadCapFile(cap(3000));
+		gp.installAndMakeSelectable(PACKAGE, APPLET, null, (byte) 0x00, null, null);
+		Assert.assertTrue(card.getRegistry().allPackageAIDs().contains(PACKAGE));
+		Assert.assertTrue(card.getRegistry().allAppletAIDs().contains(APPLET));
+		Assert.assertTrue(gp.verifyRegistry());
+	}
+
+	@Test
+	public void testPipelinedLoad() throws Exception {
+		pipelinedLoad(2, EnumSet.of(APDUMode.MAC));
+		pipelinedLoad(2, EnumSet.of(APDUMode.ENC));
+		pipelinedLoad(3, EnumSet.of(APDUMode.MAC));
+		pipelinedLoad(3, EnumSet.of(APDUMode.ENC));
+	}
+
+	@Test
+	public void testPaging() throws Exception {
+		GPCardEmulator card = new GPCardEmulator(keys(2), ISD, 2);
+		card.setMaxResponseSize(32);
+		GlobalPlatform gp = open(card, keys(2), EnumSet.of(APDUMode.MAC));
+		gp.loadCapFile(cap());
+		for (int i = 0; i < 10; i++) {
+			AID instance = new AID(HexUtils.stringToBin("D27600012401010" + i));
+			gp.installAndMakeSelectable(PACKAGE, APPLET, instance, (byte) 0x00, null, null);
+		}
+		Assert.assertEquals(10, gp.getRegistry().allAppletAIDs().size());
+	}
+
+	@Test
+	public void testRegistryUpdates() throws Exception {
+		GPCardEmulator card = new GPCardEmulator(keys(2), ISD, 2);
+		GlobalPlatform gp = open(card, keys(2), EnumSet.of(APDUMode.MAC));
+		ApduMetrics metrics = new ApduMetrics();
+		gp.setMetrics(metrics);
+		gp.loadCapFile(cap());
+		AID[] instances = new AID[3];
+		for (int i = 0; i < instances.length; i++) {
+			instances[i] = new AID(HexUtils.stringToBin("D27600012401010" + i));
+			gp.installAndMakeSelectable(PACKAGE, APPLET, instances[i], i == 0 ? GPData.defaultSelectedPriv : 0x00, null, null);
+		}
+		gp.makeDefaultSelected(instances[1]);
+		gp.lockUnlockApplet(instances[2], true);
+		Assert.assertEquals(instances[1], gp.getRegistry().getDefaultSelectedAID());
+		gp.lockUnlockApplet(instances[2], false);
+		gp.deleteAID(instances[0], false);
+		Assert.assertEquals(2, gp.getRegistry().allAppletAIDs().size());
+		Assert.assertTrue(gp.verifyRegistry());
+
+		gp.deleteAID(PACKAGE, true);
+		Assert.assertEquals(1, gp.getRegistry().allAIDs().size());
+		Assert.assertTrue(gp.verifyRegistry());
+
+		// The package and each instance are looked up, then all kinds but
+		// load files without modules are read once and by both verifications
+		Assert.assertEquals(4 + 3 + 2 * 3, getStatusCount(metrics));
+	}
+
+	static long getStatusCount(ApduMetrics metrics) {
+		long count = 0;
+		for (ApduMetrics.Stats s : metrics.getStats()) {
+			if (s.getPhase() == ApduMetrics.Phase.TRANSMIT && s.getINS() == 0xF2) {
+				count += s.getCount();
+			}
+		}
+		return count;
+	}
+
+	@Test
+	public void testRegistryScopes() throws Exception {
+		GPCardEmulator card = new GPCardEmulator(keys(2), ISD, 2);
+		GlobalPlatform gp = open(card, keys(2), EnumSet.of(APDUMode.MAC));
+		ApduMetrics metrics = new ApduMetrics();
+		gp.setMetrics(metrics);
+		// Load and install only look up the package and the instance
+		gp.loadCapFile(cap());
+		gp.installAndMakeSelectable(PACKAGE, APPLET, null, (byte) 0x00, null, null);
+		Assert.assertEquals(2, getStatusCount(metrics));
+		Assert.assertNull(gp.lookup(new AID("D2760001240102"), Scope.APPLICATIONS));
+		Assert.assertEquals(3, getStatusCount(metrics));
+		// Load files are looked up with modules
+		Assert.assertEquals(2, gp.lookupPrefix(PACKAGE).size());
+		Assert.assertEquals(6, getStatusCount(metrics));
+
+		// Kinds that have been read are looked up in the registry
+		gp.getRegistry(Scope.APPLICATIONS);
+		Assert.assertNotNull(gp.lookup(APPLET, Scope.APPLICATIONS));
+		Assert.assertEquals(7, getStatusCount(metrics));
+
+		AIDRegistry reg = gp.getRegistry();
+		Assert.assertEquals(9, getStatusCount(metrics));
+		Assert.assertEquals(new HashSet<AID>(card.getRegistry().allAIDs()), new HashSet<AID>(reg.allAIDs()));
+		for (AIDRegistryEntry e : reg.allPackages()) {
+			Assert.assertEquals(AIDRegistryEntry.Kind.ExecutableLoadFilesAndModules, e.getKind());
+		}
+		Assert.assertTrue(gp.verifyRegistry());
+	}
+
+	@Test
+	public void testTaggedStatus() throws Exception {
+		GPCardEmulator card = new GPCardEmulator(keys(2), ISD, 2);
+		GlobalPlatform gp = open(card, keys(2), EnumSet.of(APDUMode.MAC));
+		Assert.assertFalse(gp.isLoaded(cap()));
+		gp.loadCapFile(cap());
+		gp.installAndMakeSelectable(PACKAGE, APPLET, null, (byte) 0x00, null, null);
+		// Version of the package is known without reading the registry again
+		Assert.assertTrue(gp.isLoaded(cap()));
+		Assert.assertTrue(gp.verifyRegistry());
+
+		AIDRegistry reg = gp.getRegistry();
+		for (AIDRegistryEntry e : reg) {
+			Assert.assertEquals(ISD, e.getAssociatedSecurityDomainAID());
+			if (e.isPackage()) {
+				Assert.assertEquals("1.0", e.getVersionString());
+				Assert.assertEquals(APPLET, e.getExecutableAIDs().get(0));
+			} else if (e.isApplet()) {
+				Assert.assertEquals(PACKAGE, e.getExecutableLoadFileAID());
+			} else {
+				Assert.assertArrayEquals(new byte[] { (byte) 0x9E, 0x00, 0x00 }, e.getPrivilegeBytes());
+			}
+		}
+		Assert.assertTrue(gp.isLoaded(cap()));
+	}
+
+	@Test
+	public void testInvalidTaggedStatus() throws Exception {
+		// Life cycle state without a value, in the SCP01 session of the vectors
+		String[] s = TestSecureChannelVectors.SCP01;
+		String[] trace = { s[0], s[1], s[2], s[3], "84F2800210353B9FCF2A0255C5B5FD49FD743ADF6500", "E30A4F05A0000000019F70009000" };
+		GlobalPlatform gp = new GlobalPlatform(new TestSecureChannelVectors.ReplayChannel(trace));
+		gp.sdAID = ISD;
+		gp.openSecureChannel(TestSecureChannelVectors.keys(Type.DES3), TestSecureChannelVectors.HOST_CHALLENGE, GlobalPlatform.SCP_ANY, EnumSet.of(APDUMode.ENC));
+		try {
+			gp.getRegistry();
+			Assert.fail("Empty life cycle state was accepted");
+		} catch (GPException e) {
+			Assert.assertEquals("Invalid GET STATUS entry", e.getMessage());
+		}
+	}
+
+	@Test
+	public void testLegacyStatus() throws Exception {
+		GPCardEmulator card = new GPCardEmulator(keys(2), ISD, 2);
+		card.setTaggedStatus(false);
+		card.setMaxResponseSize(32);
+		GlobalPlatform gp = open(card, keys(2), EnumSet.of(APDUMode.MAC));
+		ApduMetrics metrics = new ApduMetrics();
+		gp.setMetrics(metrics);
+		gp.loadCapFile(cap());
+		for (int i = 0; i < 10; i++) {
+			AID instance = new AID(HexUtils.stringToBin("D27600012401010" + i));
+			gp.installAndMakeSelectable(PACKAGE, APPLET, instance, (byte) 0x00, null, null);
+		}
+		// The tagged format is tried only once
+		Assert.assertEquals(1 + 1 + 10, getStatusCount(metrics));
+		AIDRegistry reg = gp.getRegistry();
+		Assert.assertEquals(10, reg.allAppletAIDs().size());
+		Assert.assertNull(reg.allPackages().get(0).getVersion());
+		Assert.assertFalse(gp.isLoaded(cap()));
+		Assert.assertTrue(gp.verifyRegistry());
+
+		// The legacy format does not list the load files of instances,
+		// so the registry is read again after deleting the package
+		gp.deleteAID(PACKAGE, true);
+		long count = getStatusCount(metrics);
+		Assert.assertEquals(1, gp.getRegistry().allAIDs().size());
+		Assert.assertTrue(getStatusCount(metrics) > count);
+		Assert.assertTrue(gp.verifyRegistry());
+	}
+
+	@Test
+	public void testStatusIterator() throws Exception {
+		for (boolean tagged : new boolean[] { true, false }) {
+			GPCardEmulator card = new GPCardEmulator(keys(2), ISD, 2);
+			card.setTaggedStatus(tagged);
+			card.setMaxResponseSize(32);
+			GlobalPlatform gp = open(card, keys(2), EnumSet.of(APDUMode.MAC));
+			gp.loadCapFile(cap());
+			for (int i = 0; i < 10; i++) {
+				AID instance = new AID(HexUtils.stringToBin("D27600012401010" + i));
+				gp.installAndMakeSelectable(PACKAGE, APPLET, instance, (byte) 0x00, null, null);
+			}
+			ApduMetrics metrics = new ApduMetrics();
+			gp.setMetrics(metrics);
+			// Entries are read as needed, one response at a time
+			Iterator<AIDRegistryEntry> entries = gp.getStatusIterator();
+			Assert.assertEquals(ISD, entries.next().getAID());
+			Assert.assertEquals(1, getStatusCount(metrics));
+			Assert.assertEquals(AIDRegistryEntry.Kind.Application, entries.next().getKind());
+			Assert.assertEquals(2, getStatusCount(metrics));
+			List<AID> aids = new ArrayList<AID>();
+			while (entries.hasNext()) {
+				aids.add(entries.next().getAID());
+			}
+			Assert.assertEquals(12 - 2, aids.size());
+			Assert.assertEquals(PACKAGE, aids.get(aids.size() - 1));
+			Assert.assertTrue(getStatusCount(metrics) > 3);
+		}
+	}
+
+	@Test
+	public void testPutKeys() throws Exception {
+		for (int scp = 1; scp <= 3; scp++) {
+			GPCardEmulator card = new GPCardEmulator(keys(scp), ISD, scp);
+			GlobalPlatform gp = open(card, keys(scp), EnumSet.of(APDUMode.MAC));
+			byte[] value = HexUtils.stringToBin("505152535455565758595A5B5C5D5E5F");
+			GPKey nk = new GPKey(value, scp == 3 ? Type.AES : Type.DES3);
+			List<GPKey> list = new ArrayList<GPKey>();
+			list.add(new GPKey(1, 1, nk));
+			list.add(new GPKey(1, 2, nk));
+			list.add(new GPKey(1, 3, nk));
+			gp.putKeys(list, false);
+			Assert.assertTrue(card.getKeyVersions().contains(1));
+
+			GPKeySet ks = new GPKeySet(nk);
+			ks.setKeyVersion(1);
+			gp = open(card, ks, EnumSet.of(APDUMode.MAC));
+			Assert.assertEquals(1, gp.getKeyInfoTemplate().get(0).getVersion());
+		}
+	}
+
+	@Test
+	public void testWrongKeys() throws Exception {
+		GPCardEmulator card = new GPCardEmulator(keys(2), ISD, 2);
+		GPKeySet wrong = new GPKeySet(new GPKey(HexUtils.stringToBin("505152535455565758595A5B5C5D5E5F"), Type.DES3));
+		try {
+			open(card, wrong, EnumSet.of(APDUMode.MAC));
+			Assert.fail("Card cryptogram was accepted with wrong keys");
+		} catch (GPException e) {
+			// Card cryptogram does not match
+		}
+		// Content management needs a secure channel
+		Assert.assertEquals(0x6982, card.getBasicChannel().transmit(new CommandAPDU(0x80, 0xF2, 0x80, 0x00, new byte[] { 0x4F, 0x00 })).getSW());
+	}
+
+	@Test
+	public void testLatency() throws Exception {
+		GPCardEmulator card = new GPCardEmulator(keys(3), ISD, 3);
+		card.setLatency(0xCA, 20000);
+		long t = System.nanoTime();
+		card.getBasicChannel().transmit(new CommandAPDU(0x80, 0xCA, 0x9F, 0x7F, 256));
+		Assert.assertTrue(System.nanoTime() - t >= 20000000L);
+	}
+}
@@ -0,0 +1,98 @@
+package pro.javacard.gp.tests;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.EnumSet;
+
+import javax.smartcardio.Card;
+import javax.smartcardio.CardException;
+import javax.smartcardio.CardTerminal;
+import javax.smartcardio.CardTerminals;
+import javax.smartcardio.CardTerminals.State;
+import javax.smartcardio.CommandAPDU;
+import javax.smartcardio.TerminalFactory;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import pro.javacard.gp.GPEmulatorProvider;
+import pro.javacard.gp.GPEmulatorProvider.EmulatedReaders;
+import pro.javacard.gp.GPEmulatorProvider.Scenario;
+import pro.javacard.gp.GlobalPlatform;
+import pro.javacard.gp.GlobalPlatform.APDUMode;
+
+public class TestEmulatorProvider {
+
+	static EmulatedReaders readers(String scenario) throws Exception {
+		Scenario s = Scenario.parse(new StringReader(scenario), "test");
+		TerminalFactory tf = TerminalFactory.getInstance(GPEmulatorProvider.TYPE, s, new GPEmulatorProvider());
+		return (EmulatedReaders) tf.terminals();
+	}
+
+	@Test
+	public void testReaders() throws Exception {
+		EmulatedReaders readers = readers("readers 4\nscp 3\nempty on 2-3\n");
+		Assert.assertEquals(4, readers.list().size());
+		Assert.assertEquals(2, readers.list(State.CARD_PRESENT).size());
+		Assert.assertEquals(2, readers.list(State.CARD_INSERTION).size());
+
+		CardTerminal t = readers.list(State.CARD_PRESENT).get(0);
+		Card c = t.connect("*");
+		GlobalPlatform gp = new GlobalPlatform(c.getBasicChannel());
+		gp.select(null);
+		gp.openSecureChannel(TestEmulator.keys(3), null, GlobalPlatform.SCP_ANY, EnumSet.of(APDUMode.MAC));
+		Assert.assertEquals(3, gp.getSCPVersion());
+		c.disconnect(false);
+	}
+
+	@Test
+	public void testHotPlug() throws Exception {
+		EmulatedReaders readers = readers("readers 2\nempty\n");
+		Assert.assertFalse(readers.waitForChange(10));
+		readers.getReader(1).insert();
+		Assert.assertTrue(readers.waitForChange(1000));
+		Assert.assertEquals(readers.getReader(1), readers.list(State.CARD_INSERTION).get(0));
+
+		readers.getReader(1).remove();
+		Assert.assertTrue(readers.waitForChange(1000));
+		Assert.assertEquals(0, readers.list(State.CARD_INSERTION).size());
+		Assert.assertEquals(readers.getReader(1), readers.list(State.CARD_REMOVAL).get(0));
+	}
+
+	@Test
+	public void testCycle() throws Exception {
+		EmulatedReaders readers = readers("readers 1\ncycle 10\n");
+		readers.waitForChange(1);
+		Card c = readers.getReader(0).connect("*");
+		c.disconnect(true);
+		Assert.assertTrue(readers.waitForChange(1000));
+		Assert.assertEquals(1, readers.list(State.CARD_REMOVAL).size());
+		Assert.assertTrue(readers.getReader(0).waitForCardPresent(1000));
+		Assert.assertNotSame(c, readers.getReader(0).connect("*"));
+	}
+
+	@Test
+	public void testFailures() throws Exception {
+		CardTerminals readers = readers("readers 2\nfail 1 on 2\n");
+		CommandAPDU select = new CommandAPDU(0x00, 0xA4, 0x04, 0x00, 256);
+		Assert.assertEquals(0x9000, readers.list().get(0).connect("*").getBasicChannel().transmit(select).getSW());
+		try {
+			readers.list().get(1).connect("*").getBasicChannel().transmit(select);
+			Assert.fail("No failure on reader 2");
+		} catch (CardException e) {
+			// Injected
+		}
+	}
+
+	@Test
+	public void testScenarioErrors() throws IOException {
+		for (String s : new String[] { "scp 4\n", "scp 2\nreaders 2\n", "readers 2\nempty on 3\n", "latency x\n", "nonsense\n" }) {
+			try {
+				Scenario.parse(new StringReader(s), "test");
+				Assert.fail("Accepted " + s.trim());
+			} catch (IllegalArgumentException e) {
+				Assert.assertTrue(e.getMessage().startsWith("test:"));
+			}
+		}
+	}
+}
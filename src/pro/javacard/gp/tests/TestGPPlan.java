@@ -0,0 +1,100 @@
+package pro.javacard.gp.tests;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.EnumSet;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import pro.javacard.gp.AIDRegistry;
+import pro.javacard.gp.CapFileCache;
+import pro.javacard.gp.GPCardEmulator;
+import pro.javacard.gp.GPException;
+import pro.javacard.gp.GPPlan;
+import pro.javacard.gp.GlobalPlatform;
+import pro.javacard.gp.GlobalPlatform.APDUMode;
+
+public class TestGPPlan {
+	// A manifest in a directory with the CAP file in caps/test.cap
+	static File manifest(String... lines) throws IOException {
+		File dir = Files.createTempDirectory("plan").toFile();
+		File caps = new File(dir, "caps");
+		caps.mkdir();
+		Files.write(new File(caps, "test.cap").toPath(), TestEmulator.capBytes(0));
+		StringBuilder sb = new StringBuilder("# Test plan\n");
+		for (String line : lines) {
+			sb.append(line).append("\n");
+		}
+		File f = new File(dir, "plan.txt");
+		Files.write(f.toPath(), sb.toString().getBytes(StandardCharsets.UTF_8));
+		return f;
+	}
+
+	@Test
+	public void testExecute() throws Exception {
+		File f = manifest("load caps/test.cap",
+				"install caps/test.cap params 0102 default",
+				"",
+				"lock 000102030405060708090A0B0C0D0E0F version 2 add",
+				"apdu 80CA9F7F00 any");
+		GPPlan plan = GPPlan.compile(f, new CapFileCache(false));
+		Assert.assertEquals(4, plan.getSteps().size());
+
+		GPCardEmulator card = new GPCardEmulator(TestEmulator.keys(2), TestEmulator.ISD, 2);
+		GlobalPlatform gp = TestEmulator.open(card, TestEmulator.keys(2), EnumSet.of(APDUMode.MAC));
+		ByteArrayOutputStream bo = new ByteArrayOutputStream();
+		plan.execute(gp, new PrintStream(bo, true));
+		Assert.assertTrue(bo.toString().contains("Card locked with"));
+
+		AIDRegistry reg = card.getRegistry();
+		Assert.assertTrue(reg.allPackageAIDs().contains(TestEmulator.PACKAGE));
+		Assert.assertTrue(reg.allAppletAIDs().contains(TestEmulator.APPLET));
+		Assert.assertEquals(TestEmulator.APPLET, reg.getDefaultSelectedAID());
+		// Added, the default keys are still there
+		Assert.assertTrue(card.getKeyVersions().contains(2));
+		Assert.assertTrue(card.getKeyVersions().contains(0xFF));
+	}
+
+	@Test
+	public void testFailedStep() throws Exception {
+		File f = manifest("apdu 80CA9F7F00 6A88");
+		GPPlan plan = GPPlan.compile(f, new CapFileCache(false));
+		GPCardEmulator card = new GPCardEmulator(TestEmulator.keys(2), TestEmulator.ISD, 2);
+		GlobalPlatform gp = TestEmulator.open(card, TestEmulator.keys(2), EnumSet.of(APDUMode.MAC));
+		try {
+			plan.execute(gp, System.out);
+			Assert.fail("CPLC is there, the step expecting 6A88 must fail");
+		} catch (GPException e) {
+			Assert.assertEquals(0x9000, e.sw);
+		}
+	}
+
+	private static void invalid(String line, String message) throws IOException {
+		try {
+			GPPlan.compile(manifest(line), new CapFileCache(false));
+			Assert.fail("Should not compile: " + line);
+		} catch (IllegalArgumentException e) {
+			Assert.assertEquals("plan.txt:2: " + message, e.getMessage());
+		}
+	}
+
+	@Test
+	public void testErrors() throws IOException {
+		invalid("format", "Unknown step format");
+		invalid("delete D27600012401 deps now", "Wrong number of arguments for delete");
+		invalid("delete D27600012401 all", "Unknown option all");
+		invalid("delete D276", "D276 is not a valid AID");
+		invalid("install caps/test.cap params", "params needs a value");
+		invalid("install caps/test.cap privs 0102", "0102 must be 1 bytes");
+		invalid("install caps/test.cap size 10", "Unknown install option size");
+		invalid("lock 000102030405060708090A0B0C0D0E0F version 200", "Key version must be between 1 and 127");
+		invalid("lock 000102030405060708090A0B0C0D0E0F version two", "Not a key version: two");
+		invalid("apdu 80CA9F7F00 90", "90 must be 2 bytes");
+		invalid("apdu 80", "Not a valid APDU: 80");
+	}
+}
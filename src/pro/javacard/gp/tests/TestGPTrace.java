@@ -0,0 +1,28 @@
+package pro.javacard.gp.tests;
+
+import java.io.IOException;
+import java.io.StringWriter;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import pro.javacard.gp.GPTrace;
+
+public class TestGPTrace {
+	@Test
+	public void testLimit() throws IOException {
+		GPTrace trace = new GPTrace(3);
+		for (int i = 0; i < 5; i++) {
+			trace.begin("span" + i).close();
+		}
+		Assert.assertEquals(3, trace.size());
+		Assert.assertEquals(2, trace.dropped());
+		StringWriter w = new StringWriter();
+		trace.write(w);
+		String json = w.toString();
+		Assert.assertTrue(json.contains("\"dropped\": 2"));
+		Assert.assertFalse(json.contains("\"span1\""));
+		Assert.assertTrue(json.contains("\"span2\""));
+		Assert.assertTrue(json.contains("\"span4\""));
+	}
+}
@@ -0,0 +1,69 @@
+package pro.javacard.gp.tests;
+
+import java.io.File;
+import java.util.EnumSet;
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import pro.javacard.gp.AID;
+import pro.javacard.gp.GPCardEmulator;
+import pro.javacard.gp.GPData;
+import pro.javacard.gp.GPException;
+import pro.javacard.gp.GlobalPlatform;
+import pro.javacard.gp.GlobalPlatform.APDUMode;
+import pro.javacard.gp.ScriptCard;
+
+public class TestScriptCard {
+	private static final int COUNTER = 0x2A;
+
+	// Record a session with a script card
+	private ScriptCard record(int counter) throws Exception {
+		ScriptCard card = new ScriptCard(TestEmulator.keys(3), TestEmulator.ISD, counter, null);
+		GlobalPlatform gp = new GlobalPlatform(card.getBasicChannel());
+		gp.select(null);
+		gp.openSecureChannel(TestEmulator.keys(3), null, GlobalPlatform.SCP_ANY, EnumSet.of(APDUMode.MAC, APDUMode.ENC));
+		// Not on the card, the real card answers 6A88
+		gp.deleteAID(new AID("D2760001249999"), true);
+		gp.loadCapFile(TestEmulator.cap());
+		gp.installAndMakeSelectable(TestEmulator.PACKAGE, TestEmulator.APPLET, null, GPData.defaultSelectedPriv, null, null);
+
+		List<String> script = card.getScript();
+		Assert.assertTrue(script.get(0).startsWith("00A40400"));
+		Assert.assertTrue(script.get(1).startsWith("8050"));
+		Assert.assertTrue(script.get(2).startsWith("8482"));
+		return card;
+	}
+
+	private static File write(ScriptCard card) throws Exception {
+		File f = File.createTempFile("session", ".script");
+		f.deleteOnExit();
+		card.writeScript(f);
+		return f;
+	}
+
+	@Test
+	public void testReplay() throws Exception {
+		ScriptCard card = record(COUNTER);
+		GPCardEmulator emulator = new GPCardEmulator(TestEmulator.keys(3), TestEmulator.ISD, 3, 0x10);
+		emulator.setSequenceCounter(COUNTER);
+		Assert.assertEquals(card.getScript().size(), ScriptCard.replay(emulator.getBasicChannel(), write(card)));
+		Assert.assertTrue(emulator.getRegistry().allPackageAIDs().contains(TestEmulator.PACKAGE));
+		Assert.assertTrue(emulator.getRegistry().allAppletAIDs().contains(TestEmulator.APPLET));
+	}
+
+	@Test
+	public void testWrongCounter() throws Exception {
+		File f = write(record(COUNTER));
+		GPCardEmulator emulator = new GPCardEmulator(TestEmulator.keys(3), TestEmulator.ISD, 3, 0x10);
+		emulator.setSequenceCounter(COUNTER + 1);
+		try {
+			ScriptCard.replay(emulator.getBasicChannel(), f);
+			Assert.fail("Replay with another counter must fail");
+		} catch (GPException e) {
+			Assert.assertTrue(e.getMessage().contains("Script line"));
+		}
+		Assert.assertFalse(emulator.getRegistry().allPackageAIDs().contains(TestEmulator.PACKAGE));
+	}
+}
@@ -0,0 +1,190 @@
+package pro.javacard.gp.tests;
+
+import java.nio.ByteBuffer;
+import java.util.EnumSet;
+
+import javax.smartcardio.Card;
+import javax.smartcardio.CardChannel;
+import javax.smartcardio.CardException;
+import javax.smartcardio.CommandAPDU;
+import javax.smartcardio.ResponseAPDU;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import pro.javacard.gp.AID;
+import pro.javacard.gp.GPCardEmulator;
+import pro.javacard.gp.GPData;
+import pro.javacard.gp.GPData.KeyType;
+import pro.javacard.gp.GPException;
+import pro.javacard.gp.GPKeySet;
+import pro.javacard.gp.GPKeySet.GPKey;
+import pro.javacard.gp.GPKeySet.GPKey.Type;
+import pro.javacard.gp.GlobalPlatform;
+import pro.javacard.gp.GlobalPlatform.APDUMode;
+import apdu4j.HexUtils;
+
+/**
+ * Known answer tests of whole secure channel sessions.
+ *
+ * The commands and responses were computed with a separate implementation
+ * of the GP 2.2 algorithms that shares no code with this library. Static
+ * keys are different for ENC, MAC and DEK, the host challenge is fixed.
+ */
+public class TestSecureChannelVectors {
+	static final AID ISD = new AID(GPData.defaultISDBytes);
+	static final byte[] HOST_CHALLENGE = HexUtils.stringToBin("0102030405060708");
+	static final String ISD_ENTRY = "08A0000001510000000F9E9000";
+	static final String APP_ENTRY = "07D276000124010107009000";
+
+	// SCP02 i=15 C-MAC, C-ENC and R-MAC, sequence counter 002A
+	static final String[] SCP02 = {
+		"8050000008010203040506070800", "001122334455667788990102002AA1A2A3A4A5A6C41A60087F569A8D9000",
+		"8482130010E5EA083D9E5BB1A92EA9969A7A21FC1C", "9000",
+		"84F2800010C982CB827289DD965644BF2C76AAC78100", "08A0000001510000000F9EC54D86447B3958819000",
+		"84F2400010C982CB827289DD96E6BF021A83CF85A900", "07D2760001240101070068D2495568EF5ED49000",
+	};
+
+	// SCP01 i=05 C-MAC and C-ENC
+	static final String[] SCP01 = {
+		"8050000008010203040506070800", "001122334455667788990101B1B2B3B4B5B6B7B89F877AA8CF9EBEF69000",
+		"8482030010DBBC0D91F8996BC6B056DA4810354D59", "9000",
+		"84F2800010353B9FCF2A0255C5BB2C217BB65B42F400", "08A0000001510000000F9E9000",
+		"84F2400010353B9FCF2A0255C5E44C03795B11A87200", "07D276000124010107009000",
+	};
+
+	// SCP03 i=10 C-MAC and C-ENC, pseudo-random card challenge of counter 00002A
+	static final String[] SCP03 = {
+		"8050000008010203040506070800", "00112233445566778899010310B459D14E29E4DD17167B55948A46E41100002A9000",
+		"8482030010AB3BAD5C63A6D54CF6F0140743FBFFC4", "9000",
+		"84F2800018211845C64C42BE130238EAD5290D47294BD474B66D30C80A", "08A0000001510000000F9E9000",
+		"84F24000180F61099A3CF65B8BFA6763E625121590621503DDB16FE5AC", "07D276000124010107009000",
+	};
+
+	// SCP02 i=1A implicit C-MAC, sequence counter 002A
+	static final String[] SCP02_IMPLICIT = {
+		"80CA00C100", "C102002A9000",
+		"84F280000A4F00FE4291F37D4245F700", "08A0000001510000000F9E9000",
+		"84F240000A4F00D92D2E3C9088C25100", "07D276000124010107009000",
+	};
+
+	// Answers with the recorded responses if the commands are as recorded
+	static class ReplayChannel extends CardChannel {
+		private final String[] trace;
+		private int n = 0;
+
+		ReplayChannel(String[] trace) {
+			this.trace = trace;
+		}
+		@Override
+		public Card getCard() {
+			return null;
+		}
+		@Override
+		public int getChannelNumber() {
+			return 0;
+		}
+		@Override
+		public ResponseAPDU transmit(CommandAPDU command) throws CardException {
+			return new ResponseAPDU(next(command.getBytes()));
+		}
+		@Override
+		public int transmit(ByteBuffer command, ByteBuffer response) throws CardException {
+			byte[] c = new byte[command.remaining()];
+			command.get(c);
+			byte[] r = next(c);
+			response.put(r);
+			return r.length;
+		}
+		private byte[] next(byte[] command) {
+			Assert.assertTrue("Unexpected command " + HexUtils.encodeHexString(command), n < trace.length);
+			Assert.assertEquals("Command " + (n / 2 + 1), trace[n], HexUtils.encodeHexString(command));
+			n += 2;
+			return HexUtils.stringToBin(trace[n - 1]);
+		}
+		void assertDone() {
+			Assert.assertEquals("Commands sent", trace.length / 2, n / 2);
+		}
+		@Override
+		public void close() throws CardException {
+		}
+	}
+
+	static GPKeySet keys(Type type) {
+		GPKeySet keys = new GPKeySet();
+		keys.setKey(KeyType.ENC, new GPKey(HexUtils.stringToBin("404142434445464748494A4B4C4D4E4F"), type));
+		keys.setKey(KeyType.MAC, new GPKey(HexUtils.stringToBin("505152535455565758595A5B5C5D5E5F"), type));
+		keys.setKey(KeyType.KEK, new GPKey(HexUtils.stringToBin("606162636465666768696A6B6C6D6E6F"), type));
+		return keys;
+	}
+
+	// Opens the session of the trace and reads the ISD and the applications
+	static void replay(String[] trace, Type type, EnumSet<APDUMode> mode) throws CardException, GPException {
+		ReplayChannel channel = new ReplayChannel(trace);
+		GlobalPlatform gp = new GlobalPlatform(channel);
+		gp.setStrict(true);
+		gp.sdAID = ISD;
+		gp.openSecureChannel(keys(type), HOST_CHALLENGE, GlobalPlatform.SCP_ANY, mode);
+		status(gp, channel);
+	}
+
+	static void status(GlobalPlatform gp, ReplayChannel channel) throws CardException, GPException {
+		byte[] query = HexUtils.stringToBin("4F00");
+		ResponseAPDU r = gp.transmit(new CommandAPDU(0x80, 0xF2, 0x80, 0x00, query, 256));
+		Assert.assertEquals(ISD_ENTRY, HexUtils.encodeHexString(r.getBytes()));
+		r = gp.transmit(new CommandAPDU(0x80, 0xF2, 0x40, 0x00, query, 256));
+		Assert.assertEquals(APP_ENTRY, HexUtils.encodeHexString(r.getBytes()));
+		channel.assertDone();
+	}
+
+	@Test
+	public void testSCP02() throws Exception {
+		replay(SCP02, Type.DES3, EnumSet.of(APDUMode.ENC, APDUMode.RMAC));
+	}
+
+	@Test
+	public void testSCP01() throws Exception {
+		replay(SCP01, Type.DES3, EnumSet.of(APDUMode.ENC));
+	}
+
+	@Test
+	public void testSCP03() throws Exception {
+		replay(SCP03, Type.AES, EnumSet.of(APDUMode.ENC));
+	}
+
+	@Test
+	public void testSCP02Implicit() throws Exception {
+		ReplayChannel channel = new ReplayChannel(SCP02_IMPLICIT);
+		GlobalPlatform gp = new GlobalPlatform(channel);
+		gp.setStrict(true);
+		gp.sdAID = ISD;
+		gp.openImplicitSecureChannel(keys(Type.DES3), GlobalPlatform.SCP_02_1A, EnumSet.of(APDUMode.MAC));
+		status(gp, channel);
+	}
+
+	@Test
+	public void testEmulatorImplicit() throws Exception {
+		// The emulator accepts the commands of the trace
+		GPCardEmulator card = new GPCardEmulator(keys(Type.DES3), ISD, 2, 0x1A);
+		card.setSequenceCounter(0x2A);
+		CardChannel channel = card.getBasicChannel();
+		channel.transmit(new CommandAPDU(0x00, 0xA4, 0x04, 0x00, ISD.getBytes()));
+		for (int i = 0; i < 4; i += 2) {
+			ResponseAPDU r = channel.transmit(new CommandAPDU(HexUtils.stringToBin(SCP02_IMPLICIT[i])));
+			Assert.assertEquals(SCP02_IMPLICIT[i + 1], HexUtils.encodeHexString(r.getBytes()));
+		}
+	}
+
+	@Test
+	public void testSCP02InvalidRMAC() throws Exception {
+		String[] trace = SCP02.clone();
+		// Last byte of the R-MAC of the second response
+		trace[7] = trace[7].replace("ED49000", "EE49000");
+		try {
+			replay(trace, Type.DES3, EnumSet.of(APDUMode.ENC, APDUMode.RMAC));
+			Assert.fail("Invalid R-MAC accepted");
+		} catch (GPException e) {
+			Assert.assertEquals("RMAC invalid.", e.getMessage());
+		}
+	}
+}
@@ -0,0 +1,137 @@
+package pro.javacard.gp.tests;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.ByteBuffer;
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.Assume;
+import org.junit.Test;
+
+import pro.javacard.gp.GPData;
+import pro.javacard.gp.GPKeySet.GPKey;
+import pro.javacard.gp.TLVReader;
+import apdu4j.HexUtils;
+
+public class TestTLVReader {
+	// GP 2.1.1 card data of a JCOP card
+	static final String CARD_DATA = "664C734A06072A864886FC6B01600C060A2A864886FC6B02020101630906072A864886FC6B03640B06092A864886FC6B040215650B06092B8510864864020103660C060A2B060104012A026E0102";
+
+	@Test
+	public void testTagsAndLengths() {
+		ByteArrayOutputStream bo = new ByteArrayOutputStream();
+		bo.write(HexUtils.stringToBin("9F7F8180"), 0, 4);
+		bo.write(new byte[0x80], 0, 0x80);
+		bo.write(HexUtils.stringToBin("5F2083000003414243"), 0, 9);
+		bo.write(HexUtils.stringToBin("BF0C820100"), 0, 5);
+		bo.write(new byte[0x100], 0, 0x100);
+		byte[] data = bo.toByteArray();
+		TLVReader tlv = new TLVReader(data);
+		Assert.assertTrue(tlv.next());
+		Assert.assertEquals(0x9F7F, tlv.tag());
+		Assert.assertEquals(0x80, tlv.length());
+		Assert.assertEquals(4, tlv.valueOffset());
+		Assert.assertTrue(tlv.next());
+		Assert.assertEquals(0x5F20, tlv.tag());
+		Assert.assertEquals("ABC", new String(tlv.value()));
+		Assert.assertTrue(tlv.next());
+		Assert.assertEquals(0xBF0C, tlv.tag());
+		Assert.assertTrue(tlv.isConstructed());
+		Assert.assertEquals(0x100, tlv.length());
+		Assert.assertFalse(tlv.next());
+	}
+
+	@Test
+	public void testEnterAndFind() {
+		byte[] fci = HexUtils.stringToBin("6F108408A000000003000000A5049F6501FF9000");
+		TLVReader tlv = TLVReader.of(ByteBuffer.wrap(fci, 0, fci.length - 2));
+		Assert.assertTrue(tlv.find(0x6F));
+		tlv.enter();
+		Assert.assertTrue(tlv.find(0x84));
+		Assert.assertEquals("A000000003000000", HexUtils.encodeHexString(tlv.value()));
+		Assert.assertTrue(tlv.next());
+		Assert.assertEquals(0xA5, tlv.tag());
+		Assert.assertTrue(tlv.enter().find(0x9F65));
+		Assert.assertEquals(0xFF, tlv.byteAt(0));
+		// Missing tags end the level instead of looping
+		Assert.assertFalse(tlv.exit().find(0x84));
+		tlv.exit();
+		Assert.assertEquals(0x6F, tlv.tag());
+		Assert.assertFalse(tlv.next());
+	}
+
+	@Test
+	public void testInvalid() {
+		for (String s : new String[] { "8405A000", "9F", "9F7F", "8483000001", "848401000000", "6F80" }) {
+			try {
+				TLVReader tlv = new TLVReader(HexUtils.stringToBin(s));
+				while (tlv.next()) {
+					continue;
+				}
+				Assert.fail("Accepted " + s);
+			} catch (IllegalArgumentException e) {
+				// Expected
+			}
+		}
+		// Length of the inner element goes past the outer one
+		TLVReader tlv = new TLVReader(HexUtils.stringToBin("6F038405A0000000039000"));
+		tlv.next();
+		try {
+			tlv.enter().next();
+			Assert.fail("Accepted an element past its template");
+		} catch (IllegalArgumentException e) {
+			// Expected
+		}
+	}
+
+	// Bytes allocated by this thread, only on JVM-s that count them
+	static long allocatedBytes() {
+		ThreadMXBean mx = ManagementFactory.getThreadMXBean();
+		Assume.assumeTrue(mx instanceof com.sun.management.ThreadMXBean);
+		return ((com.sun.management.ThreadMXBean) mx).getThreadAllocatedBytes(Thread.currentThread().getId());
+	}
+
+	@Test
+	public void testNoAllocation() {
+		byte[] data = HexUtils.stringToBin(CARD_DATA);
+		TLVReader tlv = new TLVReader(data);
+		int tags = 0;
+		long before = allocatedBytes();
+		for (int i = 0; i < 10000; i++) {
+			tlv.enter(0x66).enter(0x73);
+			while (tlv.next()) {
+				tags += tlv.tag();
+			}
+			tlv.exit().exit().rewind();
+		}
+		long allocated = allocatedBytes() - before;
+		Assert.assertTrue(tags > 0);
+		Assert.assertTrue("Allocated " + allocated + " bytes", allocated < 10000);
+	}
+
+	@Test
+	public void testCardData() {
+		ByteArrayOutputStream bo = new ByteArrayOutputStream();
+		GPData.pretty_print_card_data(HexUtils.stringToBin(CARD_DATA), new PrintStream(bo, true));
+		String[] lines = bo.toString().split("\\r?\\n");
+		Assert.assertEquals("GlobalPlatform card", lines[0]);
+		Assert.assertEquals("Version: 2.1.1", lines[1]);
+		Assert.assertEquals("TAG3: 1.2.840.114283.3", lines[2]);
+		Assert.assertEquals("SCP version: SCP_02_15", lines[3]);
+		Assert.assertEquals("TAG5: 1.3.656.840.100.2.1.3", lines[4]);
+		Assert.assertEquals("TAG6: 1.3.6.1.4.1.42.2.110.1.2", lines[5]);
+	}
+
+	@Test
+	public void testKeyTemplate() throws Exception {
+		byte[] data = HexUtils.stringToBin("E012C00401FF8010C00402FF8010C00403FF8010");
+		List<GPKey> keys = GPData.get_key_template_list(data, 0);
+		Assert.assertEquals(3, keys.size());
+		Assert.assertEquals(0xFF, keys.get(2).getVersion());
+		Assert.assertEquals(3, keys.get(2).getID());
+		Assert.assertEquals(16, keys.get(2).getLength());
+	}
+}